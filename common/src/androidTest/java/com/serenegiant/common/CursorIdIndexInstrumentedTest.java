@@ -0,0 +1,145 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.serenegiant.db.CursorHelper;
+import com.serenegiant.db.CursorIdIndex;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.db.CursorIdIndex用のインスツルメンテーションテスト用クラス
+ * MatrixCursor等のandroid.databaseのクラスはローカルユニットテストでは実行できないので
+ * 50000行のCursorでidからpositionを探す時間をCursorHelper#findPositionFromIdと
+ * 比較してログへ出力する(結果はログへ出力するだけ)
+ */
+@RunWith(AndroidJUnit4.class)
+public class CursorIdIndexInstrumentedTest {
+	private static final String TAG = CursorIdIndexInstrumentedTest.class.getSimpleName();
+
+	private static final int NUM_ROWS = 50000;
+	private static final int NUM_LOOKUPS = 1000;
+
+	/**
+	 * 見つからないidは-1を返し、Cursorの位置を変えないことを確認
+	 * Cursorを交換した後は前のCursorの位置を候補として使い、変わった行だけ読み直すことを確認
+	 */
+	@Test
+	public void find_test() throws Exception {
+		final Cursor cursor = createCursor(0, 100);
+		final CursorIdIndex index = new CursorIdIndex();
+		index.swap(cursor);
+		cursor.moveToPosition(5);
+		assertEquals(10, index.findPosition(id(10)));
+		// 見つかった行までしか読まない
+		assertEquals(11, index.getScannedCount());
+		assertEquals(5, cursor.getPosition());
+		assertEquals(99, index.findPosition(id(99)));
+		assertEquals(3, index.findPosition(id(3)));
+		assertEquals(-1, index.findPosition(12345));
+		assertEquals(100, index.getScannedCount());
+		// 先頭に1行追加したCursorへ交換すると候補の位置は全てずれる
+		final Cursor shifted = createCursor(-1, 101);
+		index.swap(shifted);
+		assertEquals(0, index.getScannedCount());
+		assertEquals(11, index.findPosition(id(10)));
+		assertEquals(0, index.findPosition(id(-1)));
+		// 末尾に1行追加したCursorへ交換すると候補の位置のまま使える
+		final Cursor appended = createCursor(-1, 102);
+		index.swap(appended);
+		assertEquals(6, index.findPosition(id(5)));
+		assertEquals(0, index.getScannedCount());
+		assertEquals(101, index.findPosition(id(100)));
+		assertEquals(102, index.getScannedCount());
+		index.swap(null);
+		assertEquals(-1, index.findPosition(id(10)));
+	}
+
+	/**
+	 * ランダムなidを探す時間をCursorHelper#findPositionFromIdと比較する
+	 */
+	@Test
+	public void benchmark_test() throws Exception {
+		final Cursor cursor = createCursor(0, NUM_ROWS);
+		final Random random = new Random(1);
+		final long[] ids = new long[NUM_LOOKUPS];
+		for (int i = 0; i < NUM_LOOKUPS; i++) {
+			ids[i] = id(random.nextInt(NUM_ROWS));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < NUM_LOOKUPS; i++) {
+			assertTrue(CursorHelper.findPositionFromId(cursor, ids[i]) >= 0);
+		}
+		final long linear = (System.nanoTime() - start) / NUM_LOOKUPS;
+		final CursorIdIndex index = new CursorIdIndex();
+		index.swap(cursor);
+		start = System.nanoTime();
+		index.build();
+		final long build = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < NUM_LOOKUPS; i++) {
+			assertTrue(index.findPosition(ids[i]) >= 0);
+		}
+		final long indexed = (System.nanoTime() - start) / NUM_LOOKUPS;
+		// 同じ内容のCursorへ交換した後の最初の検索(候補の位置を確認するだけ)
+		index.swap(createCursor(0, NUM_ROWS));
+		start = System.nanoTime();
+		for (int i = 0; i < NUM_LOOKUPS; i++) {
+			assertTrue(index.findPosition(ids[i]) >= 0);
+		}
+		final long swapped = (System.nanoTime() - start) / NUM_LOOKUPS;
+		Log.i(TAG, String.format("%,d rows:findPositionFromId=%,dns/lookup, build=%,dus, "
+			+ "CursorIdIndex=%,dns/lookup, after swap=%,dns/lookup",
+			NUM_ROWS, linear, build / 1000, indexed, swapped));
+	}
+
+	/**
+	 * MediaStoreのidの代わり
+	 * @param i
+	 * @return
+	 */
+	private static long id(final int i) {
+		return 1000000L + i * 7L;
+	}
+
+	/**
+	 * id(start)からid(start + rows - 1)までの行を持つCursorを生成する
+	 * @param start
+	 * @param rows
+	 * @return
+	 */
+	private static Cursor createCursor(final int start, final int rows) {
+		final MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "title"}, rows);
+		for (int i = 0; i < rows; i++) {
+			cursor.addRow(new Object[] {id(start + i), "title" + i});
+		}
+		return cursor;
+	}
+}
@@ -0,0 +1,209 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.serenegiant.db.MergeCursor;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.db.MergeCursor用のインスツルメンテーションテスト用クラス
+ * MatrixCursor等のandroid.databaseのクラスはローカルユニットテストでは実行できないので
+ * 100個のCursorをまとめた時の順番/ランダムな移動の時間を以前と同じ線形探索と比較して
+ * ログへ出力する(結果はログへ出力するだけ)
+ */
+@RunWith(AndroidJUnit4.class)
+public class MergeCursorInstrumentedTest {
+	private static final String TAG = MergeCursorInstrumentedTest.class.getSimpleName();
+
+	private static final int NUM_CURSORS = 100;
+	private static final int NUM_ROWS = 100;
+	private static final int NUM_MOVES = 100000;
+
+	/**
+	 * 空やnullのCursorを含む場合も正しい位置へ移動し、
+	 * Cursorの追加/削除とrequery後は件数を数え直すことを確認
+	 */
+	@Test
+	public void position_test() throws Exception {
+		final ArrayList<Cursor> cursors = new ArrayList<>();
+		cursors.add(createCursor(0, 3));
+		cursors.add(createCursor(100, 0));
+		cursors.add(null);
+		cursors.add(createCursor(200, 2));
+		final MergeCursor cursor = new MergeCursor(cursors);
+		assertEquals(5, cursor.getCount());
+		final long[] expected = {0, 1, 2, 200, 201};
+		for (int i = 0; i < expected.length; i++) {
+			assertTrue(cursor.moveToPosition(i));
+			assertEquals(expected[i], cursor.getLong(0));
+		}
+		assertEquals(3, cursor.getCurrentIndex());
+		// 逆順
+		for (int i = expected.length - 1; i >= 0; i--) {
+			assertTrue(cursor.moveToPosition(i));
+			assertEquals(expected[i], cursor.getLong(0));
+		}
+		assertFalse(cursor.moveToPosition(expected.length));
+		cursor.add(createCursor(300, 4));
+		assertEquals(9, cursor.getCount());
+		assertTrue(cursor.moveToPosition(8));
+		assertEquals(303, cursor.getLong(0));
+		cursor.remove(0);
+		assertEquals(6, cursor.getCount());
+		assertTrue(cursor.moveToPosition(0));
+		assertEquals(200, cursor.getLong(0));
+		cursor.close();
+		assertEquals(0, cursor.getCount());
+	}
+
+	/**
+	 * 100個のCursorをまとめた時に順番/ランダムに移動する時間を以前と同じ線形探索と比較する
+	 */
+	@Test
+	public void benchmark_test() throws Exception {
+		final MergeCursor indexed = new MergeCursor(createCursors());
+		final MergeCursor linear = new LinearMergeCursor(createCursors());
+		assertEquals(NUM_CURSORS * NUM_ROWS, indexed.getCount());
+		assertEquals(NUM_CURSORS * NUM_ROWS, linear.getCount());
+		// ウオームアップ
+		sequential(indexed);
+		sequential(linear);
+		final long seqLinear = sequential(linear);
+		final long seqIndexed = sequential(indexed);
+		final long randomLinear = random(linear);
+		final long randomIndexed = random(indexed);
+		Log.i(TAG, String.format("%d cursors x %d rows:sequential linear=%,dns/move, indexed=%,dns/move",
+			NUM_CURSORS, NUM_ROWS, seqLinear, seqIndexed));
+		Log.i(TAG, String.format("%d cursors x %d rows:random linear=%,dns/move, indexed=%,dns/move",
+			NUM_CURSORS, NUM_ROWS, randomLinear, randomIndexed));
+		indexed.close();
+		linear.close();
+	}
+
+	/**
+	 * 先頭から最後まで順に移動する
+	 * @param cursor
+	 * @return 1回あたりの時間[ナノ秒]
+	 */
+	private static long sequential(final Cursor cursor) {
+		long sum = 0;
+		final long start = System.nanoTime();
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			sum += cursor.getLong(0);
+		}
+		final long time = System.nanoTime() - start;
+		assertTrue(sum > 0);
+		return time / cursor.getCount();
+	}
+
+	/**
+	 * ランダムな位置へ移動する
+	 * @param cursor
+	 * @return 1回あたりの時間[ナノ秒]
+	 */
+	private static long random(final Cursor cursor) {
+		final Random random = new Random(1);
+		final int count = cursor.getCount();
+		final long start = System.nanoTime();
+		for (int i = 0; i < NUM_MOVES; i++) {
+			final int pos = random.nextInt(count);
+			assertTrue(cursor.moveToPosition(pos));
+			assertEquals((pos / NUM_ROWS) * 1000 + pos % NUM_ROWS, cursor.getLong(0));
+		}
+		return (System.nanoTime() - start) / NUM_MOVES;
+	}
+
+	private static ArrayList<Cursor> createCursors() {
+		final ArrayList<Cursor> cursors = new ArrayList<>(NUM_CURSORS);
+		for (int i = 0; i < NUM_CURSORS; i++) {
+			cursors.add(createCursor(i * 1000, NUM_ROWS));
+		}
+		return cursors;
+	}
+
+	private static Cursor createCursor(final long start, final int rows) {
+		final MatrixCursor cursor = new MatrixCursor(new String[] {"_id"}, rows);
+		for (int i = 0; i < rows; i++) {
+			cursor.addRow(new Object[] {start + i});
+		}
+		return cursor;
+	}
+
+	/**
+	 * 比較用に移動毎に全てのCursorを線形探索して件数を数える以前の実装
+	 */
+	private static class LinearMergeCursor extends MergeCursor {
+		private Cursor mCurrent;
+
+		private LinearMergeCursor(final ArrayList<Cursor> cursors) {
+			super(cursors);
+		}
+
+		@Override
+		public int getCount() {
+			int count = 0;
+			final int n = getCursorCount();
+			for (int i = 0; i < n; i++) {
+				final Cursor cursor = getCursor(i);
+				if (cursor != null) {
+					count += cursor.getCount();
+				}
+			}
+			return count;
+		}
+
+		@Override
+		public boolean onMove(final int oldPosition, final int newPosition) {
+			mCurrent = null;
+			int cursorStartPos = 0;
+			final int n = getCursorCount();
+			for (int i = 0; i < n; i++) {
+				final Cursor cursor = getCursor(i);
+				if (cursor == null) {
+					continue;
+				}
+				if (newPosition < (cursorStartPos + cursor.getCount())) {
+					mCurrent = cursor;
+					break;
+				}
+				cursorStartPos += cursor.getCount();
+			}
+			return (mCurrent != null) && mCurrent.moveToPosition(newPosition - cursorStartPos);
+		}
+
+		@Override
+		public long getLong(final int column) {
+			return mCurrent.getLong(column);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.serenegiant.db.BlobChunkReader;
+import com.serenegiant.db.SQLiteBlobHelper;
+import com.serenegiant.db.SQLiteBlobStream;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.db.SQLiteBlobStream用のインスツルメンテーションテスト用クラス
+ * SQLiteはローカルユニットテストでは実行できないのでメモリー上のデータベースを使う。
+ * float[]のBLOBを読み込む時のヒープ使用量の最大値をSQLiteBlobHelper#getBlobFloatArrayと
+ * 比較してログへ出力する(結果はログへ出力するだけ)
+ */
+@RunWith(AndroidJUnit4.class)
+public class SQLiteBlobStreamInstrumentedTest {
+	private static final String TAG = SQLiteBlobStreamInstrumentedTest.class.getSimpleName();
+
+	private static final String TABLE_CHUNKS = "chunks";
+	private static final String TABLE_TRACKS = "tracks";
+	private static final String COLUMN_VALUES = "track_values";
+	/**
+	 * CursorWindow(2MB)へ入るサイズ(1.5MB)
+	 */
+	private static final int NUM_SMALL = 384 * 1024;
+	/**
+	 * CursorWindowへ入らないサイズ(16MB)
+	 */
+	private static final int NUM_LARGE = 4 * 1024 * 1024;
+	private static final int WORK_SIZE = 4096;
+
+	private SQLiteDatabase mDatabase;
+
+	@Before
+	public void setUp() {
+		mDatabase = SQLiteDatabase.create(null);
+		SQLiteBlobStream.createTable(mDatabase, TABLE_CHUNKS);
+		mDatabase.execSQL("CREATE TABLE " + TABLE_TRACKS + " (_id INTEGER PRIMARY KEY, "
+			+ COLUMN_VALUES + " BLOB)");
+	}
+
+	@After
+	public void tearDown() {
+		mDatabase.close();
+	}
+
+	/**
+	 * チャンク用テーブルへ書き込んで読み込めることを確認
+	 */
+	@Test
+	public void chunked_test() throws Exception {
+		final float[] values = createValues(NUM_LARGE);
+		mDatabase.beginTransaction();
+		try {
+			final SQLiteBlobStream.Writer writer = SQLiteBlobStream.openWriter(mDatabase, TABLE_CHUNKS, 1);
+			for (int i = 0; i < NUM_LARGE; i += 1000) {
+				writer.write(values, i, Math.min(1000, NUM_LARGE - i));
+			}
+			writer.close();
+			assertEquals(NUM_LARGE * 4L, writer.getLength());
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			mDatabase.endTransaction();
+		}
+		final BlobChunkReader reader = SQLiteBlobStream.openReader(mDatabase, TABLE_CHUNKS, 1);
+		try {
+			assertEquals(NUM_LARGE, verify(reader, values));
+		} finally {
+			reader.close();
+		}
+		assertTrue(SQLiteBlobStream.delete(mDatabase, TABLE_CHUNKS, 1) > 0);
+	}
+
+	/**
+	 * 既存のBLOBカラムのfloat[]を読み込む時のヒープ使用量の最大値を比較する
+	 */
+	@Test
+	public void memory_test() throws Exception {
+		final float[] values = createValues(NUM_SMALL);
+		final SQLiteStatement insert = mDatabase.compileStatement(
+			"INSERT INTO " + TABLE_TRACKS + " (_id, " + COLUMN_VALUES + ") VALUES (1, ?)");
+		SQLiteBlobHelper.bindBlobFloatArray(insert, 1, values);
+		insert.executeInsert();
+		insert.close();
+
+		// SQLiteBlobHelper#getBlobFloatArray
+		long base = usedMemory();
+		long start = System.nanoTime();
+		final Cursor cursor = mDatabase.rawQuery("SELECT " + COLUMN_VALUES + " FROM " + TABLE_TRACKS
+			+ " WHERE _id=1", null);
+		long legacyPeak;
+		try {
+			assertTrue(cursor.moveToFirst());
+			final float[] result = SQLiteBlobHelper.getBlobFloatArray(cursor, 0);
+			// GCしていないので変換前のbyte[]も含む
+			legacyPeak = usedMemory(false) - base;
+			assertArrayEquals(values, result, 0.0f);
+		} finally {
+			cursor.close();
+		}
+		final long legacyTime = System.nanoTime() - start;
+
+		// SQLiteBlobStream#openSubstrReader
+		base = usedMemory();
+		start = System.nanoTime();
+		final BlobChunkReader reader = SQLiteBlobStream.openSubstrReader(
+			mDatabase, TABLE_TRACKS, COLUMN_VALUES, 1);
+		long streamPeak = 0;
+		try {
+			final float[] work = new float[WORK_SIZE];
+			int pos = 0;
+			int n;
+			while ((n = reader.read(work, 0, WORK_SIZE)) > 0) {
+				for (int i = 0; i < n; i++) {
+					assertEquals(values[pos + i], work[i], 0.0f);
+				}
+				pos += n;
+				streamPeak = Math.max(streamPeak, usedMemory(false) - base);
+			}
+			assertEquals(NUM_SMALL, pos);
+		} finally {
+			reader.close();
+		}
+		final long streamTime = System.nanoTime() - start;
+		Log.i(TAG, String.format("%,d bytes blob:getBlobFloatArray=%,dKB/%,dms, substr stream=%,dKB/%,dms",
+			NUM_SMALL * 4, legacyPeak / 1024, legacyTime / 1000000, streamPeak / 1024, streamTime / 1000000));
+	}
+
+	/**
+	 * 全て読み込んで書き込んだ値と一致するか確認する
+	 * @param reader
+	 * @param values
+	 * @return 読み込んだ要素数
+	 * @throws Exception
+	 */
+	private static int verify(final BlobChunkReader reader, final float[] values) throws Exception {
+		final float[] work = new float[WORK_SIZE];
+		int pos = 0;
+		int n;
+		while ((n = reader.read(work, 0, WORK_SIZE)) > 0) {
+			for (int i = 0; i < n; i++) {
+				assertEquals(values[pos + i], work[i], 0.0f);
+			}
+			pos += n;
+		}
+		return pos;
+	}
+
+	private static float[] createValues(final int num) {
+		final float[] result = new float[num];
+		for (int i = 0; i < num; i++) {
+			result[i] = (float)Math.sin(i * 0.001);
+		}
+		return result;
+	}
+
+	private static long usedMemory() {
+		return usedMemory(true);
+	}
+
+	private static long usedMemory(final boolean gc) {
+		final Runtime runtime = Runtime.getRuntime();
+		if (gc) {
+			runtime.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,245 @@
+package com.serenegiant.collections;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 容量固定のロックフリーなMPMC(複数生産者/複数消費者)リングバッファキュー
+ * 各スロット毎にシーケンス番号を持たせてCASでhead/tailを進める方式(Vyukov方式)
+ * キューへの追加/取り出し時にオブジェクト生成しない
+ * 他のスレッドが追加/取り出しの途中のスロットでは一杯/空とはみなさずに
+ * 終わるのを待つので、#offer/#pollは実際に一杯/空の時だけfalse/nullを返す
+ * 容量が2のべき乗の時はビットマスク、それ以外は剰余でスロット位置を計算する
+ * @param <E>
+ */
+public class LockFreeRingQueue<E> {
+	private final int mCapacity;
+	/**
+	 * 容量が2のべき乗の時のビットマスク, それ以外は-1
+	 */
+	private final int mMask;
+	@NonNull
+	private final Object[] mItems;
+	@NonNull
+	private final AtomicLongArray mSequences;
+	@NonNull
+	private final AtomicLong mHead = new AtomicLong();
+	@NonNull
+	private final AtomicLong mTail = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 * @param capacity 最大保持数
+	 */
+	public LockFreeRingQueue(@IntRange(from=1) final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity should be positive, " + capacity);
+		}
+		mCapacity = capacity;
+		mMask = (capacity & (capacity - 1)) == 0 ? capacity - 1 : -1;
+		mItems = new Object[mCapacity];
+		mSequences = new AtomicLongArray(mCapacity);
+		for (int i = 0; i < mCapacity; i++) {
+			mSequences.set(i, i);
+		}
+	}
+
+	/**
+	 * 最大保持数を取得
+	 * @return
+	 */
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * キューの末尾へ追加する
+	 * @param item
+	 * @return true: 追加できた, false: キューが一杯で追加できなかった
+	 */
+	public boolean offer(@NonNull final E item) {
+		long pos = mTail.get();
+		for ( ; ; ) {
+			final int ix = index(pos);
+			final long seq = mSequences.get(ix);
+			final long dif = seq - pos;
+			if (dif == 0) {
+				if (mTail.compareAndSet(pos, pos + 1)) {
+					mItems[ix] = item;
+					mSequences.lazySet(ix, pos + 1);
+					return true;
+				}
+				pos = mTail.get();
+			} else if (dif < 0) {
+				if (pos - mHead.get() >= mCapacity) {
+					// 一杯
+					return false;
+				}
+				// 他のスレッドがこのスロットから取り出している途中なので
+				// 一杯とはみなさずに取り出し終わるのを待つ
+				pos = mTail.get();
+			} else {
+				// 他のスレッドに先を越された
+				pos = mTail.get();
+			}
+		}
+	}
+
+	/**
+	 * キューの先頭を取り出す
+	 * @return キューが空ならnull
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable
+	public E poll() {
+		long pos = mHead.get();
+		for ( ; ; ) {
+			final int ix = index(pos);
+			final long seq = mSequences.get(ix);
+			final long dif = seq - (pos + 1);
+			if (dif == 0) {
+				if (mHead.compareAndSet(pos, pos + 1)) {
+					final E result = (E)mItems[ix];
+					mItems[ix] = null;
+					mSequences.lazySet(ix, pos + mCapacity);
+					return result;
+				}
+				pos = mHead.get();
+			} else if (dif < 0) {
+				if (mTail.get() <= pos) {
+					// 空
+					return null;
+				}
+				// 他のスレッドがこのスロットへ追加している途中なので
+				// 空とはみなさずに追加し終わるのを待つ
+				pos = mHead.get();
+			} else {
+				// 他のスレッドに先を越された
+				pos = mHead.get();
+			}
+		}
+	}
+
+	/**
+	 * キューの先頭を取り出さずに返す
+	 * 他のスレッドが同時に取り出す可能性があるので目安としてのみ使うこと
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable
+	public E peek() {
+		for ( ; ; ) {
+			final long pos = mHead.get();
+			final int ix = index(pos);
+			final long seq = mSequences.get(ix);
+			if (seq - (pos + 1) < 0) {
+				return null;
+			}
+			final E result = (E)mItems[ix];
+			if ((result != null) && (pos == mHead.get())) {
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * 先頭要素のシーケンス番号を取得
+	 * #peekAtで先頭から順に要素を参照する時に使う
+	 * @return
+	 */
+	public long headPosition() {
+		return mHead.get();
+	}
+
+	/**
+	 * 次に追加する要素のシーケンス番号を取得
+	 * #peekAtで先頭から順に要素を参照する時に使う
+	 * @return
+	 */
+	public long tailPosition() {
+		return mTail.get();
+	}
+
+	/**
+	 * 指定したシーケンス番号の要素を取り出さずに返す
+	 * 他のスレッドが同時に追加/取り出しする可能性があるので目安としてのみ使うこと
+	 * (返した直後に取り出されたり、再利用されて別の位置へ追加されることもある)
+	 * @param pos #headPosition以上#tailPosition未満のシーケンス番号
+	 * @return 追加途中または既に取り出された時はnull
+	 */
+	@SuppressWarnings("unchecked")
+	@Nullable
+	public E peekAt(final long pos) {
+		final int ix = index(pos);
+		if (mSequences.get(ix) != pos + 1) {
+			return null;
+		}
+		final E result = (E)mItems[ix];
+		// 読み込んでいる間に取り出されていないことを確認する
+		return mSequences.get(ix) == pos + 1 ? result : null;
+	}
+
+	/**
+	 * キュー内の個数を取得
+	 * 同時に追加/取り出しされている場合には目安の値
+	 * @return
+	 */
+	public int size() {
+		for ( ; ; ) {
+			final long head = mHead.get();
+			final long tail = mTail.get();
+			if (head == mHead.get()) {
+				final long n = tail - head;
+				return n < 0 ? 0 : (n > mCapacity ? mCapacity : (int)n);
+			}
+		}
+	}
+
+	/**
+	 * キューが空かどうか
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * キュー内の要素を全て取り除く
+	 */
+	public void clear() {
+		while (poll() != null) {
+			// do nothing
+		}
+	}
+
+	/**
+	 * シーケンス番号からスロット位置を取得
+	 * @param pos
+	 * @return
+	 */
+	private int index(final long pos) {
+		return mMask >= 0 ? (int)(pos & mMask) : (int)(pos % mCapacity);
+	}
+}
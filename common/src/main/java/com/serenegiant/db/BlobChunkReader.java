@@ -0,0 +1,300 @@
+package com.serenegiant.db;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import com.serenegiant.io.IReadable;
+import com.serenegiant.utils.PrimitiveArrayCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 大きなBLOBを分割したチャンク単位で順に読み込むための基底クラス
+ * Cursor#getBlobで全体をbyte[]として読み込んでから別の配列へ変換するのではなく、
+ * チャンク1つ分だけを保持しながらbyte列/プリミティブ配列として読み込むので
+ * 最大でもチャンク1つ分と読み込み先の配列分のメモリしか使わない。
+ * プリミティブ配列として読み込む時はチャンクの境界をまたぐ要素も正しく読み込む。
+ * スレッドセーフではない
+ */
+public abstract class BlobChunkReader implements IReadable, ReadableByteChannel {
+
+	private static final int TYPE_SHORT = 0;
+	private static final int TYPE_INT = 1;
+	private static final int TYPE_LONG = 2;
+	private static final int TYPE_FLOAT = 3;
+	private static final int TYPE_DOUBLE = 4;
+
+	@NonNull
+	private final ByteOrder mOrder;
+	/**
+	 * チャンクの境界をまたぐ要素を読み込むためのワーク
+	 */
+	@NonNull
+	private final byte[] mCarry = new byte[PrimitiveArrayCodec.BYTES_LONG];
+	@Nullable
+	private byte[] mChunk;
+	private int mChunkPos;
+	private int mChunkLength;
+	private boolean mEOS;
+	private boolean mClosed;
+
+	/**
+	 * コンストラクタ
+	 * @param order プリミティブ配列として読み込む時のバイトオーダー
+	 *              ArrayUtils/SQLiteBlobHelperで書き込んだ値ならByteOrder.nativeOrder()
+	 */
+	protected BlobChunkReader(@NonNull final ByteOrder order) {
+		mOrder = order;
+	}
+
+	/**
+	 * 次のチャンクを読み込む
+	 * @return 終端ならnull, 長さ0の配列を返してもよい
+	 * @throws IOException
+	 */
+	@Nullable
+	protected abstract byte[] readNextChunk() throws IOException;
+
+	/**
+	 * 読み込み終了時の処理, Cursor等を保持していれば破棄する
+	 * @throws IOException
+	 */
+	protected void internalClose() throws IOException {
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !mClosed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!mClosed) {
+			mClosed = true;
+			mChunk = null;
+			internalClose();
+		}
+	}
+
+	@Override
+	public int read(@NonNull final ByteBuffer dst) throws IOException {
+		int result = 0;
+		while (dst.hasRemaining() && fill()) {
+			final int n = Math.min(dst.remaining(), mChunkLength - mChunkPos);
+			dst.put(mChunk, mChunkPos, n);
+			mChunkPos += n;
+			result += n;
+		}
+		return (result == 0) && mEOS ? -1 : result;
+	}
+
+	@Override
+	public int read(@NonNull final byte[] b, final int off, final int len) throws IOException {
+		int result = 0;
+		while ((result < len) && fill()) {
+			final int n = Math.min(len - result, mChunkLength - mChunkPos);
+			System.arraycopy(mChunk, mChunkPos, b, off + result, n);
+			mChunkPos += n;
+			result += n;
+		}
+		return (result == 0) && (len > 0) && mEOS ? -1 : result;
+	}
+
+	/**
+	 * 現在のチャンク内の残りバイト数を返す
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return mChunk != null ? mChunkLength - mChunkPos : 0;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		long result = 0;
+		while ((result < n) && fill()) {
+			final int m = (int)Math.min(n - result, mChunkLength - mChunkPos);
+			mChunkPos += m;
+			result += m;
+		}
+		return result;
+	}
+
+	/**
+	 * short配列として読み込む
+	 * @param dst
+	 * @param off
+	 * @param num 読み込む最大要素数
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException 要素の途中で終端に達した時
+	 */
+	public int read(@NonNull final short[] dst, final int off, final int num) throws IOException {
+		return readElements(dst, TYPE_SHORT, PrimitiveArrayCodec.BYTES_SHORT, off, num);
+	}
+
+	/**
+	 * int配列として読み込む
+	 * @param dst
+	 * @param off
+	 * @param num 読み込む最大要素数
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException 要素の途中で終端に達した時
+	 */
+	public int read(@NonNull final int[] dst, final int off, final int num) throws IOException {
+		return readElements(dst, TYPE_INT, PrimitiveArrayCodec.BYTES_INT, off, num);
+	}
+
+	/**
+	 * long配列として読み込む
+	 * @param dst
+	 * @param off
+	 * @param num 読み込む最大要素数
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException 要素の途中で終端に達した時
+	 */
+	public int read(@NonNull final long[] dst, final int off, final int num) throws IOException {
+		return readElements(dst, TYPE_LONG, PrimitiveArrayCodec.BYTES_LONG, off, num);
+	}
+
+	/**
+	 * float配列として読み込む
+	 * @param dst
+	 * @param off
+	 * @param num 読み込む最大要素数
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException 要素の途中で終端に達した時
+	 */
+	public int read(@NonNull final float[] dst, final int off, final int num) throws IOException {
+		return readElements(dst, TYPE_FLOAT, PrimitiveArrayCodec.BYTES_FLOAT, off, num);
+	}
+
+	/**
+	 * double配列として読み込む
+	 * @param dst
+	 * @param off
+	 * @param num 読み込む最大要素数
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException 要素の途中で終端に達した時
+	 */
+	public int read(@NonNull final double[] dst, final int off, final int num) throws IOException {
+		return readElements(dst, TYPE_DOUBLE, PrimitiveArrayCodec.BYTES_DOUBLE, off, num);
+	}
+
+	/**
+	 * プリミティブ配列として読み込む
+	 * チャンク内の要素はチャンクから直接変換し、チャンクの境界をまたぐ要素だけ
+	 * mCarryへ集めてから変換する
+	 * @param dst
+	 * @param type
+	 * @param size 要素のバイト数
+	 * @param off
+	 * @param num
+	 * @return 読み込んだ要素数, 終端なら-1
+	 * @throws IOException
+	 */
+	private int readElements(@NonNull final Object dst,
+		final int type, final int size, final int off, final int num) throws IOException {
+
+		int result = 0;
+		while ((result < num) && fill()) {
+			final int remaining = mChunkLength - mChunkPos;
+			if (remaining >= size) {
+				final int n = Math.min(num - result, remaining / size);
+				decode(mChunk, mChunkPos, n * size, dst, type, off + result);
+				mChunkPos += n * size;
+				result += n;
+			} else {
+				// チャンクの境界をまたぐ要素
+				int filled = 0;
+				while ((filled < size) && fill()) {
+					final int n = Math.min(size - filled, mChunkLength - mChunkPos);
+					System.arraycopy(mChunk, mChunkPos, mCarry, filled, n);
+					mChunkPos += n;
+					filled += n;
+				}
+				if (filled < size) {
+					throw new IOException("unexpected end of blob");
+				}
+				decode(mCarry, 0, size, dst, type, off + result);
+				result++;
+			}
+		}
+		return (result == 0) && (num > 0) && mEOS ? -1 : result;
+	}
+
+	private void decode(@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final Object dst, final int type, final int dstOffset) {
+
+		switch (type) {
+		case TYPE_SHORT:
+			PrimitiveArrayCodec.decode(src, srcOffset, length, mOrder, (short[])dst, dstOffset);
+			break;
+		case TYPE_INT:
+			PrimitiveArrayCodec.decode(src, srcOffset, length, mOrder, (int[])dst, dstOffset);
+			break;
+		case TYPE_LONG:
+			PrimitiveArrayCodec.decode(src, srcOffset, length, mOrder, (long[])dst, dstOffset);
+			break;
+		case TYPE_FLOAT:
+			PrimitiveArrayCodec.decode(src, srcOffset, length, mOrder, (float[])dst, dstOffset);
+			break;
+		case TYPE_DOUBLE:
+			PrimitiveArrayCodec.decode(src, srcOffset, length, mOrder, (double[])dst, dstOffset);
+			break;
+		}
+	}
+
+	/**
+	 * 現在のチャンクを読み終わっていれば次のチャンクを読み込む
+	 * @return 読み込めるデータがあればtrue, 終端ならfalse
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		ensureOpen();
+		while ((mChunk == null) || (mChunkPos >= mChunkLength)) {
+			if (mEOS) {
+				return false;
+			}
+			final byte[] chunk = readNextChunk();
+			if (chunk == null) {
+				mEOS = true;
+				mChunk = null;
+				return false;
+			}
+			mChunk = chunk;
+			mChunkPos = 0;
+			mChunkLength = chunk.length;
+		}
+		return true;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (mClosed) {
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.serenegiant.db;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * UriMatcher#compileで生成する変更不可なUriMatcher
+ * UriMatcherは各セグメント毎に子ノードを登録順に線形探索するが、
+ * こちらは固定文字列の子ノードをHashMapから取得し、"#"と"*"の子ノードは
+ * 各ノード毎に1つだけ保持する。
+ * UriMatcherと同じく登録順で先に一致した子ノードを使うので、
+ * 数字("#")の子ノードは固定文字列の子ノードより先に登録されている時か
+ * 固定文字列の子ノードに一致しなかった時だけ数字かどうかを確認する。
+ * 生成後は変更しないのでロックせずに複数のスレッドから同時に使うことができる
+ */
+public final class CompiledUriMatcher {
+
+	@NonNull
+	private final Node mRoot;
+
+	/**
+	 * コンストラクタ
+	 * UriMatcher#compileから呼び出す
+	 * @param root
+	 */
+	/*package*/ CompiledUriMatcher(@NonNull final Node root) {
+		mRoot = root;
+	}
+
+	/**
+	 * UriMatcher#match(Uri)と同じ
+	 * @param uri
+	 * @return 一致しなければUriMatcher生成時に指定したコード(通常はUriMatcher.NO_MATCH)
+	 */
+	public int match(@NonNull final Uri uri) {
+		return match(uri.getAuthority(), uri.getPathSegments());
+	}
+
+	/**
+	 * UriMatcher#match(String, List)と同じ
+	 * @param authority
+	 * @param pathSegments
+	 * @return 一致しなければUriMatcher生成時に指定したコード(通常はUriMatcher.NO_MATCH)
+	 */
+	public int match(@Nullable final String authority, @NonNull final List<String> pathSegments) {
+		final int li = pathSegments.size();
+		if ((li == 0) && (authority == null)) {
+			return mRoot.code;
+		}
+		Node node = mRoot;
+		for (int i = -1; i < li; i++) {
+			node = node.child(i < 0 ? authority : pathSegments.get(i));
+			if (node == null) {
+				return UriMatcher.NO_MATCH;
+			}
+		}
+		return node.code;
+	}
+
+	/**
+	 * UriMatcherの各ノードを変換したもの
+	 */
+	/*package*/ static final class Node {
+		/*package*/ final int code;
+		/**
+		 * 親ノードの子ノード中での登録順
+		 */
+		private final int order;
+		@Nullable
+		private final HashMap<String, Node> exact;
+		@Nullable
+		private final Node number;
+		@Nullable
+		private final Node text;
+
+		/**
+		 * コンストラクタ
+		 * @param code
+		 * @param order 親ノードの子ノード中での登録順
+		 * @param exact 固定文字列の子ノード, なければnull
+		 * @param number 最初に登録された"#"の子ノード, なければnull
+		 * @param text 最初に登録された"*"の子ノード, なければnull
+		 */
+		/*package*/ Node(final int code, final int order,
+			@Nullable final HashMap<String, Node> exact,
+			@Nullable final Node number, @Nullable final Node text) {
+
+			this.code = code;
+			this.order = order;
+			this.exact = exact;
+			this.number = number;
+			this.text = text;
+		}
+
+		/**
+		 * セグメントに一致する子ノードを取得する
+		 * 複数一致する時は登録順で先の子ノードを返す
+		 * @param u
+		 * @return 一致しなければnull
+		 */
+		@Nullable
+		private Node child(@Nullable final String u) {
+			Node result = (exact != null) && (u != null) ? exact.get(u) : null;
+			if ((number != null) && (u != null)
+				&& ((result == null) || (number.order < result.order))
+				&& UriMatcher.isNumber(u)) {
+
+				result = number;
+			}
+			if ((text != null)
+				&& ((result == null) || (text.order < result.order))) {
+
+				result = text;
+			}
+			return result;
+		}
+	}
+}
@@ -194,6 +194,7 @@ public final class CursorHelper {
 //--------------------------------------------------------------------------------
 	/**
 	 * カラム名"_id"から値を読み取り指定したidと一致するpositionを探す。見つからなければ-1を返す
+	 * 呼び出し毎に先頭から順に読むので同じCursorで繰り返し探す時はCursorIdIndexを使うこと
 	 *
 	 * @param cursor
 	 * @param requestID
@@ -0,0 +1,333 @@
+package com.serenegiant.db;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Cursorのidカラムの値からpositionを探すためのインデックス
+ * CursorHelper#findPositionFromIdは呼び出し毎にCursorを先頭から順に読むが、
+ * こちらは読んだ行のid→positionをlong→intのオープンアドレス法のハッシュテーブルへ
+ * 記録して、見つからない時だけ前回読んだ行の続きから読む。
+ * Cursorを交換した時は前のCursorで記録したpositionを候補として残しておき、
+ * その位置の行のidが一致すればそのまま使うので、行の追加/削除が少なければ
+ * 交換後も全ての行を読み直さずに済む。
+ * Cursorの位置を移動するが、呼び出し前の位置へ戻す
+ */
+public class CursorIdIndex {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = CursorIdIndex.class.getSimpleName();
+
+	private static final String DEFAULT_ID_COLUMN = "_id";
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int EMPTY = -1;
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final String mIdColumn;
+	@Nullable
+	private Cursor mCursor;
+	private int mIdColumnIndex = -1;
+	/**
+	 * 先頭から順に読んでインデックスへ追加した行数
+	 */
+	private int mScanned;
+	/**
+	 * Cursorを交換する毎に増やす世代番号
+	 */
+	private int mGeneration;
+	// ハッシュテーブル, mPositions[i] == EMPTYなら空き
+	private long[] mKeys;
+	private int[] mPositions;
+	private int[] mGenerations;
+	private int mSize;
+	private int mMask;
+	// 統計
+	private long mHitCount, mHintCount, mScanCount;
+
+	/**
+	 * コンストラクタ
+	 * idカラムは"_id"
+	 */
+	public CursorIdIndex() {
+		this(DEFAULT_ID_COLUMN);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param idColumn idカラムの名前
+	 */
+	public CursorIdIndex(@NonNull final String idColumn) {
+		mIdColumn = idColumn;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * インデックスを作るCursorを交換する
+	 * 前のCursorで記録したpositionは新しいCursorでの候補として残す
+	 * @param cursor
+	 */
+	public void swap(@Nullable final Cursor cursor) {
+		synchronized (mSync) {
+			if (cursor == mCursor) {
+				return;
+			}
+			mCursor = cursor;
+			mIdColumnIndex = -1;
+			if ((cursor != null) && (mSize > cursor.getCount() * 2 + INITIAL_CAPACITY)) {
+				// 行数に比べて古い候補が多すぎる時は破棄する
+				clearLocked();
+			}
+			invalidateLocked();
+		}
+	}
+
+	/**
+	 * Cursorの内容が変わった時(requery等)に呼び出す
+	 * 記録したpositionは候補として残す
+	 */
+	public void invalidate() {
+		synchronized (mSync) {
+			invalidateLocked();
+		}
+	}
+
+	/**
+	 * 記録したpositionを全て破棄する
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			clearLocked();
+			invalidateLocked();
+		}
+	}
+
+	/**
+	 * 全ての行を読んでインデックスを作る
+	 */
+	public void build() {
+		synchronized (mSync) {
+			findLocked(Long.MIN_VALUE, true);
+		}
+	}
+
+	/**
+	 * 指定したidの行のpositionを探す
+	 * @param id
+	 * @return 見つからなければ-1
+	 */
+	public int findPosition(final long id) {
+		synchronized (mSync) {
+			return findLocked(id, false);
+		}
+	}
+
+	/**
+	 * インデックスへ追加した行数を取得
+	 * @return
+	 */
+	public int getScannedCount() {
+		synchronized (mSync) {
+			return mScanned;
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		synchronized (mSync) {
+			return TAG + "{scanned=" + mScanned + ",size=" + mSize
+				+ ",hit=" + mHitCount + ",hint=" + mHintCount + ",scan=" + mScanCount + "}";
+		}
+	}
+
+	/**
+	 * 指定したidの行のpositionを探す
+	 * @param id
+	 * @param scanAll trueなら見つかっても最後の行までインデックスへ追加する
+	 * @return
+	 */
+	private int findLocked(final long id, final boolean scanAll) {
+		final Cursor cursor = mCursor;
+		if ((cursor == null) || cursor.isClosed()) {
+			return -1;
+		}
+		final int count = cursor.getCount();
+		final int ix = indexOf(id);
+		if (!scanAll && (ix >= 0)) {
+			final int position = mPositions[ix];
+			if (mGenerations[ix] == mGeneration) {
+				mHitCount++;
+				return position;
+			}
+			if ((position < count) && (readId(cursor, position) == id)) {
+				// 前のCursorで記録した位置のままだった
+				mGenerations[ix] = mGeneration;
+				mHintCount++;
+				return position;
+			}
+		}
+		if (mScanned >= count) {
+			// 全ての行を読み終わっているので存在しない
+			return -1;
+		}
+		// 前回読んだ行の続きから読む
+		mScanCount++;
+		final int savedPosition = cursor.getPosition();
+		int result = -1;
+		try {
+			if (cursor.moveToPosition(mScanned)) {
+				final int column = getIdColumnIndex(cursor);
+				do {
+					final long rowId = cursor.getLong(column);
+					putLocked(rowId, mScanned++);
+					if ((rowId == id) && !scanAll) {
+						result = mScanned - 1;
+						break;
+					}
+				} while (cursor.moveToNext());
+			}
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+		} finally {
+			cursor.moveToPosition(savedPosition);
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したpositionの行のidを読み込む
+	 * @param cursor
+	 * @param position
+	 * @return 読み込めなければLong.MIN_VALUE
+	 */
+	private long readId(@NonNull final Cursor cursor, final int position) {
+		final int savedPosition = cursor.getPosition();
+		try {
+			if (cursor.moveToPosition(position)) {
+				return cursor.getLong(getIdColumnIndex(cursor));
+			}
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+		} finally {
+			cursor.moveToPosition(savedPosition);
+		}
+		return Long.MIN_VALUE;
+	}
+
+	private int getIdColumnIndex(@NonNull final Cursor cursor) {
+		if (mIdColumnIndex < 0) {
+			mIdColumnIndex = cursor.getColumnIndexOrThrow(mIdColumn);
+		}
+		return mIdColumnIndex;
+	}
+
+	private void invalidateLocked() {
+		mGeneration++;
+		mScanned = 0;
+	}
+
+	private void clearLocked() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+//--------------------------------------------------------------------------------
+	private void allocate(final int capacity) {
+		mKeys = new long[capacity];
+		mPositions = new int[capacity];
+		mGenerations = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mPositions[i] = EMPTY;
+		}
+		mMask = capacity - 1;
+		mSize = 0;
+	}
+
+	private static int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * ハッシュテーブル内のidの位置を取得
+	 * @param id
+	 * @return 見つからなければ-1
+	 */
+	private int indexOf(final long id) {
+		int ix = hash(id) & mMask;
+		while (mPositions[ix] != EMPTY) {
+			if (mKeys[ix] == id) {
+				return ix;
+			}
+			ix = (ix + 1) & mMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * ハッシュテーブルへidとpositionを追加する, 前の世代で記録したpositionは上書きする
+	 * @param id
+	 * @param position
+	 */
+	private void putLocked(final long id, final int position) {
+		if ((mSize + 1) * 2 > mKeys.length) {
+			rehash(mKeys.length * 2);
+		}
+		int ix = hash(id) & mMask;
+		while (mPositions[ix] != EMPTY) {
+			if (mKeys[ix] == id) {
+				if (mGenerations[ix] != mGeneration) {
+					// 同じidが複数ある時は最初の行のpositionを使う
+					mPositions[ix] = position;
+					mGenerations[ix] = mGeneration;
+				}
+				return;
+			}
+			ix = (ix + 1) & mMask;
+		}
+		mKeys[ix] = id;
+		mPositions[ix] = position;
+		mGenerations[ix] = mGeneration;
+		mSize++;
+	}
+
+	private void rehash(final int capacity) {
+		final long[] keys = mKeys;
+		final int[] positions = mPositions;
+		final int[] generations = mGenerations;
+		allocate(capacity);
+		for (int i = 0; i < keys.length; i++) {
+			if (positions[i] != EMPTY) {
+				int ix = hash(keys[i]) & mMask;
+				while (mPositions[ix] != EMPTY) {
+					ix = (ix + 1) & mMask;
+				}
+				mKeys[ix] = keys[i];
+				mPositions[ix] = positions[i];
+				mGenerations[ix] = generations[i];
+				mSize++;
+			}
+		}
+	}
+}
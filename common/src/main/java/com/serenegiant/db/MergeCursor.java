@@ -30,6 +30,10 @@ import androidx.annotation.Nullable;
 
 /**
  * ArrayListで複数のCursorを保持して1つのCursorとして扱うためのオレオレMergeCursor実装
+ * 各Cursorの開始位置の累積和をインデックスとして保持して、移動時は二分探索で
+ * Cursorを探す(現在のCursorの範囲内の移動なら探さない)。
+ * インデックスはCursorの追加/削除、requery、各CursorのDataSetObserverへの
+ * 変更通知で破棄して次に必要になった時に作り直す
  */
 public class MergeCursor extends AbstractCursor {
 	private static final boolean DEBUG = false;	// set false on production
@@ -40,6 +44,12 @@ public class MergeCursor extends AbstractCursor {
 	private Cursor mCursor; // updated in onMove
 	private int mIndex;
 	private DataSetObserver mObserver;
+	/**
+	 * 各Cursorの開始位置, 最後の要素は全体の件数, 無効な時はnull
+	 * mOffsets[i] <= position < mOffsets[i + 1]の時にi番目のCursorの範囲
+	 */
+	@Nullable
+	private int[] mOffsets;
 
 	/**
 	 * コンストラクタ
@@ -54,45 +64,79 @@ public class MergeCursor extends AbstractCursor {
 
 	@Override
 	public int getCount() {
-		int count = 0;
 		synchronized (mCursors) {
-			for (final Cursor cursor: mCursors) {
-				if (cursor != null) {
-					count += cursor.getCount();
-				}
-			}
+			final int[] offsets = getOffsetsLocked();
+			return offsets[offsets.length - 1];
 		}
-		return count;
 	}
 
 	@Override
 	public boolean onMove(int oldPosition, int newPosition) {
 		synchronized (mCursors) {
+			final int[] offsets = getOffsetsLocked();
+			final int n = offsets.length - 1;
+			if ((mCursor != null) && (mIndex >= 0) && (mIndex < n)
+				&& (newPosition >= offsets[mIndex]) && (newPosition < offsets[mIndex + 1])
+				&& (mCursors.get(mIndex) == mCursor)) {
+
+				// 現在のCursorの範囲内なら探さない(順に移動する時)
+				return mCursor.moveToPosition(newPosition - offsets[mIndex]);
+			}
 			/* Find the right cursor */
 			mCursor = null;
 			mIndex = -1;
-			int cursorStartPos = 0;
-			int index = -1;
-			for (final Cursor cursor: mCursors) {
-				index++;
-				if (cursor == null) {
-					continue;
-				}
-				if (newPosition < (cursorStartPos + cursor.getCount())) {
-					mCursor = cursor;
-					mIndex = index;
-					break;
+			if ((newPosition < 0) || (newPosition >= offsets[n])) {
+				return false;
+			}
+			// offsets[i + 1] > newPositionとなる最小のiを二分探索する
+			// (nullや空のCursorはoffsets[i] == offsets[i + 1]なので選ばれない)
+			int low = 0, high = n - 1;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (offsets[mid + 1] > newPosition) {
+					high = mid;
+				} else {
+					low = mid + 1;
 				}
-
-				cursorStartPos += cursor.getCount();
 			}
+			mCursor = mCursors.get(low);
+			mIndex = low;
 			/* Move it to the right position */
-			if (mCursor != null) {
-				boolean ret = mCursor.moveToPosition(newPosition - cursorStartPos);
-				return ret;
+			return mCursor.moveToPosition(newPosition - offsets[low]);
+		}
+	}
+
+	/**
+	 * 各Cursorの開始位置のインデックスを取得する, 無効になっていれば作り直す
+	 * mCursorsをロックした状態で呼び出すこと
+	 * @return
+	 */
+	@NonNull
+	private int[] getOffsetsLocked() {
+		int[] offsets = mOffsets;
+		if (offsets == null) {
+			final int n = mCursors.size();
+			offsets = new int[n + 1];
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				offsets[i] = count;
+				final Cursor cursor = mCursors.get(i);
+				if (cursor != null) {
+					count += cursor.getCount();
+				}
 			}
+			offsets[n] = count;
+			mOffsets = offsets;
 		}
-		return false;
+		return offsets;
+	}
+
+	/**
+	 * 各Cursorの開始位置のインデックスを破棄する
+	 * mCursorsをロックした状態で呼び出すこと
+	 */
+	private void invalidateOffsetsLocked() {
+		mOffsets = null;
 	}
 
 	@Override
@@ -191,6 +235,7 @@ public class MergeCursor extends AbstractCursor {
 				}
 			}
 			mCursors.clear();
+			invalidateOffsetsLocked();
 		}
 		super.close();
 	}
@@ -245,6 +290,7 @@ public class MergeCursor extends AbstractCursor {
 	@Override
 	public boolean requery() {
 		synchronized (mCursors) {
+			invalidateOffsetsLocked();
 			for (final Cursor cursor: mCursors) {
 				if (cursor == null) {
 					continue;
@@ -314,6 +360,8 @@ public class MergeCursor extends AbstractCursor {
 		synchronized (mCursors) {
 			mCursors.add(cursor);
 			cursor.registerDataSetObserver(mObserver);
+			cursor.registerDataSetObserver(mIndexObserver);
+			invalidateOffsetsLocked();
 		}
 	}
 
@@ -336,9 +384,12 @@ public class MergeCursor extends AbstractCursor {
 			final Cursor oldCursor = getCursor(index);
 			mCursors.add(index, cursor);
 			cursor.registerDataSetObserver(mObserver);
+			cursor.registerDataSetObserver(mIndexObserver);
 			if (oldCursor != null) {
 				oldCursor.unregisterDataSetObserver(mObserver);
+				oldCursor.unregisterDataSetObserver(mIndexObserver);
 			}
+			invalidateOffsetsLocked();
 			return oldCursor;
 		}
 	}
@@ -350,7 +401,9 @@ public class MergeCursor extends AbstractCursor {
 	public void remove(@NonNull final Cursor cursor) {
 		synchronized (mCursors) {
 			cursor.unregisterDataSetObserver(mObserver);
+			cursor.unregisterDataSetObserver(mIndexObserver);
 			mCursors.remove(cursor);
+			invalidateOffsetsLocked();
 		}
 	}
 
@@ -365,7 +418,9 @@ public class MergeCursor extends AbstractCursor {
 			final Cursor cursor = mCursors.remove(index);
 			if (cursor != null) {
 				cursor.unregisterDataSetObserver(mObserver);
+				cursor.unregisterDataSetObserver(mIndexObserver);
 			}
+			invalidateOffsetsLocked();
 			return cursor;
 		}
 	}
@@ -376,6 +431,7 @@ public class MergeCursor extends AbstractCursor {
 				if (cursor == null) continue;
 
 				cursor.registerDataSetObserver(mObserver);
+				cursor.registerDataSetObserver(mIndexObserver);
 			}
 		}
 	}
@@ -394,4 +450,24 @@ public class MergeCursor extends AbstractCursor {
 		}
 	};
 
+	/**
+	 * 各Cursorの件数が変わった時にインデックスを破棄するためのDataSetObserver
+	 * mObserverはregisterDataSetObserverで置き換わるので別に登録する
+	 */
+	private final DataSetObserver mIndexObserver = new DataSetObserver() {
+		@Override
+		public void onChanged() {
+			synchronized (mCursors) {
+				invalidateOffsetsLocked();
+			}
+		}
+
+		@Override
+		public void onInvalidated() {
+			synchronized (mCursors) {
+				invalidateOffsetsLocked();
+			}
+		}
+	};
+
 }
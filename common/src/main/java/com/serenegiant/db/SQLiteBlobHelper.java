@@ -27,8 +27,6 @@ import androidx.annotation.Nullable;
 import com.serenegiant.graphics.BitmapHelper;
 import com.serenegiant.utils.ArrayUtils;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 public class SQLiteBlobHelper {
 //	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
@@ -47,23 +45,7 @@ public class SQLiteBlobHelper {
 	public static byte[] floatArrayToByteArray(
 		@NonNull final float[] array, final int offset, final int num) {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(num * Float.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putFloat(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putFloat(array[i]);
-			buf.putFloat(array[i + 1]);
-			buf.putFloat(array[i + 2]);
-			buf.putFloat(array[i + 3]);
-			buf.putFloat(array[i + 4]);
-			buf.putFloat(array[i + 5]);
-			buf.putFloat(array[i + 6]);
-			buf.putFloat(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		return ArrayUtils.floatArrayToByteArray(array, offset, num);
 	}
 	
 	/**
@@ -78,24 +60,7 @@ public class SQLiteBlobHelper {
 	public static float[] byteArrayToFloatArray(
 		@Nullable final byte[] bytes) {
 		
-		if ((bytes == null) || (bytes.length < Float.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Float.SIZE / 8);    // nはfloatの配列とみなした時の要素数
-		final float[] array = new float[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getFloat();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getFloat();
-			array[i + 1] = tmp.getFloat();
-			array[i + 2] = tmp.getFloat();
-			array[i + 3] = tmp.getFloat();
-			array[i + 4] = tmp.getFloat();
-			array[i + 5] = tmp.getFloat();
-			array[i + 6] = tmp.getFloat();
-			array[i + 7] = tmp.getFloat();
-		}
-		return array;
+		return ArrayUtils.byteArrayToFloatArray(bytes);
 	}
 	
 	/**
@@ -111,23 +76,7 @@ public class SQLiteBlobHelper {
 	public static byte[] doubleArrayToByteArray(
 		@NonNull final double[] array, final int offset, final int num) {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(num * Double.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putDouble(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putDouble(array[i]);
-			buf.putDouble(array[i + 1]);
-			buf.putDouble(array[i + 2]);
-			buf.putDouble(array[i + 3]);
-			buf.putDouble(array[i + 4]);
-			buf.putDouble(array[i + 5]);
-			buf.putDouble(array[i + 6]);
-			buf.putDouble(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		return ArrayUtils.doubleArrayToByteArray(array, offset, num);
 	}
 	
 	/**
@@ -142,24 +91,7 @@ public class SQLiteBlobHelper {
 	public static double[] byteArrayToDoubleArray(
 		@Nullable final byte[] bytes) {
 		
-		if ((bytes == null) || (bytes.length < Double.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Double.SIZE / 8);    // nはdoubleの配列とみなした時の要素数
-		final double[] array = new double[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getDouble();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getDouble();
-			array[i + 1] = tmp.getDouble();
-			array[i + 2] = tmp.getDouble();
-			array[i + 3] = tmp.getDouble();
-			array[i + 4] = tmp.getDouble();
-			array[i + 5] = tmp.getDouble();
-			array[i + 6] = tmp.getDouble();
-			array[i + 7] = tmp.getDouble();
-		}
-		return array;
+		return ArrayUtils.byteArrayToDoubleArray(bytes);
 	}
 	
 	/**
@@ -175,23 +107,7 @@ public class SQLiteBlobHelper {
 	public static byte[] intArrayToByteArray(
 		@NonNull final int[] array, final int offset, final int num) {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(num * Integer.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putInt(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putInt(array[i]);
-			buf.putInt(array[i + 1]);
-			buf.putInt(array[i + 2]);
-			buf.putInt(array[i + 3]);
-			buf.putInt(array[i + 4]);
-			buf.putInt(array[i + 5]);
-			buf.putInt(array[i + 6]);
-			buf.putInt(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		return ArrayUtils.intArrayToByteArray(array, offset, num);
 	}
 	
 	/**
@@ -206,24 +122,7 @@ public class SQLiteBlobHelper {
 	public static int[] byteArrayToIntArray(
 		@Nullable final byte[] bytes) {
 		
-		if ((bytes == null) || (bytes.length < Integer.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Integer.SIZE / 8);    // nはintの配列とみなした時の要素数
-		final int[] array = new int[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getInt();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getInt();
-			array[i + 1] = tmp.getInt();
-			array[i + 2] = tmp.getInt();
-			array[i + 3] = tmp.getInt();
-			array[i + 4] = tmp.getInt();
-			array[i + 5] = tmp.getInt();
-			array[i + 6] = tmp.getInt();
-			array[i + 7] = tmp.getInt();
-		}
-		return array;
+		return ArrayUtils.byteArrayToIntArray(bytes);
 	}
 	
 	/**
@@ -239,23 +138,7 @@ public class SQLiteBlobHelper {
 	public static byte[] shortArrayToByteArray(
 		@NonNull final short[] array, final int offset, final int num) {
 		
-		final ByteBuffer buf = ByteBuffer.allocate(num * Short.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putShort(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putShort(array[i]);
-			buf.putShort(array[i + 1]);
-			buf.putShort(array[i + 2]);
-			buf.putShort(array[i + 3]);
-			buf.putShort(array[i + 4]);
-			buf.putShort(array[i + 5]);
-			buf.putShort(array[i + 6]);
-			buf.putShort(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		return ArrayUtils.shortArrayToByteArray(array, offset, num);
 	}
 	
 	/**
@@ -270,24 +153,7 @@ public class SQLiteBlobHelper {
 	public static short[] byteArrayToShortArray(
 		@Nullable final byte[] bytes) {
 		
-		if ((bytes == null) || (bytes.length < Short.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Short.SIZE / 8);    // nはshortの配列とみなした時の要素数
-		final short[] buf = new short[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) buf[i] = tmp.getShort();
-		for (int i = n8; i < n; i += 8) {
-			buf[i] = tmp.getShort();
-			buf[i + 1] = tmp.getShort();
-			buf[i + 2] = tmp.getShort();
-			buf[i + 3] = tmp.getShort();
-			buf[i + 4] = tmp.getShort();
-			buf[i + 5] = tmp.getShort();
-			buf[i + 6] = tmp.getShort();
-			buf[i + 7] = tmp.getShort();
-		}
-		return buf;
+		return ArrayUtils.byteArrayToShortArray(bytes);
 	}
 	
 	/**
@@ -302,24 +168,8 @@ public class SQLiteBlobHelper {
 	@Deprecated
 	public static byte[] longArrayToByteArray(
 		@NonNull final long[] array, final int offset, final int num) {
-
-		final ByteBuffer buf = ByteBuffer.allocate(num * Long.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putLong(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putLong(array[i]);
-			buf.putLong(array[i + 1]);
-			buf.putLong(array[i + 2]);
-			buf.putLong(array[i + 3]);
-			buf.putLong(array[i + 4]);
-			buf.putLong(array[i + 5]);
-			buf.putLong(array[i + 6]);
-			buf.putLong(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		
+		return ArrayUtils.longArrayToByteArray(array, offset, num);
 	}
 	
 	/**
@@ -333,25 +183,8 @@ public class SQLiteBlobHelper {
 	@Nullable
 	public static long[] byteArrayToLongArray(
 		@Nullable final byte[] bytes) {
-
-		if ((bytes == null) || (bytes.length < Long.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Long.SIZE / 8);    // nはlongの配列とみなした時の要素数
-		final long[] array = new long[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getLong();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getLong();
-			array[i + 1] = tmp.getLong();
-			array[i + 2] = tmp.getLong();
-			array[i + 3] = tmp.getLong();
-			array[i + 4] = tmp.getLong();
-			array[i + 5] = tmp.getLong();
-			array[i + 6] = tmp.getLong();
-			array[i + 7] = tmp.getLong();
-		}
-		return array;
+		
+		return ArrayUtils.byteArrayToLongArray(bytes);
 	}
 	
 	/**
@@ -492,6 +325,40 @@ public class SQLiteBlobHelper {
 		stat.bindBlob(index, ArrayUtils.longArrayToByteArray(array, offset, num));
 	}
 	
+	/**
+	 * SQLiteStatement#bindBlobのヘルパーメソッド。intの配列を差分+ZigZag+varintの
+	 * コンパクト形式のbyteの配列に変換して割り付ける
+	 * 読み込む時はgetBlobIntArrayCompactを使うこと
+	 *
+	 * @param stat
+	 * @param index
+	 * @param array
+	 * @param offset
+	 * @param num
+	 */
+	public static void bindBlobIntArrayCompact(@NonNull final SQLiteStatement stat,
+		final int index, @NonNull final int[] array, final int offset, final int num) {
+
+		stat.bindBlob(index, ArrayUtils.intArrayToCompactByteArray(array, offset, num));
+	}
+	
+	/**
+	 * SQLiteStatement#bindBlobのヘルパーメソッド。longの配列を差分+ZigZag+varintの
+	 * コンパクト形式のbyteの配列に変換して割り付ける
+	 * 読み込む時はgetBlobLongArrayCompactを使うこと
+	 *
+	 * @param stat
+	 * @param index
+	 * @param array
+	 * @param offset
+	 * @param num
+	 */
+	public static void bindBlobLongArrayCompact(@NonNull final SQLiteStatement stat,
+		final int index, @NonNull final long[] array, final int offset, final int num) {
+
+		stat.bindBlob(index, ArrayUtils.longArrayToCompactByteArray(array, offset, num));
+	}
+	
 	/**
 	 * SQLiteStatement#bindBlobのヘルパーメソッド。Bitmapをbyteの配列に変換して割り付ける
 	 *
@@ -676,6 +543,34 @@ public class SQLiteBlobHelper {
 		return result;
 	}
 	
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。bindBlobIntArrayCompactで割り付けた値をintの配列として変換して返す
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @return int[]
+	 */
+	@Nullable
+	public static int[] getBlobIntArrayCompact(@NonNull final Cursor cursor,
+		final int columnIndex) {
+
+		return ArrayUtils.compactByteArrayToIntArray(cursor.getBlob(columnIndex));
+	}
+	
+	/**
+	 * Cursor#getBlobのヘルパーメソッド。bindBlobLongArrayCompactで割り付けた値をlongの配列として変換して返す
+	 *
+	 * @param cursor
+	 * @param columnIndex
+	 * @return long[]
+	 */
+	@Nullable
+	public static long[] getBlobLongArrayCompact(@NonNull final Cursor cursor,
+		final int columnIndex) {
+
+		return ArrayUtils.compactByteArrayToLongArray(cursor.getBlob(columnIndex));
+	}
+	
 	/**
 	 * Cursor#getBlobのヘルパーメソッド。getBlobの返り値をBitmapとして変換して返す
 	 *
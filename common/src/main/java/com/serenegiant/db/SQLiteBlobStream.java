@@ -0,0 +1,556 @@
+package com.serenegiant.db;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.serenegiant.io.IWritable;
+import com.serenegiant.utils.PrimitiveArrayCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 大きなBLOBをSQLiteへ分割して書き込む/少しずつ読み込むためのヘルパークラス
+ * Cursor#getBlobは値全体をCursorWindow(既定で2MB)へ読み込むので、
+ * 数MBのBLOBは全体と変換後の配列の2倍のメモリを使う上にCursorWindowへ入りきらない。
+ *
+ * チャンク用テーブル(#createTable)へ書き込む場合はblob_id毎にchunkSizeバイト
+ * ずつ別の行へ分けて書き込み、読み込む時も1行ずつ読み込む。
+ * 既存のテーブルのBLOBカラムを読み込む場合は#openSubstrReaderでsubstr()を使って
+ * 指定したバイト数ずつ読み込む。ただしsubstr()は毎回BLOB全体を読み込むので
+ * 大きな値を繰り返し読み込むならチャンク用テーブルへ保存すること。
+ * どちらもBlobChunkReaderとして読み込むのでプリミティブ配列として少しずつ変換できる
+ */
+public class SQLiteBlobStream {
+	private SQLiteBlobStream() {
+		// インスタンス化をエラーにするためにコンストラクタをprivateに
+	}
+
+	public static final String COLUMN_BLOB_ID = "blob_id";
+	public static final String COLUMN_CHUNK = "chunk";
+	public static final String COLUMN_DATA = "data";
+	/**
+	 * デフォルトのチャンクサイズ
+	 * CursorWindowより十分小さくしておく
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	/**
+	 * #openSubstrReaderのデフォルトのチャンクサイズ
+	 * substr()は読み込む範囲に関係なく毎回BLOB全体をページから読み込むので
+	 * 問い合わせ回数が減るようにCursorWindow(既定で2MB)へ入る範囲で大きくする
+	 */
+	public static final int DEFAULT_SUBSTR_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * チャンク用テーブルを生成する
+	 * @param db
+	 * @param table
+	 */
+	public static void createTable(@NonNull final SQLiteDatabase db, @NonNull final String table) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + table + " ("
+			+ COLUMN_BLOB_ID + " INTEGER NOT NULL, "
+			+ COLUMN_CHUNK + " INTEGER NOT NULL, "
+			+ COLUMN_DATA + " BLOB, "
+			+ "PRIMARY KEY(" + COLUMN_BLOB_ID + ", " + COLUMN_CHUNK + "))");
+	}
+
+	/**
+	 * チャンク用テーブルから指定したBLOBを削除する
+	 * @param db
+	 * @param table
+	 * @param blobId
+	 * @return 削除したチャンク数
+	 */
+	public static int delete(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, final long blobId) {
+
+		return db.delete(table, COLUMN_BLOB_ID + "=?", new String[] {Long.toString(blobId)});
+	}
+
+	/**
+	 * チャンク用テーブルへ書き込むためのWriterを生成する
+	 * 同じblob_idのBLOBが既にあれば削除する
+	 * 全体をまとめて反映したい時は呼び出し元でトランザクションを開始しておくこと
+	 * @param db
+	 * @param table
+	 * @param blobId
+	 * @return
+	 */
+	@NonNull
+	public static Writer openWriter(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, final long blobId) {
+
+		return openWriter(db, table, blobId, DEFAULT_CHUNK_SIZE, ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * チャンク用テーブルへ書き込むためのWriterを生成する
+	 * 同じblob_idのBLOBが既にあれば削除する
+	 * 全体をまとめて反映したい時は呼び出し元でトランザクションを開始しておくこと
+	 * @param db
+	 * @param table
+	 * @param blobId
+	 * @param chunkSize 1行あたりのバイト数
+	 * @param order プリミティブ配列を書き込む時のバイトオーダー
+	 * @return
+	 */
+	@NonNull
+	public static Writer openWriter(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, final long blobId,
+		@IntRange(from=1) final int chunkSize, @NonNull final ByteOrder order) {
+
+		delete(db, table, blobId);
+		return new Writer(db, table, blobId, chunkSize, order);
+	}
+
+	/**
+	 * チャンク用テーブルから読み込むためのBlobChunkReaderを生成する
+	 * @param db
+	 * @param table
+	 * @param blobId
+	 * @return
+	 */
+	@NonNull
+	public static BlobChunkReader openReader(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, final long blobId) {
+
+		return openReader(db, table, blobId, ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * チャンク用テーブルから読み込むためのBlobChunkReaderを生成する
+	 * @param db
+	 * @param table
+	 * @param blobId
+	 * @param order プリミティブ配列として読み込む時のバイトオーダー
+	 * @return
+	 */
+	@NonNull
+	public static BlobChunkReader openReader(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, final long blobId, @NonNull final ByteOrder order) {
+
+		return new ChunkReader(db, table, blobId, order);
+	}
+
+	/**
+	 * 既存のテーブルのBLOBカラムをsubstr()で少しずつ読み込むためのBlobChunkReaderを生成する
+	 * SQLiteBlobHelper#bindBlobXXXArrayで書き込んだ値もそのまま読み込める
+	 * TEXTのカラムはsubstr()が文字単位になるので使えない
+	 * substr()は1回毎にBLOB全体を読み込むので、読み込むI/O量は
+	 * (BLOBのサイズ)x(BLOBのサイズ/チャンクサイズ)になる(サイズの2乗に比例する)。
+	 * チャンクサイズはDEFAULT_SUBSTR_CHUNK_SIZEにするので数MB程度までなら問題ないが、
+	 * それより大きな値は#openWriterでチャンク用テーブルへ書き込んで#openReaderで読み込むこと
+	 * @param db
+	 * @param table
+	 * @param column
+	 * @param rowId
+	 * @return
+	 */
+	@NonNull
+	public static BlobChunkReader openSubstrReader(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, @NonNull final String column, final long rowId) {
+
+		return openSubstrReader(db, table, column, rowId,
+			DEFAULT_SUBSTR_CHUNK_SIZE, ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * 既存のテーブルのBLOBカラムをsubstr()で少しずつ読み込むためのBlobChunkReaderを生成する
+	 * substr()は1回毎にBLOB全体を読み込むのでチャンクサイズを小さくするほど遅くなる
+	 * @param db
+	 * @param table
+	 * @param column
+	 * @param rowId
+	 * @param chunkSize 1回に読み込むバイト数, CursorWindowより小さくすること
+	 * @param order プリミティブ配列として読み込む時のバイトオーダー
+	 * @return
+	 */
+	@NonNull
+	public static BlobChunkReader openSubstrReader(@NonNull final SQLiteDatabase db,
+		@NonNull final String table, @NonNull final String column, final long rowId,
+		@IntRange(from=1) final int chunkSize, @NonNull final ByteOrder order) {
+
+		return new SubstrReader(db, table, column, rowId, chunkSize, order);
+	}
+
+	/**
+	 * 1行だけ取得するクエリーを実行して先頭カラムの値をbyte[]として返す
+	 * @param db
+	 * @param sql
+	 * @param args
+	 * @return 行がなければnull
+	 */
+	@Nullable
+	private static byte[] queryBlob(@NonNull final SQLiteDatabase db,
+		@NonNull final String sql, @NonNull final String[] args) {
+
+		final Cursor cursor = db.rawQuery(sql, args);
+		try {
+			return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * チャンク用テーブルへ書き込むためのクラス
+	 * chunkSizeバイト溜まる毎に1行書き込み、#closeで残りを書き込む
+	 * スレッドセーフではない
+	 */
+	public static class Writer implements IWritable {
+		@NonNull
+		private final SQLiteStatement mInsert;
+		private final long mBlobId;
+		@NonNull
+		private final ByteOrder mOrder;
+		@NonNull
+		private final byte[] mBuffer;
+		/**
+		 * チャンクの境界をまたぐ要素を書き込むためのワーク
+		 */
+		@NonNull
+		private final byte[] mCarry = new byte[PrimitiveArrayCodec.BYTES_LONG];
+		private int mPosition;
+		private int mChunk;
+		private long mTotal;
+		private boolean mClosed;
+
+		private Writer(@NonNull final SQLiteDatabase db,
+			@NonNull final String table, final long blobId,
+			final int chunkSize, @NonNull final ByteOrder order) {
+
+			mInsert = db.compileStatement("INSERT INTO " + table
+				+ " (" + COLUMN_BLOB_ID + ", " + COLUMN_CHUNK + ", " + COLUMN_DATA + ") VALUES (?, ?, ?)");
+			mBlobId = blobId;
+			mOrder = order;
+			mBuffer = new byte[chunkSize];
+		}
+
+		/**
+		 * 書き込んだバイト数を取得
+		 * @return
+		 */
+		public long getLength() {
+			return mTotal;
+		}
+
+		public boolean isOpen() {
+			return !mClosed;
+		}
+
+		@Override
+		public void write(@NonNull final ByteBuffer src) throws IOException {
+			ensureOpen();
+			while (src.hasRemaining()) {
+				final int n = Math.min(src.remaining(), mBuffer.length - mPosition);
+				src.get(mBuffer, mPosition, n);
+				advance(n);
+			}
+		}
+
+		@Override
+		public void write(@NonNull final byte[] b, final int off, final int len) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < len) {
+				final int n = Math.min(len - written, mBuffer.length - mPosition);
+				System.arraycopy(b, off + written, mBuffer, mPosition, n);
+				advance(n);
+				written += n;
+			}
+		}
+
+		/**
+		 * short配列を書き込む
+		 * @param src
+		 * @param off
+		 * @param num
+		 * @throws IOException
+		 */
+		public void write(@NonNull final short[] src, final int off, final int num) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < num) {
+				final int n = Math.min(num - written,
+					(mBuffer.length - mPosition) / PrimitiveArrayCodec.BYTES_SHORT);
+				if (n > 0) {
+					advance(PrimitiveArrayCodec.encode(src, off + written, n, mBuffer, mPosition, mOrder));
+					written += n;
+				} else {
+					write(mCarry, 0,
+						PrimitiveArrayCodec.encode(src, off + written++, 1, mCarry, 0, mOrder));
+				}
+			}
+		}
+
+		/**
+		 * int配列を書き込む
+		 * @param src
+		 * @param off
+		 * @param num
+		 * @throws IOException
+		 */
+		public void write(@NonNull final int[] src, final int off, final int num) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < num) {
+				final int n = Math.min(num - written,
+					(mBuffer.length - mPosition) / PrimitiveArrayCodec.BYTES_INT);
+				if (n > 0) {
+					advance(PrimitiveArrayCodec.encode(src, off + written, n, mBuffer, mPosition, mOrder));
+					written += n;
+				} else {
+					write(mCarry, 0,
+						PrimitiveArrayCodec.encode(src, off + written++, 1, mCarry, 0, mOrder));
+				}
+			}
+		}
+
+		/**
+		 * long配列を書き込む
+		 * @param src
+		 * @param off
+		 * @param num
+		 * @throws IOException
+		 */
+		public void write(@NonNull final long[] src, final int off, final int num) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < num) {
+				final int n = Math.min(num - written,
+					(mBuffer.length - mPosition) / PrimitiveArrayCodec.BYTES_LONG);
+				if (n > 0) {
+					advance(PrimitiveArrayCodec.encode(src, off + written, n, mBuffer, mPosition, mOrder));
+					written += n;
+				} else {
+					write(mCarry, 0,
+						PrimitiveArrayCodec.encode(src, off + written++, 1, mCarry, 0, mOrder));
+				}
+			}
+		}
+
+		/**
+		 * float配列を書き込む
+		 * @param src
+		 * @param off
+		 * @param num
+		 * @throws IOException
+		 */
+		public void write(@NonNull final float[] src, final int off, final int num) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < num) {
+				final int n = Math.min(num - written,
+					(mBuffer.length - mPosition) / PrimitiveArrayCodec.BYTES_FLOAT);
+				if (n > 0) {
+					advance(PrimitiveArrayCodec.encode(src, off + written, n, mBuffer, mPosition, mOrder));
+					written += n;
+				} else {
+					write(mCarry, 0,
+						PrimitiveArrayCodec.encode(src, off + written++, 1, mCarry, 0, mOrder));
+				}
+			}
+		}
+
+		/**
+		 * double配列を書き込む
+		 * @param src
+		 * @param off
+		 * @param num
+		 * @throws IOException
+		 */
+		public void write(@NonNull final double[] src, final int off, final int num) throws IOException {
+			ensureOpen();
+			int written = 0;
+			while (written < num) {
+				final int n = Math.min(num - written,
+					(mBuffer.length - mPosition) / PrimitiveArrayCodec.BYTES_DOUBLE);
+				if (n > 0) {
+					advance(PrimitiveArrayCodec.encode(src, off + written, n, mBuffer, mPosition, mOrder));
+					written += n;
+				} else {
+					write(mCarry, 0,
+						PrimitiveArrayCodec.encode(src, off + written++, 1, mCarry, 0, mOrder));
+				}
+			}
+		}
+
+		/**
+		 * チャンクは一杯になった時と#closeを呼んだ時にだけ書き込むので何もしない
+		 */
+		@Override
+		public void flush() throws IOException {
+			ensureOpen();
+		}
+
+		/**
+		 * 残りを書き込んで終了する
+		 * @throws IOException
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!mClosed) {
+				try {
+					if ((mPosition > 0) || (mChunk == 0)) {
+						// 長さ0のBLOBも1行書き込んで存在するようにする
+						insert(Arrays.copyOf(mBuffer, mPosition));
+					}
+				} finally {
+					mClosed = true;
+					mInsert.close();
+				}
+			}
+		}
+
+		private void advance(final int bytes) throws IOException {
+			mPosition += bytes;
+			mTotal += bytes;
+			if (mPosition >= mBuffer.length) {
+				insert(mBuffer);
+				mPosition = 0;
+			}
+		}
+
+		private void insert(@NonNull final byte[] data) throws IOException {
+			try {
+				mInsert.bindLong(1, mBlobId);
+				mInsert.bindLong(2, mChunk);
+				mInsert.bindBlob(3, data);
+				mInsert.executeInsert();
+				mChunk++;
+			} catch (final Exception e) {
+				throw new IOException(e);
+			} finally {
+				mInsert.clearBindings();
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (mClosed) {
+				throw new ClosedChannelException();
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * チャンク用テーブルから1行ずつ読み込むBlobChunkReader
+	 */
+	private static class ChunkReader extends BlobChunkReader {
+		@NonNull
+		private final SQLiteDatabase mDatabase;
+		@NonNull
+		private final String mSql;
+		@NonNull
+		private final String[] mArgs;
+		private int mChunk;
+
+		private ChunkReader(@NonNull final SQLiteDatabase db,
+			@NonNull final String table, final long blobId,
+			@NonNull final ByteOrder order) {
+
+			super(order);
+			mDatabase = db;
+			mSql = "SELECT " + COLUMN_DATA + " FROM " + table
+				+ " WHERE " + COLUMN_BLOB_ID + "=? AND " + COLUMN_CHUNK + "=?";
+			mArgs = new String[] {Long.toString(blobId), null};
+		}
+
+		@Nullable
+		@Override
+		protected byte[] readNextChunk() throws IOException {
+			mArgs[1] = Integer.toString(mChunk);
+			try {
+				final byte[] result = queryBlob(mDatabase, mSql, mArgs);
+				if (result != null) {
+					mChunk++;
+				}
+				return result;
+			} catch (final Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * 既存のテーブルのBLOBカラムをsubstr()で少しずつ読み込むBlobChunkReader
+	 * 問い合わせ毎にBLOB全体を読み込むのでチャンク用テーブルを読み込むChunkReaderより遅い
+	 */
+	private static class SubstrReader extends BlobChunkReader {
+		@NonNull
+		private final SQLiteDatabase mDatabase;
+		@NonNull
+		private final String mSql;
+		@NonNull
+		private final String[] mArgs;
+		private final int mChunkSize;
+		/**
+		 * 次に読み込む位置, substr()の位置は1から始まる
+		 */
+		private long mOffset = 1;
+		/**
+		 * 最後のチャンクを読み込んだかどうか
+		 */
+		private boolean mLast;
+
+		private SubstrReader(@NonNull final SQLiteDatabase db,
+			@NonNull final String table, @NonNull final String column, final long rowId,
+			final int chunkSize, @NonNull final ByteOrder order) {
+
+			super(order);
+			mDatabase = db;
+			mSql = "SELECT substr(" + column + ", ?, " + chunkSize + ") FROM " + table
+				+ " WHERE rowid=?";
+			mArgs = new String[] {null, Long.toString(rowId)};
+			mChunkSize = chunkSize;
+		}
+
+		@Nullable
+		@Override
+		protected byte[] readNextChunk() throws IOException {
+			if (mLast) {
+				return null;
+			}
+			mArgs[0] = Long.toString(mOffset);
+			try {
+				final byte[] result = queryBlob(mDatabase, mSql, mArgs);
+				if ((result == null) || (result.length == 0)) {
+					return null;
+				}
+				mOffset += result.length;
+				// チャンクサイズより短ければ最後のチャンクなので次回は読み込まずに終端にする
+				mLast = result.length < mChunkSize;
+				return result;
+			} catch (final Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+}
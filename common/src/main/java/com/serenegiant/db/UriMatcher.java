@@ -17,11 +17,15 @@
 package com.serenegiant.db;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.regex.Pattern;
 
 import android.net.Uri;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 /**
 * uriのセグメントの穿頭にある正負符号を数字として扱えるように修正したUriMatcher実装
 Utility class to aid in matching URIs in content providers with sign(+ or -) support of number matching.
@@ -119,6 +123,10 @@ instead of:
         return null;
     }
 </pre>
+<p>After all URIs are added, {@link #compile} freezes the tree into an immutable
+{@link CompiledUriMatcher} whose nodes look up exact segments by hash instead of
+walking the children. It returns the same codes as {@link #match} and can be shared
+across threads without locking.
 */
 public class UriMatcher
 {
@@ -220,17 +228,30 @@ public class UriMatcher
      */
     public int match(final Uri uri)
     {
-        final List<String> pathSegments = uri.getPathSegments();
+        return match(uri.getAuthority(), uri.getPathSegments());
+    }
+
+    /**
+     * Try to match against the authority and the path segments of a url.
+     *
+     * @param authority     The authority of the url.
+     * @param pathSegments  The decoded path segments of the url.
+     *
+     * @return  The code for the matched node (added using addURI),
+     * or -1 if there is no matched node.
+     */
+    public int match(@Nullable final String authority, @NonNull final List<String> pathSegments)
+    {
         final int li = pathSegments.size();
 
         UriMatcher node = this;
 
-        if (li == 0 && uri.getAuthority() == null) {
+        if (li == 0 && authority == null) {
             return this.mCode;
         }
 
         for (int i=-1; i<li; i++) {
-            final String u = i < 0 ? uri.getAuthority() : pathSegments.get(i);
+            final String u = i < 0 ? authority : pathSegments.get(i);
             final ArrayList<UriMatcher> list = node.mChildren;
             if (list == null) {
                 break;
@@ -247,13 +268,8 @@ public class UriMatcher
                         }
                         break;
                     case NUMBER:
-                    	// XXX saki セグメントの先頭に有る正負符号は数字の一部として扱うように変更
-                        final int lk = u.length();
-                        for (int k = 0; k < lk; k++) {
-                            final char c = u.charAt(k);
-                            if (((c == '-') || (c == '+')) && (k != 0) || (k > 0) && ((c < '0' || c > '9'))) {
-                                break which_switch;
-                            }
+                        if (!isNumber(u)) {
+                            break which_switch;
                         }
                         node = n;
                         break;
@@ -273,6 +289,74 @@ public class UriMatcher
         return node.mCode;
     }
 
+    /**
+     * Freezes the current tree into an immutable matcher that looks up
+     * the children of each node by hash. URIs added after this call are
+     * not reflected in the returned matcher.
+     *
+     * @return  The compiled matcher that returns the same codes as {@link #match}.
+     */
+    @NonNull
+    public CompiledUriMatcher compile()
+    {
+        return new CompiledUriMatcher(compile(0));
+    }
+
+    /**
+     * Converts this node and its children into the nodes of {@link CompiledUriMatcher}.
+     *
+     * @param order the index of this node in the children of its parent
+     */
+    @NonNull
+    private CompiledUriMatcher.Node compile(final int order)
+    {
+        HashMap<String, CompiledUriMatcher.Node> exact = null;
+        CompiledUriMatcher.Node number = null;
+        CompiledUriMatcher.Node text = null;
+        final int numChildren = mChildren.size();
+        for (int j = 0; j < numChildren; j++) {
+            final UriMatcher child = mChildren.get(j);
+            final CompiledUriMatcher.Node node = child.compile(j);
+            switch (child.mWhich) {
+                case EXACT:
+                    if (exact == null) {
+                        exact = new HashMap<String, CompiledUriMatcher.Node>();
+                    }
+                    if (!exact.containsKey(child.mText)) {
+                        exact.put(child.mText, node);
+                    }
+                    break;
+                case NUMBER:
+                    if (number == null) {
+                        number = node;
+                    }
+                    break;
+                case TEXT:
+                    if (text == null) {
+                        text = node;
+                    }
+                    break;
+            }
+        }
+        return new CompiledUriMatcher.Node(mCode, order, exact, number, text);
+    }
+
+    /**
+     * Whether the segment matches the "#" token.
+     * XXX saki セグメントの先頭に有る正負符号は数字の一部として扱うように変更
+     */
+    /*package*/ static boolean isNumber(final String u)
+    {
+        final int lk = u.length();
+        for (int k = 0; k < lk; k++) {
+            final char c = u.charAt(k);
+            if (((c == '-') || (c == '+')) && (k != 0) || (k > 0) && ((c < '0' || c > '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static final int EXACT = 0;
     private static final int NUMBER = 1;
     private static final int TEXT = 2;
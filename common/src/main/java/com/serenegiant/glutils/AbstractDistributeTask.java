@@ -37,12 +37,12 @@ public abstract class AbstractDistributeTask {
 	private static final boolean DEBUG = false;	// set false on production
 	private static final String TAG = AbstractDistributeTask.class.getSimpleName();
 
-	private static final int REQUEST_DRAW = 1;
-	private static final int REQUEST_UPDATE_SIZE = 2;
+	/*package*/ static final int REQUEST_DRAW = 1;
+	/*package*/ static final int REQUEST_UPDATE_SIZE = 2;
 	private static final int REQUEST_ADD_SURFACE = 3;
 	private static final int REQUEST_REMOVE_SURFACE = 4;
 	private static final int REQUEST_REMOVE_SURFACE_ALL = 12;
-	private static final int REQUEST_RECREATE_MASTER_SURFACE = 5;
+	/*package*/ static final int REQUEST_RECREATE_MASTER_SURFACE = 5;
 	private static final int REQUEST_MIRROR = 6;
 	private static final int REQUEST_ROTATE = 7;
 	private static final int REQUEST_CLEAR = 8;
@@ -36,6 +36,7 @@ import android.view.Surface;
 
 import com.serenegiant.math.Fraction;
 import com.serenegiant.system.BuildCheck;
+import com.serenegiant.utils.MessageTask;
 
 import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
@@ -555,6 +556,10 @@ public abstract class AbstractRendererHolder implements IRendererHolder {
 					return handleRequest(request, arg1, arg2, obj);
 				}
 			};
+			// 描画要求とサイズ変更要求は最新のもの、マスターサーフェースの再生成要求は1回だけ処理すればよい
+			mEglTask.setCoalescePolicy(REQUEST_DRAW, MessageTask.COALESCE_LATEST);
+			mEglTask.setCoalescePolicy(REQUEST_UPDATE_SIZE, MessageTask.COALESCE_LATEST);
+			mEglTask.setCoalescePolicy(REQUEST_RECREATE_MASTER_SURFACE, MessageTask.COALESCE_COUNT);
 		}
 
 		@Override
@@ -74,6 +74,23 @@ public abstract class EglTask extends MessageTask {
 		@Nullable final EGLBase.IContext<?> sharedContext, final int flags,
 		final int masterWidth, final int masterHeight) {
 
+		this(maxClientVersion, sharedContext, flags, masterWidth, masterHeight, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param maxClientVersion
+	 * @param sharedContext
+	 * @param flags
+	 * @param masterWidth
+	 * @param masterHeight
+	 * @param useRing trueなら要求キューにロックフリーなリングバッファを使う
+	 */
+	public EglTask(final int maxClientVersion,
+		@Nullable final EGLBase.IContext<?> sharedContext, final int flags,
+		final int masterWidth, final int masterHeight, final boolean useRing) {
+
+		super(-1, 0, useRing);
 //		if (DEBUG) Log.i(TAG, "shared_context=" + shared_context);
 		mGLContext = new GLContext(maxClientVersion,
 			sharedContext, flags,
@@ -221,6 +221,7 @@ public class StaticTextureSource {
 			mVideoWidth = width;
 			mVideoHeight = height;
 			mIntervalsNs = fps <= 0 ? 100000000L : (long)(1000000000L / fps);
+			setCoalescePolicy(REQUEST_DRAW, COALESCE_LATEST);
 		}
 
 		/**
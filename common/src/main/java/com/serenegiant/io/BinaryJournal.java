@@ -0,0 +1,533 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * DiskLruCache/ConcurrentDiskLruCache用のバイナリジャーナル
+ * テキストのジャーナルを1行ずつ解析する代わりに、全エントリーの状態を保存した
+ * チェックポイントファイルと、チェックポイント以降の操作を追記するジャーナルファイルの
+ * 2つのファイルで構成する。開くときはチェックポイントを読み込んでから
+ * ジャーナルファイルの短い末尾部分だけを再生する
+ *
+ * チェックポイントファイル(journal.ckpt)の書式(ビッグエンディアン)
+ *   int マジック, int バージョン, int アプリのバージョン, int 値の数, long 世代番号
+ *   レコード(OP_CLEANまたはOP_DIRTY)をLRUの古い順に並べたもの
+ *   byte OP_END, int レコード数, int ここまでのCRC32
+ * ジャーナルファイル(journal.bin)の書式
+ *   int マジック, int バージョン, int アプリのバージョン, int 値の数, long 世代番号
+ *   レコード...
+ * レコードの書式
+ *   byte 操作, short キーのバイト数(UTF-8), byte[] キー, 操作がOP_CLEANならlong[値の数] 値のサイズ
+ *
+ * チェックポイントを書き込むと世代番号を1つ増やして空のジャーナルファイルを生成する
+ * ジャーナルファイルの世代番号がチェックポイントと異なる時はジャーナルの内容は
+ * チェックポイントに含まれているので読み込まない
+ * 書き込み途中で終了したレコードは開くときに切り捨てる
+ */
+/*package*/ final class BinaryJournal implements Closeable {
+	static final String JOURNAL_FILE = "journal.bin";
+	static final String JOURNAL_FILE_TMP = "journal.bin.tmp";
+	static final String CHECKPOINT_FILE = "journal.ckpt";
+	static final String CHECKPOINT_FILE_TMP = "journal.ckpt.tmp";
+
+	static final byte OP_END = 0;
+	static final byte OP_CLEAN = 1;
+	static final byte OP_DIRTY = 2;
+	static final byte OP_REMOVE = 3;
+	static final byte OP_READ = 4;
+
+	private static final int CHECKPOINT_MAGIC = 0x444c434b;	// DLCK
+	private static final int JOURNAL_MAGIC = 0x444c4a4e;	// DLJN
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 24;
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_KEY_BYTES = 0xffff;
+
+	/**
+	 * ジャーナルを再生する時のコールバックインターフェース
+	 */
+	/*package*/ interface Replayer {
+		public void onClean(@NonNull final String key, @NonNull final long[] lengths)
+			throws IOException;
+		public void onDirty(@NonNull final String key) throws IOException;
+		public void onRemove(@NonNull final String key) throws IOException;
+		public void onRead(@NonNull final String key) throws IOException;
+	}
+
+	@NonNull
+	private final File mJournalFile;
+	@NonNull
+	private final File mJournalFileTmp;
+	@NonNull
+	private final File mCheckpointFile;
+	@NonNull
+	private final File mCheckpointFileTmp;
+	private final int mAppVersion;
+	private final int mValueCount;
+	private long mGeneration;
+	@Nullable
+	private OutputStream mOut;
+	/**
+	 * 最後のチェックポイント以降に追記したレコード数
+	 */
+	private int mTailCount;
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param appVersion
+	 * @param valueCount
+	 */
+	/*package*/ BinaryJournal(@NonNull final File directory,
+		final int appVersion, final int valueCount) {
+
+		mJournalFile = new File(directory, JOURNAL_FILE);
+		mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+		mCheckpointFile = new File(directory, CHECKPOINT_FILE);
+		mCheckpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
+		mAppVersion = appVersion;
+		mValueCount = valueCount;
+	}
+
+	/**
+	 * チェックポイントファイルが存在するかどうか
+	 * @return
+	 */
+	/*package*/ boolean exists() {
+		return mCheckpointFile.exists();
+	}
+
+	/**
+	 * チェックポイントを読み込んでから同じ世代のジャーナルを再生し、
+	 * ジャーナルファイルを追記用に開く
+	 * @param replayer
+	 * @throws IOException チェックポイントが壊れている時
+	 */
+	/*package*/ void load(@NonNull final Replayer replayer) throws IOException {
+		deleteIfExists(mCheckpointFileTmp);
+		deleteIfExists(mJournalFileTmp);
+		mGeneration = readCheckpoint(replayer);
+		mTailCount = 0;
+		long validLength = -1;
+		if (mJournalFile.exists()) {
+			validLength = replayJournal(replayer);
+		}
+		if (validLength < 0) {
+			// ジャーナルが無い/世代が異なる/壊れている時は新しく生成する
+			writeEmptyJournal();
+		} else if (validLength < mJournalFile.length()) {
+			// 書き込み途中のレコードを切り捨てる
+			final RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+			try {
+				raf.getChannel().truncate(validLength);
+			} finally {
+				raf.close();
+			}
+		}
+		openForAppend();
+	}
+
+	/**
+	 * 最後のチェックポイント以降に追記したレコード数を取得
+	 * @return
+	 */
+	/*package*/ int getTailCount() {
+		return mTailCount;
+	}
+
+	/**
+	 * OP_CLEANレコードを追記する
+	 * @param key
+	 * @param lengths
+	 * @throws IOException
+	 */
+	/*package*/ void writeClean(@NonNull final String key, @NonNull final long[] lengths)
+		throws IOException {
+
+		write(encode(OP_CLEAN, key, lengths));
+	}
+
+	/**
+	 * OP_DIRTY/OP_REMOVE/OP_READレコードを追記する
+	 * @param op
+	 * @param key
+	 * @throws IOException
+	 */
+	/*package*/ void write(final byte op, @NonNull final String key) throws IOException {
+		write(encode(op, key, null));
+	}
+
+	/**
+	 * #encodeでエンコードしたレコードを追記する
+	 * @param record
+	 * @throws IOException
+	 */
+	/*package*/ void write(@NonNull final byte[] record) throws IOException {
+		if (mOut == null) {
+			throw new IOException("journal is closed");
+		}
+		mOut.write(record);
+		mTailCount++;
+	}
+
+	/*package*/ void flush() throws IOException {
+		if (mOut != null) {
+			mOut.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mOut != null) {
+			try {
+				mOut.close();
+			} finally {
+				mOut = null;
+			}
+		}
+	}
+
+	/**
+	 * チェックポイントの書き込みを開始する
+	 * Checkpoint#clean/#dirtyでLRUの古い順に全てのエントリーを書き込んでから
+	 * #commitを呼ぶこと
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	/*package*/ Checkpoint beginCheckpoint() throws IOException {
+		return new Checkpoint(mGeneration + 1);
+	}
+
+	/**
+	 * チェックポイントを確定して新しい世代の空のジャーナルファイルへ切り替える
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	/*package*/ void commit(@NonNull final Checkpoint checkpoint) throws IOException {
+		checkpoint.finish();
+		if (!mCheckpointFileTmp.renameTo(mCheckpointFile)) {
+			throw new IOException("failed to rename checkpoint file");
+		}
+		// ここで終了しても古い世代のジャーナルは読み込まないので大丈夫
+		close();
+		mGeneration = checkpoint.mGeneration;
+		mTailCount = 0;
+		writeEmptyJournal();
+		openForAppend();
+	}
+
+	/**
+	 * ジャーナルファイルとチェックポイントファイルを削除する
+	 * @throws IOException
+	 */
+	/*package*/ void deleteFiles() throws IOException {
+		close();
+		deleteIfExists(mJournalFile);
+		deleteIfExists(mJournalFileTmp);
+		deleteIfExists(mCheckpointFile);
+		deleteIfExists(mCheckpointFileTmp);
+	}
+
+	/**
+	 * レコードをエンコードする
+	 * @param op
+	 * @param key
+	 * @param lengths OP_CLEANの時は値のサイズ, それ以外はnull
+	 * @return
+	 */
+	@NonNull
+	/*package*/ static byte[] encode(final byte op,
+		@NonNull final String key, @Nullable final long[] lengths) {
+
+		final byte[] keyBytes = key.getBytes(CharsetsUtils.UTF8);
+		if (keyBytes.length > MAX_KEY_BYTES) {
+			throw new IllegalArgumentException("key too long");
+		}
+		final int n = lengths != null ? lengths.length : 0;
+		final byte[] result = new byte[3 + keyBytes.length + n * 8];
+		result[0] = op;
+		result[1] = (byte)(keyBytes.length >>> 8);
+		result[2] = (byte)keyBytes.length;
+		System.arraycopy(keyBytes, 0, result, 3, keyBytes.length);
+		int ix = 3 + keyBytes.length;
+		for (int i = 0; i < n; i++) {
+			final long v = lengths[i];
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				result[ix++] = (byte)(v >>> shift);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * チェックポイントファイルを読み込む
+	 * @param replayer
+	 * @return チェックポイントの世代番号
+	 * @throws IOException
+	 */
+	private long readCheckpoint(@NonNull final Replayer replayer) throws IOException {
+		final CheckedInputStream checked = new CheckedInputStream(
+			new BufferedInputStream(new FileInputStream(mCheckpointFile), IO_BUFFER_SIZE),
+			new CRC32());
+		final DataInputStream in = new DataInputStream(checked);
+		try {
+			final long generation = readHeader(in, CHECKPOINT_MAGIC);
+			final byte[] work = new byte[256];
+			int count = 0;
+			while (true) {
+				final byte op = in.readByte();
+				if (op == OP_END) {
+					break;
+				}
+				readRecord(in, op, work, replayer);
+				count++;
+			}
+			final int expectedCount = in.readInt();
+			final int crc = (int)checked.getChecksum().getValue();
+			if ((expectedCount != count) || (in.readInt() != crc)) {
+				throw new IOException("corrupted checkpoint");
+			}
+			return generation;
+		} catch (final EOFException e) {
+			throw new IOException("corrupted checkpoint", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * ジャーナルファイルを再生する
+	 * @param replayer
+	 * @return 正常に読み込めたバイト数, チェックポイントと世代が異なる/ヘッダーが壊れている時は-1
+	 * @throws IOException
+	 */
+	private long replayJournal(@NonNull final Replayer replayer) throws IOException {
+		final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(mJournalFile), IO_BUFFER_SIZE));
+		try {
+			try {
+				if (readHeader(in, JOURNAL_MAGIC) != mGeneration) {
+					return -1;
+				}
+			} catch (final IOException e) {
+				return -1;
+			}
+			final byte[] work = new byte[256];
+			long offset = HEADER_SIZE;
+			while (true) {
+				final int op;
+				try {
+					op = in.read();
+					if ((op < 0) || (op == OP_END) || (op > OP_READ)) {
+						break;
+					}
+					offset += readRecord(in, (byte)op, work, replayer);
+				} catch (final EOFException e) {
+					break;
+				}
+				mTailCount++;
+			}
+			return offset;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * ヘッダーを読み込む
+	 * @param in
+	 * @param magic
+	 * @return 世代番号
+	 * @throws IOException
+	 */
+	private long readHeader(@NonNull final DataInputStream in, final int magic)
+		throws IOException {
+
+		final int m = in.readInt();
+		final int version = in.readInt();
+		final int appVersion = in.readInt();
+		final int valueCount = in.readInt();
+		if ((m != magic) || (version != VERSION)
+			|| (appVersion != mAppVersion) || (valueCount != mValueCount)) {
+
+			throw new IOException("unexpected journal header: ["
+				+ Integer.toHexString(m) + ", " + version + ", " + appVersion + ", " + valueCount + "]");
+		}
+		return in.readLong();
+	}
+
+	/**
+	 * 操作の後ろのレコードを読み込んで再生する
+	 * 最後まで読み込んでから再生するので途中で終了していれば再生しない
+	 * @param in
+	 * @param op
+	 * @param work
+	 * @param replayer
+	 * @return 読み込んだバイト数(操作を含む)
+	 * @throws IOException
+	 */
+	private int readRecord(@NonNull final DataInputStream in, final byte op,
+		@NonNull byte[] work, @NonNull final Replayer replayer) throws IOException {
+
+		final int keyLen = in.readUnsignedShort();
+		if (work.length < keyLen) {
+			work = new byte[keyLen];
+		}
+		in.readFully(work, 0, keyLen);
+		long[] lengths = null;
+		if (op == OP_CLEAN) {
+			lengths = new long[mValueCount];
+			for (int i = 0; i < mValueCount; i++) {
+				lengths[i] = in.readLong();
+			}
+		}
+		final String key = new String(work, 0, keyLen, CharsetsUtils.UTF8);
+		switch (op) {
+		case OP_CLEAN:
+			replayer.onClean(key, lengths);
+			break;
+		case OP_DIRTY:
+			replayer.onDirty(key);
+			break;
+		case OP_REMOVE:
+			replayer.onRemove(key);
+			break;
+		case OP_READ:
+			replayer.onRead(key);
+			break;
+		default:
+			throw new IOException("unexpected journal record:" + op);
+		}
+		return 3 + keyLen + (lengths != null ? lengths.length * 8 : 0);
+	}
+
+	/**
+	 * 現在の世代の空のジャーナルファイルを生成する
+	 * @throws IOException
+	 */
+	private void writeEmptyJournal() throws IOException {
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(mJournalFileTmp));
+		try {
+			writeHeader(out, JOURNAL_MAGIC, mGeneration);
+		} finally {
+			out.close();
+		}
+		if (!mJournalFileTmp.renameTo(mJournalFile)) {
+			throw new IOException("failed to rename journal file");
+		}
+	}
+
+	private void openForAppend() throws IOException {
+		mOut = new BufferedOutputStream(new FileOutputStream(mJournalFile, true), IO_BUFFER_SIZE);
+	}
+
+	private void writeHeader(@NonNull final DataOutputStream out,
+		final int magic, final long generation) throws IOException {
+
+		out.writeInt(magic);
+		out.writeInt(VERSION);
+		out.writeInt(mAppVersion);
+		out.writeInt(mValueCount);
+		out.writeLong(generation);
+	}
+
+	private static void deleteIfExists(@NonNull final File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+
+	/**
+	 * チェックポイント書き込み用のクラス
+	 */
+	/*package*/ final class Checkpoint {
+		private final long mGeneration;
+		@NonNull
+		private final CheckedOutputStream mChecked;
+		@NonNull
+		private final DataOutputStream mOut;
+		private int mCount;
+
+		private Checkpoint(final long generation) throws IOException {
+			mGeneration = generation;
+			mChecked = new CheckedOutputStream(new BufferedOutputStream(
+				new FileOutputStream(mCheckpointFileTmp), IO_BUFFER_SIZE), new CRC32());
+			mOut = new DataOutputStream(mChecked);
+			writeHeader(mOut, CHECKPOINT_MAGIC, generation);
+		}
+
+		/*package*/ void clean(@NonNull final String key, @NonNull final long[] lengths)
+			throws IOException {
+
+			mOut.write(encode(OP_CLEAN, key, lengths));
+			mCount++;
+		}
+
+		/*package*/ void dirty(@NonNull final String key) throws IOException {
+			mOut.write(encode(OP_DIRTY, key, null));
+			mCount++;
+		}
+
+		/**
+		 * 書き込みを中断して一時ファイルを削除する
+		 */
+		/*package*/ void abort() {
+			try {
+				mOut.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			//noinspection ResultOfMethodCallIgnored
+			mCheckpointFileTmp.delete();
+		}
+
+		private void finish() throws IOException {
+			try {
+				mOut.writeByte(OP_END);
+				mOut.writeInt(mCount);
+				mOut.flush();
+				mOut.writeInt((int)mChecked.getChecksum().getValue());
+			} finally {
+				mOut.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.collections.LockFreeRingQueue;
+import com.serenegiant.media.IRecycleParent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * サイズクラス毎にダイレクトバッファを保持するプール
+ * 要求サイズを2のべき乗に切り上げたサイズクラスのバッファを返す
+ * 最大サイズを超える要求に対してはプールしないバッファを生成して返す
+ * 各サイズクラスはLockFreeRingQueueで保持するので複数スレッドから
+ * 取得/返却してもロックしない
+ */
+public class ByteBufferPool implements IRecycleParent<RecycleByteBuffer> {
+	/**
+	 * デフォルトの最小サイズクラス
+	 */
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	/**
+	 * デフォルトの最大サイズクラス
+	 */
+	public static final int DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+	/**
+	 * デフォルトのサイズクラス毎の最大保持数
+	 */
+	public static final int DEFAULT_MAX_NUM_PER_CLASS = 8;
+
+	private final int mMinShift;
+	private final int mMaxSize;
+	@NonNull
+	private final List<LockFreeRingQueue<RecycleByteBuffer>> mPools;
+	/**
+	 * バッファを生成した回数
+	 */
+	@NonNull
+	private final AtomicLong mAllocated = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 * サイズクラスはDEFAULT_MIN_SIZEからDEFAULT_MAX_SIZE,
+	 * サイズクラス毎の最大保持数はDEFAULT_MAX_NUM_PER_CLASS
+	 */
+	public ByteBufferPool() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_NUM_PER_CLASS);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param minSize 最小サイズクラス, 2のべき乗に切り上げる
+	 * @param maxSize 最大サイズクラス, 2のべき乗に切り上げる
+	 * @param maxNumPerClass サイズクラス毎の最大保持数
+	 */
+	public ByteBufferPool(
+		@IntRange(from=1) final int minSize, @IntRange(from=1) final int maxSize,
+		@IntRange(from=1) final int maxNumPerClass) {
+
+		if ((minSize <= 0) || (maxSize < minSize) || (maxSize > (1 << 30))
+			|| (maxNumPerClass <= 0)) {
+
+			throw new IllegalArgumentException("invalid size, min=" + minSize + ",max=" + maxSize
+				+ ",num=" + maxNumPerClass);
+		}
+		mMinShift = shift(minSize);
+		final int maxShift = shift(maxSize);
+		mMaxSize = 1 << maxShift;
+		final int n = maxShift - mMinShift + 1;
+		final List<LockFreeRingQueue<RecycleByteBuffer>> pools
+			= new ArrayList<LockFreeRingQueue<RecycleByteBuffer>>(n);
+		for (int i = 0; i < n; i++) {
+			pools.add(new LockFreeRingQueue<RecycleByteBuffer>(maxNumPerClass));
+		}
+		mPools = Collections.unmodifiableList(pools);
+	}
+
+	/**
+	 * 指定したサイズ以上の容量を持つバッファを取得する
+	 * プールに無ければ新たに生成する
+	 * @param size
+	 * @return positionが0, limitがsizeのバッファを保持したRecycleByteBuffer
+	 */
+	@NonNull
+	public RecycleByteBuffer obtain(@IntRange(from=0) final int size) {
+		RecycleByteBuffer result;
+		if (size > mMaxSize) {
+			// プールしない
+			result = new RecycleByteBuffer(null, size);
+			mAllocated.incrementAndGet();
+		} else {
+			final int ix = index(size);
+			result = mPools.get(ix).poll();
+			if (result == null) {
+				result = new RecycleByteBuffer(this, 1 << (ix + mMinShift));
+				mAllocated.incrementAndGet();
+			}
+		}
+		result.onObtain();
+		result.getBuffer().limit(size);
+		return result;
+	}
+
+	/**
+	 * バッファをプールへ戻す
+	 * RecycleByteBuffer#recycleから呼ばれる
+	 * @param buffer
+	 * @return
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		if ((capacity <= mMaxSize) && (Integer.bitCount(capacity) == 1)) {
+			final int ix = index(capacity);
+			if ((1 << (ix + mMinShift)) == capacity) {
+				return mPools.get(ix).offer(buffer);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * プールしているバッファを全て破棄する
+	 */
+	public void clear() {
+		for (final LockFreeRingQueue<RecycleByteBuffer> pool: mPools) {
+			pool.clear();
+		}
+	}
+
+	/**
+	 * バッファを生成した回数を取得
+	 * 取得要求に対してこの値が増え続ける時はサイズクラス毎の最大保持数が足りない
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return mAllocated.get();
+	}
+
+	/**
+	 * サイズクラスのインデックスを取得
+	 * @param size 最大サイズクラス以下であること
+	 * @return
+	 */
+	private int index(final int size) {
+		final int ix = shift(size) - mMinShift;
+		return ix < 0 ? 0 : ix;
+	}
+
+	/**
+	 * 指定したサイズ以上の最小の2のべき乗の指数を取得
+	 * @param size
+	 * @return
+	 */
+	private static int shift(final int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
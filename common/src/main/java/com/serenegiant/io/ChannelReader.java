@@ -0,0 +1,457 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * ChannelHelperのread系メソッドと同じ形式(ネットワークバイトオーダー=ビッグエンディアン)の
+ * データをReadableByteChannelから読み込むためのヘルパークラス
+ * ChannelHelperはwork用のバッファを指定しないと呼び出し毎にByteBufferを生成し、
+ * 読み込めたバイト数が足りないとIOExceptionを投げるが、
+ * こちらは内部で1つのダイレクトバッファを使い回してまとめて読み込み、
+ * 読み込めたバイト数が足りない時は必要なバイト数になるまで読み込みを繰り返す
+ * 読み込みは1つのスレッドから行うこと(スレッドセーフではない)
+ * ChannelReaderで読み込みを始めた後はChannelReaderを経由せずに
+ * 同じチャネルから読み込んではいけない(先読みしたデータが失われる)
+ */
+public class ChannelReader {
+	/**
+	 * デフォルトのバッファサイズ
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	@NonNull
+	private final ReadableByteChannel mChannel;
+	/**
+	 * 読み込み用バッファ
+	 * 常にpositionが未処理データの先頭, limitが未処理データの最後になっている
+	 */
+	@NonNull
+	private final ByteBuffer mBuffer;
+	/**
+	 * 文字列読み込み用のワーク
+	 */
+	@Nullable
+	private byte[] mWork;
+
+	/**
+	 * コンストラクタ
+	 * バッファサイズはDEFAULT_BUFFER_SIZE
+	 * @param channel
+	 */
+	public ChannelReader(@NonNull final ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 * @param bufferSize バッファサイズ, 最低8バイト
+	 */
+	public ChannelReader(@NonNull final ReadableByteChannel channel,
+		@IntRange(from=8) final int bufferSize) {
+
+		mChannel = channel;
+		mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 8))
+			.order(ByteOrder.BIG_ENDIAN);
+		mBuffer.limit(0);
+	}
+
+	/**
+	 * 読み込み元のチャネルを取得
+	 * @return
+	 */
+	@NonNull
+	public ReadableByteChannel getChannel() {
+		return mChannel;
+	}
+
+	/**
+	 * 読み込み済みで未処理のバイト数を取得
+	 * @return
+	 */
+	public int buffered() {
+		return mBuffer.remaining();
+	}
+
+	public boolean readBoolean() throws IOException {
+		fill(1);
+		return mBuffer.get() != 0;
+	}
+
+	public byte readByte() throws IOException {
+		fill(1);
+		return mBuffer.get();
+	}
+
+	public char readChar() throws IOException {
+		fill(2);
+		return mBuffer.getChar();
+	}
+
+	public short readShort() throws IOException {
+		fill(2);
+		return mBuffer.getShort();
+	}
+
+	public int readInt() throws IOException {
+		fill(4);
+		return mBuffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		fill(8);
+		return mBuffer.getLong();
+	}
+
+	public float readFloat() throws IOException {
+		fill(4);
+		return mBuffer.getFloat();
+	}
+
+	public double readDouble() throws IOException {
+		fill(8);
+		return mBuffer.getDouble();
+	}
+
+	/**
+	 * 文字列を読み込む
+	 * 先頭4バイトがUTF8でエンコードしたバイト数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public String readString() throws IOException {
+		final int n = readLength(1);
+		if ((mWork == null) || (mWork.length < n)) {
+			mWork = new byte[n];
+		}
+		read(mWork, 0, n);
+		return new String(mWork, 0, n, CharsetsUtils.UTF8);
+	}
+
+	/**
+	 * boolean配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public boolean[] readBooleanArray() throws IOException {
+		final int n = readLength(1);
+		final boolean[] result = new boolean[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 1);
+			for (int j = 0; j < m; j++) {
+				result[i++] = mBuffer.get() != 0;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * byte配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public byte[] readByteArray() throws IOException {
+		final int n = readLength(1);
+		final byte[] result = new byte[n];
+		read(result, 0, n);
+		return result;
+	}
+
+	/**
+	 * char配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public char[] readCharArray() throws IOException {
+		final int n = readLength(2);
+		final char[] result = new char[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 2);
+			// 型付きのビューはmBufferのバイトオーダー(ビッグエンディアン)を引き継ぐ
+			mBuffer.asCharBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 2);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * short配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public short[] readShortArray() throws IOException {
+		final int n = readLength(2);
+		final short[] result = new short[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 2);
+			mBuffer.asShortBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 2);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * int配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public int[] readIntArray() throws IOException {
+		final int n = readLength(4);
+		final int[] result = new int[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 4);
+			mBuffer.asIntBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 4);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * long配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public long[] readLongArray() throws IOException {
+		final int n = readLength(8);
+		final long[] result = new long[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 8);
+			mBuffer.asLongBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 8);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * float配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public float[] readFloatArray() throws IOException {
+		final int n = readLength(4);
+		final float[] result = new float[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 4);
+			mBuffer.asFloatBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 4);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * double配列を読み込む
+	 * 先頭4バイトが要素数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public double[] readDoubleArray() throws IOException {
+		final int n = readLength(8);
+		final double[] result = new double[n];
+		for (int i = 0; i < n; ) {
+			final int m = fillSome(n - i, 8);
+			mBuffer.asDoubleBuffer().get(result, i, m);
+			mBuffer.position(mBuffer.position() + m * 8);
+			i += m;
+		}
+		return result;
+	}
+
+	/**
+	 * ByteBufferを読み込む
+	 * 先頭4バイトがバイト数
+	 * @param readBuf 読み込み先, nullまたはremainingが足りなければ新たにダイレクトバッファを生成する
+	 * @return positionを読み込んだデータの先頭, limitをデータの最後にセットして返す
+	 * @throws IOException
+	 */
+	@NonNull
+	public ByteBuffer readByteBuffer(@Nullable final ByteBuffer readBuf) throws IOException {
+		final int n = readLength(1);
+		ByteBuffer buf = readBuf;
+		if ((buf == null) || (buf.remaining() < n)) {
+			buf = ByteBuffer.allocateDirect(n);
+		}
+		final int pos = buf.position();
+		buf.limit(pos + n);
+		read(buf);
+		buf.position(pos);
+		return buf;
+	}
+
+	/**
+	 * ByteBufferをプールから取得したバッファへ読み込む
+	 * 先頭4バイトがバイト数
+	 * @param pool
+	 * @return positionを読み込んだデータの先頭, limitをデータの最後にセットしたバッファを保持する
+	 * 			RecycleByteBuffer, 使い終わったらrecycleすること
+	 * @throws IOException
+	 */
+	@NonNull
+	public RecycleByteBuffer readRecycleByteBuffer(@NonNull final ByteBufferPool pool)
+		throws IOException {
+
+		final int n = readLength(1);
+		final RecycleByteBuffer result = pool.obtain(n);
+		try {
+			read(result.getBuffer());
+		} catch (final IOException e) {
+			result.recycle();
+			throw e;
+		}
+		result.getBuffer().flip();
+		return result;
+	}
+
+	/**
+	 * 指定したバイト数を読み込む
+	 * 指定したバイト数を読み込むまでブロックする
+	 * @param dst
+	 * @param offset
+	 * @param len
+	 * @throws IOException
+	 */
+	public void read(@NonNull final byte[] dst, final int offset, final int len)
+		throws IOException {
+
+		for (int i = offset, remain = len; remain > 0; ) {
+			final int m = fillSome(remain, 1);
+			mBuffer.get(dst, i, m);
+			i += m;
+			remain -= m;
+		}
+	}
+
+	/**
+	 * dstのremaining分を読み込む
+	 * 読み込み済みのデータをコピーした後、残りはdstへ直接読み込む
+	 * @param dst
+	 * @throws IOException
+	 */
+	public void read(@NonNull final ByteBuffer dst) throws IOException {
+		if (mBuffer.hasRemaining() && dst.hasRemaining()) {
+			final int m = Math.min(mBuffer.remaining(), dst.remaining());
+			final int limit = mBuffer.limit();
+			mBuffer.limit(mBuffer.position() + m);
+			dst.put(mBuffer);
+			mBuffer.limit(limit);
+		}
+		while (dst.hasRemaining()) {
+			if (mChannel.read(dst) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * 指定したバイト数を読み飛ばす
+	 * @param n
+	 * @throws IOException
+	 */
+	public void skip(final long n) throws IOException {
+		for (long remain = n; remain > 0; ) {
+			final int m = fillSome((int)Math.min(remain, Integer.MAX_VALUE), 1);
+			mBuffer.position(mBuffer.position() + m);
+			remain -= m;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 配列等の要素数を読み込む
+	 * @param elementBytes 要素1つあたりのバイト数
+	 * @return
+	 * @throws IOException 要素数が負またはバイト数がintの範囲を超える時
+	 */
+	private int readLength(final int elementBytes) throws IOException {
+		final int n = readInt();
+		if ((n < 0) || ((long)n * elementBytes > Integer.MAX_VALUE)) {
+			throw new IOException("invalid length " + n);
+		}
+		return n;
+	}
+
+	/**
+	 * 未処理データが指定したバイト数以上になるまで読み込む
+	 * @param bytes バッファサイズ以下であること
+	 * @throws IOException
+	 */
+	private void fill(final int bytes) throws IOException {
+		if (mBuffer.remaining() < bytes) {
+			mBuffer.compact();
+			try {
+				while (mBuffer.position() < bytes) {
+					if (mChannel.read(mBuffer) < 0) {
+						throw new EOFException();
+					}
+				}
+			} finally {
+				mBuffer.flip();
+			}
+		}
+	}
+
+	/**
+	 * 最大で指定した要素数分のデータを読み込む
+	 * 少なくとも1要素分は読み込む
+	 * @param elements 必要な要素数
+	 * @param elementBytes 要素1つあたりのバイト数
+	 * @return 未処理データから取り出すことができる要素数
+	 * @throws IOException
+	 */
+	private int fillSome(final int elements, final int elementBytes) throws IOException {
+		int available = mBuffer.remaining() / elementBytes;
+		if (available == 0) {
+			fill(elementBytes);
+			available = mBuffer.remaining() / elementBytes;
+		}
+		return Math.min(available, elements);
+	}
+}
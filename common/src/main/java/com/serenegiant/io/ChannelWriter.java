@@ -0,0 +1,427 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * ChannelHelperのwrite系メソッドと同じ形式(ネットワークバイトオーダー=ビッグエンディアン)で
+ * WritableByteChannelへ書き込むためのヘルパークラス
+ * ChannelHelperはwork用のバッファを指定しないと呼び出し毎にByteBufferを生成して
+ * 値毎にchannel#writeを呼び出すが、こちらは内部の1つのダイレクトバッファへ
+ * まとめてからバッファが一杯になった時または#flush呼び出し時に書き込む。
+ * 一度に書き込めなかった時は全て書き込むまで書き込みを繰り返す
+ * バッファへ入りきらないByteBufferを書き込む時に書き込み先が
+ * GatheringByteChannelであればバッファ内のデータと一緒に1回で書き込む
+ * 書き込みは1つのスレッドから行うこと(スレッドセーフではない)
+ */
+public class ChannelWriter {
+	/**
+	 * デフォルトのバッファサイズ
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	@NonNull
+	private final WritableByteChannel mChannel;
+	/**
+	 * 書き込み用バッファ
+	 * 常にpositionまでが未書き込みデータになっている
+	 */
+	@NonNull
+	private final ByteBuffer mBuffer;
+	/**
+	 * GatheringByteChannelへ書き込む時のワーク
+	 */
+	@NonNull
+	private final ByteBuffer[] mGather = new ByteBuffer[2];
+	/**
+	 * チャネルへ書き込んだ回数(#flush等の呼び出し回数ではなく実際に書き込んだ回数)
+	 * 書き込みスレッドからのみ更新する
+	 */
+	private volatile long mFlushCount;
+	/**
+	 * チャネルへ書き込んだバイト数
+	 * 書き込みスレッドからのみ更新する
+	 */
+	private volatile long mWrittenBytes;
+
+	/**
+	 * コンストラクタ
+	 * バッファサイズはDEFAULT_BUFFER_SIZE
+	 * @param channel
+	 */
+	public ChannelWriter(@NonNull final WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel
+	 * @param bufferSize バッファサイズ, 最低8バイト
+	 */
+	public ChannelWriter(@NonNull final WritableByteChannel channel,
+		@IntRange(from=8) final int bufferSize) {
+
+		mChannel = channel;
+		mBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 8))
+			.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * 書き込み先のチャネルを取得
+	 * @return
+	 */
+	@NonNull
+	public WritableByteChannel getChannel() {
+		return mChannel;
+	}
+
+	/**
+	 * 未書き込みのバイト数を取得
+	 * @return
+	 */
+	public int pending() {
+		return mBuffer.position();
+	}
+
+	/**
+	 * チャネルへ書き込んだ回数を取得
+	 * バッファが一杯になった時の書き込みも含む
+	 * @return
+	 */
+	public long getFlushCount() {
+		return mFlushCount;
+	}
+
+	/**
+	 * チャネルへ書き込んだバイト数を取得
+	 * @return
+	 */
+	public long getWrittenBytes() {
+		return mWrittenBytes;
+	}
+
+	public void write(final boolean value) throws IOException {
+		ensure(1);
+		mBuffer.put((byte)(value ? 1 : 0));
+	}
+
+	public void write(final byte value) throws IOException {
+		ensure(1);
+		mBuffer.put(value);
+	}
+
+	public void write(final char value) throws IOException {
+		ensure(2);
+		mBuffer.putChar(value);
+	}
+
+	public void write(final short value) throws IOException {
+		ensure(2);
+		mBuffer.putShort(value);
+	}
+
+	public void write(final int value) throws IOException {
+		ensure(4);
+		mBuffer.putInt(value);
+	}
+
+	public void write(final long value) throws IOException {
+		ensure(8);
+		mBuffer.putLong(value);
+	}
+
+	public void write(final float value) throws IOException {
+		ensure(4);
+		mBuffer.putFloat(value);
+	}
+
+	public void write(final double value) throws IOException {
+		ensure(8);
+		mBuffer.putDouble(value);
+	}
+
+	/**
+	 * 文字列を書き込む
+	 * 先頭4バイトはUTF8でエンコードしたバイト数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final String value) throws IOException {
+		final byte[] buf = value.getBytes(CharsetsUtils.UTF8);
+		write(buf.length);
+		write(buf, 0, buf.length);
+	}
+
+	/**
+	 * boolean配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final boolean[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 1);
+			for (int j = 0; j < m; j++) {
+				mBuffer.put((byte)(value[i++] ? 1 : 0));
+			}
+		}
+	}
+
+	/**
+	 * byte配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final byte[] value) throws IOException {
+		write(value.length);
+		write(value, 0, value.length);
+	}
+
+	/**
+	 * char配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final char[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 2);
+			// 型付きのビューはmBufferのバイトオーダー(ビッグエンディアン)を引き継ぐ
+			mBuffer.asCharBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 2);
+			i += m;
+		}
+	}
+
+	/**
+	 * short配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final short[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 2);
+			mBuffer.asShortBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 2);
+			i += m;
+		}
+	}
+
+	/**
+	 * int配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final int[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 4);
+			mBuffer.asIntBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 4);
+			i += m;
+		}
+	}
+
+	/**
+	 * long配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final long[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 8);
+			mBuffer.asLongBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 8);
+			i += m;
+		}
+	}
+
+	/**
+	 * float配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final float[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 4);
+			mBuffer.asFloatBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 4);
+			i += m;
+		}
+	}
+
+	/**
+	 * double配列を書き込む
+	 * 先頭4バイトは要素数
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final double[] value) throws IOException {
+		final int n = value.length;
+		write(n);
+		for (int i = 0; i < n; ) {
+			final int m = ensureSome(n - i, 8);
+			mBuffer.asDoubleBuffer().put(value, i, m);
+			mBuffer.position(mBuffer.position() + m * 8);
+			i += m;
+		}
+	}
+
+	/**
+	 * ByteBufferのremaining分を書き込む
+	 * 先頭4バイトはバイト数
+	 * バッファへ入りきらない時はバッファ内のデータを書き込んだ後に
+	 * valueから直接書き込む
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(@NonNull final ByteBuffer value) throws IOException {
+		write(value.remaining());
+		writeRaw(value);
+	}
+
+	/**
+	 * byte配列を要素数なしで書き込む
+	 * @param value
+	 * @param offset
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(@NonNull final byte[] value, final int offset, final int len)
+		throws IOException {
+
+		for (int i = offset, remain = len; remain > 0; ) {
+			final int m = ensureSome(remain, 1);
+			mBuffer.put(value, i, m);
+			i += m;
+			remain -= m;
+		}
+	}
+
+	/**
+	 * ByteBufferのremaining分をバイト数なしで書き込む
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeRaw(@NonNull final ByteBuffer value) throws IOException {
+		if (value.remaining() <= mBuffer.remaining()) {
+			mBuffer.put(value);
+		} else if ((mBuffer.position() > 0) && (mChannel instanceof GatheringByteChannel)) {
+			// バッファ内のデータとvalueをまとめて書き込む
+			final GatheringByteChannel channel = (GatheringByteChannel)mChannel;
+			mBuffer.flip();
+			mGather[0] = mBuffer;
+			mGather[1] = value;
+			try {
+				long bytes = 0;
+				while (value.hasRemaining()) {
+					bytes += channel.write(mGather);
+				}
+				mWrittenBytes += bytes;
+				mFlushCount++;
+			} finally {
+				mGather[0] = mGather[1] = null;
+				mBuffer.compact();
+			}
+		} else {
+			flush();
+			final int bytes = value.remaining();
+			while (value.hasRemaining()) {
+				mChannel.write(value);
+			}
+			mWrittenBytes += bytes;
+			mFlushCount++;
+		}
+	}
+
+	/**
+	 * バッファ内の未書き込みデータを全て書き込む
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (mBuffer.position() > 0) {
+			mBuffer.flip();
+			final int bytes = mBuffer.remaining();
+			try {
+				while (mBuffer.hasRemaining()) {
+					mChannel.write(mBuffer);
+				}
+				mWrittenBytes += bytes;
+				mFlushCount++;
+			} finally {
+				mBuffer.compact();
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * バッファの空きが指定したバイト数以上になるようにする
+	 * @param bytes バッファサイズ以下であること
+	 * @throws IOException
+	 */
+	private void ensure(final int bytes) throws IOException {
+		if (mBuffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	/**
+	 * 最大で指定した要素数分のバッファの空きを確保する
+	 * 少なくとも1要素分は確保する
+	 * @param elements
+	 * @param elementBytes
+	 * @return バッファへ書き込むことができる要素数
+	 * @throws IOException
+	 */
+	private int ensureSome(final int elements, final int elementBytes) throws IOException {
+		int available = mBuffer.remaining() / elementBytes;
+		if (available == 0) {
+			flush();
+			available = mBuffer.remaining() / elementBytes;
+		}
+		return Math.min(available, elements);
+	}
+}
@@ -0,0 +1,1253 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 複数スレッドから同時にアクセスすることを前提としたDiskLruCache
+ * Snapshot/Editorの使い方とジャーナル(BinaryJournal)の書式はDiskLruCacheと同じなので
+ * DiskLruCacheで作成したキャッシュディレクトリをそのまま開くことができる
+ * テキストのジャーナルしか無い時はDiskLruCacheと同様にバイナリジャーナルへ移行する
+ *
+ * DiskLruCacheとの違い
+ * ・キャッシュ全体ではなくキーのハッシュで選択するロック(ストライプロック)で排他制御する
+ * ・書き込み中でないエントリーの読み込み(#get, #contains)はロックしない
+ *   (エントリー毎のシーケンスロックで書き込みと競合した時のみリトライ/ロックする)
+ * ・ジャーナルへの書き込みは専用スレッドがまとめて行うので呼び出し元スレッドでは書き込まない
+ * ・ジャーナルの再構築もジャーナル書き込みスレッド上で行うので読み書きをブロックしない
+ * ・LRUの順序はエントリー毎のアクセス順序番号で管理して、容量超過時にだけ並べ替える
+ *
+ * ジャーナルへの書き込みが非同期なので、DIRTYの書き込み前にアプリが終了すると
+ * 一時ファイルが残る可能性がある。そのためキャッシュを開いたときにキャッシュ
+ * ディレクトリ内の一時ファイル(*.tmp)を全て削除する
+ */
+public final class ConcurrentDiskLruCache implements Closeable {
+	/**
+	 * ストライプロックの数, 2のべき乗であること
+	 */
+	private static final int NUM_LOCKS = 64;
+	/**
+	 * ジャーナル書き込みスレッドが1回にまとめて書き込む最大行数
+	 */
+	private static final int MAX_JOURNAL_BATCH = 256;
+	/**
+	 * ジャーナルの再構築を行う冗長な行数
+	 */
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+	/**
+	 * テキストのジャーナルの読み込み用
+	 */
+	private static final String CLEAN = "CLEAN";
+	private static final String DIRTY = "DIRTY";
+	private static final String REMOVE = "REMOVE";
+	private static final String READ = "READ";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	@NonNull
+	private final File mDirectory;
+	@NonNull
+	private final File mJournalFile;
+	@NonNull
+	private final File mJournalFileTmp;
+	private final int mAppVersion;
+	private final int mValueCount;
+	private final long mMaxSize;
+	@NonNull
+	private final ConcurrentHashMap<String, Entry> mEntries
+		= new ConcurrentHashMap<String, Entry>();
+	@NonNull
+	private final Object[] mLocks = new Object[NUM_LOCKS];
+	@NonNull
+	private final AtomicLong mSize = new AtomicLong();
+	/**
+	 * LRU用のアクセス順序番号
+	 */
+	@NonNull
+	private final AtomicLong mAccessOrder = new AtomicLong();
+	/**
+	 * 古いSnapshotと新しいSnapshotを区別するためにコミット毎に割り当てるシーケンス番号
+	 */
+	@NonNull
+	private final AtomicLong mNextSequenceNumber = new AtomicLong();
+	@NonNull
+	private final AtomicInteger mRedundantOpCount = new AtomicInteger();
+	@NonNull
+	private final AtomicBoolean mCleanupRequested = new AtomicBoolean();
+	@Nullable
+	private volatile JournalWriter mJournalWriter;
+	/**
+	 * 容量超過時のエントリー削除用
+	 */
+	@NonNull
+	private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+		60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	@NonNull
+	private final Runnable mCleanupTask = new Runnable() {
+		@Override
+		public void run() {
+			mCleanupRequested.set(false);
+			if (!isClosed()) {
+				try {
+					trimToSize();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param appVersion
+	 * @param valueCount
+	 * @param maxSize
+	 */
+	private ConcurrentDiskLruCache(
+		@NonNull final File directory, final int appVersion,
+		final int valueCount, final long maxSize) {
+
+		mDirectory = directory;
+		mJournalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+		mJournalFileTmp = new File(directory, DiskLruCache.JOURNAL_FILE_TMP);
+		mAppVersion = appVersion;
+		mValueCount = valueCount;
+		mMaxSize = maxSize;
+		for (int i = 0; i < NUM_LOCKS; i++) {
+			mLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * キャッシュを開く, キャッシュが存在しなければ新規に生成する
+	 * @param directory 書き込み可能なディレクトリ
+	 * @param appVersion
+	 * @param valueCount エントリー毎の値の数, 1以上
+	 * @param maxSize キャッシュの最大バイト数
+	 * @return
+	 * @throws IOException キャッシュディレクトリの読み書きに失敗した
+	 */
+	@NonNull
+	public static ConcurrentDiskLruCache open(
+		@NonNull final File directory, final int appVersion,
+		@IntRange(from=1) final int valueCount,
+		@IntRange(from=1) final long maxSize) throws IOException {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (valueCount <= 0) {
+			throw new IllegalArgumentException("valueCount <= 0");
+		}
+		ConcurrentDiskLruCache cache
+			= new ConcurrentDiskLruCache(directory, appVersion, valueCount, maxSize);
+		BinaryJournal journal = new BinaryJournal(directory, appVersion, valueCount);
+		if (journal.exists()) {
+			try {
+				journal.load(cache.mReplayer);
+				cache.mRedundantOpCount.set(journal.getTailCount());
+				cache.processJournal();
+				cache.startJournalWriter(journal);
+				return cache;
+			} catch (final IOException e) {
+				// ジャーナルファイルが壊れている
+				journal.close();
+				cache.delete();
+			}
+		} else if (cache.mJournalFile.exists()) {
+			// テキストのジャーナルからバイナリジャーナルへ移行する
+			try {
+				cache.readJournal();
+				cache.processJournal();
+				cache.checkpoint(journal, cache.sortedEntries());
+				deleteIfExists(cache.mJournalFile);
+				cache.startJournalWriter(journal);
+				return cache;
+			} catch (final IOException e) {
+				// ジャーナルファイルが壊れている
+				journal.close();
+				cache.delete();
+			}
+		}
+		//noinspection ResultOfMethodCallIgnored
+		directory.mkdirs();
+		cache = new ConcurrentDiskLruCache(directory, appVersion, valueCount, maxSize);
+		journal = new BinaryJournal(directory, appVersion, valueCount);
+		cache.checkpoint(journal, new ArrayList<Entry>());
+		cache.startJournalWriter(journal);
+		return cache;
+	}
+
+	/**
+	 * 指定したキーに対応するエントリーが存在しているかどうかを取得
+	 * ロックしない
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(@NonNull final String key) {
+		checkNotClosed();
+		validateKey(key);
+		final Entry entry = mEntries.get(key);
+		if ((entry == null) || !entry.readable) {
+			return false;
+		}
+		for (int i = 0; i < mValueCount; i++) {
+			final File f = entry.getCleanFile(i);
+			if (!f.exists() || !f.canRead()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 指定したキーに対応するエントリーのスナップショットを取得する
+	 * 存在しないか読み込み可能でなければnullを返す
+	 * 書き込み中のエントリーでなければロックしない
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	@Nullable
+	public Snapshot get(@NonNull final String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		final Entry entry = mEntries.get(key);
+		if ((entry == null) || !entry.readable) {
+			return null;
+		}
+		Snapshot result = null;
+		// 書き込み中でなければロックせずに開いてみる
+		final int version = entry.version;
+		if ((version & 1) == 0) {
+			final long sequenceNumber = entry.sequenceNumber;
+			final InputStream[] ins = openCleanFiles(entry);
+			if (entry.version == version) {
+				if (ins == null) {
+					// ファイルが削除された
+					return null;
+				}
+				result = new Snapshot(key, sequenceNumber, ins);
+			} else {
+				closeAll(ins);
+			}
+		}
+		if (result == null) {
+			// 書き込みと競合した時はロックして開き直す
+			synchronized (lockFor(key)) {
+				if ((mEntries.get(key) != entry) || !entry.readable) {
+					return null;
+				}
+				final InputStream[] ins = openCleanFiles(entry);
+				if (ins == null) {
+					return null;
+				}
+				result = new Snapshot(key, entry.sequenceNumber, ins);
+			}
+		}
+		entry.accessOrder = mAccessOrder.incrementAndGet();
+		appendJournal(BinaryJournal.encode(BinaryJournal.OP_READ, key, null), true);
+		return result;
+	}
+
+	/**
+	 * 指定したキーに対応するEditorを取得する
+	 * 他で編集中であればnullを返す
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	@Nullable
+	public Editor edit(@NonNull final String key) throws IOException {
+		return edit(key, DiskLruCache.ANY_SEQUENCE_NUMBER);
+	}
+
+	@Nullable
+	private Editor edit(@NonNull final String key, final long expectedSequenceNumber)
+		throws IOException {
+
+		checkNotClosed();
+		validateKey(key);
+		synchronized (lockFor(key)) {
+			Entry entry = mEntries.get(key);
+			if ((expectedSequenceNumber != DiskLruCache.ANY_SEQUENCE_NUMBER)
+				&& ((entry == null) || (entry.sequenceNumber != expectedSequenceNumber))) {
+				return null; // スナップショットが古い
+			}
+			if (entry == null) {
+				entry = new Entry(key);
+				entry.accessOrder = mAccessOrder.incrementAndGet();
+				mEntries.put(key, entry);
+			} else if (entry.currentEditor != null) {
+				return null; // 他で編集中
+			}
+			final Editor editor = new Editor(entry);
+			entry.currentEditor = editor;
+			appendJournal(BinaryJournal.encode(BinaryJournal.OP_DIRTY, key, null), false);
+			return editor;
+		}
+	}
+
+	/**
+	 * キャッシュディレクトリを取得
+	 * @return
+	 */
+	@NonNull
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * キャッシュの最大バイト数を取得
+	 * @return
+	 */
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * 現在のキャッシュのバイト数を取得
+	 * バックグラウンドでの削除待ちの時は最大バイト数より大きい可能性がある
+	 * @return
+	 */
+	public long size() {
+		return mSize.get();
+	}
+
+	/**
+	 * 編集を終了する
+	 * @param editor
+	 * @param success
+	 * @throws IOException
+	 */
+	private void completeEdit(@NonNull final Editor editor, final boolean success)
+		throws IOException {
+
+		final Entry entry = editor.entry;
+		synchronized (lockFor(entry.key)) {
+			if (entry.currentEditor != editor) {
+				throw new IllegalStateException();
+			}
+			// 新規作成時は全ての値が書き込まれていないといけない
+			if (success && !entry.readable) {
+				for (int i = 0; i < mValueCount; i++) {
+					final File dirtyFile = entry.getDirtyFile(i);
+					if (!dirtyFile.exists()) {
+						editor.abort();
+						throw new IllegalStateException("edit didn't create file:" + dirtyFile);
+					}
+				}
+			}
+			entry.version++;	// 奇数の間はロックせずに読み込めない
+			try {
+				for (int i = 0; i < mValueCount; i++) {
+					final File dirty = entry.getDirtyFile(i);
+					if (success) {
+						if (dirty.exists()) {
+							final File clean = entry.getCleanFile(i);
+							//noinspection ResultOfMethodCallIgnored
+							dirty.renameTo(clean);
+							final long oldLength = entry.lengths[i];
+							final long newLength = clean.length();
+							entry.lengths[i] = newLength;
+							mSize.addAndGet(newLength - oldLength);
+						}
+					} else {
+						deleteIfExists(dirty);
+					}
+				}
+				entry.currentEditor = null;
+				if (entry.readable | success) {
+					entry.readable = true;
+					if (success) {
+						entry.sequenceNumber = mNextSequenceNumber.getAndIncrement();
+					}
+					appendJournal(BinaryJournal.encode(
+						BinaryJournal.OP_CLEAN, entry.key, entry.lengths), true);
+				} else {
+					mEntries.remove(entry.key);
+					appendJournal(BinaryJournal.encode(
+						BinaryJournal.OP_REMOVE, entry.key, null), true);
+				}
+			} finally {
+				entry.version++;
+			}
+		}
+		if (mSize.get() > mMaxSize) {
+			requestCleanup();
+		}
+	}
+
+	/**
+	 * 指定したキーに対応するエントリーを削除する
+	 * 編集中のエントリーは削除できない
+	 * @param key
+	 * @return 削除した時true
+	 * @throws IOException
+	 */
+	public boolean remove(@NonNull final String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		synchronized (lockFor(key)) {
+			final Entry entry = mEntries.get(key);
+			if ((entry == null) || (entry.currentEditor != null)) {
+				return false;
+			}
+			entry.version++;
+			try {
+				for (int i = 0; i < mValueCount; i++) {
+					final File file = entry.getCleanFile(i);
+					if (!file.delete() && file.exists()) {
+						throw new IOException("failed to delete " + file);
+					}
+					mSize.addAndGet(-entry.lengths[i]);
+					entry.lengths[i] = 0;
+				}
+				entry.readable = false;
+				mEntries.remove(key);
+				appendJournal(BinaryJournal.encode(BinaryJournal.OP_REMOVE, key, null), true);
+			} finally {
+				entry.version++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * キャッシュを閉じているかどうかを取得
+	 * @return
+	 */
+	public boolean isClosed() {
+		return mJournalWriter == null;
+	}
+
+	private void checkNotClosed() {
+		if (mJournalWriter == null) {
+			throw new IllegalStateException("cache is closed");
+		}
+	}
+
+	/**
+	 * 容量超過分のエントリーを削除してジャーナル書き込みスレッドが
+	 * 書き込み待ちのジャーナルを書き込み終わるまで待機する
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		checkNotClosed();
+		trimToSize();
+		final JournalWriter writer = mJournalWriter;
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * キャッシュを閉じる, キャッシュしているファイルはそのまま残る
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		final JournalWriter writer = mJournalWriter;
+		if (writer == null) {
+			return; // すでに閉じている
+		}
+		for (final Entry entry: new ArrayList<Entry>(mEntries.values())) {
+			final Editor editor = entry.currentEditor;
+			if (editor != null) {
+				try {
+					editor.abort();
+				} catch (final IllegalStateException e) {
+					// 他スレッドでコミットされた
+				}
+			}
+		}
+		trimToSize();
+		mJournalWriter = null;
+		mExecutor.shutdown();
+		writer.close();
+	}
+
+	/**
+	 * キャッシュを閉じてキャッシュディレクトリ内のファイルを全て削除する
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		close();
+		DiskLruCache.deleteContents(mDirectory);
+	}
+
+	/**
+	 * 最大バイト数以下になるまでアクセス順序番号の古い順にエントリーを削除する
+	 * @throws IOException
+	 */
+	private void trimToSize() throws IOException {
+		if (mSize.get() <= mMaxSize) {
+			return;
+		}
+		for (final Entry entry: sortedEntries()) {
+			if (mSize.get() <= mMaxSize) {
+				break;
+			}
+			remove(entry.key);
+		}
+	}
+
+	private void requestCleanup() {
+		if (!isClosed() && mCleanupRequested.compareAndSet(false, true)) {
+			try {
+				mExecutor.execute(mCleanupTask);
+			} catch (final Exception e) {
+				mCleanupRequested.set(false);
+			}
+		}
+	}
+
+	/**
+	 * 書き込み待ちのジャーナルに追加する
+	 * @param record BinaryJournal#encodeでエンコードしたレコード
+	 * @param redundant 再構築時に不要になるレコードかどうか
+	 */
+	private void appendJournal(@NonNull final byte[] record, final boolean redundant) {
+		final JournalWriter writer = mJournalWriter;
+		if (writer != null) {
+			writer.append(record);
+			if (redundant) {
+				mRedundantOpCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * ジャーナルの再構築が必要かどうか
+	 * ジャーナルのサイズが半分以下になり且つ2000行以上減る時のみ再構築する
+	 * @return
+	 */
+	private boolean journalRebuildRequired() {
+		final int redundantOpCount = mRedundantOpCount.get();
+		return (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD)
+			&& (redundantOpCount >= mEntries.size());
+	}
+
+	@NonNull
+	private Object lockFor(@NonNull final String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return mLocks[h & (NUM_LOCKS - 1)];
+	}
+
+	/**
+	 * 指定したエントリーのファイルを全て開く
+	 * @param entry
+	 * @return ファイルが存在しなければnull
+	 */
+	@Nullable
+	private InputStream[] openCleanFiles(@NonNull final Entry entry) {
+		final InputStream[] ins = new InputStream[mValueCount];
+		try {
+			for (int i = 0; i < mValueCount; i++) {
+				ins[i] = new FileInputStream(entry.getCleanFile(i));
+			}
+			return ins;
+		} catch (final FileNotFoundException e) {
+			closeAll(ins);
+			return null;
+		}
+	}
+
+	private static void closeAll(@Nullable final InputStream[] ins) {
+		if (ins != null) {
+			for (final InputStream in: ins) {
+				DiskLruCache.closeQuietly(in);
+			}
+		}
+	}
+
+	/**
+	 * バイナリジャーナルの再生用, テキストのジャーナルの#readJournalLineと同じ
+	 */
+	@NonNull
+	private final BinaryJournal.Replayer mReplayer = new BinaryJournal.Replayer() {
+		@Override
+		public void onClean(@NonNull final String key, @NonNull final long[] lengths) {
+			final Entry entry = getOrCreateEntry(key);
+			entry.readable = true;
+			entry.currentEditor = null;
+			System.arraycopy(lengths, 0, entry.lengths, 0, mValueCount);
+		}
+
+		@Override
+		public void onDirty(@NonNull final String key) {
+			final Entry entry = getOrCreateEntry(key);
+			entry.currentEditor = new Editor(entry);
+		}
+
+		@Override
+		public void onRemove(@NonNull final String key) {
+			mEntries.remove(key);
+		}
+
+		@Override
+		public void onRead(@NonNull final String key) {
+			final Entry entry = mEntries.get(key);
+			if (entry != null) {
+				entry.accessOrder = mAccessOrder.incrementAndGet();
+			}
+		}
+	};
+
+	@NonNull
+	private Entry getOrCreateEntry(@NonNull final String key) {
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			mEntries.put(key, entry);
+		}
+		entry.accessOrder = mAccessOrder.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * テキストのジャーナルを読み込む, バイナリジャーナルへの移行時のみ使う
+	 * @throws IOException
+	 */
+	private void readJournal() throws IOException {
+		final InputStream in = new BufferedInputStream(
+			new FileInputStream(mJournalFile), IO_BUFFER_SIZE);
+		try {
+			final String magic = DiskLruCache.readAsciiLine(in);
+			final String version = DiskLruCache.readAsciiLine(in);
+			final String appVersionString = DiskLruCache.readAsciiLine(in);
+			final String valueCountString = DiskLruCache.readAsciiLine(in);
+			final String blank = DiskLruCache.readAsciiLine(in);
+			if (!DiskLruCache.MAGIC.equals(magic)
+				|| !DiskLruCache.VERSION_1.equals(version)
+				|| !Integer.toString(mAppVersion).equals(appVersionString)
+				|| !Integer.toString(mValueCount).equals(valueCountString)
+				|| !"".equals(blank)) {
+
+				throw new IOException("unexpected journal header: ["
+					+ magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+			}
+			while (true) {
+				try {
+					readJournalLine(DiskLruCache.readAsciiLine(in));
+				} catch (final EOFException endOfJournal) {
+					break;
+				}
+			}
+		} finally {
+			DiskLruCache.closeQuietly(in);
+		}
+	}
+
+	private void readJournalLine(@NonNull final String line) throws IOException {
+		final String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			throw new IOException("unexpected journal line: " + line);
+		}
+		final String key = parts[1];
+		if (parts[0].equals(REMOVE) && (parts.length == 2)) {
+			mEntries.remove(key);
+			return;
+		}
+		Entry entry = mEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			mEntries.put(key, entry);
+		}
+		entry.accessOrder = mAccessOrder.incrementAndGet();
+		if (parts[0].equals(CLEAN) && (parts.length == 2 + mValueCount)) {
+			entry.readable = true;
+			entry.currentEditor = null;
+			entry.setLengths(Arrays.copyOfRange(parts, 2, parts.length));
+		} else if (parts[0].equals(DIRTY) && (parts.length == 2)) {
+			entry.currentEditor = new Editor(entry);
+		} else if (!parts[0].equals(READ) || (parts.length != 2)) {
+			throw new IOException("unexpected journal line: " + line);
+		}
+	}
+
+	/**
+	 * キャッシュを開いたときにサイズを計算して不要なファイルを削除する
+	 * 編集中のエントリーは不整合状態なので削除する
+	 * @throws IOException
+	 */
+	private void processJournal() throws IOException {
+		deleteIfExists(mJournalFileTmp);
+		final List<String> dirtyKeys = new ArrayList<String>();
+		long size = 0;
+		for (final Entry entry: mEntries.values()) {
+			if (entry.currentEditor == null) {
+				for (int i = 0; i < mValueCount; i++) {
+					size += entry.lengths[i];
+				}
+			} else {
+				entry.currentEditor = null;
+				for (int i = 0; i < mValueCount; i++) {
+					deleteIfExists(entry.getCleanFile(i));
+				}
+				dirtyKeys.add(entry.key);
+			}
+		}
+		for (final String key: dirtyKeys) {
+			mEntries.remove(key);
+		}
+		mSize.set(size);
+		// ジャーナルに記録される前の一時ファイルが残っているかもしれないので全て削除する
+		final File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.getName().endsWith(TMP_SUFFIX)) {
+					deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 指定したエントリーの状態を記録したチェックポイントを書き込んで
+	 * 空のジャーナルへ切り替える
+	 * @param journal
+	 * @param entries
+	 * @throws IOException
+	 */
+	private void checkpoint(@NonNull final BinaryJournal journal,
+		@NonNull final List<Entry> entries) throws IOException {
+
+		final BinaryJournal.Checkpoint checkpoint = journal.beginCheckpoint();
+		try {
+			for (final Entry entry: entries) {
+				if (entry.currentEditor != null) {
+					checkpoint.dirty(entry.key);
+				} else if (entry.readable) {
+					checkpoint.clean(entry.key, entry.lengths);
+				}
+			}
+		} catch (final IOException e) {
+			checkpoint.abort();
+			throw e;
+		}
+		journal.commit(checkpoint);
+	}
+
+	/**
+	 * ジャーナル書き込みスレッドを開始する
+	 * @param journal
+	 */
+	private void startJournalWriter(@NonNull final BinaryJournal journal) {
+		final JournalWriter writer = new JournalWriter(journal);
+		mJournalWriter = writer;
+		writer.start();
+	}
+
+	private static void deleteIfExists(@NonNull final File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("failed to delete " + file);
+		}
+	}
+
+	private static void validateKey(@NonNull final String key) {
+		if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+			throw new IllegalArgumentException(
+				"keys must not contain spaces or newlines: \"" + key + "\"");
+		}
+	}
+
+	private static String inputStreamToString(@NonNull final InputStream in) throws IOException {
+		return DiskLruCache.readFully(new InputStreamReader(in, CharsetsUtils.UTF8));
+	}
+
+	/**
+	 * アクセス順序番号の古い順に並べたエントリーのリストを取得する
+	 * 並べ替え中にアクセス順序番号が変化しないように先にコピーしてから並べ替える
+	 * @return
+	 */
+	@NonNull
+	private List<Entry> sortedEntries() {
+		final List<OrderedEntry> ordered = new ArrayList<OrderedEntry>(mEntries.size());
+		for (final Entry entry: mEntries.values()) {
+			ordered.add(new OrderedEntry(entry));
+		}
+		Collections.sort(ordered, ACCESS_ORDER);
+		final List<Entry> result = new ArrayList<Entry>(ordered.size());
+		for (final OrderedEntry e: ordered) {
+			result.add(e.entry);
+		}
+		return result;
+	}
+
+	/**
+	 * 並べ替え用にエントリーとその時点のアクセス順序番号を保持する
+	 */
+	private static final class OrderedEntry {
+		@NonNull
+		private final Entry entry;
+		private final long accessOrder;
+
+		private OrderedEntry(@NonNull final Entry entry) {
+			this.entry = entry;
+			this.accessOrder = entry.accessOrder;
+		}
+	}
+
+	/**
+	 * アクセス順序番号の古い順に並べるためのComparator
+	 */
+	private static final Comparator<OrderedEntry> ACCESS_ORDER = new Comparator<OrderedEntry>() {
+		@Override
+		public int compare(final OrderedEntry o1, final OrderedEntry o2) {
+			return o1.accessOrder < o2.accessOrder ? -1 : (o1.accessOrder == o2.accessOrder ? 0 : 1);
+		}
+	};
+
+	/**
+	 * ジャーナル書き込みスレッド
+	 * キューに溜まっている行をまとめて書き込んでからフラッシュする
+	 * 冗長な行が増えた時はこのスレッド上でジャーナルを再構築する
+	 */
+	private final class JournalWriter extends Thread {
+		/**
+		 * 書き込み待ちのレコード(byte[])またはフラッシュ待ち(CountDownLatch)
+		 */
+		@NonNull
+		private final LinkedBlockingQueue<Object> mQueue = new LinkedBlockingQueue<Object>();
+		@NonNull
+		private final List<Object> mBatch = new ArrayList<Object>(MAX_JOURNAL_BATCH);
+		@NonNull
+		private final CountDownLatch mStopped = new CountDownLatch(1);
+		@NonNull
+		private final BinaryJournal mJournal;
+		private volatile boolean mIsRunning = true;
+		@Nullable
+		private volatile IOException mError;
+
+		private JournalWriter(@NonNull final BinaryJournal journal) {
+			super("ConcurrentDiskLruCache-journal");
+			setDaemon(true);
+			mJournal = journal;
+		}
+
+		private void append(@NonNull final byte[] record) {
+			mQueue.offer(record);
+		}
+
+		/**
+		 * 現在書き込み待ちのレコードを全て書き込むまで待機する
+		 * @throws IOException
+		 */
+		private void flush() throws IOException {
+			final CountDownLatch latch = new CountDownLatch(1);
+			if (mIsRunning) {
+				mQueue.offer(latch);
+				try {
+					while (mIsRunning && !latch.await(100, TimeUnit.MILLISECONDS)) {
+						// 終了するか書き込むまで待機する
+					}
+				} catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			final IOException error = mError;
+			if (error != null) {
+				throw error;
+			}
+		}
+
+		/**
+		 * 書き込み待ちのレコードを全て書き込んでからスレッドを終了する
+		 * @throws IOException
+		 */
+		private void close() throws IOException {
+			mIsRunning = false;
+			interrupt();
+			try {
+				mStopped.await();
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+			final IOException error = mError;
+			if (error != null) {
+				throw error;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (mIsRunning) {
+					try {
+						final Object first = mQueue.take();
+						mBatch.add(first);
+						mQueue.drainTo(mBatch, MAX_JOURNAL_BATCH - 1);
+						writeBatch();
+						if (journalRebuildRequired()) {
+							rebuild();
+						}
+					} catch (final InterruptedException e) {
+						break;
+					}
+				}
+				// 残っているレコードを書き込む
+				mQueue.drainTo(mBatch);
+				writeBatch();
+			} finally {
+				try {
+					mJournal.close();
+				} catch (final IOException e) {
+					setError(e);
+				}
+				mStopped.countDown();
+			}
+		}
+
+		private void writeBatch() {
+			try {
+				for (final Object o: mBatch) {
+					if (o instanceof byte[]) {
+						mJournal.write((byte[])o);
+					}
+				}
+				mJournal.flush();
+			} catch (final IOException e) {
+				setError(e);
+			}
+			for (final Object o: mBatch) {
+				if (o instanceof CountDownLatch) {
+					((CountDownLatch)o).countDown();
+				}
+			}
+			mBatch.clear();
+		}
+
+		/**
+		 * チェックポイントを書き込んでジャーナルを空にする
+		 * エントリーの状態は並行して変化するが、変化後のレコードはチェックポイント後に
+		 * このスレッドで追記されるのでチェックポイントの状態が古くても
+		 * 読み込み時には最新の状態になる
+		 */
+		private void rebuild() {
+			mRedundantOpCount.set(0);
+			try {
+				checkpoint(mJournal, sortedEntries());
+			} catch (final IOException e) {
+				setError(e);
+			}
+		}
+
+		private void setError(@NonNull final IOException e) {
+			if (mError == null) {
+				mError = e;
+			}
+		}
+	}
+
+	/**
+	 * エントリーの値のスナップショット
+	 */
+	public final class Snapshot implements Closeable {
+		@NonNull
+		private final String key;
+		private final long sequenceNumber;
+		@NonNull
+		private final InputStream[] ins;
+
+		private Snapshot(@NonNull final String key, final long sequenceNumber,
+			@NonNull final InputStream[] ins) {
+
+			this.key = key;
+			this.sequenceNumber = sequenceNumber;
+			this.ins = ins;
+		}
+
+		/**
+		 * このスナップショットのエントリーのEditorを取得する
+		 * スナップショット取得後にエントリーが変更された時または
+		 * 他で編集中の時はnullを返す
+		 * @return
+		 * @throws IOException
+		 */
+		@Nullable
+		public Editor edit() throws IOException {
+			return ConcurrentDiskLruCache.this.edit(key, sequenceNumber);
+		}
+
+		/**
+		 * 指定したインデックスの値を読み込むためのバッファリングしていない
+		 * InputStream(FileInputStream)を取得する
+		 * @param index
+		 * @return
+		 */
+		public InputStream getInputStream(final int index) {
+			return ins[index];
+		}
+
+		/**
+		 * 指定したインデックスの値を文字列として取得する
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		public String getString(final int index) throws IOException {
+			return inputStreamToString(getInputStream(index));
+		}
+
+		@Override
+		public void close() {
+			closeAll(ins);
+		}
+	}
+
+	/**
+	 * エントリーの値を編集するためのクラス
+	 */
+	public final class Editor {
+		@NonNull
+		private final Entry entry;
+		private volatile boolean hasErrors;
+
+		private Editor(@NonNull final Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * 最後にコミットした値を読み込むためのバッファリングしていないInputStreamを取得する
+		 * コミットしていなければnullを返す
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		@Nullable
+		public InputStream newInputStream(final int index) throws IOException {
+			synchronized (lockFor(entry.key)) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				if (!entry.readable) {
+					return null;
+				}
+				return new FileInputStream(entry.getCleanFile(index));
+			}
+		}
+
+		/**
+		 * 最後にコミットした値を文字列として取得する
+		 * コミットしていなければnullを返す
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		@Nullable
+		public String getString(final int index) throws IOException {
+			final InputStream in = newInputStream(index);
+			return in != null ? inputStreamToString(in) : null;
+		}
+
+		/**
+		 * 指定したインデックスの値を書き込むためのバッファリングしていない
+		 * OutputStreamを取得する
+		 * 書き込み時にエラーが発生しても例外は投げずに#commitで編集を破棄する
+		 * @param index
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		public OutputStream newOutputStream(final int index) throws IOException {
+			synchronized (lockFor(entry.key)) {
+				if (entry.currentEditor != this) {
+					throw new IllegalStateException();
+				}
+				return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+			}
+		}
+
+		/**
+		 * 指定したインデックスの値を文字列で設定する
+		 * @param index
+		 * @param value
+		 * @throws IOException
+		 */
+		public void set(final int index, @NonNull final String value) throws IOException {
+			Writer writer = null;
+			try {
+				writer = new OutputStreamWriter(newOutputStream(index), CharsetsUtils.UTF8);
+				writer.write(value);
+			} finally {
+				DiskLruCache.closeQuietly(writer);
+			}
+		}
+
+		/**
+		 * 編集をコミットして読み込めるようにする
+		 * @throws IOException
+		 */
+		public void commit() throws IOException {
+			if (hasErrors) {
+				completeEdit(this, false);
+				remove(entry.key); // 以前の値は古くなっている
+			} else {
+				completeEdit(this, true);
+			}
+		}
+
+		/**
+		 * 編集を破棄する
+		 * @throws IOException
+		 */
+		public void abort() throws IOException {
+			completeEdit(this, false);
+		}
+
+		private class FaultHidingOutputStream extends FilterOutputStream {
+			private FaultHidingOutputStream(@NonNull final OutputStream out) {
+				super(out);
+			}
+
+			@Override
+			public void write(final int oneByte) {
+				try {
+					out.write(oneByte);
+				} catch (final IOException e) {
+					hasErrors = true;
+				}
+			}
+
+			@Override
+			public void write(@NonNull final byte[] buffer, final int offset, final int length) {
+				try {
+					out.write(buffer, offset, length);
+				} catch (final IOException e) {
+					hasErrors = true;
+				}
+			}
+
+			@Override
+			public void close() {
+				try {
+					out.close();
+				} catch (final IOException e) {
+					hasErrors = true;
+				}
+			}
+
+			@Override
+			public void flush() {
+				try {
+					out.flush();
+				} catch (final IOException e) {
+					hasErrors = true;
+				}
+			}
+		}
+	}
+
+	private final class Entry {
+		@NonNull
+		private final String key;
+		/**
+		 * 値のファイルサイズ, ストライプロック内でのみ変更する
+		 */
+		@NonNull
+		private final long[] lengths;
+		/**
+		 * 一度でもコミットされたかどうか
+		 */
+		private volatile boolean readable;
+		/**
+		 * 編集中のEditor, 編集中でなければnull, ストライプロック内でのみ変更する
+		 */
+		@Nullable
+		private volatile Editor currentEditor;
+		/**
+		 * 最後にコミットした時のシーケンス番号
+		 */
+		private volatile long sequenceNumber;
+		/**
+		 * ロックせずに読み込むためのシーケンスロック用のバージョン番号
+		 * ファイルの変更中は奇数になる
+		 */
+		private volatile int version;
+		/**
+		 * LRU用のアクセス順序番号
+		 */
+		private volatile long accessOrder;
+
+		private Entry(@NonNull final String key) {
+			this.key = key;
+			this.lengths = new long[mValueCount];
+		}
+
+		private void setLengths(@NonNull final String[] strings) throws IOException {
+			if (strings.length != mValueCount) {
+				throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+			}
+			try {
+				for (int i = 0; i < strings.length; i++) {
+					lengths[i] = Long.parseLong(strings[i]);
+				}
+			} catch (final NumberFormatException e) {
+				throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+			}
+		}
+
+		@NonNull
+		private File getCleanFile(final int i) {
+			return new File(mDirectory, key + "." + i);
+		}
+
+		@NonNull
+		private File getDirtyFile(final int i) {
+			return new File(mDirectory, key + "." + i + TMP_SUFFIX);
+		}
+	}
+}
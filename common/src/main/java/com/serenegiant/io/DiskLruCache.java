@@ -17,14 +17,12 @@ package com.serenegiant.io;
 import com.serenegiant.nio.CharsetsUtils;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -145,6 +143,12 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * A large text journal is slow to open, so the same operations are now
+     * recorded by BinaryJournal: a checkpoint "journal.ckpt" plus an append-only
+     * "journal.bin". Opening reads the checkpoint and the short journal tail only.
+     * If only the text "journal" exists, it is read once, migrated to the binary
+     * journal and then deleted.
      */
     private final File directory;
     private final File journalFile;
@@ -153,7 +157,7 @@ public final class DiskLruCache implements Closeable {
     private final long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    private BinaryJournal journal;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
@@ -258,7 +262,7 @@ public final class DiskLruCache implements Closeable {
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
             synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
+                if (journal == null) {
                     return null; // closed
                 }
                 trimToSize();
@@ -298,25 +302,73 @@ public final class DiskLruCache implements Closeable {
         }
         // prefer to pick up where we left off
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        final BinaryJournal journal = new BinaryJournal(directory, appVersion, valueCount);
+        if (journal.exists()) {
+            try {
+                journal.load(cache.replayer);
+                cache.journal = journal;
+                cache.redundantOpCount = journal.getTailCount();
+                cache.processJournal();
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                journal.close();
+                cache.delete();
+            }
+        } else if (cache.journalFile.exists()) {
+            // migrate the text journal to the binary journal
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                cache.journal = journal;
+                cache.rebuildJournal();
+                deleteIfExists(cache.journalFile);
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
 //                        + journalIsCorrupt.getMessage() + ", removing");
+                journal.close();
                 cache.delete();
             }
         }
         // create a new empty cache
         directory.mkdirs();
         cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache.journal = new BinaryJournal(directory, appVersion, valueCount);
         cache.rebuildJournal();
         return cache;
     }
+    /**
+     * Replays the binary journal into lruEntries. Same as readJournalLine.
+     */
+    private final BinaryJournal.Replayer replayer = new BinaryJournal.Replayer() {
+        @Override public void onClean(String key, long[] lengths) {
+            Entry entry = getOrCreateEntry(key);
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        }
+        @Override public void onDirty(String key) {
+            Entry entry = getOrCreateEntry(key);
+            entry.currentEditor = new Editor(entry);
+        }
+        @Override public void onRemove(String key) {
+            lruEntries.remove(key);
+        }
+        @Override public void onRead(String key) {
+            lruEntries.get(key); // moves the entry to the head of the LRU queue
+        }
+    };
+    private Entry getOrCreateEntry(String key) {
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        return entry;
+    }
+    /**
+     * Reads the legacy text journal. Only used to migrate to the binary journal.
+     */
     private void readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
@@ -394,33 +446,24 @@ public final class DiskLruCache implements Closeable {
         }
     }
     /**
-     * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * Writes a checkpoint of all entries and starts a new empty binary journal.
+     * This replaces the current checkpoint and journal if they exist.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        final BinaryJournal.Checkpoint checkpoint = journal.beginCheckpoint();
+        try {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    checkpoint.dirty(entry.key);
+                } else {
+                    checkpoint.clean(entry.key, entry.lengths);
+                }
             }
+        } catch (IOException e) {
+            checkpoint.abort();
+            throw e;
         }
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journal.commit(checkpoint);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -487,7 +530,7 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        journal.write(BinaryJournal.OP_READ, key);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
@@ -517,8 +560,8 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        journal.write(BinaryJournal.OP_DIRTY, key);
+        journal.flush();
         return editor;
     }
     /**
@@ -576,13 +619,13 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journal.writeClean(entry.key, entry.lengths);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            journal.write(BinaryJournal.OP_REMOVE, entry.key);
         }
         if (size > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -619,7 +662,7 @@ public final class DiskLruCache implements Closeable {
             entry.lengths[i] = 0;
         }
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journal.write(BinaryJournal.OP_REMOVE, key);
         lruEntries.remove(key);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -630,10 +673,10 @@ public final class DiskLruCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return journal == null;
     }
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (journal == null) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -643,13 +686,13 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        journal.flush();
     }
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (journal == null) {
             return; // already closed
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -658,8 +701,8 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        journal.close();
+        journal = null;
     }
     private void trimToSize() throws IOException {
         while (size > maxSize) {
@@ -0,0 +1,1288 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.nio.CharsetsUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 大きな追記専用のセグメントファイルへエントリーをまとめて保存するキャッシュ
+ * DiskLruCacheのようにエントリー毎にファイルを生成しないので、小さなエントリーが
+ * 大量にある時(サムネイル等)にinode数やget毎のファイルopen/closeが減る
+ *
+ * ・セグメントファイルはFileChannel#mapでメモリーマップして読み書きする
+ * ・キーのハッシュ値→セグメント/オフセット/長さのバイナリインデックスを
+ *   セグメント毎の有効バイト数/データバイト数と一緒に#flush/#close時に保存して、
+ *   開くときに一括で読み込む(CRC32が一致すればレコードは読まずにそのまま使う)
+ *   インデックス保存後に追記されたレコードは開くときにセグメントの末尾だけを走査して復元する
+ * ・削除/上書きで無効になった領域が半分以上になったセグメントは
+ *   有効なエントリーを最新のセグメントへコピーしてから削除する(コンパクション)
+ * ・最大サイズを超えたときは最も古いセグメントをまとめて破棄する(セグメント単位のFIFO)
+ *
+ * セグメントファイル内のレコードの書式(ビッグエンディアン)
+ *   int マジック
+ *   int キーのバイト数(UTF-8)
+ *   int データのバイト数, 削除時は-1
+ *   int キーとデータのCRC32
+ *   byte[] キー
+ *   byte[] データ
+ *
+ * キーは64ビットのハッシュ値で管理するので、ハッシュ値が衝突した時は
+ * 後から書き込んだエントリーで上書きされる(読み込み時にはキーを比較するので
+ * 異なるキーのデータを返すことはない)
+ */
+public final class MappedBlobStore implements Closeable {
+	/**
+	 * デフォルトのセグメントファイルの最大サイズ
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	public static final int MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private static final String INDEX_FILE = "index";
+	private static final String INDEX_FILE_TMP = "index.tmp";
+	private static final String SEGMENT_PREFIX = "segment.";
+	private static final int INDEX_MAGIC = 0x4d425349;	// MBSI
+	private static final int INDEX_VERSION = 2;
+	private static final int INDEX_HEADER_SIZE = 28;
+	private static final int INDEX_SEGMENT_SIZE = 16;
+	private static final int INDEX_ENTRY_SIZE = 20;
+	private static final int RECORD_MAGIC = 0x4d425352;	// MBSR
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int TOMBSTONE = -1;
+	private static final int MAX_KEY_BYTES = 0xffff;
+	/**
+	 * 無効領域がセグメントサイズのこの割合を超えたらコンパクションする
+	 */
+	private static final float COMPACT_THRESHOLD = 0.5f;
+
+	@NonNull
+	private final File mDirectory;
+	@NonNull
+	private final File mIndexFile;
+	@NonNull
+	private final File mIndexFileTmp;
+	private final int mAppVersion;
+	private final long mMaxSize;
+	private final int mSegmentSize;
+	@NonNull
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+	/**
+	 * セグメントIDの昇順(古い順)
+	 */
+	@NonNull
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+	@NonNull
+	private final Index mIndex = new Index();
+	@Nullable
+	private Segment mActive;
+	/**
+	 * 全セグメントの書き込み済みバイト数の合計
+	 */
+	private long mDiskUsage;
+	/**
+	 * 有効なエントリーのデータバイト数の合計
+	 */
+	private long mSize;
+	private volatile boolean mClosed;
+	@NonNull
+	private final AtomicBoolean mCompactRequested = new AtomicBoolean();
+	/**
+	 * コンパクション用
+	 */
+	@NonNull
+	private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+		60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	@NonNull
+	private final Runnable mCompactTask = new Runnable() {
+		@Override
+		public void run() {
+			mCompactRequested.set(false);
+			try {
+				compact();
+			} catch (final Exception e) {
+				// ignore
+			}
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 * @param directory
+	 * @param appVersion
+	 * @param maxSize
+	 * @param segmentSize
+	 */
+	private MappedBlobStore(
+		@NonNull final File directory, final int appVersion,
+		final long maxSize, final int segmentSize) {
+
+		mDirectory = directory;
+		mIndexFile = new File(directory, INDEX_FILE);
+		mIndexFileTmp = new File(directory, INDEX_FILE_TMP);
+		mAppVersion = appVersion;
+		mMaxSize = maxSize;
+		mSegmentSize = segmentSize;
+	}
+
+	/**
+	 * キャッシュを開く, キャッシュが存在しなければ新規に生成する
+	 * セグメントファイルの最大サイズは最大サイズの1/8
+	 * (DEFAULT_SEGMENT_SIZE以下, MIN_SEGMENT_SIZE以上)
+	 * @param directory 書き込み可能なディレクトリ
+	 * @param appVersion
+	 * @param maxSize キャッシュの最大バイト数
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public static MappedBlobStore open(
+		@NonNull final File directory, final int appVersion,
+		@IntRange(from=1) final long maxSize) throws IOException {
+
+		final long segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(DEFAULT_SEGMENT_SIZE, maxSize / 8));
+		return open(directory, appVersion, maxSize, (int)segmentSize);
+	}
+
+	/**
+	 * キャッシュを開く, キャッシュが存在しなければ新規に生成する
+	 * @param directory 書き込み可能なディレクトリ
+	 * @param appVersion
+	 * @param maxSize キャッシュの最大バイト数
+	 * @param segmentSize セグメントファイルの最大サイズ, これより大きなエントリーは保存できない
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public static MappedBlobStore open(
+		@NonNull final File directory, final int appVersion,
+		@IntRange(from=1) final long maxSize,
+		@IntRange(from=MIN_SEGMENT_SIZE, to=MAX_SEGMENT_SIZE) final int segmentSize)
+			throws IOException {
+
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if ((segmentSize < MIN_SEGMENT_SIZE) || (segmentSize > MAX_SEGMENT_SIZE)) {
+			throw new IllegalArgumentException("invalid segmentSize," + segmentSize);
+		}
+		//noinspection ResultOfMethodCallIgnored
+		directory.mkdirs();
+		if (!directory.isDirectory()) {
+			throw new IOException("failed to create directory," + directory);
+		}
+		final MappedBlobStore store = new MappedBlobStore(directory, appVersion, maxSize, segmentSize);
+		store.load();
+		return store;
+	}
+
+	/**
+	 * キャッシュディレクトリを取得
+	 * @return
+	 */
+	@NonNull
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * キャッシュの最大バイト数を取得
+	 * @return
+	 */
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * 有効なエントリーのデータバイト数の合計を取得
+	 * @return
+	 */
+	public long size() {
+		mLock.readLock().lock();
+		try {
+			return mSize;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * セグメントファイルへ書き込んだバイト数の合計を取得
+	 * 削除/上書きで無効になった領域とレコードのヘッダーを含む
+	 * @return
+	 */
+	public long diskUsage() {
+		mLock.readLock().lock();
+		try {
+			return mDiskUsage;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 有効なエントリー数を取得
+	 * @return
+	 */
+	public int getCount() {
+		mLock.readLock().lock();
+		try {
+			return mIndex.count;
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 閉じているかどうかを取得
+	 * @return
+	 */
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * 指定したキーに対応するエントリーが存在するかどうかを取得
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(@NonNull final String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * 指定したキーに対応するデータを取得する
+	 * 返すByteBufferはセグメントファイルをメモリーマップした領域を参照する読み込み専用のバッファで、
+	 * 後からエントリーを削除/上書きしても内容は変化しない
+	 * @param key
+	 * @return 存在しなければnull
+	 */
+	@Nullable
+	public ByteBuffer get(@NonNull final String key) {
+		checkNotClosed();
+		final byte[] keyBytes = key.getBytes(CharsetsUtils.UTF8);
+		final long hash = hash(keyBytes);
+		mLock.readLock().lock();
+		try {
+			final int slot = mIndex.find(hash);
+			if (slot < 0) {
+				return null;
+			}
+			final Segment segment = mSegments.get(mIndex.segments[slot]);
+			if (segment == null) {
+				return null;
+			}
+			final int offset = mIndex.offsets[slot];
+			final ByteBuffer buffer = segment.buffer;
+			final int keyLen = buffer.getInt(offset + 4);
+			if (keyLen != keyBytes.length) {
+				return null;	// ハッシュ値が衝突した
+			}
+			final int keyOffset = offset + RECORD_HEADER_SIZE;
+			for (int i = 0; i < keyLen; i++) {
+				if (buffer.get(keyOffset + i) != keyBytes[i]) {
+					return null;	// ハッシュ値が衝突した
+				}
+			}
+			final int dataLen = buffer.getInt(offset + 8);
+			final ByteBuffer result = buffer.duplicate();
+			result.limit(keyOffset + keyLen + dataLen);
+			result.position(keyOffset + keyLen);
+			return result.slice().asReadOnlyBuffer();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 指定したキーに対応するデータをbyte配列として取得する
+	 * @param key
+	 * @return 存在しなければnull
+	 */
+	@Nullable
+	public byte[] getBytes(@NonNull final String key) {
+		final ByteBuffer buffer = get(key);
+		if (buffer != null) {
+			final byte[] result = new byte[buffer.remaining()];
+			buffer.get(result);
+			return result;
+		}
+		return null;
+	}
+
+	/**
+	 * 指定したキーに対応するデータを保存する
+	 * @param key
+	 * @param data
+	 * @return セグメントファイルの最大サイズを超えていて保存できなかった時はfalse
+	 * @throws IOException
+	 */
+	public boolean put(@NonNull final String key, @NonNull final byte[] data) throws IOException {
+		return put(key, data, 0, data.length);
+	}
+
+	/**
+	 * 指定したキーに対応するデータを保存する
+	 * @param key
+	 * @param data
+	 * @return セグメントファイルの最大サイズを超えていて保存できなかった時はfalse
+	 * @throws IOException
+	 */
+	public boolean put(@NonNull final String key, @NonNull final ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			return put(key, data.array(),
+				data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			final byte[] bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+			return put(key, bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * 指定したキーに対応するデータを保存する
+	 * @param key
+	 * @param data
+	 * @param offset
+	 * @param len
+	 * @return セグメントファイルの最大サイズを超えていて保存できなかった時はfalse
+	 * @throws IOException
+	 */
+	public boolean put(@NonNull final String key,
+		@NonNull final byte[] data, final int offset, final int len) throws IOException {
+
+		checkNotClosed();
+		final byte[] keyBytes = key.getBytes(CharsetsUtils.UTF8);
+		if (keyBytes.length > MAX_KEY_BYTES) {
+			throw new IllegalArgumentException("key too long");
+		}
+		final long recordSize = (long)RECORD_HEADER_SIZE + keyBytes.length + len;
+		if (recordSize > mSegmentSize) {
+			return false;
+		}
+		final long hash = hash(keyBytes);
+		final CRC32 crc = new CRC32();
+		crc.update(keyBytes, 0, keyBytes.length);
+		crc.update(data, offset, len);
+		boolean needCompact;
+		mLock.writeLock().lock();
+		try {
+			checkNotClosed();
+			final Segment segment = ensureActive((int)recordSize);
+			final int recordOffset = segment.size;
+			final ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(recordOffset + 4);
+			buffer.putInt(keyBytes.length)
+				.putInt(len)
+				.putInt((int)crc.getValue())
+				.put(keyBytes)
+				.put(data, offset, len);
+			buffer.putInt(recordOffset, RECORD_MAGIC);
+			needCompact = appendRecord(segment, recordOffset, (int)recordSize, hash, len);
+			trimToSize();
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		if (needCompact) {
+			requestCompact();
+		}
+		return true;
+	}
+
+	/**
+	 * 指定したキーに対応するエントリーを削除する
+	 * @param key
+	 * @return 削除した時true
+	 * @throws IOException
+	 */
+	public boolean remove(@NonNull final String key) throws IOException {
+		checkNotClosed();
+		final byte[] keyBytes = key.getBytes(CharsetsUtils.UTF8);
+		final long hash = hash(keyBytes);
+		final CRC32 crc = new CRC32();
+		crc.update(keyBytes, 0, keyBytes.length);
+		boolean needCompact;
+		mLock.writeLock().lock();
+		try {
+			checkNotClosed();
+			if (mIndex.find(hash) < 0) {
+				return false;
+			}
+			// 再度開いたときに削除したエントリーが復活しないように削除レコードを書き込む
+			final int recordSize = RECORD_HEADER_SIZE + keyBytes.length;
+			final Segment segment = ensureActive(recordSize);
+			final int recordOffset = segment.size;
+			final ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(recordOffset + 4);
+			buffer.putInt(keyBytes.length)
+				.putInt(TOMBSTONE)
+				.putInt((int)crc.getValue())
+				.put(keyBytes);
+			buffer.putInt(recordOffset, RECORD_MAGIC);
+			needCompact = appendRecord(segment, recordOffset, recordSize, hash, TOMBSTONE);
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		if (needCompact) {
+			requestCompact();
+		}
+		return true;
+	}
+
+	/**
+	 * 書き込んだデータをストレージへ書き出してインデックスを保存する
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		checkNotClosed();
+		mLock.readLock().lock();
+		try {
+			if (mActive != null) {
+				mActive.buffer.force();
+			}
+			writeIndex();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 無効領域の多いセグメントをコンパクションする
+	 * 通常はバックグラウンドで自動的に実行される
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		final List<Segment> targets = new ArrayList<Segment>();
+		mLock.readLock().lock();
+		try {
+			if (mClosed) {
+				return;
+			}
+			for (final Segment segment: mSegments.values()) {
+				if ((segment != mActive) && segment.shouldCompact(mSegmentSize)) {
+					targets.add(segment);
+				}
+			}
+		} finally {
+			mLock.readLock().unlock();
+		}
+		boolean compacted = false;
+		for (final Segment segment: targets) {
+			compacted |= compact(segment);
+		}
+		if (compacted) {
+			mLock.readLock().lock();
+			try {
+				if (!mClosed) {
+					writeIndex();
+				}
+			} finally {
+				mLock.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * キャッシュを閉じる, キャッシュしているデータはそのまま残る
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		mLock.writeLock().lock();
+		try {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			mExecutor.shutdown();
+			if (mActive != null) {
+				mActive.buffer.force();
+			}
+			writeIndex();
+		} finally {
+			mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * キャッシュを閉じてキャッシュディレクトリ内のファイルを全て削除する
+	 * @throws IOException
+	 */
+	public void delete() throws IOException {
+		close();
+		mLock.writeLock().lock();
+		try {
+			mSegments.clear();
+			mIndex.clear();
+			mActive = null;
+			mSize = mDiskUsage = 0;
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		DiskLruCache.deleteContents(mDirectory);
+	}
+
+	private void checkNotClosed() {
+		if (mClosed) {
+			throw new IllegalStateException("store is closed");
+		}
+	}
+
+	private void requestCompact() {
+		if (!mClosed && mCompactRequested.compareAndSet(false, true)) {
+			try {
+				mExecutor.execute(mCompactTask);
+			} catch (final Exception e) {
+				mCompactRequested.set(false);
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+// ここから下は書き込みロック中に呼ぶこと
+
+	/**
+	 * 指定したサイズのレコードを書き込めるセグメントを取得する
+	 * 書き込み中のセグメントに入らなければ新しいセグメントを生成する
+	 * @param recordSize
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private Segment ensureActive(final int recordSize) throws IOException {
+		Segment segment = mActive;
+		if ((segment == null) || (segment.size + recordSize > segment.capacity)) {
+			if (segment != null) {
+				segment.seal();
+			}
+			final int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+			segment = Segment.create(segmentFile(id), id, mSegmentSize);
+			mSegments.put(id, segment);
+			mActive = segment;
+		}
+		return segment;
+	}
+
+	/**
+	 * 書き込んだレコードをインデックスへ反映する
+	 * @param segment
+	 * @param recordOffset
+	 * @param recordSize
+	 * @param hash
+	 * @param dataLen データのバイト数, 削除レコードならTOMBSTONE
+	 * @return コンパクションが必要なセグメントがあればtrue
+	 */
+	private boolean appendRecord(@NonNull final Segment segment,
+		final int recordOffset, final int recordSize,
+		final long hash, final int dataLen) {
+
+		segment.size += recordSize;
+		mDiskUsage += recordSize;
+		final boolean needCompact = removeFromIndex(hash);
+		if (dataLen != TOMBSTONE) {
+			segment.liveBytes += recordSize;
+			segment.dataBytes += dataLen;
+			mSize += dataLen;
+			mIndex.put(hash, segment.id, recordOffset, recordSize);
+		}
+		return needCompact;
+	}
+
+	/**
+	 * 指定したハッシュ値のエントリーをインデックスから削除する
+	 * @param hash
+	 * @return コンパクションが必要になればtrue
+	 */
+	private boolean removeFromIndex(final long hash) {
+		final int slot = mIndex.find(hash);
+		if (slot >= 0) {
+			final Segment old = mSegments.get(mIndex.segments[slot]);
+			if (old != null) {
+				final int dataLen = dataLength(old, mIndex.offsets[slot]);
+				old.liveBytes -= mIndex.lengths[slot];
+				old.dataBytes -= dataLen;
+				mSize -= dataLen;
+			}
+			mIndex.removeAt(slot);
+			return (old != null) && (old != mActive) && old.shouldCompact(mSegmentSize);
+		}
+		return false;
+	}
+
+	/**
+	 * 最大サイズを超えていれば古いセグメントから破棄する
+	 */
+	private void trimToSize() {
+		while ((mDiskUsage > mMaxSize) && (mSegments.size() > 1)) {
+			final Segment oldest = mSegments.firstEntry().getValue();
+			if (oldest == mActive) {
+				break;
+			}
+			dropSegment(oldest);
+		}
+	}
+
+	/**
+	 * 指定したセグメントとそのセグメントを参照しているエントリーを削除する
+	 * @param segment
+	 */
+	private void dropSegment(@NonNull final Segment segment) {
+		final long[] hashes = mIndex.collect(segment.id);
+		for (final long hash: hashes) {
+			mIndex.removeAt(mIndex.find(hash));
+		}
+		mSize -= segment.dataBytes;
+		mSegments.remove(segment.id);
+		mDiskUsage -= segment.size;
+		//noinspection ResultOfMethodCallIgnored
+		segment.file.delete();
+	}
+
+	/**
+	 * 指定したセグメントの有効なエントリーを書き込み中のセグメントへコピーしてから
+	 * セグメントを削除する
+	 * 読み込みをブロックする時間が長くならないようにエントリー毎に書き込みロックする
+	 * @param segment
+	 * @return セグメントを削除した時true
+	 * @throws IOException
+	 */
+	private boolean compact(@NonNull final Segment segment) throws IOException {
+		final long[] hashes;
+		mLock.readLock().lock();
+		try {
+			hashes = mIndex.collect(segment.id);
+		} finally {
+			mLock.readLock().unlock();
+		}
+		for (final long hash: hashes) {
+			mLock.writeLock().lock();
+			try {
+				if (mClosed || (mSegments.get(segment.id) != segment)) {
+					return false;
+				}
+				final int slot = mIndex.find(hash);
+				if ((slot < 0) || (mIndex.segments[slot] != segment.id)) {
+					continue;	// 削除/上書きされた
+				}
+				final int offset = mIndex.offsets[slot];
+				final int recordSize = mIndex.lengths[slot];
+				final int dataLen = dataLength(segment, offset);
+				final Segment dst = ensureActive(recordSize);
+				final int dstOffset = dst.size;
+				final ByteBuffer src = segment.buffer.duplicate();
+				src.limit(offset + recordSize).position(offset);
+				final ByteBuffer buffer = dst.buffer.duplicate();
+				buffer.position(dstOffset);
+				buffer.put(src);
+				appendRecord(dst, dstOffset, recordSize, hash, dataLen);
+			} finally {
+				mLock.writeLock().unlock();
+			}
+		}
+		mLock.writeLock().lock();
+		try {
+			if (!mClosed && (mSegments.get(segment.id) == segment)
+				&& (segment.liveBytes <= 0)) {
+
+				mSegments.remove(segment.id);
+				mDiskUsage -= segment.size;
+				//noinspection ResultOfMethodCallIgnored
+				segment.file.delete();
+				return true;
+			}
+		} finally {
+			mLock.writeLock().unlock();
+		}
+		return false;
+	}
+
+//--------------------------------------------------------------------------------
+// ここから下は読み込みロックまたは書き込みロック中に呼ぶこと
+
+	/**
+	 * インデックスファイルを書き込む
+	 * 読み込みロック中に#flushとコンパクションから同時に呼ばれる可能性があるので
+	 * 一時ファイルへの書き込みは排他制御する
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		synchronized (mIndexFileTmp) {
+			writeIndexLocked();
+		}
+	}
+
+	private void writeIndexLocked() throws IOException {
+		final int numEntries = mIndex.count;
+		final int numSegments = mSegments.size();
+		final ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE
+			+ numSegments * INDEX_SEGMENT_SIZE + numEntries * INDEX_ENTRY_SIZE);
+		buffer.putInt(INDEX_MAGIC)
+			.putInt(INDEX_VERSION)
+			.putInt(mAppVersion)
+			.putInt(mSegmentSize)
+			.putInt(numSegments)
+			.putInt(numEntries)
+			.putInt(0);	// CRC32, 後で書き込む
+		for (final Segment segment: mSegments.values()) {
+			buffer.putInt(segment.id)
+				.putInt(segment.size)
+				.putInt(segment.liveBytes)
+				.putInt(segment.dataBytes);
+		}
+		final long[] hashes = mIndex.hashes;
+		for (int i = 0; i < hashes.length; i++) {
+			if (hashes[i] != 0) {
+				buffer.putLong(hashes[i])
+					.putInt(mIndex.segments[i])
+					.putInt(mIndex.offsets[i])
+					.putInt(mIndex.lengths[i]);
+			}
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(buffer.array(), INDEX_HEADER_SIZE, buffer.position() - INDEX_HEADER_SIZE);
+		buffer.putInt(INDEX_HEADER_SIZE - 4, (int)crc.getValue());
+		buffer.flip();
+		final FileOutputStream out = new FileOutputStream(mIndexFileTmp);
+		try {
+			final FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		} finally {
+			out.close();
+		}
+		if (!mIndexFileTmp.renameTo(mIndexFile)) {
+			throw new IOException("failed to rename index file");
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * インデックスファイルとセグメントファイルを読み込む
+	 * インデックスファイルに保存したセグメントはインデックス保存後に追記された
+	 * 末尾のレコードだけを走査する
+	 * インデックスファイルが無い/壊れている時はセグメントファイルを全て走査して
+	 * インデックスを再構築する
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		// セグメントファイルを列挙する
+		final TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+		final File[] list = mDirectory.listFiles();
+		if (list != null) {
+			for (final File file: list) {
+				final String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX)) {
+					try {
+						files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())), file);
+					} catch (final NumberFormatException e) {
+						// ignore
+					}
+				}
+			}
+		}
+		final Map<Integer, IndexedSegment> indexed = readIndex(files);
+		final int lastId = files.isEmpty() ? -1 : files.lastKey();
+		for (final Map.Entry<Integer, File> e: files.entrySet()) {
+			final int id = e.getKey();
+			final Segment segment = Segment.open(e.getValue(), id,
+				id == lastId ? Math.max(mSegmentSize, (int)e.getValue().length()) : 0);
+			final IndexedSegment info = indexed.get(id);
+			if (info != null) {
+				segment.size = info.size;
+				segment.liveBytes = info.liveBytes;
+				segment.dataBytes = info.dataBytes;
+				mSize += info.dataBytes;
+			}
+			mSegments.put(id, segment);
+			if (id == lastId) {
+				mActive = segment;
+			}
+		}
+		// インデックス保存後に追記されたレコードを復元する
+		// 追記されたレコードで上書き/削除されるエントリーのセグメントが
+		// 揃っているように全てのセグメントを開いてから走査する
+		boolean modified = false;
+		for (final Segment segment: mSegments.values()) {
+			modified |= scan(segment) > 0;
+		}
+		for (final Segment segment: new ArrayList<Segment>(mSegments.values())) {
+			if ((segment != mActive) && (segment.liveBytes <= 0)) {
+				// 有効なエントリーが無い
+				mSegments.remove(segment.id);
+				//noinspection ResultOfMethodCallIgnored
+				segment.file.delete();
+				modified = true;
+			}
+		}
+		mDiskUsage = 0;
+		for (final Segment segment: mSegments.values()) {
+			mDiskUsage += segment.size;
+		}
+		//noinspection ResultOfMethodCallIgnored
+		mIndexFileTmp.delete();
+		if (modified) {
+			// インデックスファイルの内容から変わった時だけ保存し直す
+			writeIndex();
+		}
+	}
+
+	/**
+	 * インデックスファイルを読み込む
+	 * CRC32が一致しない時や内容に矛盾がある時は壊れているとみなして何も読み込まない
+	 * @param files 存在するセグメントファイル
+	 * @return セグメントID→インデックス保存時のセグメントの状態
+	 */
+	@NonNull
+	private Map<Integer, IndexedSegment> readIndex(@NonNull final Map<Integer, File> files) {
+		final Map<Integer, IndexedSegment> result = new TreeMap<Integer, IndexedSegment>();
+		if (!mIndexFile.exists()) {
+			return result;
+		}
+		try {
+			final byte[] bytes;
+			final RandomAccessFile raf = new RandomAccessFile(mIndexFile, "r");
+			try {
+				final long length = raf.length();
+				if ((length < INDEX_HEADER_SIZE) || (length > Integer.MAX_VALUE)) {
+					return result;
+				}
+				bytes = new byte[(int)length];
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if ((buffer.getInt() != INDEX_MAGIC)
+				|| (buffer.getInt() != INDEX_VERSION)
+				|| (buffer.getInt() != mAppVersion)) {
+				return result;
+			}
+			buffer.getInt();	// segmentSize
+			final int numSegments = buffer.getInt();
+			final int numEntries = buffer.getInt();
+			final int checksum = buffer.getInt();
+			if ((numSegments < 0) || (numEntries < 0)
+				|| (buffer.remaining() != (long)numSegments * INDEX_SEGMENT_SIZE
+					+ (long)numEntries * INDEX_ENTRY_SIZE)) {
+				return result;
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, INDEX_HEADER_SIZE, bytes.length - INDEX_HEADER_SIZE);
+			if ((int)crc.getValue() != checksum) {
+				return result;
+			}
+			for (int i = 0; i < numSegments; i++) {
+				final int id = buffer.getInt();
+				final IndexedSegment info = new IndexedSegment(
+					buffer.getInt(), buffer.getInt(), buffer.getInt());
+				final File file = files.get(id);
+				if ((file != null) && (file.length() >= info.size)) {
+					result.put(id, info);
+				}
+			}
+			mIndex.ensureCapacity(numEntries);
+			for (int i = 0; i < numEntries; i++) {
+				final long hash = buffer.getLong();
+				final int id = buffer.getInt();
+				final int offset = buffer.getInt();
+				final int length = buffer.getInt();
+				final IndexedSegment info = result.get(id);
+				if (info == null) {
+					continue;	// セグメントファイルが無い
+				}
+				if ((offset < 0) || (length < RECORD_HEADER_SIZE)
+					|| (offset + (long)length > info.size) || (hash == 0)) {
+
+					throw new IOException("invalid index entry");
+				}
+				mIndex.put(hash, id, offset, length);
+			}
+		} catch (final IOException e) {
+			// 壊れている時はセグメントファイルを走査して再構築する
+			mIndex.clear();
+			result.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * セグメントファイルをSegment#sizeの位置から走査して追記されたレコードを
+	 * インデックスへ反映する
+	 * @param segment
+	 * @return 復元したレコードの数
+	 */
+	private int scan(@NonNull final Segment segment) {
+		final ByteBuffer buffer = segment.buffer;
+		final CRC32 crc = new CRC32();
+		final byte[] work = new byte[8192];
+		int result = 0;
+		int offset = segment.size;
+		final int limit = buffer.capacity();
+		while (offset + RECORD_HEADER_SIZE <= limit) {
+			if (buffer.getInt(offset) != RECORD_MAGIC) {
+				break;
+			}
+			final int keyLen = buffer.getInt(offset + 4);
+			final int dataLen = buffer.getInt(offset + 8);
+			final long recordSize = (long)RECORD_HEADER_SIZE + keyLen + Math.max(dataLen, 0);
+			if ((keyLen < 0) || (keyLen > MAX_KEY_BYTES) || (dataLen < TOMBSTONE)
+				|| (offset + recordSize > limit)) {
+				break;
+			}
+			// CRCを確認する
+			crc.reset();
+			final ByteBuffer src = buffer.duplicate();
+			src.limit(offset + (int)recordSize).position(offset + RECORD_HEADER_SIZE);
+			while (src.hasRemaining()) {
+				final int n = Math.min(work.length, src.remaining());
+				src.get(work, 0, n);
+				crc.update(work, 0, n);
+			}
+			if ((int)crc.getValue() != buffer.getInt(offset + 12)) {
+				break;
+			}
+			final byte[] keyBytes = new byte[keyLen];
+			src.position(offset + RECORD_HEADER_SIZE);
+			src.get(keyBytes);
+			appendRecord(segment, offset, (int)recordSize, hash(keyBytes), dataLen);
+			offset += (int)recordSize;
+			result++;
+		}
+		return result;
+	}
+
+	@NonNull
+	private File segmentFile(final int id) {
+		return new File(mDirectory, SEGMENT_PREFIX + id);
+	}
+
+	/**
+	 * 指定した位置のレコードのデータバイト数を取得
+	 * @param segment
+	 * @param offset
+	 * @return
+	 */
+	private static int dataLength(@NonNull final Segment segment, final int offset) {
+		return Math.max(segment.buffer.getInt(offset + 8), 0);
+	}
+
+	/**
+	 * キーのハッシュ値(FNV-1a 64ビット)を計算する, 0は空きスロットを示すので使わない
+	 * @param keyBytes
+	 * @return
+	 */
+	private static long hash(@NonNull final byte[] keyBytes) {
+		long h = 0xcbf29ce484222325L;
+		for (final byte b: keyBytes) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		return h != 0 ? h : 1;
+	}
+
+	/**
+	 * セグメントファイル
+	 * ファイルディスクリプタを保持しないようにメモリーマップした後はファイルを閉じる
+	 */
+	private static final class Segment {
+		private final int id;
+		@NonNull
+		private final File file;
+		@NonNull
+		private final MappedByteBuffer buffer;
+		/**
+		 * マップしたサイズ
+		 */
+		private final int capacity;
+		/**
+		 * 書き込み済みのバイト数
+		 */
+		private int size;
+		/**
+		 * 有効なレコードのバイト数
+		 */
+		private int liveBytes;
+		/**
+		 * 有効なレコードのデータのバイト数
+		 */
+		private int dataBytes;
+
+		/**
+		 * 書き込み用に新しいセグメントファイルを生成する
+		 * @param file
+		 * @param id
+		 * @param capacity
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		private static Segment create(@NonNull final File file,
+			final int id, final int capacity) throws IOException {
+
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+			return open(file, id, capacity);
+		}
+
+		/**
+		 * セグメントファイルを開く
+		 * @param file
+		 * @param id
+		 * @param capacity 書き込み用に開く時はセグメントファイルの最大サイズ,
+		 * 					0なら読み込み専用にファイルサイズでマップする
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		private static Segment open(@NonNull final File file,
+			final int id, final int capacity) throws IOException {
+
+			final RandomAccessFile raf = new RandomAccessFile(file, capacity > 0 ? "rw" : "r");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final MappedByteBuffer buffer;
+				if (capacity > 0) {
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+				} else {
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						Math.min(channel.size(), Integer.MAX_VALUE));
+				}
+				return new Segment(file, id, buffer);
+			} finally {
+				raf.close();
+			}
+		}
+
+		private Segment(@NonNull final File file, final int id,
+			@NonNull final MappedByteBuffer buffer) {
+
+			this.file = file;
+			this.id = id;
+			this.buffer = buffer;
+			this.capacity = buffer.capacity();
+		}
+
+		/**
+		 * 書き込みを終了する
+		 * 書き込み用に最大サイズでマップしていたファイルを書き込み済みのサイズに切り詰める
+		 * @throws IOException
+		 */
+		private void seal() throws IOException {
+			buffer.force();
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.getChannel().truncate(size);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * コンパクションが必要かどうか
+		 * @param segmentSize
+		 * @return
+		 */
+		private boolean shouldCompact(final int segmentSize) {
+			return (size - liveBytes) > segmentSize * COMPACT_THRESHOLD;
+		}
+	}
+
+	/**
+	 * インデックスファイルに保存したセグメントの状態
+	 */
+	private static final class IndexedSegment {
+		/**
+		 * インデックス保存時の書き込み済みのバイト数
+		 */
+		private final int size;
+		private final int liveBytes;
+		private final int dataBytes;
+
+		private IndexedSegment(final int size, final int liveBytes, final int dataBytes) {
+			this.size = size;
+			this.liveBytes = liveBytes;
+			this.dataBytes = dataBytes;
+		}
+	}
+
+	/**
+	 * キーのハッシュ値→セグメント/オフセット/長さの
+	 * オープンアドレス法(線形探索)のハッシュテーブル
+	 */
+	private static final class Index {
+		private static final int MIN_CAPACITY = 64;
+
+		private long[] hashes;
+		private int[] segments;
+		private int[] offsets;
+		private int[] lengths;
+		private int count;
+
+		private Index() {
+			allocate(MIN_CAPACITY);
+		}
+
+		private void allocate(final int capacity) {
+			hashes = new long[capacity];
+			segments = new int[capacity];
+			offsets = new int[capacity];
+			lengths = new int[capacity];
+			count = 0;
+		}
+
+		private void clear() {
+			allocate(MIN_CAPACITY);
+		}
+
+		/**
+		 * 指定した数のエントリーを保持できるように容量を拡張する
+		 * @param n
+		 */
+		private void ensureCapacity(final int n) {
+			int capacity = hashes.length;
+			while (n * 4L > capacity * 3L) {
+				capacity <<= 1;
+			}
+			if (capacity != hashes.length) {
+				final long[] h = hashes;
+				final int[] s = segments;
+				final int[] o = offsets;
+				final int[] l = lengths;
+				allocate(capacity);
+				for (int i = 0; i < h.length; i++) {
+					if (h[i] != 0) {
+						put(h[i], s[i], o[i], l[i]);
+					}
+				}
+			}
+		}
+
+		private int find(final long hash) {
+			final int mask = hashes.length - 1;
+			int i = slot(hash, mask);
+			while (true) {
+				final long h = hashes[i];
+				if (h == hash) {
+					return i;
+				} else if (h == 0) {
+					return -1;
+				}
+				i = (i + 1) & mask;
+			}
+		}
+
+		private void put(final long hash, final int segment, final int offset, final int length) {
+			ensureCapacity(count + 1);
+			final int mask = hashes.length - 1;
+			int i = slot(hash, mask);
+			while ((hashes[i] != 0) && (hashes[i] != hash)) {
+				i = (i + 1) & mask;
+			}
+			if (hashes[i] == 0) {
+				count++;
+			}
+			hashes[i] = hash;
+			segments[i] = segment;
+			offsets[i] = offset;
+			lengths[i] = length;
+		}
+
+		/**
+		 * 指定したスロットを削除して後続のエントリーを詰める
+		 * @param slot
+		 */
+		private void removeAt(final int slot) {
+			final int mask = hashes.length - 1;
+			int i = slot;
+			int j = slot;
+			hashes[i] = 0;
+			count--;
+			while (true) {
+				j = (j + 1) & mask;
+				final long h = hashes[j];
+				if (h == 0) {
+					break;
+				}
+				final int k = slot(h, mask);
+				// kが(i, j]の範囲内ならそのまま
+				if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) {
+					continue;
+				}
+				hashes[i] = h;
+				segments[i] = segments[j];
+				offsets[i] = offsets[j];
+				lengths[i] = lengths[j];
+				hashes[j] = 0;
+				i = j;
+			}
+		}
+
+		/**
+		 * 指定したセグメントを参照しているエントリーのハッシュ値を取得する
+		 * @param segment
+		 * @return
+		 */
+		@NonNull
+		private long[] collect(final int segment) {
+			int n = 0;
+			for (int i = 0; i < hashes.length; i++) {
+				if ((hashes[i] != 0) && (segments[i] == segment)) {
+					n++;
+				}
+			}
+			final long[] result = new long[n];
+			n = 0;
+			for (int i = 0; i < hashes.length; i++) {
+				if ((hashes[i] != 0) && (segments[i] == segment)) {
+					result[n++] = hashes[i];
+				}
+			}
+			return result;
+		}
+
+		private static int slot(final long hash, final int mask) {
+			return (int)(hash ^ (hash >>> 32)) & mask;
+		}
+	}
+}
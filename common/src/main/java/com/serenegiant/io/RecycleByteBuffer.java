@@ -0,0 +1,98 @@
+package com.serenegiant.io;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.IRecycleBuffer;
+import com.serenegiant.media.IRecycleParent;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * ByteBufferPoolから取得するIRecycleBuffer実装
+ * 使い終わったら#recycleを呼んでプールへ戻すこと
+ * recycle後はバッファへアクセスしてはいけない
+ */
+public class RecycleByteBuffer implements IRecycleBuffer {
+	@Nullable
+	private final IRecycleParent<RecycleByteBuffer> mParent;
+	@NonNull
+	private final ByteBuffer mBuffer;
+	/**
+	 * プールへ戻したかどうか, 2重にrecycleされないようにする
+	 */
+	@NonNull
+	private final AtomicBoolean mRecycled = new AtomicBoolean();
+
+	/**
+	 * コンストラクタ
+	 * @param parent 親となるIRecycleParentオブジェクト, nullならrecycleしても何もしない
+	 * @param capacity
+	 */
+	/*package*/ RecycleByteBuffer(
+		@Nullable final IRecycleParent<RecycleByteBuffer> parent, final int capacity) {
+
+		mParent = parent;
+		mBuffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * 保持しているバッファを取得
+	 * 受信データを保持している時はpositionがデータの先頭, limitがデータの最後になっている
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * 保持しているデータのバイト数を取得
+	 * @return
+	 */
+	public int size() {
+		return mBuffer.remaining();
+	}
+
+	/**
+	 * 保持しているバッファの容量を取得
+	 * @return
+	 */
+	public int capacity() {
+		return mBuffer.capacity();
+	}
+
+	/**
+	 * プールから取り出した時の処理
+	 */
+	/*package*/ void onObtain() {
+		mRecycled.set(false);
+		mBuffer.clear();
+	}
+
+	@Override
+	public void recycle() {
+		if ((mParent != null) && mRecycled.compareAndSet(false, true)) {
+			mParent.recycle(this);
+		}
+	}
+}
@@ -29,7 +29,6 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.media.exceptions.TimeoutException;
-import com.serenegiant.utils.BufferHelper;
 import com.serenegiant.system.BuildCheck;
 import com.serenegiant.system.Time;
 
@@ -114,11 +113,15 @@ public abstract class AbstractFakeEncoder implements Encoder {
 	/**
 	 * フレームキュー
 	 */
-	private final MemMediaQueue mFrameQueue;
+	private final IMediaQueue<RecycleMediaData> mFrameQueue;
 	/**
 	 * フレーム情報(ワーク用)
 	 */
 	private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+	/**
+	 * csdのNALユニットの区切りを探すためのスキャナー(ワーク用)
+	 */
+	private final NalUnitScanner mNalScanner = new NalUnitScanner();
 	
 	private Thread mDrainThread;
 	
@@ -165,7 +168,7 @@ public abstract class AbstractFakeEncoder implements Encoder {
 		FRAME_SZ = frameSz;
 		mRecorder = recorder;
 		mListener = listener;
-		mFrameQueue = new MemMediaQueue(Math.min(maxPoolSz, 2), maxPoolSz, maxQueueSz);
+		mFrameQueue = new RingMediaQueue(maxPoolSz, maxQueueSz);
 		
 		recorder.addEncoder(this);
 	}
@@ -230,8 +233,12 @@ public abstract class AbstractFakeEncoder implements Encoder {
         // 空のバッファをセットするのと等価である
     	// ・・・らしいので空バッファを送る。
     	final RecycleMediaData frame = obtain(0);
-    	frame.set(null, 0, 0, getInputPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-    	offer(frame);
+    	if (frame != null) {
+			frame.set(null, 0, 0, getInputPTSUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			if (!offer(frame)) {
+				frame.recycle();
+			}
+		}
 	}
 
 	/**
@@ -266,8 +273,38 @@ public abstract class AbstractFakeEncoder implements Encoder {
 		}
 		if (mRequestStop) return false;
 		final RecycleMediaData frame = obtain(size);
+		if (frame == null) {
+			// 最大生成数を超えた
+			return false;
+		}
 		frame.set(buffer, offset, size, presentationTimeUs, flags);
-		return offer(frame);
+		final boolean result = offer(frame);
+		if (!result) {
+			// キューが一杯で追加できなかった
+			frame.recycle();
+		}
+		return result;
+	}
+
+	/**
+	 * フレームキューが一杯の時の処理方法をセット
+	 * @param policy
+	 * @param blockTimeoutMs IMediaQueue.OVERFLOW_BLOCKの時の最大待機時間[ミリ秒]
+	 * @throws IllegalArgumentException 対応していない処理方法を指定した
+	 */
+	public void setOverflowPolicy(@IMediaQueue.OverflowPolicy final int policy,
+		final long blockTimeoutMs) throws IllegalArgumentException {
+
+		mFrameQueue.setOverflowPolicy(policy, blockTimeoutMs);
+	}
+
+	/**
+	 * フレームキューのあふれ処理の統計情報を取得
+	 * @return
+	 */
+	@NonNull
+	public MediaQueueStats getQueueStats() {
+		return mFrameQueue.getStats();
 	}
 	
 	@Override
@@ -397,6 +434,7 @@ public abstract class AbstractFakeEncoder implements Encoder {
 	 * @param newSize
 	 * @return
 	 */
+	@Nullable
 	protected RecycleMediaData obtain(final int newSize) {
 		return mFrameQueue.obtain(newSize);
 	}
@@ -485,9 +523,11 @@ public abstract class AbstractFakeEncoder implements Encoder {
 			final ByteBuffer b = frame.get().duplicate();
 			b.clear();
 			b.get(tmp, 0, mBufferInfo.size);
-			final int ix0 = BufferHelper.findAnnexB(tmp, 0);
-			final int ix1 = BufferHelper.findAnnexB(tmp, ix0 + 2);
-			final int ix2 = BufferHelper.findAnnexB(tmp, ix1 + 2);
+			// 1回の走査で先頭から3つ目までのNALユニットのスタートコードの位置を探す
+			mNalScanner.reset(tmp, 0, mBufferInfo.size);
+			final int ix0 = mNalScanner.next() ? mNalScanner.getStartCodeOffset() : -1;
+			final int ix1 = mNalScanner.next() ? mNalScanner.getStartCodeOffset() : -1;
+			final int ix2 = mNalScanner.next() ? mNalScanner.getStartCodeOffset() : -1;
 //			if (DEBUG) Log.i(TAG, String.format("ix0=%d,ix1=%d,ix2=%d", ix0, ix1, ix2));
 			try {
 				final MediaFormat outFormat = createOutputFormat(MIME_TYPE,
@@ -0,0 +1,1033 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.mediastore.MediaStoreOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MediaMuxerを使わずにフラグメント化したMP4(fMP4)をFileChannelへ直接書き込むIMuxer実装
+ * MediaMuxerはstopするまでmoovを書き込まないので途中でクラッシュすると全て失われるが、
+ * このクラスはstart時にサンプルを含まないmoovを書き込み、その後はGOP毎
+ * (動画トラックが無い時は一定時間毎)にmoof+mdatを書き込むので
+ * 最後に書き込んだフラグメントまでは再生できる。
+ * フラグメント内のサンプルはトラック毎のバッファへ貯めておき、
+ * moof/mdatヘッダーと一緒に1回のFileChannel#writeでまとめて書き込む。
+ * 対応しているのはH.264(video/avc)とAAC(audio/mp4a-latm)のみ。
+ * H.264のAnnexB形式(スタートコード区切り)のサンプルはNALユニット長区切りへ変換する。
+ * Bフレームを含む(presentationTimeUsが単調増加しない)動画には対応していない。
+ *
+ * MediaFormatとMediaCodec.BufferInfoはローカルユニットテスト(JVM)では生成できないので
+ * #addAvcTrack/#addAacTrack/#writeSampleData(int, ByteBuffer, int, int, long, int)も使える
+ */
+public class FragmentedMp4Muxer implements IMuxer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FragmentedMp4Muxer.class.getSimpleName();
+
+	/**
+	 * デフォルトのフラグメントの最小の長さ[マイクロ秒]
+	 */
+	public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+	/**
+	 * 1つのフラグメントのサンプルデータの最大バイト数
+	 * 動画のキーフレームが来なくてもこれを超えればフラグメントを書き込む
+	 */
+	private static final int MAX_FRAGMENT_BYTES = 16 * 1024 * 1024;
+
+	private static final String MIME_AVC = "video/avc";
+	private static final String MIME_AAC = "audio/mp4a-latm";
+	private static final int MOVIE_TIMESCALE = 1000;
+	private static final int VIDEO_TIMESCALE = 90000;
+	/**
+	 * trunのsample_flags
+	 */
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+	/**
+	 * trunのflags(data-offset, sample-duration, sample-size, sample-flags)
+	 */
+	private static final int TRUN_FLAGS = 0x000701;
+	/**
+	 * tfhdのflags(default-base-is-moof)
+	 */
+	private static final int TFHD_FLAGS = 0x020000;
+
+	private final Object mSync = new Object();
+	@NonNull
+	private final FileChannel mChannel;
+	@Nullable
+	private final Closeable mOutput;
+	private final long mFragmentDurationUs;
+	private final boolean mSyncEachFragment;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	@NonNull
+	private final BoxBuffer mHeader = new BoxBuffer(4096);
+	@NonNull
+	private final NalUnitScanner mNalScanner = new NalUnitScanner();
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+	private int mSequenceNumber;
+	/**
+	 * 最初のサンプルのpresentationTimeUs, 全トラックの時刻の基準
+	 */
+	private long mBasePtsUs = -1;
+	/**
+	 * 書き込み待ちのフラグメントの最初のサンプルのpresentationTimeUs
+	 */
+	private long mFragmentStartPtsUs = -1;
+	private int mPendingSamples;
+	private int mPendingBytes;
+
+	/**
+	 * 出力先をファイルパス文字列で指定するコンストラクタ
+	 * @param outputPath
+	 * @throws IOException
+	 */
+	public FragmentedMp4Muxer(@NonNull final String outputPath) throws IOException {
+		this(new FileOutputStream(outputPath));
+	}
+
+	/**
+	 * 出力先をFileOutputStreamで指定するコンストラクタ
+	 * FileOutputStreamは#releaseで閉じる
+	 * @param output
+	 */
+	public FragmentedMp4Muxer(@NonNull final FileOutputStream output) {
+		this(output.getChannel(), output, DEFAULT_FRAGMENT_DURATION_US, false);
+	}
+
+	/**
+	 * 出力先をMediaStoreOutputStreamで指定するコンストラクタ
+	 * MediaStoreOutputStreamは#releaseで閉じる
+	 * @param output
+	 * @throws IOException
+	 */
+	public FragmentedMp4Muxer(@NonNull final MediaStoreOutputStream output) throws IOException {
+		this(new FileOutputStream(output.getFd()).getChannel(), output,
+			DEFAULT_FRAGMENT_DURATION_US, false);
+	}
+
+	/**
+	 * 出力先をFileChannelで指定するコンストラクタ
+	 * FileChannelは#releaseで閉じる
+	 * @param channel
+	 * @param fragmentDurationUs フラグメントの最小の長さ[マイクロ秒]
+	 *        動画トラックがあれば、この長さを超えた後の最初のキーフレームでフラグメントを区切る
+	 *        0ならキーフレーム毎(GOP毎)
+	 * @param syncEachFragment フラグメントを書き込む毎にFileChannel#forceを呼ぶかどうか
+	 *        電源断でも最後のフラグメントまで残したい時はtrue
+	 */
+	public FragmentedMp4Muxer(@NonNull final FileChannel channel,
+		final long fragmentDurationUs, final boolean syncEachFragment) {
+
+		this(channel, null, fragmentDurationUs, syncEachFragment);
+	}
+
+	private FragmentedMp4Muxer(@NonNull final FileChannel channel,
+		@Nullable final Closeable output,
+		final long fragmentDurationUs, final boolean syncEachFragment) {
+
+		mChannel = channel;
+		mOutput = output;
+		mFragmentDurationUs = Math.max(fragmentDurationUs, 0);
+		mSyncEachFragment = syncEachFragment;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * MediaFormatからトラックを追加する
+	 * @param format
+	 * @return トラックインデックス
+	 * @throws IllegalArgumentException 対応していないMIMEの時
+	 * @throws IllegalStateException 既にstartしている時
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		if (MIME_AVC.equals(mime)) {
+			if (!format.containsKey("csd-0")) {
+				throw new IllegalArgumentException("csd-0 not found");
+			}
+			return addAvcTrack(
+				format.getInteger(MediaFormat.KEY_WIDTH),
+				format.getInteger(MediaFormat.KEY_HEIGHT),
+				format.getByteBuffer("csd-0"),
+				format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null);
+		} else if (MIME_AAC.equals(mime)) {
+			return addAacTrack(
+				format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+				format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+				format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null);
+		} else {
+			throw new IllegalArgumentException("unsupported mime type:" + mime);
+		}
+	}
+
+	/**
+	 * H.264の動画トラックを追加する
+	 * @param width
+	 * @param height
+	 * @param csd0 SPS(AnnexB形式), SPSとPPSの両方を含んでいてもよい
+	 * @param csd1 PPS(AnnexB形式)
+	 * @return トラックインデックス
+	 */
+	public int addAvcTrack(final int width, final int height,
+		@NonNull final ByteBuffer csd0, @Nullable final ByteBuffer csd1) {
+
+		final List<byte[]> sps = new ArrayList<>();
+		final List<byte[]> pps = new ArrayList<>();
+		collectParameterSets(csd0, sps, pps);
+		if (csd1 != null) {
+			collectParameterSets(csd1, sps, pps);
+		}
+		if (sps.isEmpty() || pps.isEmpty() || (sps.get(0).length < 4)) {
+			throw new IllegalArgumentException("SPS/PPS not found");
+		}
+		final BoxBuffer avcC = new BoxBuffer(256);
+		final int pos = avcC.start("avcC");
+		avcC.put(1);	// configurationVersion
+		avcC.put(sps.get(0)[1]);	// AVCProfileIndication
+		avcC.put(sps.get(0)[2]);	// profile_compatibility
+		avcC.put(sps.get(0)[3]);	// AVCLevelIndication
+		avcC.put(0xff);	// lengthSizeMinusOne = 3
+		avcC.put(0xe0 | sps.size());
+		for (final byte[] nal: sps) {
+			avcC.putShort(nal.length);
+			avcC.put(nal);
+		}
+		avcC.put(pps.size());
+		for (final byte[] nal: pps) {
+			avcC.putShort(nal.length);
+			avcC.put(nal);
+		}
+		avcC.end(pos);
+		return addTrack(new Track(true, VIDEO_TIMESCALE, width, height, 0, avcC.toByteArray()));
+	}
+
+	/**
+	 * AACの音声トラックを追加する
+	 * @param sampleRate
+	 * @param channelCount
+	 * @param csd0 AudioSpecificConfig, nullならAAC-LCとして生成する
+	 * @return トラックインデックス
+	 */
+	public int addAacTrack(final int sampleRate, final int channelCount,
+		@Nullable final ByteBuffer csd0) {
+
+		final byte[] asc;
+		if ((csd0 != null) && csd0.hasRemaining()) {
+			asc = new byte[csd0.remaining()];
+			csd0.duplicate().get(asc);
+		} else {
+			asc = createAudioSpecificConfig(sampleRate, channelCount);
+		}
+		if (asc.length > 64) {
+			throw new IllegalArgumentException("too large AudioSpecificConfig");
+		}
+		final BoxBuffer esds = new BoxBuffer(128);
+		final int pos = esds.startFull("esds", 0, 0);
+		// ES_Descriptor
+		esds.put(0x03);
+		esds.put(3 + 2 + 13 + 2 + asc.length + 3);
+		esds.putShort(0);	// ES_ID
+		esds.put(0);	// flags
+		// DecoderConfigDescriptor
+		esds.put(0x04);
+		esds.put(13 + 2 + asc.length);
+		esds.put(0x40);	// objectTypeIndication = Audio ISO/IEC 14496-3
+		esds.put(0x15);	// streamType = AudioStream, upStream = 0, reserved = 1
+		esds.put(0); esds.putShort(0);	// bufferSizeDB
+		esds.putInt(0);	// maxBitrate
+		esds.putInt(0);	// avgBitrate
+		// DecoderSpecificInfo
+		esds.put(0x05);
+		esds.put(asc.length);
+		esds.put(asc);
+		// SLConfigDescriptor
+		esds.put(0x06);
+		esds.put(1);
+		esds.put(0x02);
+		esds.end(pos);
+		return addTrack(new Track(false, sampleRate, 0, 0, channelCount, esds.toByteArray()));
+	}
+
+	private int addTrack(@NonNull final Track track) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("already started or released");
+			}
+			mTracks.add(track);
+			return mTracks.size() - 1;
+		}
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		writeSampleData(trackIndex, byteBuf,
+			bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+	}
+
+	/**
+	 * エンコード済みのサンプルを書き込む
+	 * コーデック設定データ(BUFFER_FLAG_CODEC_CONFIG)はmoovへ書き込み済みなので無視する
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param offset byteBufの先頭からの絶対位置
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags MediaCodec.BufferInfo#flags
+	 * @throws IllegalStateException startしていない時またはファイルへの書き込みに失敗した時
+	 */
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		final int offset, final int size, final long presentationTimeUs, final int flags) {
+
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+			if (!mIsStarted) {
+				throw new IllegalStateException("muxer has not started");
+			}
+			if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+				throw new IllegalArgumentException("invalid track index:" + trackIndex);
+			}
+			if (((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) || (size <= 0)) {
+				return;
+			}
+			final Track track = mTracks.get(trackIndex);
+			final boolean isSync = !track.isVideo
+				|| ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+			try {
+				if ((mPendingSamples > 0) && needFlush(track, isSync, presentationTimeUs, size)) {
+					flushFragment(track, presentationTimeUs);
+				}
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			if (mBasePtsUs < 0) {
+				mBasePtsUs = presentationTimeUs;
+			}
+			if (mPendingSamples == 0) {
+				mFragmentStartPtsUs = presentationTimeUs;
+			}
+			final int written;
+			if (track.isVideo && isAnnexB(byteBuf, offset, size)) {
+				written = appendAnnexB(track, byteBuf, offset, size);
+			} else {
+				final ByteBuffer src = byteBuf.duplicate();
+				src.limit(offset + size);
+				src.position(offset);
+				track.ensureCapacity(size);
+				track.data.put(src);
+				written = size;
+			}
+			track.addSample(written, presentationTimeUs,
+				isSync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+			mPendingSamples++;
+			mPendingBytes += written;
+		}
+	}
+
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mReleased) {
+				throw new IllegalStateException("already released");
+			}
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			if (mTracks.isEmpty()) {
+				throw new IllegalStateException("no track added");
+			}
+			try {
+				writeHeader();
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mIsStarted = true;
+		}
+	}
+
+	/**
+	 * 書き込み待ちのサンプルをフラグメントとして書き込んで終了する
+	 */
+	@Override
+	public void stop() {
+		synchronized (mSync) {
+			if (mIsStarted) {
+				mIsStarted = false;
+				try {
+					flushFragment(null, -1);
+					// 既存のファイルへ上書きした時や予め領域を確保したファイルへ書き込んだ時に
+					// 以前の内容が残らないようにする
+					mChannel.truncate(mChannel.position());
+					mChannel.force(false);
+				} catch (final IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		synchronized (mSync) {
+			if (!mReleased) {
+				if (mIsStarted) {
+					try {
+						stop();
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					}
+				}
+				mReleased = true;
+				mIsStarted = false;
+				try {
+					mChannel.close();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				try {
+					if (mOutput != null) {
+						mOutput.close();
+					}
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				mTracks.clear();
+			}
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 追加しようとしているサンプルの前でフラグメントを区切るかどうか
+	 * @param track
+	 * @param isSync
+	 * @param presentationTimeUs
+	 * @param size
+	 * @return
+	 */
+	private boolean needFlush(@NonNull final Track track, final boolean isSync,
+		final long presentationTimeUs, final int size) {
+
+		if (mPendingBytes + size > MAX_FRAGMENT_BYTES) {
+			return true;
+		}
+		final boolean elapsed = presentationTimeUs - mFragmentStartPtsUs >= mFragmentDurationUs;
+		if (hasVideoTrack()) {
+			// 動画トラックがあれば動画のキーフレームで区切る
+			return track.isVideo && isSync && elapsed;
+		} else {
+			return elapsed;
+		}
+	}
+
+	private boolean hasVideoTrack() {
+		for (final Track track: mTracks) {
+			if (track.isVideo) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * ftypとサンプルを含まないmoovを書き込む
+	 * @throws IOException
+	 */
+	private void writeHeader() throws IOException {
+		final BoxBuffer box = mHeader;
+		box.clear();
+		int pos = box.start("ftyp");
+		box.putFourCC("isom");	// major_brand
+		box.putInt(0x200);		// minor_version
+		box.putFourCC("isom");	// compatible_brands
+		box.putFourCC("iso6");
+		box.putFourCC("avc1");
+		box.putFourCC("mp41");
+		box.end(pos);
+		final int moov = box.start("moov");
+		pos = box.startFull("mvhd", 0, 0);
+		box.putInt(0);	// creation_time
+		box.putInt(0);	// modification_time
+		box.putInt(MOVIE_TIMESCALE);
+		box.putInt(0);	// duration
+		box.putInt(0x00010000);	// rate
+		box.putShort(0x0100);	// volume
+		box.putShort(0);
+		box.putInt(0); box.putInt(0);
+		putMatrix(box);
+		for (int i = 0; i < 6; i++) {
+			box.putInt(0);	// pre_defined
+		}
+		box.putInt(mTracks.size() + 1);	// next_track_ID
+		box.end(pos);
+		final int n = mTracks.size();
+		for (int i = 0; i < n; i++) {
+			writeTrak(box, i + 1, mTracks.get(i));
+		}
+		final int mvex = box.start("mvex");
+		for (int i = 0; i < n; i++) {
+			pos = box.startFull("trex", 0, 0);
+			box.putInt(i + 1);	// track_ID
+			box.putInt(1);	// default_sample_description_index
+			box.putInt(0);	// default_sample_duration
+			box.putInt(0);	// default_sample_size
+			box.putInt(0);	// default_sample_flags
+			box.end(pos);
+		}
+		box.end(mvex);
+		box.end(moov);
+		writeFully(box.flip());
+	}
+
+	private static void writeTrak(@NonNull final BoxBuffer box,
+		final int trackId, @NonNull final Track track) {
+
+		final int trak = box.start("trak");
+		int pos = box.startFull("tkhd", 0, 0x03);	// track_enabled | track_in_movie
+		box.putInt(0);	// creation_time
+		box.putInt(0);	// modification_time
+		box.putInt(trackId);
+		box.putInt(0);	// reserved
+		box.putInt(0);	// duration
+		box.putInt(0); box.putInt(0);	// reserved
+		box.putShort(0);	// layer
+		box.putShort(0);	// alternate_group
+		box.putShort(track.isVideo ? 0 : 0x0100);	// volume
+		box.putShort(0);	// reserved
+		putMatrix(box);
+		box.putInt(track.width << 16);
+		box.putInt(track.height << 16);
+		box.end(pos);
+		final int mdia = box.start("mdia");
+		pos = box.startFull("mdhd", 0, 0);
+		box.putInt(0);	// creation_time
+		box.putInt(0);	// modification_time
+		box.putInt(track.timescale);
+		box.putInt(0);	// duration
+		box.putShort(0x55c4);	// language = und
+		box.putShort(0);
+		box.end(pos);
+		pos = box.startFull("hdlr", 0, 0);
+		box.putInt(0);	// pre_defined
+		box.putFourCC(track.isVideo ? "vide" : "soun");
+		box.putInt(0); box.putInt(0); box.putInt(0);	// reserved
+		box.put((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes());
+		box.put(0);
+		box.end(pos);
+		final int minf = box.start("minf");
+		if (track.isVideo) {
+			pos = box.startFull("vmhd", 0, 1);
+			box.putShort(0);	// graphicsmode
+			box.putShort(0); box.putShort(0); box.putShort(0);	// opcolor
+		} else {
+			pos = box.startFull("smhd", 0, 0);
+			box.putShort(0);	// balance
+			box.putShort(0);
+		}
+		box.end(pos);
+		final int dinf = box.start("dinf");
+		pos = box.startFull("dref", 0, 0);
+		box.putInt(1);	// entry_count
+		box.end(box.startFull("url ", 0, 1));	// self-contained
+		box.end(pos);
+		box.end(dinf);
+		final int stbl = box.start("stbl");
+		pos = box.startFull("stsd", 0, 0);
+		box.putInt(1);	// entry_count
+		if (track.isVideo) {
+			final int entry = box.start("avc1");
+			putSampleEntryHeader(box);
+			box.putShort(0);	// pre_defined
+			box.putShort(0);	// reserved
+			box.putInt(0); box.putInt(0); box.putInt(0);	// pre_defined
+			box.putShort(track.width);
+			box.putShort(track.height);
+			box.putInt(0x00480000);	// horizresolution = 72dpi
+			box.putInt(0x00480000);	// vertresolution = 72dpi
+			box.putInt(0);	// reserved
+			box.putShort(1);	// frame_count
+			for (int i = 0; i < 32; i++) {
+				box.put(0);	// compressorname
+			}
+			box.putShort(0x0018);	// depth
+			box.putShort(-1);	// pre_defined
+			box.put(track.config);	// avcC
+			box.end(entry);
+		} else {
+			final int entry = box.start("mp4a");
+			putSampleEntryHeader(box);
+			box.putInt(0); box.putInt(0);	// reserved
+			box.putShort(track.channelCount);
+			box.putShort(16);	// samplesize
+			box.putShort(0);	// pre_defined
+			box.putShort(0);	// reserved
+			box.putInt(track.timescale << 16);	// samplerate
+			box.put(track.config);	// esds
+			box.end(entry);
+		}
+		box.end(pos);
+		// サンプルはフラグメントへ書き込むので空
+		pos = box.startFull("stts", 0, 0);
+		box.putInt(0);
+		box.end(pos);
+		pos = box.startFull("stsc", 0, 0);
+		box.putInt(0);
+		box.end(pos);
+		pos = box.startFull("stsz", 0, 0);
+		box.putInt(0);	// sample_size
+		box.putInt(0);	// sample_count
+		box.end(pos);
+		pos = box.startFull("stco", 0, 0);
+		box.putInt(0);
+		box.end(pos);
+		box.end(stbl);
+		box.end(minf);
+		box.end(mdia);
+		box.end(trak);
+	}
+
+	private static void putSampleEntryHeader(@NonNull final BoxBuffer box) {
+		for (int i = 0; i < 6; i++) {
+			box.put(0);	// reserved
+		}
+		box.putShort(1);	// data_reference_index
+	}
+
+	private static void putMatrix(@NonNull final BoxBuffer box) {
+		box.putInt(0x00010000); box.putInt(0); box.putInt(0);
+		box.putInt(0); box.putInt(0x00010000); box.putInt(0);
+		box.putInt(0); box.putInt(0); box.putInt(0x40000000);
+	}
+
+	/**
+	 * 書き込み待ちのサンプルをmoof+mdatとして書き込む
+	 * @param next 次のサンプルのトラック, nullなら終了時
+	 * @param nextPtsUs 次のサンプルのpresentationTimeUs
+	 * @throws IOException
+	 */
+	private void flushFragment(@Nullable final Track next, final long nextPtsUs) throws IOException {
+		if (mPendingSamples == 0) {
+			return;
+		}
+		final BoxBuffer box = mHeader;
+		box.clear();
+		final int moof = box.start("moof");
+		int pos = box.startFull("mfhd", 0, 0);
+		box.putInt(++mSequenceNumber);
+		box.end(pos);
+		final int n = mTracks.size();
+		final int[] dataOffsetPos = new int[n];
+		for (int i = 0; i < n; i++) {
+			final Track track = mTracks.get(i);
+			final int num = track.numSamples;
+			if (num == 0) {
+				continue;
+			}
+			final int traf = box.start("traf");
+			pos = box.startFull("tfhd", 0, TFHD_FLAGS);
+			box.putInt(i + 1);	// track_ID
+			box.end(pos);
+			pos = box.startFull("tfdt", 1, 0);
+			box.putLong(track.ticks(mBasePtsUs, track.ptsUs[0]));	// baseMediaDecodeTime
+			box.end(pos);
+			pos = box.startFull("trun", 0, TRUN_FLAGS);
+			box.putInt(num);
+			dataOffsetPos[i] = box.position();
+			box.putInt(0);	// data_offset, 後で書き換える
+			for (int j = 0; j < num; j++) {
+				final long duration;
+				if (j < num - 1) {
+					duration = track.ticks(mBasePtsUs, track.ptsUs[j + 1])
+						- track.ticks(mBasePtsUs, track.ptsUs[j]);
+				} else if (track == next) {
+					duration = track.ticks(mBasePtsUs, nextPtsUs)
+						- track.ticks(mBasePtsUs, track.ptsUs[j]);
+				} else {
+					// 次のサンプルが未着なので直前のサンプルの長さを使う
+					duration = track.lastDuration;
+				}
+				final int d = (int)Math.max(duration, 0);
+				box.putInt(d);	// sample_duration
+				box.putInt(track.sizes[j]);	// sample_size
+				box.putInt(track.flags[j]);	// sample_flags
+				if (d > 0) {
+					track.lastDuration = d;
+				}
+			}
+			box.end(pos);
+			box.end(traf);
+		}
+		box.end(moof);
+		// data_offsetはmoofの先頭からの相対位置
+		int dataOffset = box.position() + 8;
+		for (int i = 0; i < n; i++) {
+			final Track track = mTracks.get(i);
+			if (track.numSamples > 0) {
+				box.putInt(dataOffsetPos[i], dataOffset);
+				dataOffset += track.data.position();
+			}
+		}
+		box.putInt(8 + mPendingBytes);
+		box.putFourCC("mdat");
+		// moof, mdatヘッダーと各トラックのサンプルデータをまとめて書き込む
+		final ByteBuffer[] buffers = new ByteBuffer[n + 1];
+		buffers[0] = box.flip();
+		for (int i = 0; i < n; i++) {
+			final ByteBuffer data = mTracks.get(i).data;
+			data.flip();
+			buffers[i + 1] = data;
+		}
+		writeFully(buffers);
+		for (final Track track: mTracks) {
+			track.clear();
+		}
+		mPendingSamples = 0;
+		mPendingBytes = 0;
+		mFragmentStartPtsUs = -1;
+		if (mSyncEachFragment) {
+			mChannel.force(false);
+		}
+	}
+
+	private void writeFully(@NonNull final ByteBuffer... buffers) throws IOException {
+		long remaining = 0;
+		for (final ByteBuffer buf: buffers) {
+			remaining += buf.remaining();
+		}
+		while (remaining > 0) {
+			remaining -= mChannel.write(buffers);
+		}
+	}
+
+	/**
+	 * AnnexB形式のサンプルをNALユニット長(4バイト)区切りへ変換して追加する
+	 * @return 追加したバイト数
+	 */
+	private int appendAnnexB(@NonNull final Track track,
+		@NonNull final ByteBuffer byteBuf, final int offset, final int size) {
+
+		final int start = track.data.position();
+		// ヒープバッファの時はNalUnitScannerはarray()の位置を返す
+		final int base = byteBuf.hasArray() ? byteBuf.arrayOffset() : 0;
+		final ByteBuffer src = byteBuf.duplicate();
+		final NalUnitScanner scanner = mNalScanner.reset(byteBuf, offset, size);
+		while (scanner.next()) {
+			final int len = scanner.getLength();
+			if (len > 0) {
+				final int nalOffset = scanner.getOffset() - base;
+				src.limit(nalOffset + len);
+				src.position(nalOffset);
+				// スタートコードをNALユニットの長さ(4バイト)へ置き換える
+				track.ensureCapacity(len + 4);
+				track.data.putInt(len);
+				track.data.put(src);
+			}
+		}
+		return track.data.position() - start;
+	}
+
+	private static boolean isAnnexB(@NonNull final ByteBuffer buf, final int offset, final int size) {
+		return (size > 3) && (buf.get(offset) == 0) && (buf.get(offset + 1) == 0)
+			&& ((buf.get(offset + 2) == 1)
+				|| ((size > 4) && (buf.get(offset + 2) == 0) && (buf.get(offset + 3) == 1)));
+	}
+
+	/**
+	 * csd-0/csd-1からSPS/PPSを取り出す
+	 * @param csd
+	 * @param sps
+	 * @param pps
+	 */
+	private static void collectParameterSets(@NonNull final ByteBuffer csd,
+		@NonNull final List<byte[]> sps, @NonNull final List<byte[]> pps) {
+
+		final byte[] bytes = new byte[csd.remaining()];
+		csd.duplicate().get(bytes);
+		final NalUnitScanner scanner = new NalUnitScanner().reset(bytes, 0, bytes.length);
+		while (scanner.next()) {
+			final int type = scanner.getNalType();
+			if ((type == NalUnitScanner.NAL_SPS) || (type == NalUnitScanner.NAL_PPS)) {
+				final byte[] nal = new byte[scanner.getLength()];
+				System.arraycopy(bytes, scanner.getOffset(), nal, 0, nal.length);
+				(type == NalUnitScanner.NAL_SPS ? sps : pps).add(nal);
+			}
+		}
+	}
+
+	private static final int[] SAMPLE_RATES = {
+		96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+	};
+
+	/**
+	 * AAC-LCのAudioSpecificConfigを生成する
+	 * @param sampleRate
+	 * @param channelCount
+	 * @return
+	 */
+	private static byte[] createAudioSpecificConfig(final int sampleRate, final int channelCount) {
+		int index = -1;
+		for (int i = 0; i < SAMPLE_RATES.length; i++) {
+			if (SAMPLE_RATES[i] == sampleRate) {
+				index = i;
+				break;
+			}
+		}
+		if (index < 0) {
+			throw new IllegalArgumentException("unsupported sample rate:" + sampleRate);
+		}
+		final int objectType = 2;	// AAC-LC
+		return new byte[] {
+			(byte)((objectType << 3) | (index >> 1)),
+			(byte)(((index & 0x01) << 7) | ((channelCount & 0x0f) << 3)),
+		};
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * トラック情報と書き込み待ちのサンプル
+	 */
+	private static class Track {
+		private final boolean isVideo;
+		private final int timescale;
+		private final int width;
+		private final int height;
+		private final int channelCount;
+		/**
+		 * avcCまたはesds
+		 */
+		@NonNull
+		private final byte[] config;
+		@NonNull
+		private ByteBuffer data;
+		private int numSamples;
+		@NonNull
+		private int[] sizes = new int[64];
+		@NonNull
+		private int[] flags = new int[64];
+		@NonNull
+		private long[] ptsUs = new long[64];
+		/**
+		 * 最後に書き込んだサンプルの長さ[timescale単位]
+		 */
+		private long lastDuration;
+
+		private Track(final boolean isVideo, final int timescale,
+			final int width, final int height, final int channelCount,
+			@NonNull final byte[] config) {
+
+			this.isVideo = isVideo;
+			this.timescale = timescale;
+			this.width = width;
+			this.height = height;
+			this.channelCount = channelCount;
+			this.config = config;
+			data = ByteBuffer.allocateDirect(isVideo ? 256 * 1024 : 16 * 1024);
+			// 最初のフラグメントの最後のサンプルの長さ(動画は30fps, AACは1024サンプル)
+			lastDuration = isVideo ? timescale / 30 : 1024;
+		}
+
+		private void addSample(final int size, final long pts, final int sampleFlags) {
+			if (numSamples >= sizes.length) {
+				final int n = numSamples * 2;
+				final int[] newSizes = new int[n];
+				final int[] newFlags = new int[n];
+				final long[] newPts = new long[n];
+				System.arraycopy(sizes, 0, newSizes, 0, numSamples);
+				System.arraycopy(flags, 0, newFlags, 0, numSamples);
+				System.arraycopy(ptsUs, 0, newPts, 0, numSamples);
+				sizes = newSizes;
+				flags = newFlags;
+				ptsUs = newPts;
+			}
+			sizes[numSamples] = size;
+			flags[numSamples] = sampleFlags;
+			ptsUs[numSamples] = pts;
+			numSamples++;
+		}
+
+		private void ensureCapacity(final int size) {
+			if (data.remaining() < size) {
+				final int required = data.position() + size;
+				final ByteBuffer buf = ByteBuffer.allocateDirect(
+					Math.max(required, data.capacity() * 2));
+				data.flip();
+				buf.put(data);
+				data = buf;
+			}
+		}
+
+		/**
+		 * presentationTimeUsをtimescale単位の時刻へ変換する
+		 * @param basePtsUs
+		 * @param pts
+		 * @return
+		 */
+		private long ticks(final long basePtsUs, final long pts) {
+			return Math.max(pts - basePtsUs, 0) * timescale / 1000000L;
+		}
+
+		private void clear() {
+			numSamples = 0;
+			data.clear();
+		}
+	}
+
+	/**
+	 * ボックス生成用のビッグエンディアンのバッファ
+	 */
+	private static class BoxBuffer {
+		@NonNull
+		private ByteBuffer mBuffer;
+
+		private BoxBuffer(final int initialCapacity) {
+			mBuffer = ByteBuffer.allocate(initialCapacity);
+		}
+
+		private void clear() {
+			mBuffer.clear();
+		}
+
+		private int position() {
+			return mBuffer.position();
+		}
+
+		/**
+		 * ボックスを開始する
+		 * @param type
+		 * @return ボックスの先頭位置, #endへ渡す
+		 */
+		private int start(@NonNull final String type) {
+			final int pos = mBuffer.position();
+			putInt(0);	// size, #endで書き換える
+			putFourCC(type);
+			return pos;
+		}
+
+		/**
+		 * FullBoxを開始する
+		 * @param type
+		 * @param version
+		 * @param flags
+		 * @return ボックスの先頭位置, #endへ渡す
+		 */
+		private int startFull(@NonNull final String type, final int version, final int flags) {
+			final int pos = start(type);
+			putInt((version << 24) | (flags & 0xffffff));
+			return pos;
+		}
+
+		private void end(final int pos) {
+			mBuffer.putInt(pos, mBuffer.position() - pos);
+		}
+
+		private void put(final int v) {
+			ensure(1);
+			mBuffer.put((byte)v);
+		}
+
+		private void put(@NonNull final byte[] v) {
+			ensure(v.length);
+			mBuffer.put(v);
+		}
+
+		private void putShort(final int v) {
+			ensure(2);
+			mBuffer.putShort((short)v);
+		}
+
+		private void putInt(final int v) {
+			ensure(4);
+			mBuffer.putInt(v);
+		}
+
+		private void putInt(final int index, final int v) {
+			mBuffer.putInt(index, v);
+		}
+
+		private void putLong(final long v) {
+			ensure(8);
+			mBuffer.putLong(v);
+		}
+
+		private void putFourCC(@NonNull final String type) {
+			ensure(4);
+			for (int i = 0; i < 4; i++) {
+				mBuffer.put((byte)type.charAt(i));
+			}
+		}
+
+		@NonNull
+		private ByteBuffer flip() {
+			mBuffer.flip();
+			return mBuffer;
+		}
+
+		@NonNull
+		private byte[] toByteArray() {
+			final byte[] result = new byte[mBuffer.position()];
+			System.arraycopy(mBuffer.array(), 0, result, 0, result.length);
+			return result;
+		}
+
+		private void ensure(final int size) {
+			if (mBuffer.remaining() < size) {
+				final ByteBuffer buf = ByteBuffer.allocate(
+					Math.max(mBuffer.position() + size, mBuffer.capacity() * 2));
+				mBuffer.flip();
+				buf.put(mBuffer);
+				mBuffer = buf;
+			}
+		}
+	}
+}
@@ -18,8 +18,11 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.concurrent.TimeUnit;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -27,6 +30,34 @@ import androidx.annotation.Nullable;
  * バッファリング用のFIFOバッファインターフェース
  */
 public interface IMediaQueue<T extends IRecycleBuffer> extends IRecycleParent<T> {
+	/**
+	 * キューが一杯の時は新しいフレームを破棄する(デフォルト)
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 0;
+	/**
+	 * キューが一杯の時はキュー内の一番古いキーフレーム以外のフレームを破棄する
+	 * キュー内が全てキーフレームで新しいフレームもキーフレームなら最大数まで追加する
+	 */
+	public static final int OVERFLOW_DROP_OLDEST_NON_KEYFRAME = 1;
+	/**
+	 * キューが一杯の時は空きができるまで指定時間待機する
+	 * タイムアウトしたときは新しいフレームを破棄する
+	 */
+	public static final int OVERFLOW_BLOCK = 2;
+	/**
+	 * キューが一杯の時は最大数まで追加する
+	 */
+	public static final int OVERFLOW_GROW_TO_LIMIT = 3;
+
+	@IntDef({
+		OVERFLOW_DROP_NEWEST,
+		OVERFLOW_DROP_OLDEST_NON_KEYFRAME,
+		OVERFLOW_BLOCK,
+		OVERFLOW_GROW_TO_LIMIT,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface OverflowPolicy {}
+
 	/**
 	 * キューを初期化
 	 * @param args
@@ -84,4 +115,27 @@ public interface IMediaQueue<T extends IRecycleBuffer> extends IRecycleParent<T>
 	 * キュー内の個数を取得
 	 */
 	public int count();
+
+	/**
+	 * キューが一杯の時の処理方法をセット
+	 * @param policy
+	 * @param blockTimeoutMs OVERFLOW_BLOCKの時の最大待機時間[ミリ秒]
+	 * @throws IllegalArgumentException 対応していない処理方法を指定した
+	 */
+	public void setOverflowPolicy(@OverflowPolicy final int policy, final long blockTimeoutMs)
+		throws IllegalArgumentException;
+
+	/**
+	 * キューが一杯の時の処理方法を取得
+	 * @return
+	 */
+	@OverflowPolicy
+	public int getOverflowPolicy();
+
+	/**
+	 * あふれ処理の統計情報を取得
+	 * @return
+	 */
+	@NonNull
+	public MediaQueueStats getStats();
 }
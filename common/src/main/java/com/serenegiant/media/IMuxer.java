@@ -66,6 +66,8 @@ public interface IMuxer {
 
 	/**
 	 * デフォルトのIMuxerFactory実装
+	 * useMediaMuxer=trueならMediaMuxerWrapperを、
+	 * useMediaMuxer=falseまたはAPI<18ならFragmentedMp4Muxerを生成する
 	 */
 	public static class DefaultFactory implements IMuxerFactory {
 		@SuppressLint("InlinedApi")
@@ -75,8 +77,8 @@ public interface IMuxer {
 				result = new MediaMuxerWrapper(outputPath,
 					MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 			} else {
-				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(output_oath);
+				// MediaMuxerを使わない時はフラグメント化したMP4として書き込む
+				result = new FragmentedMp4Muxer(outputPath);
 			}
 			return result;
 		}
@@ -97,8 +99,10 @@ public interface IMuxer {
 					throw new UnsupportedOperationException("createMuxer from fd does not support on API<26");
 				}
 			} else {
-				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(fd);
+				// MediaMuxerを使わない時はフラグメント化したMP4として書き込む
+				// AutoCloseOutputStreamは閉じる時にParcelFileDescriptorも閉じる
+				result = new FragmentedMp4Muxer(
+					new ParcelFileDescriptor.AutoCloseOutputStream(ParcelFileDescriptor.fromFd(fd)));
 			}
 			return result;
 		}
@@ -131,11 +135,21 @@ public interface IMuxer {
 						Log.w("IMuxer", "can't write to the file, try to use VideoMuxer instead");
 					}
 				}
+			} else {
+				// MediaMuxerを使わない時はフラグメント化したMP4として書き込む
+				if (BuildCheck.isAPI29() && UriHelper.isContentUri(uri)) {
+					result = new FragmentedMp4Muxer(new MediaStoreOutputStream(context, file));
+				} else {
+					final ParcelFileDescriptor pfd
+						= context.getContentResolver().openFileDescriptor(uri, "rw");
+					if (pfd != null) {
+						result = new FragmentedMp4Muxer(
+							new ParcelFileDescriptor.AutoCloseOutputStream(pfd));
+					}
+				}
 			}
 			if (result == null) {
 				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(context.getContentResolver()
-//					.openFileDescriptor(file.getUri(), "rw").getFd());
 			}
 			return result;
 		}
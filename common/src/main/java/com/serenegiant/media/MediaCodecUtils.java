@@ -1129,11 +1129,12 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 
 	/**
 	 * codec specific dataの先頭マーカー位置を検索
+	 * 4バイトのスタートマーカー(00 00 00 01)だけを探す
 	 * @param array
 	 * @param offset
 	 * @return
 	 */
 	public static final int findStartMarker(@NonNull final byte[] array, final int offset) {
-		return BufferHelper.byteComp(array, offset, START_MARKER, START_MARKER.length);
+		return NalUnitScanner.findStartCode4(array, offset, array.length);
 	}
 }
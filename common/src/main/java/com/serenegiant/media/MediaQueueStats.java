@@ -0,0 +1,219 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+/**
+ * IMediaQueueのあふれ処理の統計情報
+ * キューのサイズを決めるための目安にする
+ */
+public class MediaQueueStats {
+	/**
+	 * キューへ追加できたフレーム数
+	 */
+	@NonNull
+	private final AtomicLong mQueued = new AtomicLong();
+	/**
+	 * キューが一杯で新しいフレームを破棄した数
+	 */
+	@NonNull
+	private final AtomicLong mDroppedNewest = new AtomicLong();
+	/**
+	 * キューが一杯でキュー内の古いフレームを破棄した数
+	 */
+	@NonNull
+	private final AtomicLong mDroppedOldest = new AtomicLong();
+	/**
+	 * 空きを待機したがタイムアウトして新しいフレームを破棄した数
+	 */
+	@NonNull
+	private final AtomicLong mBlockTimeouts = new AtomicLong();
+	/**
+	 * 空きを待機した回数
+	 */
+	@NonNull
+	private final AtomicLong mBlocked = new AtomicLong();
+	/**
+	 * 最大生成数を超えたためにobtainでバッファを取得できなかった回数
+	 */
+	@NonNull
+	private final AtomicLong mObtainFailures = new AtomicLong();
+	/**
+	 * キュー内の最大フレーム数
+	 */
+	@NonNull
+	private final AtomicLong mHighWaterMark = new AtomicLong();
+	/**
+	 * キューから取り出したフレーム数
+	 */
+	@NonNull
+	private final AtomicLong mPolled = new AtomicLong();
+	/**
+	 * キュー内に滞在した時間の合計[ナノ秒]
+	 */
+	@NonNull
+	private final AtomicLong mTotalResidencyNs = new AtomicLong();
+	/**
+	 * キュー内に滞在した時間の最大値[ナノ秒]
+	 */
+	@NonNull
+	private final AtomicLong mMaxResidencyNs = new AtomicLong();
+
+	/**
+	 * 統計情報をクリア
+	 */
+	public void reset() {
+		mQueued.set(0);
+		mDroppedNewest.set(0);
+		mDroppedOldest.set(0);
+		mBlockTimeouts.set(0);
+		mBlocked.set(0);
+		mObtainFailures.set(0);
+		mHighWaterMark.set(0);
+		mPolled.set(0);
+		mTotalResidencyNs.set(0);
+		mMaxResidencyNs.set(0);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * キューへ追加したときの処理
+	 * @param count 追加後のキュー内のフレーム数
+	 */
+	/*package*/ void onQueued(final int count) {
+		mQueued.incrementAndGet();
+		for ( ; ; ) {
+			final long hwm = mHighWaterMark.get();
+			if ((count <= hwm) || mHighWaterMark.compareAndSet(hwm, count)) {
+				break;
+			}
+		}
+	}
+
+	/*package*/ void onDroppedNewest() {
+		mDroppedNewest.incrementAndGet();
+	}
+
+	/*package*/ void onDroppedOldest() {
+		mDroppedOldest.incrementAndGet();
+	}
+
+	/*package*/ void onBlocked() {
+		mBlocked.incrementAndGet();
+	}
+
+	/*package*/ void onBlockTimeout() {
+		mBlockTimeouts.incrementAndGet();
+	}
+
+	/*package*/ void onObtainFailed() {
+		mObtainFailures.incrementAndGet();
+	}
+
+	/**
+	 * キューから取り出したときの処理
+	 * @param residencyNs キュー内の滞在時間[ナノ秒]
+	 */
+	/*package*/ void onPolled(final long residencyNs) {
+		mPolled.incrementAndGet();
+		if (residencyNs >= 0) {
+			mTotalResidencyNs.addAndGet(residencyNs);
+			for ( ; ; ) {
+				final long max = mMaxResidencyNs.get();
+				if ((residencyNs <= max) || mMaxResidencyNs.compareAndSet(max, residencyNs)) {
+					break;
+				}
+			}
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	public long getQueued() {
+		return mQueued.get();
+	}
+
+	/**
+	 * 破棄したフレーム数の合計を取得
+	 * @return
+	 */
+	public long getDropped() {
+		return mDroppedNewest.get() + mDroppedOldest.get() + mBlockTimeouts.get();
+	}
+
+	public long getDroppedNewest() {
+		return mDroppedNewest.get();
+	}
+
+	public long getDroppedOldest() {
+		return mDroppedOldest.get();
+	}
+
+	public long getBlocked() {
+		return mBlocked.get();
+	}
+
+	public long getBlockTimeouts() {
+		return mBlockTimeouts.get();
+	}
+
+	public long getObtainFailures() {
+		return mObtainFailures.get();
+	}
+
+	public long getHighWaterMark() {
+		return mHighWaterMark.get();
+	}
+
+	public long getPolled() {
+		return mPolled.get();
+	}
+
+	/**
+	 * キュー内の平均滞在時間[マイクロ秒]を取得
+	 * @return
+	 */
+	public long getAverageResidencyUs() {
+		final long n = mPolled.get();
+		return n > 0 ? mTotalResidencyNs.get() / n / 1000L : 0;
+	}
+
+	/**
+	 * キュー内の最大滞在時間[マイクロ秒]を取得
+	 * @return
+	 */
+	public long getMaxResidencyUs() {
+		return mMaxResidencyNs.get() / 1000L;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"MediaQueueStats{queued=%d,polled=%d,droppedNewest=%d,droppedOldest=%d,"
+				+ "blocked=%d,blockTimeouts=%d,obtainFailures=%d,highWaterMark=%d,"
+				+ "avgResidencyUs=%d,maxResidencyUs=%d}",
+			getQueued(), getPolled(), getDroppedNewest(), getDroppedOldest(),
+			getBlocked(), getBlockTimeouts(), getObtainFailures(), getHighWaterMark(),
+			getAverageResidencyUs(), getMaxResidencyUs());
+	}
+}
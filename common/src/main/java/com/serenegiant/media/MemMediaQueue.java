@@ -18,11 +18,16 @@ package com.serenegiant.media;
  *  limitations under the License.
 */
 
-import com.serenegiant.utils.Pool;
+import android.media.MediaCodec;
+
+import com.serenegiant.utils.IPool;
+import com.serenegiant.utils.LockFreePool;
 
 import java.nio.ByteOrder;
+import java.util.Iterator;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -30,14 +35,42 @@ import androidx.annotation.Nullable;
 /**
  * IMediaQueueのオンメモリー実装
  * LinkedBlockingQueueを使用
+ * バッファのプールには生産者スレッドと消費者スレッドで競合しないようにLockFreePoolを使う
+ * 全てのOverflowPolicyに対応
  */
 public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
+	/**
+	 * OVERFLOW_DROP_OLDEST_NON_KEYFRAMEの時に破棄しないフレームのフラグ
+	 * BUFFER_FLAG_SYNC_FRAMEはBUFFER_FLAG_KEY_FRAMEと同じ値
+	 */
+	@SuppressWarnings("deprecation")
+	/*package*/ static final int FLAG_KEEP
+		= MediaCodec.BUFFER_FLAG_SYNC_FRAME
+			| MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+			| MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
 	@NonNull
 	private final LinkedBlockingQueue<RecycleMediaData> mQueue;
 	@NonNull
 	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
 	@NonNull
-	private final Pool<RecycleMediaData> mPool;
+	private final IPool<RecycleMediaData> mPool;
+	@NonNull
+	private final MediaQueueStats mStats = new MediaQueueStats();
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * キューの最大サイズ
+	 */
+	private final int mMaxQueueSz;
+	@OverflowPolicy
+	private volatile int mOverflowPolicy = OVERFLOW_DROP_NEWEST;
+	private volatile long mBlockTimeoutMs;
+	/**
+	 * OVERFLOW_BLOCKで空き待ちしている数
+	 */
+	@NonNull
+	private final AtomicInteger mBlockedProducers = new AtomicInteger();
 	
 	/**
 	 * MemMediaQueue用のデフォルトファクトリークラス
@@ -103,9 +136,26 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	public MemMediaQueue(final int initNum, final int maxNumInPool, final int maxQueueSz,
 		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
 
-		mQueue = new LinkedBlockingQueue<RecycleMediaData>(maxQueueSz);
+		this(initNum, maxNumInPool, maxQueueSz, 0, factory);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initNum
+	 * @param maxNumInPool
+	 * @param maxQueueSz
+	 * @param limitSz OVERFLOW_GROW_TO_LIMIT等でキューの最大サイズを超えて追加するときの上限
+	 * 			バッファの最大生成数もこの値まで増える, maxQueueSz以下ならmaxQueueSz
+	 * @param factory
+	 */
+	public MemMediaQueue(final int initNum, final int maxNumInPool, final int maxQueueSz,
+		final int limitSz,
+		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
+
+		mMaxQueueSz = maxQueueSz;
+		mQueue = new LinkedBlockingQueue<RecycleMediaData>(Math.max(maxQueueSz, limitSz));
 		mFactory = factory != null ? factory : new DefaultFactory();
-		mPool = new Pool<RecycleMediaData>(initNum, maxNumInPool) {
+		mPool = new LockFreePool<RecycleMediaData>(initNum, maxNumInPool, Math.max(maxNumInPool, limitSz), (Object[])null) {
 			@NonNull
 			@Override
 			protected RecycleMediaData createObject(
@@ -135,17 +185,51 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	@Nullable
 	@Override
 	public RecycleMediaData obtain(@Nullable final Object... args) {
-		return mPool.obtain(args);
+		final RecycleMediaData result = mPool.obtain(args);
+		if (result == null) {
+			mStats.onObtainFailed();
+		}
+		return result;
 	}
 
 	/**
 	 * キューにデータを追加する
+	 * キューが一杯の時はOverflowPolicyに従って処理する
+	 * 追加できなかったときは呼び出し元でbufferを返却すること
 	 * @param buffer
 	 * @return true: 正常にキューに追加できた
 	 */
 	@Override
 	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
-		return mQueue.offer(buffer);
+		buffer.queuedTimeNs(System.nanoTime());
+		boolean result;
+		switch (mOverflowPolicy) {
+		case OVERFLOW_DROP_OLDEST_NON_KEYFRAME:
+			result = (mQueue.size() < mMaxQueueSz) && mQueue.offer(buffer);
+			if (!result) {
+				if (dropOldestNonKeyFrame()
+					|| ((buffer.flags() & FLAG_KEEP) != 0)) {
+					result = mQueue.offer(buffer);
+				}
+			}
+			break;
+		case OVERFLOW_BLOCK:
+			result = offerBlocking(buffer);
+			break;
+		case OVERFLOW_GROW_TO_LIMIT:
+			result = mQueue.offer(buffer);
+			break;
+		case OVERFLOW_DROP_NEWEST:
+		default:
+			result = (mQueue.size() < mMaxQueueSz) && mQueue.offer(buffer);
+			break;
+		}
+		if (result) {
+			mStats.onQueued(mQueue.size());
+		} else if (mOverflowPolicy != OVERFLOW_BLOCK) {
+			mStats.onDroppedNewest();
+		}
+		return result;
 	}
 	
 	@Override
@@ -157,7 +241,7 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	@Override
 	@Nullable
 	public RecycleMediaData poll() {
-		return mQueue.poll();
+		return onPolled(mQueue.poll());
 	}
 	
 	@Override
@@ -165,7 +249,7 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
 		throws InterruptedException {
 
-		return mQueue.poll(timeout, unit);
+		return onPolled(mQueue.poll(timeout, unit));
 	}
 	
 	@Override
@@ -178,4 +262,102 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 		return mPool.recycle(buffer);
 	}
 
+	@Override
+	public void setOverflowPolicy(@OverflowPolicy final int policy, final long blockTimeoutMs)
+		throws IllegalArgumentException {
+
+		switch (policy) {
+		case OVERFLOW_DROP_NEWEST:
+		case OVERFLOW_DROP_OLDEST_NON_KEYFRAME:
+		case OVERFLOW_BLOCK:
+		case OVERFLOW_GROW_TO_LIMIT:
+			mBlockTimeoutMs = blockTimeoutMs;
+			mOverflowPolicy = policy;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown overflow policy " + policy);
+		}
+	}
+
+	@OverflowPolicy
+	@Override
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	@NonNull
+	@Override
+	public MediaQueueStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * キュー内の一番古いキーフレーム以外のフレームを破棄する
+	 * @return true: 破棄した, false: キーフレーム以外のフレームがなかった
+	 */
+	private boolean dropOldestNonKeyFrame() {
+		final Iterator<RecycleMediaData> it = mQueue.iterator();
+		while (it.hasNext()) {
+			final RecycleMediaData frame = it.next();
+			if ((frame.flags() & FLAG_KEEP) == 0) {
+				it.remove();
+				mStats.onDroppedOldest();
+				frame.recycle();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * キューに空きができるまで最大mBlockTimeoutMs待機してから追加する
+	 * @param buffer
+	 * @return
+	 */
+	private boolean offerBlocking(@NonNull final RecycleMediaData buffer) {
+		if ((mQueue.size() < mMaxQueueSz) && mQueue.offer(buffer)) {
+			return true;
+		}
+		mStats.onBlocked();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMs);
+		synchronized (mSync) {
+			mBlockedProducers.incrementAndGet();
+			try {
+				for ( ; ; ) {
+					if ((mQueue.size() < mMaxQueueSz) && mQueue.offer(buffer)) {
+						return true;
+					}
+					final long remainingNs = deadline - System.nanoTime();
+					if (remainingNs <= 0) break;
+					TimeUnit.NANOSECONDS.timedWait(mSync, remainingNs);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				mBlockedProducers.decrementAndGet();
+			}
+		}
+		mStats.onBlockTimeout();
+		return false;
+	}
+
+	/**
+	 * キューから取り出したときの処理
+	 * 滞在時間を記録して空き待ちしているスレッドがあれば起床させる
+	 * @param buffer
+	 * @return
+	 */
+	@Nullable
+	private RecycleMediaData onPolled(@Nullable final RecycleMediaData buffer) {
+		if (buffer != null) {
+			mStats.onPolled(System.nanoTime() - buffer.queuedTimeNs());
+			if (mBlockedProducers.get() > 0) {
+				synchronized (mSync) {
+					mSync.notifyAll();
+				}
+			}
+		}
+		return buffer;
+	}
+
 }
@@ -0,0 +1,306 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import com.serenegiant.utils.BufferHelper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * AnnexB形式(スタートコード 00 00 01 / 00 00 00 01区切り)のH.264/H.265のビットストリームから
+ * NALユニットを順に取り出すためのスキャナー
+ * 1回の走査で3バイト/4バイトのスタートコードを両方とも見つける。
+ * スタートコードの0x01の位置の候補のバイトが1より大きければ3バイト先まで一致しないので
+ * 3バイトずつ読み飛ばし、ByteBufferの場合は0x00を含まない8バイトをまとめて読み飛ばす。
+ * ダイレクトバッファもbyte[]へコピーせずにそのまま走査する。
+ * #nextで次のNALユニットへ進めて#getOffset/#getLength/#getNalTypeで取得するので
+ * 走査中はオブジェクトを生成しない。
+ * ByteBufferのposition/limitは変更しない。スレッドセーフではない
+ *
+ * NalUnitScanner scanner = new NalUnitScanner();
+ * scanner.reset(buffer, info.offset, info.size);
+ * while (scanner.next()) {
+ *     switch (scanner.getNalType()) { ... }
+ * }
+ */
+public final class NalUnitScanner {
+
+	// H.264のNALユニットタイプ
+	public static final int NAL_SLICE = 1;
+	public static final int NAL_IDR_SLICE = 5;
+	public static final int NAL_SEI = 6;
+	public static final int NAL_SPS = 7;
+	public static final int NAL_PPS = 8;
+	public static final int NAL_AUD = 9;
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	@Nullable
+	private byte[] mArray;
+	@Nullable
+	private ByteBuffer mBuffer;
+	private int mStart;
+	private int mEnd;
+	/**
+	 * 次のNALユニットのスタートコード(00 00 01)の位置, なければ-1
+	 */
+	private int mNext = -1;
+	private int mStartCodeOffset = -1;
+	private int mOffset = -1;
+	private int mLength;
+	private int mHeader;
+
+	/**
+	 * byte[]を走査する
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	@NonNull
+	public NalUnitScanner reset(@NonNull final byte[] data, final int offset, final int length) {
+		if ((offset < 0) || (length < 0) || (offset + length > data.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		mArray = data;
+		mBuffer = null;
+		return init(offset, offset + length);
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでを走査する
+	 * @param buffer
+	 * @return
+	 */
+	@NonNull
+	public NalUnitScanner reset(@NonNull final ByteBuffer buffer) {
+		return reset(buffer, buffer.position(), buffer.remaining());
+	}
+
+	/**
+	 * ByteBufferの指定した範囲を走査する
+	 * @param buffer
+	 * @param offset 先頭からの絶対位置
+	 * @param length
+	 * @return
+	 */
+	@NonNull
+	public NalUnitScanner reset(@NonNull final ByteBuffer buffer, final int offset, final int length) {
+		if ((offset < 0) || (length < 0) || (offset + length > buffer.limit())) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (buffer.hasArray()) {
+			mArray = buffer.array();
+			mBuffer = null;
+			return init(buffer.arrayOffset() + offset, buffer.arrayOffset() + offset + length);
+		} else {
+			mArray = null;
+			mBuffer = buffer;
+			return init(offset, offset + length);
+		}
+	}
+
+	private NalUnitScanner init(final int start, final int end) {
+		mStart = start;
+		mEnd = end;
+		mStartCodeOffset = mOffset = -1;
+		mLength = mHeader = 0;
+		mNext = find(start);
+		return this;
+	}
+
+	/**
+	 * 次のNALユニットへ進める
+	 * @return NALユニットが無ければfalse
+	 */
+	public boolean next() {
+		final int sc = mNext;
+		if ((sc < 0) || (sc + 3 >= mEnd)) {
+			// 末尾のペイロードの無いスタートコードは終端とみなす
+			mNext = -1;
+			mStartCodeOffset = mOffset = -1;
+			mLength = mHeader = 0;
+			return false;
+		}
+		final int payload = sc + 3;
+		final int following = find(payload);
+		int end = following >= 0 ? following : mEnd;
+		// 4バイトのスタートコードの先頭の0x00と末尾のtrailing_zero_8bitsはNALユニットに含めない
+		while ((end > payload) && (get(end - 1) == 0)) {
+			end--;
+		}
+		mStartCodeOffset = (sc > mStart) && (get(sc - 1) == 0) ? sc - 1 : sc;
+		mOffset = payload;
+		mLength = end - payload;
+		mHeader = get(payload) & 0xff;
+		mNext = following;
+		return true;
+	}
+
+	/**
+	 * 現在のNALユニットのスタートコードの位置
+	 * 4バイトのスタートコードなら先頭の0x00の位置
+	 * ByteBuffer#arrayOffsetが0以外のByteBufferを走査している時はarray()の位置
+	 * @return
+	 */
+	public int getStartCodeOffset() {
+		return mStartCodeOffset;
+	}
+
+	/**
+	 * 現在のNALユニットの先頭(NALユニットヘッダー)の位置
+	 * ByteBuffer#arrayOffsetが0以外のByteBufferを走査している時はarray()の位置
+	 * @return
+	 */
+	public int getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * 現在のNALユニットのスタートコードを含まない長さ
+	 * @return
+	 */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * 現在のNALユニットのH.264のnal_unit_type
+	 * @return
+	 */
+	public int getNalType() {
+		return mHeader & 0x1f;
+	}
+
+	/**
+	 * 現在のNALユニットのH.265のnal_unit_type
+	 * @return
+	 */
+	public int getHevcNalType() {
+		return (mHeader >>> 1) & 0x3f;
+	}
+
+	private int get(final int index) {
+		return mArray != null ? mArray[index] : mBuffer.get(index);
+	}
+
+	/**
+	 * 3バイトのスタートコード(00 00 01)を探す
+	 * @param from
+	 * @return 見つからなければ-1
+	 */
+	private int find(final int from) {
+		return mArray != null
+			? findStartCode(mArray, from, mEnd)
+			: findStartCode(mBuffer, from, mEnd);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 3バイトのスタートコード(00 00 01)を探す
+	 * 4バイトのスタートコードの場合は2つ目の0x00の位置を返す
+	 * endの直前で終わる(後ろにNALユニットが無い)スタートコードも返す
+	 * @param data
+	 * @param offset
+	 * @param end
+	 * @return 見つからなければ-1
+	 */
+	public static int findStartCode(@NonNull final byte[] data, final int offset, final int end) {
+		return BufferHelper.findStartCode(data, offset, end);
+	}
+
+	/**
+	 * 3バイトのスタートコード(00 00 01)を探す
+	 * 4バイトのスタートコードの場合は2つ目の0x00の位置を返す
+	 * endの直前で終わる(後ろにNALユニットが無い)スタートコードも返す
+	 * ダイレクトバッファでもコピーせずに走査し、0x00を含まない8バイトはまとめて読み飛ばす
+	 * @param buffer
+	 * @param offset 先頭からの絶対位置
+	 * @param end
+	 * @return 見つからなければ-1
+	 */
+	public static int findStartCode(@NonNull final ByteBuffer buffer, final int offset, final int end) {
+		int p = offset + 2;
+		while (p < end) {
+			if (p + 6 <= end) {
+				// p-2からの8バイトに0x00が無ければ0x01の位置がp〜p+7のスタートコードは無い
+				final long v = buffer.getLong(p - 2);
+				if (((v - ONES) & ~v & HIGHS) == 0) {
+					p += 8;
+					continue;
+				}
+			}
+			final int b = buffer.get(p) & 0xff;
+			if (b > 1) {
+				p += 3;
+			} else if (b == 1) {
+				if ((buffer.get(p - 1) == 0) && (buffer.get(p - 2) == 0)) {
+					return p - 2;
+				}
+				p += 3;
+			} else {
+				p++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 最初のAnnexBのスタートコード(N[00] 00 00 01 (N ≧ 0))の先頭位置を返す
+	 * 直前が0x00なら4バイトのスタートコードとしてその0x00の位置を返す
+	 * 後ろにNALユニットが無いスタートコードは見つからなかったとみなす
+	 * @param data
+	 * @param offset
+	 * @param end
+	 * @return 見つからなければ-1
+	 */
+	public static int findAnnexB(@NonNull final byte[] data, final int offset, final int end) {
+		final int sc = BufferHelper.findStartCode(data, offset, end);
+		if ((sc < 0) || (sc + 3 >= end)) {
+			return -1;
+		}
+		return (sc > offset) && (data[sc - 1] == 0) ? sc - 1 : sc;
+	}
+
+	/**
+	 * 4バイトのスタートコード(00 00 00 01)だけを探す
+	 * 後ろにNALユニットが無いスタートコードは見つからなかったとみなす
+	 * @param data
+	 * @param offset
+	 * @param end
+	 * @return 見つからなければ-1
+	 */
+	public static int findStartCode4(@NonNull final byte[] data, final int offset, final int end) {
+		int from = offset + 1;
+		for ( ; ; ) {
+			final int sc = findStartCode(data, from, end);
+			if ((sc < 0) || (sc + 3 >= end)) {
+				return -1;
+			}
+			if ((sc > 0) && (data[sc - 1] == 0)) {
+				return sc - 1;
+			}
+			from = sc + 3;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みのサンプルを直近の一定時間分保持するためのリングバッファ
+ * (「トリガーの何秒前から録画」するためのプリロール用)
+ * サンプルのデータはコンストラクタで確保したダイレクトバッファ(アリーナ)へ
+ * 連続した領域としてコピーし、トラック/サイズ/presentationTimeUs/flagsは
+ * 並列の配列で管理するのでサンプル毎のオブジェクト生成は無い。
+ * アリーナの末尾に収まらないサンプルは先頭へ折り返す(末尾の余りは使わない)。
+ * 保持している最も古いサンプルは常に同期サンプル(動画トラックがあれば動画のキーフレーム、
+ * 動画トラックが無ければ全てのサンプル)なので、#writeToで書き出した内容は
+ * そのまま再生できる。古いサンプルはGOP単位で破棄し、保持時間を超えていても
+ * 直前のキーフレームまでは破棄しない。
+ * スレッドセーフではないので必要であれば呼び出し側で排他制御すること
+ */
+public class PreRollBuffer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = PreRollBuffer.class.getSimpleName();
+
+	private static final int DEFAULT_ENTRIES = 256;
+
+	private final long mDurationUs;
+	@NonNull
+	private final ByteBuffer mArena;
+	@NonNull
+	private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+	@NonNull
+	private boolean[] mVideoTracks = new boolean[0];
+	private boolean mHasVideo;
+	/**
+	 * サンプル毎の情報(リング)
+	 */
+	@NonNull
+	private int[] mTracks = new int[DEFAULT_ENTRIES];
+	@NonNull
+	private int[] mOffsets = new int[DEFAULT_ENTRIES];
+	@NonNull
+	private int[] mSizes = new int[DEFAULT_ENTRIES];
+	@NonNull
+	private long[] mPtsUs = new long[DEFAULT_ENTRIES];
+	@NonNull
+	private int[] mFlags = new int[DEFAULT_ENTRIES];
+	/**
+	 * 最も古いサンプルのインデックス
+	 */
+	private int mHead;
+	/**
+	 * 保持しているサンプル数
+	 */
+	private int mCount;
+	/**
+	 * 保持しているサンプルの合計バイト数
+	 */
+	private int mBytes;
+	/**
+	 * 次のサンプルをコピーするアリーナ内の位置
+	 */
+	private int mWritePos;
+	/**
+	 * これまでに追加したサンプルの最大のpresentationTimeUs
+	 */
+	private long mLatestPtsUs = Long.MIN_VALUE;
+
+	/**
+	 * コンストラクタ
+	 * @param durationUs 保持する時間[マイクロ秒]
+	 * @param capacityBytes アリーナのサイズ, 保持時間分のサンプルが入りきらない時は
+	 * 			保持時間内でも古いサンプルから破棄する
+	 */
+	public PreRollBuffer(final long durationUs, @IntRange(from=1) final int capacityBytes) {
+		if (capacityBytes <= 0) {
+			throw new IllegalArgumentException("capacityBytes should be positive");
+		}
+		mDurationUs = durationUs;
+		mArena = ByteBuffer.allocateDirect(capacityBytes);
+	}
+
+	/**
+	 * トラックを追加する
+	 * @param isVideo 動画トラックかどうか, 動画トラックがあれば動画のキーフレームでのみ古いサンプルを破棄する
+	 * @return トラックインデックス
+	 */
+	public int addTrack(final boolean isVideo) {
+		final int n = mVideoTracks.length;
+		mVideoTracks = Arrays.copyOf(mVideoTracks, n + 1);
+		mVideoTracks[n] = isVideo;
+		mHasVideo |= isVideo;
+		return n;
+	}
+
+	/**
+	 * 指定したトラックが動画トラックかどうか
+	 * @param trackIndex
+	 * @return
+	 */
+	public boolean isVideo(final int trackIndex) {
+		return mVideoTracks[trackIndex];
+	}
+
+	/**
+	 * 指定したサンプルが同期サンプル(ここから再生を始められるサンプル)かどうか
+	 * @param trackIndex
+	 * @param flags MediaCodec.BufferInfo#flags
+	 * @return
+	 */
+	public boolean isSync(final int trackIndex, final int flags) {
+		return !mHasVideo
+			|| (mVideoTracks[trackIndex] && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+	}
+
+	/**
+	 * エンコード済みのサンプルを追加する
+	 * 空き領域が足りなければ古いサンプルからGOP単位で破棄する
+	 * コーデック設定データとサイズが0のサンプルは追加しない
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo offsetはbyteBufの先頭からの絶対位置
+	 * @return 追加できればtrue, バッファが空で同期サンプルで無い時やアリーナより大きい時はfalse
+	 */
+	public boolean add(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		if ((trackIndex < 0) || (trackIndex >= mVideoTracks.length)) {
+			throw new IllegalArgumentException("invalid track index:" + trackIndex);
+		}
+		final int size = bufferInfo.size;
+		final int flags = bufferInfo.flags;
+		if (((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) || (size <= 0)) {
+			return false;
+		}
+		final boolean isSync = isSync(trackIndex, flags);
+		if (size > mArena.capacity()) {
+			// アリーナに入りきらないので以降の同期サンプルまでは追加できない
+			clear();
+			return false;
+		}
+		int pos = reserve(size);
+		while (pos < 0) {
+			// 空き領域が足りないので最も古いGOPを破棄する
+			removeGop();
+			pos = reserve(size);
+		}
+		if ((mCount == 0) && !isSync) {
+			return false;
+		}
+		final ByteBuffer src = byteBuf.duplicate();
+		src.clear();
+		src.limit(bufferInfo.offset + size).position(bufferInfo.offset);
+		final ByteBuffer dst = mArena.duplicate();
+		dst.clear();
+		dst.position(pos);
+		dst.put(src);
+		if (mCount == mTracks.length) {
+			grow();
+		}
+		final int ix = (mHead + mCount) % mTracks.length;
+		mTracks[ix] = trackIndex;
+		mOffsets[ix] = pos;
+		mSizes[ix] = size;
+		mPtsUs[ix] = bufferInfo.presentationTimeUs;
+		mFlags[ix] = flags;
+		mCount++;
+		mBytes += size;
+		mWritePos = pos + size;
+		if (bufferInfo.presentationTimeUs > mLatestPtsUs) {
+			mLatestPtsUs = bufferInfo.presentationTimeUs;
+		}
+		trim();
+		return true;
+	}
+
+	/**
+	 * 保持しているサンプルを古い順に指定したIMuxerへ書き込む
+	 * 保持しているサンプルは破棄しない
+	 * @param muxer
+	 * @param trackMap このバッファのトラックインデックス→muxerのトラックインデックスの変換テーブル,
+	 * 			nullなら変換しない
+	 * @return 書き込んだサンプル数
+	 */
+	public int writeTo(@NonNull final IMuxer muxer, @Nullable final int[] trackMap) {
+		final ByteBuffer buf = mArena.duplicate();
+		final MediaCodec.BufferInfo info = mInfo;
+		final int n = mTracks.length;
+		for (int i = 0; i < mCount; i++) {
+			final int ix = (mHead + i) % n;
+			final int offset = mOffsets[ix];
+			buf.clear();
+			buf.limit(offset + mSizes[ix]).position(offset);
+			// BufferInfo#setはローカルユニットテストでは使えないのでフィールドへ直接代入する
+			info.offset = offset;
+			info.size = mSizes[ix];
+			info.presentationTimeUs = mPtsUs[ix];
+			info.flags = mFlags[ix];
+			muxer.writeSampleData(trackMap != null ? trackMap[mTracks[ix]] : mTracks[ix], buf, info);
+		}
+		return mCount;
+	}
+
+	/**
+	 * 保持しているサンプルを全て破棄する
+	 */
+	public void clear() {
+		mHead = mCount = mBytes = mWritePos = 0;
+		mLatestPtsUs = Long.MIN_VALUE;
+	}
+
+	/**
+	 * 保持しているサンプル数を取得
+	 * @return
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * 保持しているサンプルの合計バイト数を取得
+	 * @return
+	 */
+	public int getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * アリーナのサイズを取得
+	 * @return
+	 */
+	public int getCapacity() {
+		return mArena.capacity();
+	}
+
+	/**
+	 * 保持している最も古いサンプルのpresentationTimeUsを取得
+	 * @return サンプルが無ければ-1
+	 */
+	public long getOldestPtsUs() {
+		return mCount > 0 ? mPtsUs[mHead] : -1;
+	}
+
+	/**
+	 * 保持しているサンプルの時間(最も新しいサンプルと最も古いサンプルのpresentationTimeUsの差)を取得
+	 * @return
+	 */
+	public long getDurationUs() {
+		return mCount > 0 ? mLatestPtsUs - mPtsUs[mHead] : 0;
+	}
+
+	/**
+	 * 指定したサイズのサンプルをコピーするアリーナ内の位置を取得
+	 * @param size
+	 * @return 空き領域が足りなければ-1
+	 */
+	private int reserve(final int size) {
+		if (mCount == 0) {
+			mWritePos = 0;
+			return 0;
+		}
+		final int headPos = mOffsets[mHead];
+		if (mWritePos > headPos) {
+			// 折り返していない時は末尾の空き領域、入らなければ先頭の空き領域
+			if (mWritePos + size <= mArena.capacity()) {
+				return mWritePos;
+			}
+			return size <= headPos ? 0 : -1;
+		} else {
+			// 折り返している時は最も古いサンプルの手前まで
+			return mWritePos + size <= headPos ? mWritePos : -1;
+		}
+	}
+
+	/**
+	 * 保持時間を超えた古いサンプルをGOP単位で破棄する
+	 * 次の同期サンプルから最新のサンプルまでで保持時間を満たす時だけ破棄するので
+	 * 保持時間の直前の同期サンプルまでは残る
+	 */
+	private void trim() {
+		if (mDurationUs <= 0) {
+			return;
+		}
+		while ((mCount > 1) && (mLatestPtsUs - mPtsUs[mHead] > mDurationUs)) {
+			final int next = nextSync();
+			if ((next <= 0) || (mLatestPtsUs - mPtsUs[(mHead + next) % mTracks.length] < mDurationUs)) {
+				break;
+			}
+			remove(next);
+		}
+	}
+
+	/**
+	 * 最も古いサンプルから次の同期サンプルの手前までを破棄する
+	 * 次の同期サンプルが無ければ全て破棄する
+	 */
+	private void removeGop() {
+		final int next = nextSync();
+		if (next > 0) {
+			remove(next);
+		} else {
+			if (DEBUG) Log.v(TAG, "removeGop:GOP is larger than arena");
+			clear();
+		}
+	}
+
+	/**
+	 * 最も古いサンプルの次の同期サンプルのリング内での相対位置を取得
+	 * @return 見つからなければ-1
+	 */
+	private int nextSync() {
+		final int n = mTracks.length;
+		for (int i = 1; i < mCount; i++) {
+			final int ix = (mHead + i) % n;
+			if (isSync(mTracks[ix], mFlags[ix])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 古い方から指定した数のサンプルを破棄する
+	 * @param num
+	 */
+	private void remove(final int num) {
+		final int n = mTracks.length;
+		for (int i = 0; i < num; i++) {
+			mBytes -= mSizes[mHead];
+			mHead = (mHead + 1) % n;
+		}
+		mCount -= num;
+	}
+
+	/**
+	 * サンプル毎の情報を保持する配列を拡張する
+	 */
+	private void grow() {
+		final int n = mTracks.length;
+		final int newLen = n * 2;
+		mTracks = unwrap(mTracks, newLen);
+		mOffsets = unwrap(mOffsets, newLen);
+		mSizes = unwrap(mSizes, newLen);
+		mFlags = unwrap(mFlags, newLen);
+		final long[] ptsUs = new long[newLen];
+		final int first = n - mHead;
+		System.arraycopy(mPtsUs, mHead, ptsUs, 0, first);
+		System.arraycopy(mPtsUs, 0, ptsUs, first, mHead);
+		mPtsUs = ptsUs;
+		mHead = 0;
+	}
+
+	/**
+	 * リングの内容を先頭から並べた新しい配列を生成する
+	 * @param src
+	 * @param newLen
+	 * @return
+	 */
+	private int[] unwrap(@NonNull final int[] src, final int newLen) {
+		final int[] result = new int[newLen];
+		final int first = src.length - mHead;
+		System.arraycopy(src, mHead, result, 0, first);
+		System.arraycopy(src, 0, result, first, mHead);
+		return result;
+	}
+}
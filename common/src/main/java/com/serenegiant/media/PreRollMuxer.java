@@ -0,0 +1,414 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * エンコード済みのサンプルを常にPreRollBufferへ保持しておき、
+ * #startOutputが呼ばれた時に保持しているサンプル(直前のキーフレームから)を
+ * 指定したIMuxerへ書き出して、以降は#stopOutputが呼ばれるまでそのIMuxerへ書き込むIMuxer実装
+ * (イベント発生時にその何秒か前から録画するドライブレコーダーや監視カメラ用)
+ * Recorder#setMuxerで設定すればMediaReaper.ReaperListener#writeSampleDataから
+ * 呼び出されるRecorder#writeSampleData経由でサンプルを受け取るので、エンコーダーは
+ * 常に動かしておいてイベント発生時だけファイルへ書き込むことができる。
+ * 出力中もPreRollBufferへの保持は続けるので、続けて次のイベントが発生した時も
+ * 直前のサンプルから書き出せる。
+ * #startOutputで保持しているサンプルを書き出す間はロックを保持しないので
+ * エンコーダーのスレッドはブロックされない(その間に受け取ったサンプルはコピーして
+ * キューへ入れておき、書き出し終了後にPreRollBufferと出力先へ追加する)。
+ * キューのバイト数が上限を超える時はそのトラックのサンプルを破棄して、
+ * 書き出し終了後の次のサンプル(動画なら次のキーフレーム)から追加を再開する。
+ *
+ * PreRollMuxer muxer = new PreRollMuxer(5 * 1000000L, 8 * 1024 * 1024);
+ * recorder.setMuxer(muxer);
+ * ...
+ * // イベント発生時
+ * muxer.startOutput(new FragmentedMp4Muxer(path));
+ * ...
+ * muxer.stopOutput();
+ */
+public class PreRollMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = PreRollMuxer.class.getSimpleName();
+
+	private final Object mSync = new Object();
+	@NonNull
+	private final PreRollBuffer mBuffer;
+	@NonNull
+	private final List<SegmentedMuxer.TrackInitializer> mTracks = new ArrayList<>();
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+	/**
+	 * 出力先
+	 */
+	@Nullable
+	private IMuxer mOutput;
+	@Nullable
+	private int[] mOutputTracks;
+	/**
+	 * 出力先へ同期サンプルを書き込んだかどうか
+	 */
+	private boolean mOutputSynced;
+	/**
+	 * #startOutputで保持しているサンプルを出力先へ書き込み中かどうか
+	 * 書き込み中はPreRollBufferを変更しない
+	 */
+	private boolean mFlushing;
+	/**
+	 * 保持しているサンプルを出力先へ書き込み中に受け取ったサンプル
+	 */
+	@NonNull
+	private final List<PendingSample> mPending = new ArrayList<>();
+	/**
+	 * mPendingのサンプルを追加する時用
+	 */
+	@NonNull
+	private final MediaCodec.BufferInfo mPendingInfo = new MediaCodec.BufferInfo();
+	/**
+	 * mPendingに入れるサンプルの最大バイト数
+	 */
+	private final int mMaxPendingBytes;
+	/**
+	 * mPendingに入っているサンプルのバイト数
+	 */
+	private int mPendingBytes;
+	/**
+	 * mPendingが一杯になってサンプルを破棄しているトラック
+	 * 書き込み終了後に動画ならキーフレーム, それ以外なら次のサンプルを受け取るまで破棄する
+	 */
+	@NonNull
+	private boolean[] mDropping = new boolean[0];
+
+	/**
+	 * コンストラクタ
+	 * @param preRollUs 保持する時間[マイクロ秒], 直前のキーフレームまでは保持するので
+	 * 			実際にはキーフレームの間隔分長くなることがある
+	 * @param capacityBytes 保持するサンプルの最大バイト数, ダイレクトバッファとして確保する
+	 * 			#startOutputで書き出し中に受け取ったサンプルもこのバイト数までキューへ入れる
+	 */
+	public PreRollMuxer(final long preRollUs, @IntRange(from=1) final int capacityBytes) {
+		this(preRollUs, capacityBytes, capacityBytes);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param preRollUs 保持する時間[マイクロ秒], 直前のキーフレームまでは保持するので
+	 * 			実際にはキーフレームの間隔分長くなることがある
+	 * @param capacityBytes 保持するサンプルの最大バイト数, ダイレクトバッファとして確保する
+	 * @param maxPendingBytes #startOutputで書き出し中に受け取ったサンプルをキューへ入れる最大バイト数
+	 */
+	public PreRollMuxer(final long preRollUs,
+		@IntRange(from=1) final int capacityBytes, @IntRange(from=0) final int maxPendingBytes) {
+
+		mBuffer = new PreRollBuffer(preRollUs, capacityBytes);
+		mMaxPendingBytes = maxPendingBytes;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		return addTrack((mime != null) && mime.startsWith("video/"), new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer muxer) {
+				return muxer.addTrack(format);
+			}
+		});
+	}
+
+	/**
+	 * トラックを追加する
+	 * @param isVideo 動画トラックかどうか
+	 * @param initializer #startOutputで出力先のIMuxerへトラックを追加する時に使う
+	 * @return トラックインデックス
+	 */
+	public int addTrack(final boolean isVideo, @NonNull final SegmentedMuxer.TrackInitializer initializer) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("already started or released");
+			}
+			mTracks.add(initializer);
+			return mBuffer.addTrack(isVideo);
+		}
+	}
+
+	/**
+	 * サンプルの保持を開始する
+	 */
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mReleased) {
+				throw new IllegalStateException("already released");
+			}
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			mIsStarted = true;
+			mDropping = new boolean[mTracks.size()];
+		}
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		synchronized (mSync) {
+			if (!mIsStarted || mReleased
+				|| ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+				|| (bufferInfo.size <= 0)) {
+				return;
+			}
+			if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+				throw new IllegalArgumentException("invalid track index:" + trackIndex);
+			}
+			if (mDropping[trackIndex]) {
+				// キューが一杯で破棄し始めたトラックは書き込み終了後に
+				// 単独でデコードできるサンプル(動画ならキーフレーム)を受け取るまで破棄する
+				if (mFlushing || (mBuffer.isVideo(trackIndex)
+					&& ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0))) {
+					return;
+				}
+				mDropping[trackIndex] = false;
+			}
+			if (mFlushing) {
+				// 保持しているサンプルを書き込み中なのでコピーしてキューへ入れておく
+				if (mPendingBytes + (long)bufferInfo.size > mMaxPendingBytes) {
+					if (DEBUG) Log.v(TAG, "writeSampleData:pending queue is full, drop track " + trackIndex);
+					mDropping[trackIndex] = true;
+					return;
+				}
+				mPending.add(new PendingSample(trackIndex, byteBuf, bufferInfo));
+				mPendingBytes += bufferInfo.size;
+				return;
+			}
+			internalWriteSampleData(trackIndex, byteBuf, bufferInfo);
+		}
+	}
+
+	/**
+	 * PreRollBufferへサンプルを追加して、出力中であれば出力先へも書き込む
+	 * mSyncをロックした状態で呼び出すこと
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	private void internalWriteSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		mBuffer.add(trackIndex, byteBuf, bufferInfo);
+		if (mOutput != null) {
+			// 同期サンプルを書き込むまでは出力先へ書き込まない
+			mOutputSynced |= mBuffer.isSync(trackIndex, bufferInfo.flags);
+			if (mOutputSynced) {
+				mOutput.writeSampleData(mOutputTracks[trackIndex], byteBuf, bufferInfo);
+			}
+		}
+	}
+
+	/**
+	 * 出力を開始する
+	 * 指定したIMuxerへトラックを追加して開始し、保持しているサンプルを書き込む。
+	 * 以降のサンプルは#stopOutputを呼ぶまで指定したIMuxerへも書き込む
+	 * @param muxer 出力先のIMuxer, トラックを追加する前の状態であること
+	 * @throws IllegalStateException 開始していない時または既に出力中の時
+	 */
+	public void startOutput(@NonNull final IMuxer muxer) {
+		final List<SegmentedMuxer.TrackInitializer> initializers;
+		synchronized (mSync) {
+			if (!mIsStarted || mReleased) {
+				throw new IllegalStateException("not started or already released");
+			}
+			if ((mOutput != null) || mFlushing) {
+				throw new IllegalStateException("already outputting");
+			}
+			mFlushing = true;
+			initializers = new ArrayList<>(mTracks);
+		}
+		final int n = initializers.size();
+		final int[] tracks = new int[n];
+		int num = -1;
+		try {
+			for (int i = 0; i < n; i++) {
+				tracks[i] = initializers.get(i).addTrack(muxer);
+			}
+			muxer.start();
+			// mFlushingの間はPreRollBufferは変更されないのでロックせずに書き込める
+			num = mBuffer.writeTo(muxer, tracks);
+			if (DEBUG) Log.v(TAG, "startOutput:pre-roll " + num + " samples,"
+				+ mBuffer.getDurationUs() + "us," + mBuffer.getBytes() + "bytes");
+		} finally {
+			synchronized (mSync) {
+				mFlushing = false;
+				if (num >= 0) {
+					mOutput = muxer;
+					mOutputTracks = tracks;
+					mOutputSynced = num > 0;
+				}
+				// 書き込み中に受け取ったサンプルを追加する
+				final MediaCodec.BufferInfo info = mPendingInfo;
+				for (final PendingSample sample: mPending) {
+					info.offset = 0;
+					info.size = sample.data.length;
+					info.presentationTimeUs = sample.presentationTimeUs;
+					info.flags = sample.flags;
+					internalWriteSampleData(sample.trackIndex, ByteBuffer.wrap(sample.data), info);
+				}
+				mPending.clear();
+				mPendingBytes = 0;
+				mSync.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * 出力を終了する
+	 * 出力先のIMuxerをstop/releaseする。サンプルの保持は続ける
+	 */
+	public void stopOutput() {
+		final IMuxer output;
+		synchronized (mSync) {
+			waitFlushing();
+			output = mOutput;
+			mOutput = null;
+			mOutputTracks = null;
+			mOutputSynced = false;
+		}
+		if (output != null) {
+			try {
+				output.stop();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			try {
+				output.release();
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	/**
+	 * #startOutputで保持しているサンプルを書き込み中なら終わるまで待つ
+	 * 書き込み中にPreRollBufferを破棄したり出力先を終了しないようにする
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	private void waitFlushing() {
+		boolean interrupted = false;
+		while (mFlushing) {
+			try {
+				mSync.wait();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 出力中かどうか
+	 * @return
+	 */
+	public boolean isOutputting() {
+		synchronized (mSync) {
+			return mOutput != null;
+		}
+	}
+
+	/**
+	 * 保持しているサンプルの時間を取得
+	 * @return
+	 */
+	public long getPreRollDurationUs() {
+		synchronized (mSync) {
+			return mBuffer.getDurationUs();
+		}
+	}
+
+	/**
+	 * 出力中であれば出力を終了して、保持しているサンプルを破棄する
+	 */
+	@Override
+	public void stop() {
+		stopOutput();
+		synchronized (mSync) {
+			waitFlushing();
+			mIsStarted = false;
+			mBuffer.clear();
+		}
+	}
+
+	@Override
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+	/**
+	 * 保持しているサンプルを出力先へ書き込み中に受け取ったサンプルのコピー
+	 */
+	private static class PendingSample {
+		private final int trackIndex;
+		@NonNull
+		private final byte[] data;
+		private final long presentationTimeUs;
+		private final int flags;
+
+		private PendingSample(final int trackIndex,
+			@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+			this.trackIndex = trackIndex;
+			data = new byte[bufferInfo.size];
+			final ByteBuffer src = byteBuf.duplicate();
+			src.clear();
+			src.position(bufferInfo.offset);
+			src.get(data);
+			presentationTimeUs = bufferInfo.presentationTimeUs;
+			flags = bufferInfo.flags;
+		}
+	}
+}
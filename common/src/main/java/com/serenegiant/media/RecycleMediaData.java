@@ -20,6 +20,7 @@ package com.serenegiant.media;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -30,6 +31,17 @@ import androidx.annotation.NonNull;
 public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 	@NonNull
 	private final WeakReference<IRecycleParent<RecycleMediaData>> mWeakParent;
+	/**
+	 * IMediaQueueへ追加した時刻[ナノ秒], 滞在時間の計測用
+	 */
+	private long mQueuedTimeNs;
+	/**
+	 * RingMediaQueueへ追加した時の整理番号
+	 * 0ならキュー外, TICKET_DROPPEDならキュー内で破棄済み
+	 */
+	@NonNull
+	private final AtomicLong mTicket = new AtomicLong();
+	/*package*/ static final long TICKET_DROPPED = -1;
 
 	/**
 	 * コンストラクタ
@@ -86,6 +98,19 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 		mWeakParent = new WeakReference<IRecycleParent<RecycleMediaData>>(src.mWeakParent.get());
 	}
 
+	/*package*/ void queuedTimeNs(final long timeNs) {
+		mQueuedTimeNs = timeNs;
+	}
+
+	/*package*/ long queuedTimeNs() {
+		return mQueuedTimeNs;
+	}
+
+	@NonNull
+	/*package*/ AtomicLong ticket() {
+		return mTicket;
+	}
+
 	@Override
 	public void recycle() {
 		final IRecycleParent<RecycleMediaData> parent = mWeakParent.get();
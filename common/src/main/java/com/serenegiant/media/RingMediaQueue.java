@@ -0,0 +1,530 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.collections.LockFreeRingQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * IMediaQueueのオンメモリー実装
+ * MemMediaQueueはLinkedBlockingQueueとPoolを使うのでフレーム毎に
+ * 2回のロックとノードの生成が必要になるが、
+ * こちらは#initで全てのスロット(RecycleMediaData)を生成しておき、
+ * 空きスロット用と送信待ち用の2つのLockFreeRingQueueの間で
+ * スロットを受け渡すのでフレーム毎のオブジェクト生成とロックが不要
+ * (タイムアウト付きのpollで待機するときのみ待機/通知にロックを使う)
+ * 生産者は#obtainで空きスロットを確保してデータをセットし#queueFrameで公開、
+ * 消費者は#pollで取り出して処理後にRecycleMediaData#recycleで空きスロットへ戻す
+ * 複数生産者/複数消費者のどちらでも使用可能
+ * コンストラクタではスロットを生成しない(#initでバッファサイズを指定して生成し直すことが多いので)。
+ * #initを呼ばずに#obtainした時は最大生成数まで必要に応じて生成する
+ * キュー内のフレームを途中から取り除くことはできないので、
+ * OVERFLOW_DROP_OLDEST_NON_KEYFRAMEの時は先頭から順にキーフレーム等以外のフレームを探して
+ * 破棄済みの印を付け(整理番号をCASで書き換えるので取り出しと競合しても
+ * どちらか一方だけが成功する)、#pollで取り出した時に破棄済みのフレームを読み飛ばす
+ */
+public class RingMediaQueue implements IMediaQueue<RecycleMediaData> {
+	private final int mNumSlots;
+	/**
+	 * キューの最大サイズ
+	 */
+	private final int mMaxQueueSz;
+	/**
+	 * スロットの最大生成数
+	 */
+	private final int mLimitSlots;
+	@NonNull
+	private final IRecycleBuffer.Factory<RecycleMediaData> mFactory;
+	/**
+	 * 空きスロット
+	 */
+	@NonNull
+	private final LockFreeRingQueue<RecycleMediaData> mFreeSlots;
+	/**
+	 * 送信待ちスロット
+	 */
+	@NonNull
+	private final LockFreeRingQueue<RecycleMediaData> mQueue;
+	/**
+	 * タイムアウト付きのpollで待機中の消費者の数
+	 */
+	@NonNull
+	private final AtomicInteger mWaiters = new AtomicInteger();
+	/**
+	 * OVERFLOW_BLOCKで空き待ちしている生産者の数
+	 */
+	@NonNull
+	private final AtomicInteger mBlockedProducers = new AtomicInteger();
+	/**
+	 * 生成済みのスロット数
+	 */
+	@NonNull
+	private final AtomicInteger mCreatedSlots = new AtomicInteger();
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * キューへ追加したフレームへ割り当てる整理番号
+	 */
+	@NonNull
+	private final AtomicLong mTickets = new AtomicLong();
+	/**
+	 * キュー内の破棄済みのフレームの数
+	 */
+	@NonNull
+	private final AtomicInteger mDropped = new AtomicInteger();
+	@NonNull
+	private final MediaQueueStats mStats = new MediaQueueStats();
+	@OverflowPolicy
+	private volatile int mOverflowPolicy = OVERFLOW_DROP_NEWEST;
+	private volatile long mBlockTimeoutMs;
+	@Nullable
+	private volatile Object[] mArgs;
+
+	/**
+	 * コンストラクタ
+	 * MemMediaQueue.DefaultFactoryをファクトリーとして使う
+	 * @param numSlots スロット数(=最大生成数=キューの最大サイズ)
+	 */
+	public RingMediaQueue(@IntRange(from=1) final int numSlots) {
+		this(numSlots, numSlots, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * MemMediaQueue.DefaultFactoryをファクトリーとして使う
+	 * @param numSlots スロット数(=最大生成数)
+	 * @param maxQueueSz キューの最大サイズ, スロット数より大きくても意味はない
+	 */
+	public RingMediaQueue(@IntRange(from=1) final int numSlots,
+		@IntRange(from=1) final int maxQueueSz) {
+
+		this(numSlots, maxQueueSz, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param numSlots スロット数(=最大生成数)
+	 * @param maxQueueSz キューの最大サイズ, スロット数より大きくても意味はない
+	 * @param factory
+	 */
+	public RingMediaQueue(@IntRange(from=1) final int numSlots,
+		@IntRange(from=1) final int maxQueueSz,
+		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
+
+		this(numSlots, maxQueueSz, 0, factory);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param numSlots 初期化時に生成するスロット数
+	 * @param maxQueueSz キューの最大サイズ, スロット数より大きくても意味はない
+	 * @param limitSlots OVERFLOW_GROW_TO_LIMIT等でキューの最大サイズを超えて追加するときの上限
+	 * 			スロットの最大生成数もこの値まで増える, numSlots以下ならnumSlots
+	 * @param factory
+	 */
+	public RingMediaQueue(@IntRange(from=1) final int numSlots,
+		@IntRange(from=1) final int maxQueueSz,
+		final int limitSlots,
+		@Nullable final IRecycleBuffer.Factory<RecycleMediaData> factory) {
+
+		mNumSlots = numSlots;
+		mLimitSlots = Math.max(numSlots, limitSlots);
+		mMaxQueueSz = Math.min(numSlots, maxQueueSz);
+		mFactory = factory != null ? factory : new MemMediaQueue.DefaultFactory();
+		mFreeSlots = new LockFreeRingQueue<RecycleMediaData>(mLimitSlots);
+		// 破棄済みのフレームが残っていても追加できるように2倍確保する
+		mQueue = new LockFreeRingQueue<RecycleMediaData>(mLimitSlots * 2);
+	}
+
+	/**
+	 * キューを初期化してスロットを全て生成する
+	 * 以前に生成したスロットでまだ返却されていないものは、
+	 * 返却時に空きスロットが一杯であれば破棄される
+	 * @param args IRecycleBuffer.Factoryへ引き渡す引数, 省略可
+	 */
+	@Override
+	public void init(@Nullable final Object... args) {
+		mQueue.clear();
+		mFreeSlots.clear();
+		mDropped.set(0);
+		mArgs = args;
+		mCreatedSlots.set(mNumSlots);
+		for (int i = 0; i < mNumSlots; i++) {
+			mFreeSlots.offer(mFactory.create(this, args));
+		}
+	}
+
+	/**
+	 * キューをクリア
+	 * キュー内のデータは空きスロットへ戻す
+	 */
+	@Override
+	public void clear() {
+		for ( ; ; ) {
+			final RecycleMediaData buffer = pollLive();
+			if (buffer == null) break;
+			recycle(buffer);
+		}
+	}
+
+	/**
+	 * 空きスロットを取得する
+	 * 空きスロットが無ければ最大生成数まで新たに生成する
+	 * @param args 必要な内部バッファサイズ(Integer), 省略可
+	 * @return 空きスロットが無く最大生成数に達していればnull
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData obtain(@Nullable final Object... args) {
+		RecycleMediaData result = mFreeSlots.poll();
+		if (result == null) {
+			result = create();
+		}
+		if (result == null) {
+			mStats.onObtainFailed();
+		} else if (args != null) {
+			for (final Object arg: args) {
+				if (arg instanceof Integer) {
+					// 必要であれば内部バッファを拡張する(一度拡張すれば再利用される)
+					result.resize((int)arg);
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * キューにデータを追加(公開)する
+	 * キューが一杯の時はOverflowPolicyに従って処理する
+	 * 追加できなかったときは呼び出し元でbufferを返却すること
+	 * @param buffer #obtainで取得したスロット
+	 * @return true: 正常にキューに追加できた
+	 */
+	@Override
+	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
+		buffer.queuedTimeNs(System.nanoTime());
+		buffer.ticket().set(mTickets.incrementAndGet());
+		boolean result;
+		switch (mOverflowPolicy) {
+		case OVERFLOW_DROP_OLDEST_NON_KEYFRAME:
+			result = (count() < mMaxQueueSz) && mQueue.offer(buffer);
+			if (!result) {
+				if (dropOldestNonKeyFrame()
+					|| ((buffer.flags() & MemMediaQueue.FLAG_KEEP) != 0)) {
+					result = mQueue.offer(buffer);
+				}
+			}
+			break;
+		case OVERFLOW_BLOCK:
+			result = offerBlocking(buffer);
+			break;
+		case OVERFLOW_GROW_TO_LIMIT:
+			result = mQueue.offer(buffer);
+			break;
+		case OVERFLOW_DROP_NEWEST:
+		default:
+			result = (count() < mMaxQueueSz) && mQueue.offer(buffer);
+			break;
+		}
+		if (result) {
+			mStats.onQueued(count());
+			if (mWaiters.get() > 0) {
+				synchronized (mSync) {
+					mSync.notifyAll();
+				}
+			}
+		} else {
+			buffer.ticket().set(0);
+			if (mOverflowPolicy != OVERFLOW_BLOCK) {
+				mStats.onDroppedNewest();
+			}
+		}
+		return result;
+	}
+
+	@Nullable
+	@Override
+	public RecycleMediaData peek() {
+		final long tail = mQueue.tailPosition();
+		for (long pos = mQueue.headPosition(); pos < tail; pos++) {
+			final RecycleMediaData frame = mQueue.peekAt(pos);
+			if ((frame != null) && (frame.ticket().get() > 0)) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	@Nullable
+	@Override
+	public RecycleMediaData poll() {
+		return onPolled(pollLive());
+	}
+
+	@Nullable
+	@Override
+	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
+		throws InterruptedException {
+
+		RecycleMediaData result = pollLive();
+		if ((result == null) && (timeout > 0)) {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (mSync) {
+				mWaiters.incrementAndGet();
+				try {
+					for ( ; ; ) {
+						// 待機数を増やした後で再確認する
+						result = pollLive();
+						if (result != null) break;
+						final long remainingNs = deadline - System.nanoTime();
+						if (remainingNs <= 0) break;
+						TimeUnit.NANOSECONDS.timedWait(mSync, remainingNs);
+					}
+				} finally {
+					mWaiters.decrementAndGet();
+				}
+			}
+		}
+		return onPolled(result);
+	}
+
+	@Override
+	public int count() {
+		return Math.max(mQueue.size() - mDropped.get(), 0);
+	}
+
+	/**
+	 * スロットを空きスロットへ戻す
+	 * @param buffer
+	 * @return false: 空きスロットが一杯で戻せなかった
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		buffer.clear();
+		if (mFreeSlots.offer(buffer)) {
+			return true;
+		}
+		// 最大生成数を超えて生成したスロットは空きスロットへ戻せないので破棄する
+		mCreatedSlots.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * スロット数を取得
+	 * @return
+	 */
+	public int getNumSlots() {
+		return mNumSlots;
+	}
+
+	/**
+	 * 空きスロット数を取得
+	 * @return
+	 */
+	public int getNumFreeSlots() {
+		return mFreeSlots.size();
+	}
+
+	/**
+	 * キューが一杯の時の処理方法をセット
+	 * @param policy
+	 * @param blockTimeoutMs OVERFLOW_BLOCKの時の最大待機時間[ミリ秒]
+	 * @throws IllegalArgumentException 未知の処理方法を指定した
+	 */
+	@Override
+	public void setOverflowPolicy(@OverflowPolicy final int policy, final long blockTimeoutMs)
+		throws IllegalArgumentException {
+
+		switch (policy) {
+		case OVERFLOW_DROP_NEWEST:
+		case OVERFLOW_DROP_OLDEST_NON_KEYFRAME:
+		case OVERFLOW_BLOCK:
+		case OVERFLOW_GROW_TO_LIMIT:
+			mBlockTimeoutMs = blockTimeoutMs;
+			mOverflowPolicy = policy;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown overflow policy " + policy);
+		}
+	}
+
+	@OverflowPolicy
+	@Override
+	public int getOverflowPolicy() {
+		return mOverflowPolicy;
+	}
+
+	@NonNull
+	@Override
+	public MediaQueueStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * 最大生成数を超えていなければ新たにスロットを生成する
+	 * 破棄済みのフレームがキュー内に残っている間はそのスロットは再利用できないので
+	 * その数だけ最大生成数を超えて生成できる
+	 * @return
+	 */
+	@Nullable
+	private RecycleMediaData create() {
+		for ( ; ; ) {
+			final int n = mCreatedSlots.get();
+			if (n >= mLimitSlots + mDropped.get()) {
+				return null;
+			}
+			if (mCreatedSlots.compareAndSet(n, n + 1)) {
+				return mFactory.create(this, mArgs);
+			}
+		}
+	}
+
+	/**
+	 * キューからフレームを取り出す, 破棄済みのフレームは空きスロットへ戻して読み飛ばす
+	 * @return キューが空ならnull
+	 */
+	@Nullable
+	private RecycleMediaData pollLive() {
+		for ( ; ; ) {
+			final RecycleMediaData result = mQueue.poll();
+			if (result == null) {
+				return null;
+			}
+			if (result.ticket().getAndSet(0) != RecycleMediaData.TICKET_DROPPED) {
+				return result;
+			}
+			mDropped.decrementAndGet();
+			reclaim(result);
+		}
+	}
+
+	/**
+	 * 破棄済みのフレームのスロットを回収する
+	 * 最大生成数を超えて生成していればそのまま破棄する
+	 * @param buffer
+	 */
+	private void reclaim(@NonNull final RecycleMediaData buffer) {
+		for ( ; ; ) {
+			final int n = mCreatedSlots.get();
+			if (n <= mLimitSlots) {
+				recycle(buffer);
+				return;
+			}
+			if (mCreatedSlots.compareAndSet(n, n - 1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * キュー内の一番古いキーフレーム等以外のフレームに破棄済みの印を付ける
+	 * 実際に空きスロットへ戻すのは#pollで読み飛ばした時
+	 * 破棄済みのフレームは最大生成数までしか残さないので、
+	 * キュー(最大生成数の2倍)が破棄済みのフレームで一杯になることはない
+	 * @return true: 破棄した, false: キーフレーム等以外のフレームがなかった
+	 * 			または破棄済みのフレームが多すぎる
+	 */
+	private boolean dropOldestNonKeyFrame() {
+		for ( ; ; ) {
+			final int n = mDropped.get();
+			if (n >= mLimitSlots) {
+				return false;
+			}
+			if (mDropped.compareAndSet(n, n + 1)) {
+				break;
+			}
+		}
+		final long tail = mQueue.tailPosition();
+		for (long pos = mQueue.headPosition(); pos < tail; pos++) {
+			final RecycleMediaData frame = mQueue.peekAt(pos);
+			if (frame == null) {
+				continue;
+			}
+			// 取り出されて再利用された時にCASが失敗するように整理番号を先に読む
+			final long ticket = frame.ticket().get();
+			if ((ticket > 0) && ((frame.flags() & MemMediaQueue.FLAG_KEEP) == 0)
+				&& frame.ticket().compareAndSet(ticket, RecycleMediaData.TICKET_DROPPED)) {
+
+				mStats.onDroppedOldest();
+				return true;
+			}
+		}
+		mDropped.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * キューに空きができるまで最大mBlockTimeoutMs待機してから追加する
+	 * @param buffer
+	 * @return
+	 */
+	private boolean offerBlocking(@NonNull final RecycleMediaData buffer) {
+		if ((count() < mMaxQueueSz) && mQueue.offer(buffer)) {
+			return true;
+		}
+		mStats.onBlocked();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMs);
+		synchronized (mSync) {
+			mBlockedProducers.incrementAndGet();
+			try {
+				for ( ; ; ) {
+					if ((count() < mMaxQueueSz) && mQueue.offer(buffer)) {
+						return true;
+					}
+					final long remainingNs = deadline - System.nanoTime();
+					if (remainingNs <= 0) break;
+					TimeUnit.NANOSECONDS.timedWait(mSync, remainingNs);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				mBlockedProducers.decrementAndGet();
+			}
+		}
+		mStats.onBlockTimeout();
+		return false;
+	}
+
+	/**
+	 * キューから取り出したときの処理
+	 * 滞在時間を記録して空き待ちしている生産者があれば起床させる
+	 * @param buffer
+	 * @return
+	 */
+	@Nullable
+	private RecycleMediaData onPolled(@Nullable final RecycleMediaData buffer) {
+		if (buffer != null) {
+			mStats.onPolled(System.nanoTime() - buffer.queuedTimeNs());
+			if (mBlockedProducers.get() > 0) {
+				synchronized (mSync) {
+					mSync.notifyAll();
+				}
+			}
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,710 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 一定時間毎または一定サイズ毎に出力先を切り替えながら連続して録画するためのIMuxer実装
+ * (ドライブレコーダーのような常時録画用)
+ * 出力先の切り替えは動画のキーフレームの直前で行う(動画トラックが無い時はどのサンプルでもよい)。
+ * 次のセグメント用のIMuxerはSegmentFactoryを使ってバックグラウンドで事前に生成・開始しておき、
+ * 切り替え時は書き込み先を入れ替えるだけなので、切り替えの前後でサンプルが抜けることはない。
+ * 切り替え時に次のセグメントの準備ができていなければ準備ができた後の最初のキーフレームまで
+ * 現在のセグメントへ書き込み続ける。
+ * 終了したセグメントのstop/releaseもバックグラウンドで行う。
+ *
+ * IMuxer muxer = new SegmentedMuxer(
+ *     new SegmentedMuxer.FileSegmentFactory(dir, "rec", 64 * 1024 * 1024, 1024L * 1024 * 1024 * 4, true),
+ *     60 * 1000000L, 0);
+ */
+public class SegmentedMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SegmentedMuxer.class.getSimpleName();
+
+	/**
+	 * #stopで次のセグメントの準備が終わるのを待つ最大時間[ミリ秒]
+	 * 時間内に終わらなければ準備中のセグメントはバックグラウンドで破棄する
+	 */
+	private static final long PREPARE_TIMEOUT_MS = 3000;
+
+	/**
+	 * セグメント用のIMuxerを生成するためのファクトリーインターフェース
+	 * メソッドはいずれもバックグラウンドスレッドから呼び出される
+	 * (#startと#stopの時は呼び出し元スレッドから呼び出される)
+	 */
+	public interface SegmentFactory {
+		/**
+		 * 指定したセグメント用のIMuxerを生成する
+		 * 生成したIMuxerへのトラックの追加とstartはSegmentedMuxerが行う
+		 * @param index 0から始まるセグメント番号
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		public IMuxer createMuxer(final int index) throws IOException;
+
+		/**
+		 * セグメントのIMuxerをstop/releaseした時
+		 * @param index セグメント番号
+		 * @param discarded 事前に生成したけれど使わずに終了した時true
+		 */
+		public void onSegmentFinished(final int index, final boolean discarded);
+	}
+
+	/**
+	 * セグメント毎のIMuxerへトラックを追加するためのインターフェース
+	 * MediaFormatを使えない時(ローカルユニットテスト等)やIMuxer固有の方法で
+	 * トラックを追加したい時に使う
+	 */
+	public interface TrackInitializer {
+		/**
+		 * 指定したIMuxerへトラックを追加する
+		 * @param muxer
+		 * @return トラックインデックス
+		 */
+		public int addTrack(@NonNull final IMuxer muxer);
+	}
+
+	private static class Track {
+		private final boolean isVideo;
+		@NonNull
+		private final TrackInitializer initializer;
+
+		private Track(final boolean isVideo, @NonNull final TrackInitializer initializer) {
+			this.isVideo = isVideo;
+			this.initializer = initializer;
+		}
+	}
+
+	private final Object mSync = new Object();
+	@NonNull
+	private final SegmentFactory mFactory;
+	private final long mMaxDurationUs;
+	private final long mMaxBytes;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	private boolean mHasVideo;
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+	/**
+	 * 書き込み中のセグメント
+	 */
+	@Nullable
+	private IMuxer mCurrent;
+	private int mCurrentIndex = -1;
+	@NonNull
+	private int[] mCurrentTracks = new int[0];
+	private long mSegmentStartPtsUs = -1;
+	private long mSegmentBytes;
+	/**
+	 * 事前に生成・開始した次のセグメント
+	 */
+	@Nullable
+	private IMuxer mNext;
+	@Nullable
+	private int[] mNextTracks;
+	/**
+	 * 次のセグメントを準備中かどうか
+	 */
+	private boolean mPreparing;
+	/**
+	 * セグメントの準備と終了したセグメントのstop/release用
+	 * 順に実行されるように1スレッドだけで処理する
+	 */
+	@NonNull
+	private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+		60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/**
+	 * コンストラクタ
+	 * @param factory
+	 * @param maxDurationUs 1つのセグメントの長さ[マイクロ秒], 0以下なら時間では切り替えない
+	 * @param maxBytes 1つのセグメントのサンプルの合計バイト数, 0以下ならサイズでは切り替えない
+	 */
+	public SegmentedMuxer(@NonNull final SegmentFactory factory,
+		final long maxDurationUs, final long maxBytes) {
+
+		if ((maxDurationUs <= 0) && (maxBytes <= 0)) {
+			throw new IllegalArgumentException("either maxDurationUs or maxBytes should be positive");
+		}
+		mFactory = factory;
+		mMaxDurationUs = maxDurationUs;
+		mMaxBytes = maxBytes;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * 書き込み中のセグメント番号を取得
+	 * @return 開始していなければ-1
+	 */
+	public int getCurrentSegment() {
+		synchronized (mSync) {
+			return mCurrentIndex;
+		}
+	}
+
+	/**
+	 * 次のセグメントの準備ができているかどうか
+	 * @return
+	 */
+	public boolean isNextSegmentReady() {
+		synchronized (mSync) {
+			return mNext != null;
+		}
+	}
+
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		return addTrack((mime != null) && mime.startsWith("video/"), new TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer muxer) {
+				return muxer.addTrack(format);
+			}
+		});
+	}
+
+	/**
+	 * トラックを追加する
+	 * @param isVideo 動画トラックかどうか, 動画トラックならキーフレームでセグメントを切り替える
+	 * @param initializer
+	 * @return トラックインデックス
+	 */
+	public int addTrack(final boolean isVideo, @NonNull final TrackInitializer initializer) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("already started or released");
+			}
+			mTracks.add(new Track(isVideo, initializer));
+			mHasVideo |= isVideo;
+			return mTracks.size() - 1;
+		}
+	}
+
+	/**
+	 * 最初のセグメントを生成・開始して、次のセグメントの準備を開始する
+	 * @throws IllegalStateException 最初のセグメントを生成できなかった時
+	 */
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mReleased) {
+				throw new IllegalStateException("already released");
+			}
+			if (mIsStarted) {
+				throw new IllegalStateException("already started");
+			}
+			if (mTracks.isEmpty()) {
+				throw new IllegalStateException("no track added");
+			}
+			mCurrentTracks = new int[mTracks.size()];
+			try {
+				mCurrent = openSegment(0, mCurrentTracks);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mCurrentIndex = 0;
+			mSegmentStartPtsUs = -1;
+			mSegmentBytes = 0;
+			mIsStarted = true;
+			prepareNext(null, -1);
+		}
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		synchronized (mSync) {
+			if (!beforeWrite(trackIndex, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags)) {
+				return;
+			}
+			mCurrent.writeSampleData(mCurrentTracks[trackIndex], byteBuf, bufferInfo);
+		}
+	}
+
+	/**
+	 * 書き込む前の処理, 必要であればセグメントを切り替える
+	 * @param trackIndex
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags
+	 * @return 書き込めるならtrue
+	 */
+	private boolean beforeWrite(final int trackIndex,
+		final int size, final long presentationTimeUs, final int flags) {
+
+		if (mReleased || !mIsStarted || (mCurrent == null)) {
+			return false;
+		}
+		if ((trackIndex < 0) || (trackIndex >= mTracks.size())) {
+			throw new IllegalArgumentException("invalid track index:" + trackIndex);
+		}
+		if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			return true;
+		}
+		final boolean canSplit = !mHasVideo
+			|| (mTracks.get(trackIndex).isVideo && ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+		if (canSplit && (mSegmentStartPtsUs >= 0) && needSplit(presentationTimeUs)) {
+			if (mNext != null) {
+				switchSegment();
+			} else if (!mPreparing) {
+				// 次のセグメントの準備に失敗していたのでもう一度準備する
+				prepareNext(null, -1);
+			}
+		}
+		if (mSegmentStartPtsUs < 0) {
+			mSegmentStartPtsUs = presentationTimeUs;
+		}
+		mSegmentBytes += size;
+		return true;
+	}
+
+	private boolean needSplit(final long presentationTimeUs) {
+		return ((mMaxDurationUs > 0) && (presentationTimeUs - mSegmentStartPtsUs >= mMaxDurationUs))
+			|| ((mMaxBytes > 0) && (mSegmentBytes >= mMaxBytes));
+	}
+
+	/**
+	 * 準備済みの次のセグメントへ切り替えて、終了したセグメントのstop/releaseと
+	 * その次のセグメントの準備をバックグラウンドで行う
+	 */
+	private void switchSegment() {
+		final IMuxer prev = mCurrent;
+		final int prevIndex = mCurrentIndex;
+		mCurrent = mNext;
+		mCurrentTracks = mNextTracks;
+		mCurrentIndex++;
+		mNext = null;
+		mNextTracks = null;
+		mSegmentStartPtsUs = -1;
+		mSegmentBytes = 0;
+		if (DEBUG) Log.v(TAG, "switchSegment:" + prevIndex + "→" + mCurrentIndex);
+		prepareNext(prev, prevIndex);
+	}
+
+	/**
+	 * 終了したセグメントのstop/releaseと次のセグメントの準備をバックグラウンドで行う
+	 * @param prev 終了したセグメント, nullなら何もしない
+	 * @param prevIndex
+	 */
+	private void prepareNext(@Nullable final IMuxer prev, final int prevIndex) {
+		final int nextIndex = mCurrentIndex + 1;
+		mPreparing = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (prev != null) {
+					closeSegment(prev, prevIndex, false);
+				}
+				final int[] tracks;
+				synchronized (mSync) {
+					tracks = new int[mTracks.size()];
+				}
+				IMuxer next = null;
+				try {
+					next = openSegment(nextIndex, tracks);
+				} catch (final Exception e) {
+					Log.w(TAG, "failed to prepare next segment", e);
+				}
+				boolean discard = false;
+				synchronized (mSync) {
+					mPreparing = false;
+					if (mIsStarted && !mReleased) {
+						mNext = next;
+						mNextTracks = tracks;
+					} else {
+						discard = next != null;
+					}
+					mSync.notifyAll();
+				}
+				if (discard) {
+					closeSegment(next, nextIndex, true);
+				}
+			}
+		});
+	}
+
+	/**
+	 * セグメントを生成してトラックを追加して開始する
+	 * @param index
+	 * @param tracks トラックインデックスの変換テーブル
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private IMuxer openSegment(final int index, @NonNull final int[] tracks) throws IOException {
+		final IMuxer muxer = mFactory.createMuxer(index);
+		try {
+			for (int i = 0; i < tracks.length; i++) {
+				tracks[i] = mTracks.get(i).initializer.addTrack(muxer);
+			}
+			muxer.start();
+		} catch (final RuntimeException e) {
+			muxer.release();
+			mFactory.onSegmentFinished(index, true);
+			throw e;
+		}
+		return muxer;
+	}
+
+	private void closeSegment(@NonNull final IMuxer muxer, final int index, final boolean discarded) {
+		try {
+			muxer.stop();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		try {
+			muxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		mFactory.onSegmentFinished(index, discarded);
+	}
+
+	/**
+	 * 書き込み中のセグメントをstop/releaseし、事前に生成したセグメントを破棄する
+	 */
+	@Override
+	public void stop() {
+		final IMuxer current;
+		final int currentIndex;
+		final IMuxer next;
+		final int nextIndex;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				return;
+			}
+			mIsStarted = false;
+			// 次のセグメントを準備中なら終わるまで待つ
+			// 時間内に終わらなくても準備中のセグメントはmIsStarted=falseなので
+			// バックグラウンドで破棄される
+			final long deadline = System.currentTimeMillis() + PREPARE_TIMEOUT_MS;
+			while (mPreparing) {
+				final long remain = deadline - System.currentTimeMillis();
+				if (remain <= 0) {
+					Log.w(TAG, "stop:timeout while preparing next segment");
+					break;
+				}
+				try {
+					mSync.wait(remain);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			current = mCurrent;
+			currentIndex = mCurrentIndex;
+			next = mNext;
+			nextIndex = mCurrentIndex + 1;
+			mCurrent = mNext = null;
+			mNextTracks = null;
+		}
+		if (current != null) {
+			closeSegment(current, currentIndex, false);
+		}
+		if (next != null) {
+			closeSegment(next, nextIndex, true);
+		}
+	}
+
+	@Override
+	public void release() {
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+		}
+		// 終了したセグメントのstop/release等のキュー済みのタスクは実行してから終了する
+		mExecutor.shutdown();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定したディレクトリへFragmentedMp4Muxerでセグメントを書き込むSegmentFactory実装
+	 * ファイル名は「プレフィックス + 6桁の連番 + .mp4」で、以前の録画の続きの番号から始める。
+	 * セグメントのファイルは予めRandomAccessFile#setLengthで指定したサイズを確保してから書き込み、
+	 * FragmentedMp4Muxer#stopで実際のサイズへ切り詰める。
+	 * 終了したセグメント(以前の録画で作成したファイルも含む)の合計サイズが上限を超えそうな時は
+	 * 古いセグメントから削除する。recycle=trueなら削除する代わりに次のセグメントのファイルとして
+	 * 名前を変えて再利用する(ファイルの削除と生成を繰り返さずに済み、確保済みのディスク領域を
+	 * そのまま使う)。再利用する時は以前の内容が残らないようにファイルを切り詰めずに0で上書きする
+	 * (サイズが0のボックスはファイルの終端までとみなされるので、クラッシュした時も
+	 * 書き込み済みのフラグメントの後ろは読み飛ばされる)。
+	 * 0で上書きする分セグメントを開くのに時間がかかるが、次のセグメントはバックグラウンドで準備する。
+	 * FragmentedMp4Muxerなのでクラッシュしても書き込み済みのフラグメントまでは再生できる。
+	 */
+	public static class FileSegmentFactory implements SegmentFactory {
+		private static final String EXT = ".mp4";
+		/**
+		 * 再利用するファイルを0で上書きする時のバッファサイズ
+		 */
+		private static final int FILL_BUFFER_SIZE = 64 * 1024;
+
+		@NonNull
+		private final Object mSync = new Object();
+		@NonNull
+		private final File mDir;
+		@NonNull
+		private final String mPrefix;
+		private final long mPreallocateBytes;
+		private final long mQuotaBytes;
+		private final boolean mRecycle;
+		private final long mFragmentDurationUs;
+		private final boolean mSyncEachFragment;
+		/**
+		 * 終了したセグメントのファイル(古い順)
+		 */
+		@NonNull
+		private final LinkedList<File> mFinished = new LinkedList<>();
+		/**
+		 * 再利用するファイル
+		 */
+		@NonNull
+		private final LinkedList<File> mRecycled = new LinkedList<>();
+		/**
+		 * セグメント番号→ファイル
+		 */
+		@NonNull
+		private final File[] mOpened = new File[2];
+		private int mNextNumber;
+		/**
+		 * 書き込み中と準備中のセグメント用に確保しておくサイズ
+		 */
+		private long mReserveBytes;
+
+		/**
+		 * コンストラクタ
+		 * @param dir 出力先ディレクトリ
+		 * @param prefix ファイル名のプレフィックス
+		 * @param preallocateBytes セグメントのファイルを開く時に確保するサイズ, 0なら確保しない
+		 * @param quotaBytes セグメントのファイルの合計サイズの上限, 0以下なら制限しない
+		 * @param recycle 古いセグメントを削除する代わりに再利用するかどうか
+		 */
+		public FileSegmentFactory(@NonNull final File dir, @NonNull final String prefix,
+			final long preallocateBytes, final long quotaBytes, final boolean recycle) {
+
+			this(dir, prefix, preallocateBytes, quotaBytes, recycle,
+				FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US, false);
+		}
+
+		/**
+		 * コンストラクタ
+		 * @param dir 出力先ディレクトリ
+		 * @param prefix ファイル名のプレフィックス
+		 * @param preallocateBytes セグメントのファイルを開く時に確保するサイズ, 0なら確保しない
+		 * @param quotaBytes セグメントのファイルの合計サイズの上限, 0以下なら制限しない
+		 * @param recycle 古いセグメントを削除する代わりに再利用するかどうか
+		 * @param fragmentDurationUs FragmentedMp4Muxerのフラグメントの長さ
+		 * @param syncEachFragment FragmentedMp4Muxerでフラグメント毎にFileChannel#forceを呼ぶかどうか
+		 */
+		public FileSegmentFactory(@NonNull final File dir, @NonNull final String prefix,
+			final long preallocateBytes, final long quotaBytes, final boolean recycle,
+			final long fragmentDurationUs, final boolean syncEachFragment) {
+
+			mDir = dir;
+			mPrefix = prefix;
+			mPreallocateBytes = Math.max(preallocateBytes, 0);
+			mQuotaBytes = quotaBytes;
+			mRecycle = recycle;
+			mFragmentDurationUs = fragmentDurationUs;
+			mSyncEachFragment = syncEachFragment;
+			mReserveBytes = mPreallocateBytes;
+			// 以前の録画で作成したセグメントを古い順に登録する
+			final File[] files = dir.listFiles();
+			if (files != null) {
+				Arrays.sort(files);
+				for (final File file: files) {
+					final int number = parseNumber(file);
+					if (number >= 0) {
+						mFinished.add(file);
+						mNextNumber = Math.max(mNextNumber, number + 1);
+					}
+				}
+			}
+			synchronized (mSync) {
+				enforceQuota();
+			}
+		}
+
+		/**
+		 * 終了したセグメントのファイルの一覧を古い順に取得
+		 * @return
+		 */
+		@NonNull
+		public List<File> getSegments() {
+			synchronized (mSync) {
+				return new ArrayList<>(mFinished);
+			}
+		}
+
+		@NonNull
+		@Override
+		public IMuxer createMuxer(final int index) throws IOException {
+			final File file;
+			File recycled;
+			synchronized (mSync) {
+				file = new File(mDir, String.format(Locale.US, "%s%06d%s", mPrefix, mNextNumber++, EXT));
+				mOpened[index & 1] = file;
+				recycled = mRecycled.poll();
+			}
+			if ((recycled != null) && !recycled.renameTo(file)) {
+				recycled.delete();
+				recycled = null;
+			}
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (recycled != null) {
+					// 以前のセグメントのmoof/mdatが残っているとクラッシュした時に
+					// 書き込み済みのフラグメントの後ろに古いフラグメントが続いてしまうので
+					// 確保済みの領域を解放しないように切り詰めずに0で上書きする
+					fillZero(raf.getChannel(), raf.length());
+				}
+				if (raf.length() < mPreallocateBytes) {
+					raf.setLength(mPreallocateBytes);
+				}
+				return new FragmentedMp4Muxer(raf.getChannel(), mFragmentDurationUs, mSyncEachFragment);
+			} catch (final IOException e) {
+				raf.close();
+				synchronized (mSync) {
+					mOpened[index & 1] = null;
+				}
+				file.delete();
+				throw e;
+			}
+		}
+
+		@Override
+		public void onSegmentFinished(final int index, final boolean discarded) {
+			synchronized (mSync) {
+				final File file = mOpened[index & 1];
+				mOpened[index & 1] = null;
+				if (file == null) {
+					return;
+				}
+				if (discarded) {
+					if (!file.delete()) {
+						Log.w(TAG, "failed to delete " + file);
+					}
+					return;
+				}
+				mFinished.add(file);
+				mReserveBytes = Math.max(mReserveBytes, file.length());
+				enforceQuota();
+			}
+		}
+
+		/**
+		 * 書き込み中と準備中のセグメントの分を残して上限を超えないように古いセグメントを削除する
+		 */
+		private void enforceQuota() {
+			if (mQuotaBytes <= 0) {
+				return;
+			}
+			long total = 0;
+			for (final File file: mFinished) {
+				total += file.length();
+			}
+			for (final File file: mRecycled) {
+				total += file.length();
+			}
+			while ((total + mReserveBytes * 2 > mQuotaBytes) && !mFinished.isEmpty()) {
+				final File oldest = mFinished.poll();
+				if (mRecycle && mRecycled.isEmpty()) {
+					// 再利用するファイルも上限に含まれるので合計サイズは変わらない
+					mRecycled.add(oldest);
+					if (mFinished.isEmpty()) {
+						break;
+					}
+					continue;
+				}
+				total -= oldest.length();
+				if (!oldest.delete()) {
+					Log.w(TAG, "failed to delete " + oldest);
+				}
+			}
+		}
+
+		/**
+		 * ファイルの先頭から指定したサイズを0で上書きする
+		 * FileChannelの位置は変更しない
+		 * @param channel
+		 * @param length
+		 * @throws IOException
+		 */
+		private static void fillZero(@NonNull final FileChannel channel, final long length)
+			throws IOException {
+
+			final ByteBuffer zero = ByteBuffer.allocateDirect(
+				(int)Math.min(FILL_BUFFER_SIZE, Math.max(length, 1)));
+			long pos = 0;
+			while (pos < length) {
+				zero.clear();
+				if (length - pos < zero.capacity()) {
+					zero.limit((int)(length - pos));
+				}
+				pos += channel.write(zero, pos);
+			}
+		}
+
+		private int parseNumber(@NonNull final File file) {
+			final String name = file.getName();
+			if (file.isFile() && name.startsWith(mPrefix) && name.endsWith(EXT)) {
+				try {
+					return Integer.parseInt(name.substring(mPrefix.length(), name.length() - EXT.length()));
+				} catch (final NumberFormatException e) {
+					// ignore
+				}
+			}
+			return -1;
+		}
+	}
+}
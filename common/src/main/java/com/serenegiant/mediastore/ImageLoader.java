@@ -60,13 +60,15 @@ public abstract class ImageLoader implements Runnable {
 	public synchronized void startLoad(@NonNull final MediaInfo info) {
 		mInfo.set(info);
 		mBitmap = null;
-		ThreadPool.queueEvent(mTask);
+		// 画面上に表示するDrawableからの読み込み要求なので優先して実行する
+		ThreadPool.queueEvent(mTask, ThreadPool.PRIORITY_HIGH);
 	}
 
 	/**
 	 * cancel loading
 	 */
 	public void cancelLoad() {
+		ThreadPool.removeEvent(mTask);
 		mTask.cancel(true);
 	}
 
@@ -251,6 +251,16 @@ public abstract class LoaderDrawable extends Drawable implements Runnable {
 	@Nullable
 	protected abstract Bitmap checkCache(final long id);
 
+	/**
+	 * 読み込み中なら中断する
+	 * 実行前の読み込み要求はThreadPoolのキューからも取り除く
+	 */
+	public void cancelLoad() {
+		if (mLoader != null) {
+			mLoader.cancelLoad();
+		}
+	}
+
 	/**
 	 * start loading image asynchronously
 	 * @param info
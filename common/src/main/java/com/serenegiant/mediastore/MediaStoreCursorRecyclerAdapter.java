@@ -37,6 +37,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.serenegiant.common.R;
+import com.serenegiant.db.CursorIdIndex;
 import com.serenegiant.graphics.BitmapHelper;
 import com.serenegiant.utils.ThreadPool;
 import com.serenegiant.view.ViewUtils;
@@ -84,6 +85,11 @@ public class MediaStoreCursorRecyclerAdapter
 	private ChangeObserver mChangeObserver;
 	private DataSetObserver mDataSetObserver;
 	private Cursor mCursor;
+	/**
+	 * idからpositionを探すためのインデックス
+	 */
+	@NonNull
+	private final CursorIdIndex mIdIndex = new CursorIdIndex();
 	private String mSelection;
 	private String[] mSelectionArgs = null;
 	private String mSortOrder = null;
@@ -94,6 +100,22 @@ public class MediaStoreCursorRecyclerAdapter
 	private boolean mShowTitle = false;
 	private int mMediaType = MEDIA_ALL;
 	private int mThumbnailWidth = 200, mThumbnailHeight = 200;
+	/**
+	 * 表示範囲外のサムネイルの先読み用
+	 */
+	@NonNull
+	private final ThumbnailPrefetcher mPrefetcher
+		= new ThumbnailPrefetcher(new ThumbnailPrefetcher.Callback() {
+		@Override
+		public boolean prefetch(final int position) throws Exception {
+			// Cursorを差し替えた後の古い位置はnullになるので読み込まない
+			final MediaInfo info = findMediaInfo(position);
+			return (info != null) && mThumbnailCache.prefetch(mContext.getContentResolver(),
+				info, mThumbnailWidth, mThumbnailHeight);
+		}
+	});
+	@NonNull
+	private final PrefetchScrollListener mScrollListener = new PrefetchScrollListener(mPrefetcher);
 
 	/**
 	 * コンストラクタ
@@ -146,12 +168,15 @@ public class MediaStoreCursorRecyclerAdapter
 		super.onAttachedToRecyclerView(recyclerView);
 		if (DEBUG) Log.v(TAG, "onAttachedToRecyclerView:");
 		mRecycleView = recyclerView;
+		recyclerView.addOnScrollListener(mScrollListener);
 	}
 
 	@Override
 	public void onDetachedFromRecyclerView(@NonNull final RecyclerView recyclerView) {
 		if (DEBUG) Log.v(TAG, "onDetachedFromRecyclerView:");
 		mRecycleView = null;
+		recyclerView.removeOnScrollListener(mScrollListener);
+		mPrefetcher.cancelAll();
 		super.onDetachedFromRecyclerView(recyclerView);
 	}
 
@@ -169,6 +194,16 @@ public class MediaStoreCursorRecyclerAdapter
 		setInfo(holder, getMediaInfo(position, info));
 	}
 
+	@Override
+	public void onViewRecycled(@NonNull final ViewHolder holder) {
+		super.onViewRecycled(holder);
+		// 画面外へ出たアイテムの未実行の読み込み要求を取り消す
+		final Drawable drawable = holder.mImageView != null ? holder.mImageView.getDrawable() : null;
+		if (drawable instanceof ThumbnailLoaderDrawable) {
+			((ThumbnailLoaderDrawable)drawable).cancelLoad();
+		}
+	}
+
 	@Override
 	public int getItemCount() {
 		synchronized (mSync) {
@@ -186,6 +221,37 @@ public class MediaStoreCursorRecyclerAdapter
 		return getMediaInfo(position, null);
 	}
 
+	/**
+	 * 指定したidのデータのpositionを取得する
+	 * 選択状態の復元等で繰り返し呼び出してもCursorを毎回先頭から読まない
+	 * @param id
+	 * @return 見つからなければ-1
+	 */
+	public int findPositionFromId(final long id) {
+		synchronized (mSync) {
+			return mIdIndex.findPosition(id);
+		}
+	}
+
+	/**
+	 * idからpositionを探すためのインデックスを取得する
+	 * Cursorの交換/変更時にはこのアダプターが更新するので他から共有して使える
+	 * @return
+	 */
+	@NonNull
+	public CursorIdIndex getIdIndex() {
+		return mIdIndex;
+	}
+
+	/**
+	 * 先読み設定の変更とキャッシュのヒット率等の取得用
+	 * @return
+	 */
+	@NonNull
+	public ThumbnailPrefetcher getPrefetcher() {
+		return mPrefetcher;
+	}
+
 //--------------------------------------------------------------------------------
 	/**
 	 * 読み込みできないデータをオミットするかどうか
@@ -301,6 +367,27 @@ public class MediaStoreCursorRecyclerAdapter
 		return _info;
 	}
 
+	/**
+	 * 指定したpositionにあるデータを保持したMediaInfoを取得する
+	 * #getMediaInfoと違ってCursorを差し替えた等で範囲外になった位置や
+	 * 読み込めない位置の時は例外を投げずにnullを返す(先読み用)
+	 * @param position
+	 * @return
+	 */
+	@Nullable
+	private MediaInfo findMediaInfo(final int position) {
+		synchronized (mSync) {
+			if (!mDataValid || (mCursor == null) || mCursor.isClosed()
+				|| (position < 0) || (position >= mCursor.getCount())
+				|| !mCursor.moveToPosition(position)) {
+				return null;
+			}
+			final MediaInfo result = new MediaInfo();
+			result.loadFromCursor(mCursor);
+			return result;
+		}
+	}
+
 	protected void onContentChanged() {
 		mQueryHandler.requery();
 	}
@@ -350,6 +437,7 @@ public class MediaStoreCursorRecyclerAdapter
 		}
 		synchronized (mSync) {
 			mCursor = newCursor;
+			mIdIndex.swap(newCursor);
 		}
 		if (newCursor != null) {
 			if (mChangeObserver != null) {
@@ -395,6 +483,7 @@ public class MediaStoreCursorRecyclerAdapter
 				if (mAdapter.mCursor != null) {
 					mAdapter.mCursor.close();
 					mAdapter.mCursor = null;
+					mAdapter.mIdIndex.swap(null);
 				}
 				mAdapter.mSelection = SELECTIONS[mAdapter.mMediaType % MEDIA_TYPE_NUM];
 				mAdapter.mSelectionArgs = null;
@@ -435,12 +524,14 @@ public class MediaStoreCursorRecyclerAdapter
 	private class MyDataSetObserver extends DataSetObserver {
 		@Override
 		public void onChanged() {
+			mIdIndex.invalidate();
 			mDataValid = true;
 			notifyDataSetChanged();
 		}
 
 		@Override
 		public void onInvalidated() {
+			mIdIndex.invalidate();
 			mDataValid = false;
 			notifyDataSetInvalidated();
 		}
@@ -527,7 +618,9 @@ public class MediaStoreCursorRecyclerAdapter
 
 		@Override
 		protected Bitmap checkCache(final long id) {
-			return mThumbnailCache.get(id);
+			final Bitmap result = mThumbnailCache.get(id);
+			mPrefetcher.recordLookup(result != null);
+			return result;
 		}
 
 		@Override
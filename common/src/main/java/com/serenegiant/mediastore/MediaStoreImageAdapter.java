@@ -174,6 +174,12 @@ public class MediaStoreImageAdapter extends PagerAdapter {
 
 		if (DEBUG) Log.v(TAG, "destroyItem:position=" + position);
 		if (object instanceof View) {
+			// 破棄したページの未実行の読み込み要求を取り消す
+			final ImageView iv = ViewUtils.findIconView((View)object);
+			final Drawable drawable = iv != null ? iv.getDrawable() : null;
+			if (drawable instanceof LoaderDrawable) {
+				((LoaderDrawable)drawable).cancelLoad();
+			}
 			container.removeView((View)object);
 		}
 	}
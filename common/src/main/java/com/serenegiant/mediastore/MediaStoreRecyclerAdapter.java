@@ -103,6 +103,22 @@ public class MediaStoreRecyclerAdapter
 	private boolean mShowTitle = false;
 	private int mMediaType = MEDIA_ALL;
 	private int mThumbnailWidth = 200, mThumbnailHeight = 200;
+	/**
+	 * 表示範囲外のサムネイルの先読み用
+	 */
+	@NonNull
+	private final ThumbnailPrefetcher mPrefetcher
+		= new ThumbnailPrefetcher(new ThumbnailPrefetcher.Callback() {
+		@Override
+		public boolean prefetch(final int position) throws Exception {
+			// Cursorを差し替えた後の古い位置はnullになるので読み込まない
+			final MediaInfo info = findMediaInfo(position);
+			return (info != null) && mThumbnailCache.prefetch(mContext.getContentResolver(),
+				info, mThumbnailWidth, mThumbnailHeight);
+		}
+	});
+	@NonNull
+	private final PrefetchScrollListener mScrollListener = new PrefetchScrollListener(mPrefetcher);
 
 	/**
 	 * コンストラクタ
@@ -154,12 +170,15 @@ public class MediaStoreRecyclerAdapter
 		super.onAttachedToRecyclerView(recyclerView);
 		if (DEBUG) Log.v(TAG, "onAttachedToRecyclerView:");
 		mRecycleView = recyclerView;
+		recyclerView.addOnScrollListener(mScrollListener);
 	}
 
 	@Override
 	public void onDetachedFromRecyclerView(@NonNull final RecyclerView recyclerView) {
 		if (DEBUG) Log.v(TAG, "onDetachedFromRecyclerView:");
 		mRecycleView = null;
+		recyclerView.removeOnScrollListener(mScrollListener);
+		mPrefetcher.cancelAll();
 		super.onDetachedFromRecyclerView(recyclerView);
 	}
 
@@ -177,6 +196,16 @@ public class MediaStoreRecyclerAdapter
 		setInfo(holder, position, getMediaInfo(position, info));
 	}
 
+	@Override
+	public void onViewRecycled(@NonNull final ViewHolder holder) {
+		super.onViewRecycled(holder);
+		// 画面外へ出たアイテムの未実行の読み込み要求を取り消す
+		final Drawable drawable = holder.mImageView != null ? holder.mImageView.getDrawable() : null;
+		if (drawable instanceof ThumbnailLoaderDrawable) {
+			((ThumbnailLoaderDrawable)drawable).cancelLoad();
+		}
+	}
+
 	@Override
 	public int getItemCount() {
 		synchronized (mValues) {
@@ -194,6 +223,15 @@ public class MediaStoreRecyclerAdapter
 		return getMediaInfo(position, null);
 	}
 
+	/**
+	 * 先読み設定の変更とキャッシュのヒット率等の取得用
+	 * @return
+	 */
+	@NonNull
+	public ThumbnailPrefetcher getPrefetcher() {
+		return mPrefetcher;
+	}
+
 //--------------------------------------------------------------------------------
 	/**
 	 * 読み込みできないデータをオミットするかどうか
@@ -314,6 +352,27 @@ public class MediaStoreRecyclerAdapter
 		return _info;
 	}
 
+	/**
+	 * 指定したpositionにあるデータを保持したMediaInfoを取得する
+	 * #getMediaInfoと違ってCursorを差し替えた等で範囲外になった位置や
+	 * 読み込めない位置の時は例外を投げずにnullを返す(先読み用)
+	 * @param position
+	 * @return
+	 */
+	@Nullable
+	private MediaInfo findMediaInfo(final int position) {
+		synchronized (mValues) {
+			if ((mCursor == null) || mCursor.isClosed()
+				|| (position < 0) || (position >= mValues.size())
+				|| !mCursor.moveToPosition(mValues.get(position))) {
+				return null;
+			}
+			final MediaInfo result = new MediaInfo();
+			result.loadFromCursor(mCursor);
+			return result;
+		}
+	}
+
 	protected void onContentChanged() {
 		mQueryHandler.requery();
 	}
@@ -584,7 +643,9 @@ public class MediaStoreRecyclerAdapter
 
 		@Override
 		protected Bitmap checkCache(final long id) {
-			return mThumbnailCache.get(id);
+			final Bitmap result = mThumbnailCache.get(id);
+			mPrefetcher.recordLookup(result != null);
+			return result;
 		}
 
 		@Override
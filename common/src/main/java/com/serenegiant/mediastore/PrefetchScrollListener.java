@@ -0,0 +1,90 @@
+package com.serenegiant.mediastore;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * RecyclerViewの表示範囲とスクロール速度をThumbnailPrefetcherへ通知するためのOnScrollListener
+ * LinearLayoutManager(とその子クラスのGridLayoutManager)のみ対応
+ */
+/*package*/ class PrefetchScrollListener extends RecyclerView.OnScrollListener {
+	/**
+	 * スクロール速度の平滑化係数
+	 */
+	private static final float SMOOTHING = 0.3f;
+
+	@NonNull
+	private final ThumbnailPrefetcher mPrefetcher;
+	private int mPrevFirst = RecyclerView.NO_POSITION;
+	private long mPrevTimeMs;
+	private float mVelocity;
+
+	/**
+	 * コンストラクタ
+	 * @param prefetcher
+	 */
+	/*package*/ PrefetchScrollListener(@NonNull final ThumbnailPrefetcher prefetcher) {
+		mPrefetcher = prefetcher;
+	}
+
+	@Override
+	public void onScrolled(@NonNull final RecyclerView recyclerView, final int dx, final int dy) {
+		update(recyclerView, false);
+	}
+
+	@Override
+	public void onScrollStateChanged(@NonNull final RecyclerView recyclerView, final int newState) {
+		if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+			update(recyclerView, true);
+		}
+	}
+
+	/**
+	 * 表示範囲とスクロール速度を計算してThumbnailPrefetcherへ通知する
+	 * @param recyclerView
+	 * @param idle スクロールが停止したかどうか
+	 */
+	private void update(@NonNull final RecyclerView recyclerView, final boolean idle) {
+		final RecyclerView.LayoutManager lm = recyclerView.getLayoutManager();
+		if (!(lm instanceof LinearLayoutManager)) {
+			return;
+		}
+		final LinearLayoutManager manager = (LinearLayoutManager)lm;
+		final int first = manager.findFirstVisibleItemPosition();
+		final int last = manager.findLastVisibleItemPosition();
+		if ((first == RecyclerView.NO_POSITION) || (last == RecyclerView.NO_POSITION)) {
+			return;
+		}
+		final long now = SystemClock.uptimeMillis();
+		if (idle) {
+			mVelocity = 0;
+		} else if ((mPrevFirst != RecyclerView.NO_POSITION) && (now > mPrevTimeMs)) {
+			final float v = (first - mPrevFirst) * 1000.0f / (now - mPrevTimeMs);
+			mVelocity = mVelocity * (1.0f - SMOOTHING) + v * SMOOTHING;
+		}
+		mPrevFirst = first;
+		mPrevTimeMs = now;
+		mPrefetcher.onVisibleRangeChanged(first, last, mVelocity, manager.getItemCount());
+	}
+}
@@ -29,9 +29,12 @@ import android.util.Size;
 
 import com.serenegiant.common.BuildConfig;
 import com.serenegiant.graphics.BitmapHelper;
-import com.serenegiant.io.DiskLruCache;
+import com.serenegiant.io.ConcurrentDiskLruCache;
+import com.serenegiant.io.MappedBlobStore;
 import com.serenegiant.system.ContextUtils;
+import com.serenegiant.utils.CoalescingLoader;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -41,6 +44,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Locale;
 
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.collection.LruCache;
@@ -48,13 +52,28 @@ import androidx.collection.LruCache;
 /**
  * サムネイルキャッシュ
  * メモリーキャッシュとディスクキャッシュの2段構成
+ * メモリーキャッシュ(LruCache)とディスクキャッシュ(ConcurrentDiskLruCache/MappedBlobStore)は
+ * それぞれスレッドセーフなので、get/put/remove/trimはsSyncでロックしない
+ * ディスクキャッシュはコンストラクタで
+ * DISK_CACHE_TYPE_FILE(エントリー毎のファイル)とDISK_CACHE_TYPE_BLOB(セグメントファイル)から選択できる
  */
 public class ThumbnailCache {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
 	private static final String TAG = ThumbnailCache.class.getSimpleName();
 
+	/**
+	 * ディスクキャッシュとしてエントリー毎にファイルを生成するConcurrentDiskLruCacheを使う
+	 */
+	public static final int DISK_CACHE_TYPE_FILE = 0;
+	/**
+	 * ディスクキャッシュとしてセグメントファイルへまとめて保存するMappedBlobStoreを使う
+	 * サムネイルの数が多い時に開く時間とファイル数を減らすことができる
+	 */
+	public static final int DISK_CACHE_TYPE_BLOB = 1;
+
 	private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 	private static final String DISK_CACHE_SUBDIR = ".thumbnailCache";
+	private static final String BLOB_CACHE_SUBDIR = ".thumbnailBlobCache";
 	private static final int DISK_CACHE_INDEX = 0;
 
 	private static final Object sSync = new Object();
@@ -64,24 +83,57 @@ public class ThumbnailCache {
 	 * use 1/8 of available memory for image cache
 	 */
 	private static final int CACHE_RATE = 8;
-	private static LruCache<String, Bitmap> sThumbnailCache;
+	private static volatile LruCache<String, Bitmap> sThumbnailCache;
 	private static int sMaxDiskCacheBytes = DISK_CACHE_SIZE;
 	@Nullable
-	private static DiskLruCache sDiskLruCache;
+	private static volatile ConcurrentDiskLruCache sDiskLruCache;
+	@Nullable
+	private static volatile MappedBlobStore sBlobStore;
+	private static int sDiskCacheType = DISK_CACHE_TYPE_FILE;
 	private static int sCacheSize;
+	/**
+	 * サムネイルのデコード用, 同じキーのデコードをまとめて同時に実行するデコードの数を制限する
+	 */
+	@NonNull
+	private static volatile CoalescingLoader<String, Bitmap> sLoader
+		= new CoalescingLoader<String, Bitmap>(getDefaultMaxConcurrency());
+
+	/**
+	 * 同時に実行するサムネイルのデコードの最大数のデフォルト値を取得
+	 * CPUの数に応じて2〜4
+	 * @return
+	 */
+	private static int getDefaultMaxConcurrency() {
+		return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * 同時に実行するサムネイルのデコードの最大数を設定する
+	 * デコード中のリクエストは変更前の設定のまま実行する
+	 * @param maxConcurrency 1以上
+	 * @throws IllegalArgumentException maxConcurrencyが1未満の時
+	 */
+	public static void setMaxConcurrency(@IntRange(from=1) final int maxConcurrency) {
+		if (maxConcurrency != sLoader.getMaxConcurrency()) {
+			sLoader = new CoalescingLoader<String, Bitmap>(maxConcurrency);
+		}
+	}
 
 	/**
 	 * 初期化が必要であればサムネイルキャッシュを初期化する
 	 * @param context
 	 * @param maxDiskCacheBytes
+	 * @param diskCacheType
 	 */
 	private static void prepareThumbnailCache(
 		@NonNull final Context context,
-		final int maxDiskCacheBytes) {
+		final int maxDiskCacheBytes, final int diskCacheType) {
 
 		synchronized (sSync) {
-			if ((sThumbnailCache == null) || (sMaxDiskCacheBytes != maxDiskCacheBytes)) {
+			if ((sThumbnailCache == null) || (sMaxDiskCacheBytes != maxDiskCacheBytes)
+				|| (sDiskCacheType != diskCacheType)) {
 				if (DEBUG) Log.v(TAG, "prepareThumbnailCache:");
+				sDiskCacheType = diskCacheType;
 				sMaxDiskCacheBytes = maxDiskCacheBytes;
 				if (sMaxDiskCacheBytes <= 0) {
 					sMaxDiskCacheBytes = DISK_CACHE_SIZE;
@@ -96,6 +148,15 @@ public class ThumbnailCache {
 						if (DEBUG) Log.w(TAG, e);
 					}
 				}
+				sDiskLruCache = null;
+				if ((sBlobStore != null) && !sBlobStore.isClosed()) {
+					try {
+						sBlobStore.close();
+					} catch (final IOException e) {
+						if (DEBUG) Log.w(TAG, e);
+					}
+				}
+				sBlobStore = null;
 				final int memClass =
 					ContextUtils.requireSystemService(context, ActivityManager.class)
 					.getMemoryClass();
@@ -109,7 +170,8 @@ public class ThumbnailCache {
 					}
 				};
 				try {
-					final File cacheDir = getDiskCacheDir(context);
+					final File cacheDir = getDiskCacheDir(context,
+						diskCacheType == DISK_CACHE_TYPE_BLOB ? BLOB_CACHE_SUBDIR : DISK_CACHE_SUBDIR);
 					if (!cacheDir.exists()) {
 						//noinspection ResultOfMethodCallIgnored
 						cacheDir.mkdirs();
@@ -118,10 +180,16 @@ public class ThumbnailCache {
 						Log.w(TAG, "unable to write to cache dir!!");
 					}
 					if (DEBUG) Log.v(TAG, "prepareThumbnailCache:dir=" + cacheDir);
-					sDiskLruCache = DiskLruCache.open(cacheDir,
-						BuildConfig.VERSION_CODE, 1, sMaxDiskCacheBytes);
+					if (diskCacheType == DISK_CACHE_TYPE_BLOB) {
+						sBlobStore = MappedBlobStore.open(cacheDir,
+							BuildConfig.VERSION_CODE, sMaxDiskCacheBytes);
+					} else {
+						sDiskLruCache = ConcurrentDiskLruCache.open(cacheDir,
+							BuildConfig.VERSION_CODE, 1, sMaxDiskCacheBytes);
+					}
 				} catch (final IOException e) {
 					sDiskLruCache = null;
+					sBlobStore = null;
 					Log.w(TAG, e);
 				}
 			}
@@ -129,7 +197,9 @@ public class ThumbnailCache {
 	}
 
 	@SuppressWarnings("ResultOfMethodCallIgnored")
-	private static File getDiskCacheDir(@NonNull final Context context) throws IOException {
+	private static File getDiskCacheDir(
+		@NonNull final Context context, @NonNull final String subDir) throws IOException {
+
 		File cacheDir;
 		cacheDir = context.getExternalCacheDir();
 		cacheDir.mkdirs();
@@ -141,7 +211,7 @@ public class ThumbnailCache {
 		if ((cacheDir == null) || !cacheDir.canWrite()) {
 			throw new IOException("can't write cache dir");
 		}
-		cacheDir = new File(cacheDir, DISK_CACHE_SUBDIR);
+		cacheDir = new File(cacheDir, subDir);
 		cacheDir.mkdirs();
 		return cacheDir;
 	}
@@ -152,7 +222,7 @@ public class ThumbnailCache {
 	 * @param context
 	 */
 	public ThumbnailCache(@NonNull final Context context) {
-		prepareThumbnailCache(context, DISK_CACHE_SIZE);
+		prepareThumbnailCache(context, DISK_CACHE_SIZE, DISK_CACHE_TYPE_FILE);
 	}
 
 	/**
@@ -161,7 +231,19 @@ public class ThumbnailCache {
 	 * @param maxDiskCacheBytes
 	 */
 	public ThumbnailCache(@NonNull final Context context, final int maxDiskCacheBytes) {
-		prepareThumbnailCache(context, maxDiskCacheBytes);
+		prepareThumbnailCache(context, maxDiskCacheBytes, DISK_CACHE_TYPE_FILE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param context
+	 * @param maxDiskCacheBytes
+	 * @param diskCacheType DISK_CACHE_TYPE_FILEまたはDISK_CACHE_TYPE_BLOB
+	 */
+	public ThumbnailCache(@NonNull final Context context,
+		final int maxDiskCacheBytes, final int diskCacheType) {
+
+		prepareThumbnailCache(context, maxDiskCacheBytes, diskCacheType);
 	}
 
 	@Override
@@ -192,48 +274,63 @@ public class ThumbnailCache {
 	 */
 	@Nullable
 	public Bitmap get(@NonNull final String key) {
-		Bitmap result;
-		synchronized (sSync) {
-			// メモリーキャッシュから取得を試みる
-			result = sThumbnailCache.get(key);
-			if (DEBUG && (result != null)) Log.v(TAG, "get:memory cache hit!");
-			if ((result == null) && (sDiskLruCache != null)) {
-				// メモリーキャッシュにないときはディスクキャッシュから取得を試みる
-				InputStream in = null;
+		final LruCache<String, Bitmap> memCache = sThumbnailCache;
+		final ConcurrentDiskLruCache diskCache = sDiskLruCache;
+		final MappedBlobStore blobStore = sBlobStore;
+		// メモリーキャッシュから取得を試みる
+		Bitmap result = memCache.get(key);
+		if (DEBUG && (result != null)) Log.v(TAG, "get:memory cache hit!");
+		if ((result == null) && (blobStore != null) && !blobStore.isClosed()) {
+			// メモリーキャッシュにないときはセグメントファイルから取得を試みる
+			try {
+				result = BitmapHelper.asBitmap(blobStore.getBytes(key));
+			} catch (final IllegalStateException e) {
+				// 別スレッドでディスクキャッシュを閉じた
+				if (DEBUG) Log.w(TAG, e);
+			}
+			if (result != null) {
+				if (DEBUG) Log.v(TAG, "get:blob cache hit!");
+				memCache.put(key, result);
+			}
+		} else if ((result == null) && (diskCache != null) && !diskCache.isClosed()) {
+			// メモリーキャッシュにないときはディスクキャッシュから取得を試みる
+			InputStream in = null;
+			try {
+				final ConcurrentDiskLruCache.Snapshot snapshot = diskCache.get(key);
+				if (snapshot != null) {
+					if (DEBUG) Log.v(TAG, "get:disk cache hit!");
+					in = snapshot.getInputStream(DISK_CACHE_INDEX);
+					if (in != null) {
+						final FileDescriptor fd = ((FileInputStream) in).getFD();
+						// Decode bitmap, but we don't want to sample so give
+						// MAX_VALUE as the target dimensions
+						result = BitmapHelper.asBitmap(fd,
+							Integer.MAX_VALUE, Integer.MAX_VALUE);
+					}
+				}
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
 				try {
-					final DiskLruCache.Snapshot snapshot = sDiskLruCache.get(key);
-					if (snapshot != null) {
-						if (DEBUG) Log.v(TAG, "get:disk cache hit!");
-						in = snapshot.getInputStream(DISK_CACHE_INDEX);
-						if (in != null) {
-							final FileDescriptor fd = ((FileInputStream) in).getFD();
-							// Decode bitmap, but we don't want to sample so give
-							// MAX_VALUE as the target dimensions
-							result = BitmapHelper.asBitmap(fd,
-								Integer.MAX_VALUE, Integer.MAX_VALUE);
-						}
+					diskCache.remove(key);
+				} catch (final Exception ex) {
+					// ignore
+				}
+			} catch (final IllegalStateException e) {
+				// 別スレッドでディスクキャッシュを閉じた
+				if (DEBUG) Log.w(TAG, e);
+			} finally {
+				try {
+					if (in != null) {
+						in.close();
 					}
 				} catch (final IOException e) {
-					if (DEBUG) Log.w(TAG, e);
-					try {
-						sDiskLruCache.remove(key);
-					} catch (final IOException ex) {
-						// ignore
-					}
-				} finally {
-					try {
-						if (in != null) {
-							in.close();
-						}
-					} catch (final IOException e) {
-						// ignore
-					}
-				}
-				if (result != null) {
-					// メモリーキャッシュに追加する
-					sThumbnailCache.put(key, result);
+					// ignore
 				}
 			}
+			if (result != null) {
+				// メモリーキャッシュに追加する
+				memCache.put(key, result);
+			}
 		}
 		return result;
 	}
@@ -274,38 +371,51 @@ public class ThumbnailCache {
 		final boolean shouldOverride) {
 
 		if (DEBUG) Log.v(TAG, "put:key=" + key);
-		synchronized (sSync) {
-			final Bitmap cached = sThumbnailCache.get(key);
-			if ((cached == null) || shouldOverride) {
-				sThumbnailCache.put(key, bitmap);
+		final LruCache<String, Bitmap> memCache = sThumbnailCache;
+		final ConcurrentDiskLruCache diskCache = sDiskLruCache;
+		final Bitmap cached = memCache.get(key);
+		if ((cached == null) || shouldOverride) {
+			memCache.put(key, bitmap);
+		}
+		final MappedBlobStore blobStore = sBlobStore;
+		if ((blobStore != null) && !blobStore.isClosed()) {
+			// セグメントファイルへの追加処理
+			try {
+				if (shouldOverride || !blobStore.contains(key)) {
+					final ByteArrayOutputStream out = new ByteArrayOutputStream();
+					bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+					blobStore.put(key, out.toByteArray());
+				}
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
 			}
-			if (sDiskLruCache != null) {
-				// ディスクキャッシュへの追加処理
-				OutputStream out = null;
+		} else if ((diskCache != null) && !diskCache.isClosed()) {
+			// ディスクキャッシュへの追加処理
+			OutputStream out = null;
+			try {
+				if (!diskCache.contains(key) || shouldOverride) {
+					// ディスクキャッシュに保存する時
+					// 他スレッドで同じキーを編集中ならnullが返るのでその時は何もしない
+					final ConcurrentDiskLruCache.Editor editor = diskCache.edit(key);
+					if (editor != null) {
+						out = editor.newOutputStream(DISK_CACHE_INDEX);
+						bitmap.compress(
+							Bitmap.CompressFormat.JPEG, 90, out);
+						editor.commit();
+						out.close();
+					}
+				}
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+			} finally {
 				try {
-					if (!sDiskLruCache.contains(key) || shouldOverride) {
-						// ディスクキャッシュに保存する時
-						final DiskLruCache.Editor editor = sDiskLruCache.edit(key);
-						if (editor != null) {
-							out = editor.newOutputStream(DISK_CACHE_INDEX);
-							bitmap.compress(
-								Bitmap.CompressFormat.JPEG, 90, out);
-							editor.commit();
-							out.close();
-						}
+					if (out != null) {
+						out.close();
 					}
 				} catch (final IOException e) {
 					if (DEBUG) Log.w(TAG, e);
-				} catch (final Exception e) {
-					if (DEBUG) Log.w(TAG, e);
-				} finally {
-					try {
-						if (out != null) {
-							out.close();
-						}
-					} catch (final IOException e) {
-						if (DEBUG) Log.w(TAG, e);
-					}
 				}
 			}
 		}
@@ -325,6 +435,13 @@ public class ThumbnailCache {
 					if (DEBUG) Log.w(TAG, e);
 				}
 			}
+			if (sBlobStore != null) {
+				try {
+					sBlobStore.delete();
+				} catch (final IOException e) {
+					if (DEBUG) Log.w(TAG, e);
+				}
+			}
 		}
 	}
 
@@ -333,14 +450,21 @@ public class ThumbnailCache {
 	 */
 	public void trim() {
 		if (DEBUG) Log.v(TAG, "trim:");
-		synchronized (sSync) {
-			sThumbnailCache.trimToSize(sCacheSize);
-			if (sDiskLruCache != null) {
-				try {
-					sDiskLruCache.flush();
-				} catch (final IOException e) {
-					if (DEBUG) Log.w(TAG, e);
-				}
+		sThumbnailCache.trimToSize(sCacheSize);
+		final ConcurrentDiskLruCache diskCache = sDiskLruCache;
+		if ((diskCache != null) && !diskCache.isClosed()) {
+			try {
+				diskCache.flush();
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		final MappedBlobStore blobStore = sBlobStore;
+		if ((blobStore != null) && !blobStore.isClosed()) {
+			try {
+				blobStore.flush();
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
 			}
 		}
 	}
@@ -351,14 +475,21 @@ public class ThumbnailCache {
 	 */
 	public void remove(final String key) {
 		if (DEBUG) Log.v(TAG, "remove:key=" + key);
-		synchronized (sSync) {
-			sThumbnailCache.remove(key);
-			if (sDiskLruCache != null) {
-				try {
-					sDiskLruCache.remove(key);
-				} catch (final IOException e) {
-					// ignore
-				}
+		sThumbnailCache.remove(key);
+		final ConcurrentDiskLruCache diskCache = sDiskLruCache;
+		if ((diskCache != null) && !diskCache.isClosed()) {
+			try {
+				diskCache.remove(key);
+			} catch (final Exception e) {
+				// ignore
+			}
+		}
+		final MappedBlobStore blobStore = sBlobStore;
+		if ((blobStore != null) && !blobStore.isClosed()) {
+			try {
+				blobStore.remove(key);
+			} catch (final Exception e) {
+				// ignore
 			}
 		}
 	}
@@ -403,6 +534,31 @@ public class ThumbnailCache {
 		}
 	}
 
+	/**
+	 * MediaInfoで指定したコンテンツのサムネイルがキャッシュに無ければ読み込んでキャッシュへ追加する
+	 * ThumbnailPrefetcher.Callbackからの先読み用
+	 * @param cr
+	 * @param info
+	 * @param requestWidth
+	 * @param requestHeight
+	 * @return 読み込んだ時はtrue, キャッシュ済みだった時はfalse
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public boolean prefetch(
+		@NonNull final ContentResolver cr,
+		@NonNull final MediaInfo info,
+		final int requestWidth, final int requestHeight)
+			throws FileNotFoundException, IOException {
+
+		if (get(info.id) != null) {
+			return false;
+		}
+		// Android10以降はgetThumbnailでキャッシュへ追加しないのでここで追加する
+		put(info.id, getThumbnail(cr, info, requestWidth, requestHeight), false);
+		return true;
+	}
+
 	/**
 	 * 静止画のサムネイルを取得する
 	 * 可能であればキャッシュから取得する
@@ -421,42 +577,25 @@ public class ThumbnailCache {
 
 		// try to get from internal thumbnail cache(in memory), this may be redundant
 		final String key = getKey(id);
-		Bitmap result;
-		synchronized (sSync) {
-			result = get(key);
-			if (result == null) {
-				if ((requestWidth <= 0) || (requestHeight <= 0)) {
-					result = BitmapHelper.asBitmap(cr, id, requestWidth, requestHeight);
-				} else {
-					int kind = MediaStore.Images.Thumbnails.MICRO_KIND;
-					if ((requestWidth > 96) || (requestHeight > 96) || (requestWidth * requestHeight > 128 * 128)) {
-						kind = MediaStore.Images.Thumbnails.MINI_KIND;
-					}
-					try {
-						// XXX ContentResolverには存在するが実ファイルがすでに削除されていると
-						// XXX ここでFileNotFoundExceptionが投げられるんだけどキャッチできない
-						result = MediaStore.Images.Thumbnails.getThumbnail(cr, id, kind, null);
-					} catch (final Exception e) {
-						if (DEBUG) Log.w(TAG, e);
-						remove(key);
-						throw (e instanceof IOException) ? (IOException)e :  new IOException(e);
+		Bitmap result = get(key);
+		if (result == null) {
+			// デコード中はロックしない, 同じidを他のスレッドで読み込み中ならその結果を待つ
+			result = sLoader.load(key, new CoalescingLoader.Loader<String, Bitmap>() {
+				@Override
+				public Bitmap load(@NonNull final String key) throws IOException {
+					// 直前に他のスレッドが読み込み終えた可能性があるのでキャッシュを再確認する
+					Bitmap result = get(key);
+					if (result == null) {
+						result = decodeImageThumbnail(cr, key, id, requestWidth, requestHeight);
+						// add to internal thumbnail cache(in memory)
+						put(key, result, false);
 					}
+					return result;
 				}
-				if (result != null) {
-					final int orientation = BitmapHelper.getOrientation(cr, id);
-					if (orientation != 0) {
-						final Bitmap newBitmap = BitmapHelper.rotateBitmap(result, orientation);
-						result.recycle();
-						result = newBitmap;
-					}
-					if (DEBUG) Log.v(TAG, String.format("getImageThumbnail:id=%d(%d,%d)",
-						id, result.getWidth(), result.getHeight()));
-					// add to internal thumbnail cache(in memory)
-					put(key, result, false);
-				} else {
-					throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
-				}
-			}
+			});
+		}
+		if (result == null) {
+			throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
 		}
 		return result;
 	}
@@ -480,40 +619,123 @@ public class ThumbnailCache {
 
 		// try to get from internal thumbnail cache(in memory), this may be redundant
 		final String key = getKey(id);
-		Bitmap result;
-		synchronized (sSync) {
-			result = get(key);
-			if (result == null) {
-				int kind = MediaStore.Video.Thumbnails.MICRO_KIND;
-				if ((requestWidth > 96) || (requestHeight > 96) || (requestWidth * requestHeight > 128 * 128)) {
-					kind = MediaStore.Video.Thumbnails.MINI_KIND;
-				}
-				try {
-					// XXX ContentResolverには存在するが実ファイルがすでに削除されていると
-					// XXX ここでFileNotFoundExceptionが投げられるんだけどキャッチできない
-					result = MediaStore.Video.Thumbnails.getThumbnail(cr, id, kind, null);
-				} catch (final Exception e) {
-					if (DEBUG) Log.w(TAG, e);
-					remove(key);
-					throw (e instanceof IOException) ? (IOException)e :  new IOException(e);
-				}
-				if (result != null) {
-					if (DEBUG) Log.v(TAG, String.format("getVideoThumbnail:id=%d(%d,%d)",
-						id, result.getWidth(), result.getHeight()));
-					// XXX 動画はExifが無いはずなのとAndroid10未満だとorientationフィールドが無い可能性が高いので実際には回転しないかも
-					final int orientation = BitmapHelper.getOrientation(cr, id);
-					if (orientation != 0) {
-						final Bitmap newBitmap = BitmapHelper.rotateBitmap(result, orientation);
-						result.recycle();
-						result = newBitmap;
+		Bitmap result = get(key);
+		if (result == null) {
+			// デコード中はロックしない, 同じidを他のスレッドで読み込み中ならその結果を待つ
+			result = sLoader.load(key, new CoalescingLoader.Loader<String, Bitmap>() {
+				@Override
+				public Bitmap load(@NonNull final String key) throws IOException {
+					// 直前に他のスレッドが読み込み終えた可能性があるのでキャッシュを再確認する
+					Bitmap result = get(key);
+					if (result == null) {
+						result = decodeVideoThumbnail(cr, key, id, requestWidth, requestHeight);
+						// add to internal thumbnail cache(in memory)
+						put(key, result, false);
 					}
-					// add to internal thumbnail cache(in memory)
-					put(key, result, false);
-				} else {
-					throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
+					return result;
 				}
+			});
+		}
+		if (result == null) {
+			throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
+		}
+		return result;
+	}
+
+	/**
+	 * 静止画のサムネイルをデコードする
+	 * キャッシュは参照しない, sSyncでロックせずに呼び出す
+	 * @param cr
+	 * @param key
+	 * @param id
+	 * @param requestWidth
+	 * @param requestHeight
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private Bitmap decodeImageThumbnail(
+		@NonNull final ContentResolver cr,
+		@NonNull final String key, final long id,
+		final int requestWidth, final int requestHeight) throws IOException {
+
+		Bitmap result;
+		if ((requestWidth <= 0) || (requestHeight <= 0)) {
+			result = BitmapHelper.asBitmap(cr, id, requestWidth, requestHeight);
+		} else {
+			int kind = MediaStore.Images.Thumbnails.MICRO_KIND;
+			if ((requestWidth > 96) || (requestHeight > 96) || (requestWidth * requestHeight > 128 * 128)) {
+				kind = MediaStore.Images.Thumbnails.MINI_KIND;
+			}
+			try {
+				// XXX ContentResolverには存在するが実ファイルがすでに削除されていると
+				// XXX ここでFileNotFoundExceptionが投げられるんだけどキャッチできない
+				result = MediaStore.Images.Thumbnails.getThumbnail(cr, id, kind, null);
+			} catch (final Exception e) {
+				if (DEBUG) Log.w(TAG, e);
+				remove(key);
+				throw (e instanceof IOException) ? (IOException)e :  new IOException(e);
 			}
 		}
+		if (result != null) {
+			final int orientation = BitmapHelper.getOrientation(cr, id);
+			if (orientation != 0) {
+				final Bitmap newBitmap = BitmapHelper.rotateBitmap(result, orientation);
+				result.recycle();
+				result = newBitmap;
+			}
+			if (DEBUG) Log.v(TAG, String.format("getImageThumbnail:id=%d(%d,%d)",
+				id, result.getWidth(), result.getHeight()));
+		} else {
+			throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
+		}
+		return result;
+	}
+
+	/**
+	 * 動画のサムネイルをデコードする
+	 * キャッシュは参照しない, sSyncでロックせずに呼び出す
+	 * @param cr
+	 * @param key
+	 * @param id
+	 * @param requestWidth
+	 * @param requestHeight
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private Bitmap decodeVideoThumbnail(
+		@NonNull final ContentResolver cr,
+		@NonNull final String key, final long id,
+		final int requestWidth, final int requestHeight) throws IOException {
+
+		Bitmap result;
+		int kind = MediaStore.Video.Thumbnails.MICRO_KIND;
+		if ((requestWidth > 96) || (requestHeight > 96) || (requestWidth * requestHeight > 128 * 128)) {
+			kind = MediaStore.Video.Thumbnails.MINI_KIND;
+		}
+		try {
+			// XXX ContentResolverには存在するが実ファイルがすでに削除されていると
+			// XXX ここでFileNotFoundExceptionが投げられるんだけどキャッチできない
+			result = MediaStore.Video.Thumbnails.getThumbnail(cr, id, kind, null);
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+			remove(key);
+			throw (e instanceof IOException) ? (IOException)e :  new IOException(e);
+		}
+		if (result != null) {
+			if (DEBUG) Log.v(TAG, String.format("getVideoThumbnail:id=%d(%d,%d)",
+				id, result.getWidth(), result.getHeight()));
+			// XXX 動画はExifが無いはずなのとAndroid10未満だとorientationフィールドが無い可能性が高いので実際には回転しないかも
+			final int orientation = BitmapHelper.getOrientation(cr, id);
+			if (orientation != 0) {
+				final Bitmap newBitmap = BitmapHelper.rotateBitmap(result, orientation);
+				result.recycle();
+				result = newBitmap;
+			}
+		} else {
+			throw new IOException("failed to get thumbnail,key=" + key + "/id=" + id);
+		}
 		return result;
 	}
 
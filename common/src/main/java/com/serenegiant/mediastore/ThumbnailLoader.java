@@ -70,13 +70,15 @@ public abstract class ThumbnailLoader implements Runnable {
 	public synchronized void startLoad(@NonNull final MediaInfo info) {
 		mInfo.set(info);
 		mBitmap = null;
-		ThreadPool.queueEvent(mTask);
+		// 画面上に表示するDrawableからの読み込み要求なので優先して実行する
+		ThreadPool.queueEvent(mTask, ThreadPool.PRIORITY_HIGH);
 	}
 
 	/**
 	 * 読み込み中断要求する
 	 */
 	public void cancelLoad() {
+		ThreadPool.removeEvent(mTask);
 		mTask.cancel(true);
 	}
 
@@ -0,0 +1,345 @@
+package com.serenegiant.mediastore;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.ThreadPool;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 表示範囲とスクロール速度に応じてサムネイルを先読みするためのヘルパークラス
+ * スクロール方向の表示範囲外のprefetchCount個のサムネイルをThreadPoolで
+ * PRIORITY_LOW(表示中のサムネイルより後)で読み込んでThumbnailCacheへ追加する。
+ * 同時に読み込む数はmaxInFlightまでに制限し、残りは自前のキューで保持するので
+ * 高速にスクロールしてもThreadPoolのキューに古い読み込み要求が溜まらない。
+ * 表示範囲が変わった時に先読み範囲外になった未実行の読み込み要求は取り消し、
+ * maxVelocity[アイテム/秒]より速くスクロールしている間(フリング中)は先読みしない。
+ * 表示範囲の変更とキャッシュのヒット/ミスの記録はUIスレッドから呼び出すこと
+ */
+public class ThumbnailPrefetcher {
+	private static final String TAG = ThumbnailPrefetcher.class.getSimpleName();
+
+	public static final int DEFAULT_PREFETCH_COUNT = 12;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+	public static final float DEFAULT_MAX_VELOCITY = 60.0f;
+
+	/**
+	 * 先読み処理
+	 */
+	public interface Callback {
+		/**
+		 * 指定した位置のサムネイルを読み込んでキャッシュへ追加する
+		 * ThreadPoolのワーカースレッド上で呼ばれる
+		 * @param position
+		 * @return 読み込んだ時はtrue, キャッシュ済みだった時はfalse
+		 * @throws Exception
+		 */
+		public boolean prefetch(final int position) throws Exception;
+	}
+
+	/**
+	 * 先読みタスク
+	 */
+	private final class PrefetchTask implements Runnable {
+		private final int position;
+
+		private PrefetchTask(final int position) {
+			this.position = position;
+		}
+
+		@Override
+		public void run() {
+			boolean decoded = false;
+			try {
+				decoded = mCallback.prefetch(position);
+			} catch (final Exception e) {
+				// 読み込めなかった時は表示時に改めて読み込む
+			}
+			synchronized (mSync) {
+				mInFlight.remove(position);
+				if (decoded) {
+					mDecodeCount++;
+					if ((position < mFirst - mPrefetchCount) || (position > mLast + mPrefetchCount)) {
+						// 読み込み終わった時には表示されない範囲へスクロールしていた
+						mWastedCount++;
+					}
+				}
+				fillLocked();
+			}
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final Callback mCallback;
+	/**
+	 * 先読み待ちの位置
+	 */
+	@NonNull
+	private final ArrayDeque<Integer> mPending = new ArrayDeque<Integer>();
+	/**
+	 * ThreadPoolへ追加した読み込み要求
+	 */
+	@NonNull
+	private final Map<Integer, PrefetchTask> mInFlight = new HashMap<Integer, PrefetchTask>();
+	private int mPrefetchCount;
+	private int mMaxInFlight;
+	private float mMaxVelocity;
+	private int mFirst = -1, mLast = -1;
+	private int mDirection = 1;
+	private long mHitCount, mMissCount;
+	private long mDecodeCount, mWastedCount, mCancelledCount;
+
+	/**
+	 * コンストラクタ
+	 * @param callback
+	 */
+	public ThumbnailPrefetcher(@NonNull final Callback callback) {
+		this(callback, DEFAULT_PREFETCH_COUNT, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_VELOCITY);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param callback
+	 * @param prefetchCount 表示範囲外で先読みする数
+	 * @param maxInFlight 同時に読み込む最大数
+	 * @param maxVelocity これより速くスクロールしている時は先読みしない[アイテム/秒]
+	 */
+	public ThumbnailPrefetcher(@NonNull final Callback callback,
+		@IntRange(from=0) final int prefetchCount,
+		@IntRange(from=1) final int maxInFlight,
+		final float maxVelocity) {
+
+		mCallback = callback;
+		mPrefetchCount = prefetchCount;
+		mMaxInFlight = Math.max(maxInFlight, 1);
+		mMaxVelocity = maxVelocity;
+	}
+
+	/**
+	 * 表示範囲外で先読みする数を設定
+	 * 次に表示範囲が変わった時から適用する
+	 * @param prefetchCount 0なら先読みしない
+	 */
+	public void setPrefetchCount(@IntRange(from=0) final int prefetchCount) {
+		synchronized (mSync) {
+			mPrefetchCount = Math.max(prefetchCount, 0);
+		}
+	}
+
+	public int getPrefetchCount() {
+		synchronized (mSync) {
+			return mPrefetchCount;
+		}
+	}
+
+	/**
+	 * 同時に読み込む最大数を設定
+	 * @param maxInFlight
+	 */
+	public void setMaxInFlight(@IntRange(from=1) final int maxInFlight) {
+		synchronized (mSync) {
+			mMaxInFlight = Math.max(maxInFlight, 1);
+			fillLocked();
+		}
+	}
+
+	public int getMaxInFlight() {
+		synchronized (mSync) {
+			return mMaxInFlight;
+		}
+	}
+
+	/**
+	 * 先読みするスクロール速度の上限を設定
+	 * @param maxVelocity [アイテム/秒]
+	 */
+	public void setMaxVelocity(final float maxVelocity) {
+		synchronized (mSync) {
+			mMaxVelocity = maxVelocity;
+		}
+	}
+
+	/**
+	 * 表示範囲が変わった時の処理
+	 * 先読み範囲を更新して範囲外になった未実行の読み込み要求を取り消す
+	 * @param first 表示中の最初の位置
+	 * @param last 表示中の最後の位置
+	 * @param velocity スクロール速度[アイテム/秒], 正なら位置が増える方向, 停止中は0
+	 * @param itemCount 全アイテム数
+	 */
+	public void onVisibleRangeChanged(final int first, final int last,
+		final float velocity, final int itemCount) {
+
+		synchronized (mSync) {
+			mFirst = first;
+			mLast = last;
+			if (velocity > 0) {
+				mDirection = 1;
+			} else if (velocity < 0) {
+				mDirection = -1;
+			}
+			mPending.clear();
+			if (Math.abs(velocity) <= mMaxVelocity) {
+				for (int i = 1; i <= mPrefetchCount; i++) {
+					final int pos = mDirection > 0 ? last + i : first - i;
+					if ((pos >= 0) && (pos < itemCount)) {
+						mPending.add(pos);
+					}
+				}
+			}
+			// 表示範囲にも先読み範囲にも含まれない未実行の読み込み要求を取り消す
+			final Iterator<Map.Entry<Integer, PrefetchTask>> it = mInFlight.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<Integer, PrefetchTask> entry = it.next();
+				final int pos = entry.getKey();
+				if (((pos < first) || (pos > last)) && !mPending.contains(pos)
+					&& ThreadPool.removeEvent(entry.getValue())) {
+
+					it.remove();
+					mCancelledCount++;
+				}
+			}
+			fillLocked();
+		}
+	}
+
+	/**
+	 * 未実行の先読み要求を全て取り消す
+	 */
+	public void cancelAll() {
+		synchronized (mSync) {
+			mPending.clear();
+			final Iterator<PrefetchTask> it = mInFlight.values().iterator();
+			while (it.hasNext()) {
+				if (ThreadPool.removeEvent(it.next())) {
+					it.remove();
+					mCancelledCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 表示時にキャッシュから取得できたかどうかを記録する
+	 * @param hit
+	 */
+	public void recordLookup(final boolean hit) {
+		synchronized (mSync) {
+			if (hit) {
+				mHitCount++;
+			} else {
+				mMissCount++;
+			}
+		}
+	}
+
+	/**
+	 * 表示時のキャッシュのヒット率を取得
+	 * @return 0.0〜1.0
+	 */
+	public float getHitRate() {
+		synchronized (mSync) {
+			final long n = mHitCount + mMissCount;
+			return n > 0 ? mHitCount / (float)n : 0.0f;
+		}
+	}
+
+	/**
+	 * 先読みで読み込んだ数を取得
+	 * @return
+	 */
+	public long getDecodeCount() {
+		synchronized (mSync) {
+			return mDecodeCount;
+		}
+	}
+
+	/**
+	 * 読み込み終わった時には表示範囲から離れていた先読みの数を取得
+	 * @return
+	 */
+	public long getWastedDecodeCount() {
+		synchronized (mSync) {
+			return mWastedCount;
+		}
+	}
+
+	/**
+	 * 実行前に取り消した先読みの数を取得
+	 * @return
+	 */
+	public long getCancelledCount() {
+		synchronized (mSync) {
+			return mCancelledCount;
+		}
+	}
+
+	/**
+	 * 現在ThreadPoolへ追加している先読みの数を取得
+	 * @return
+	 */
+	public int getInFlightCount() {
+		synchronized (mSync) {
+			return mInFlight.size();
+		}
+	}
+
+	/**
+	 * 統計をリセットする
+	 */
+	public void resetStats() {
+		synchronized (mSync) {
+			mHitCount = mMissCount = 0;
+			mDecodeCount = mWastedCount = mCancelledCount = 0;
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		synchronized (mSync) {
+			return TAG + "{hit=" + mHitCount + ",miss=" + mMissCount
+				+ ",decode=" + mDecodeCount + ",wasted=" + mWastedCount
+				+ ",cancelled=" + mCancelledCount + "}";
+		}
+	}
+
+	/**
+	 * 同時に読み込む最大数まで先読み待ちの位置をThreadPoolへ追加する
+	 * mSyncをロックした状態で呼び出すこと
+	 */
+	private void fillLocked() {
+		while ((mInFlight.size() < mMaxInFlight) && !mPending.isEmpty()) {
+			final int pos = mPending.poll();
+			if (!mInFlight.containsKey(pos)) {
+				final PrefetchTask task = new PrefetchTask(pos);
+				mInFlight.put(pos, task);
+				ThreadPool.queueEvent(task, ThreadPool.PRIORITY_LOW);
+			}
+		}
+	}
+}
@@ -24,7 +24,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
-import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ByteBufferPool;
+import com.serenegiant.io.ChannelReader;
+import com.serenegiant.io.ChannelWriter;
 import com.serenegiant.utils.HandlerThreadHandler;
 
 import java.io.IOException;
@@ -48,26 +50,32 @@ public abstract class AbstractChannelDataLink {
 	}
 	
 	private static final int REQ_RELEASE = -9;
-	private static final int TYPE_UNKNOWN = -1;
-	private static final int TYPE_NULL = 0;
-	private static final int TYPE_BYTE_BUFFER = 1;
-	private static final int TYPE_STRING = 2;
-	private static final int TYPE_BOOL = 10;
-	private static final int TYPE_INT = 11;
-	private static final int TYPE_LONG = 12;
-	private static final int TYPE_FLOAT = 20;
-	private static final int TYPE_DOUBLE = 21;
-	private static final int TYPE_BYTE_ARRAY = 30;
-	private static final int TYPE_BOOL_ARRAY = 31;
-	private static final int TYPE_INT_ARRAY = 32;
-	private static final int TYPE_LONG_ARRAY = 33;
-	private static final int TYPE_FLOAT_ARRAY = 40;
-	private static final int TYPE_DOUBLE_ARRAY = 41;
+	private static final int REQ_FLUSH = -10;
+	/*package*/ static final int TYPE_UNKNOWN = -1;
+	/*package*/ static final int TYPE_NULL = 0;
+	/*package*/ static final int TYPE_BYTE_BUFFER = 1;
+	/*package*/ static final int TYPE_STRING = 2;
+	/*package*/ static final int TYPE_BOOL = 10;
+	/*package*/ static final int TYPE_INT = 11;
+	/*package*/ static final int TYPE_LONG = 12;
+	/*package*/ static final int TYPE_FLOAT = 20;
+	/*package*/ static final int TYPE_DOUBLE = 21;
+	/*package*/ static final int TYPE_BYTE_ARRAY = 30;
+	/*package*/ static final int TYPE_BOOL_ARRAY = 31;
+	/*package*/ static final int TYPE_INT_ARRAY = 32;
+	/*package*/ static final int TYPE_LONG_ARRAY = 33;
+	/*package*/ static final int TYPE_FLOAT_ARRAY = 40;
+	/*package*/ static final int TYPE_DOUBLE_ARRAY = 41;
 
 	@NonNull
 	private final Set<AbstractClient> mClients = new CopyOnWriteArraySet<AbstractClient>();
 	@NonNull
 	private final Set<Callback> mCallbacks = new CopyOnWriteArraySet<Callback>();
+	/**
+	 * 受信データ用のバッファプール, nullならプールを使わない
+	 */
+	@Nullable
+	private volatile ByteBufferPool mReceivePool;
 
 	/**
 	 * コンストラクタ
@@ -127,6 +135,29 @@ public abstract class AbstractChannelDataLink {
 		}
 	}
 	
+	/**
+	 * 受信データ用のバッファプールを設定する
+	 * プールを設定するとTYPE_BYTE_BUFFERとTYPE_BYTE_ARRAYの受信データを
+	 * プールから取得したバッファへ読み込んでRecycleByteBufferとして
+	 * Callback#onReceiveへ渡すので、受信データ毎のバッファ生成が無くなる
+	 * (byte配列を送信した場合もRecycleByteBufferになる)。
+	 * アプリ側ではRecycleByteBufferを使い終わったらrecycleを呼ぶこと。
+	 * Callbackが複数登録されている時はいずれか1つでrecycleすること
+	 * @param pool nullならプールを使わない(デフォルト)
+	 */
+	public void setReceiveBufferPool(@Nullable final ByteBufferPool pool) {
+		mReceivePool = pool;
+	}
+
+	/**
+	 * 受信データ用のバッファプールを取得
+	 * @return
+	 */
+	@Nullable
+	public ByteBufferPool getReceiveBufferPool() {
+		return mReceivePool;
+	}
+
 	/**
 	 * 受信用のクライアントを追加
 	 * @param client
@@ -152,20 +183,46 @@ public abstract class AbstractChannelDataLink {
 	/**
 	 * 受信スレッドの実行部
 	 */
-	protected static abstract class AbstractClient implements Runnable, Handler.Callback {
+	public static abstract class AbstractClient implements Runnable, Handler.Callback {
 		private final WeakReference<AbstractChannelDataLink> mWeakParent;
 		protected ByteChannel mChannel;
 		private volatile boolean mIsRunning = true;
 		private volatile boolean mIsInit;
 		/** 送信データをワーカースレッド上で処理するためのHandler */
 		private Handler mSenderHandler;
+		/** 送信用, mSenderHandlerのワーカースレッド上でのみアクセスする */
+		@Nullable
+		private volatile ChannelWriter mWriter;
+		/**
+		 * 送信データをまとめて書き込むまでの最大遅延時間[ミリ秒]
+		 * 0以下なら1メッセージ毎に書き込む
+		 */
+		private volatile long mLingerMs;
+		/** 遅延書き込み要求済みかどうか, mSenderHandlerのワーカースレッド上でのみアクセスする */
+		private boolean mFlushRequested;
+		/** 送信したメッセージ数, mSenderHandlerのワーカースレッド上でのみ更新する */
+		private volatile long mSentMessages;
 		
 		public AbstractClient(@NonNull final AbstractChannelDataLink parent,
 			@Nullable final ByteChannel channel) {
 
+			this(parent, channel, true);
+		}
+		
+		/**
+		 * コンストラクタ
+		 * @param parent
+		 * @param channel
+		 * @param useSenderThread true: 送信用のワーカースレッドを生成する,
+		 * 			false: 送信用のワーカースレッドを生成しない、
+		 * 			この場合は#send(int, Object)をoverrideして送信処理を行うこと
+		 */
+		protected AbstractClient(@NonNull final AbstractChannelDataLink parent,
+			@Nullable final ByteChannel channel, final boolean useSenderThread) {
+
 			if (DEBUG) Log.v(TAG, "Client#コンストラクタ:channel=" + channel);
 			mWeakParent = new WeakReference<AbstractChannelDataLink>(parent);
-			mSenderHandler = HandlerThreadHandler.createHandler(this);
+			mSenderHandler = useSenderThread ? HandlerThreadHandler.createHandler(this) : null;
 			mChannel = channel;
 		}
 		
@@ -206,6 +263,57 @@ public abstract class AbstractChannelDataLink {
 			}
 		}
 		
+		/**
+		 * 送信データをまとめて書き込むまでの最大遅延時間を設定
+		 * 0より大きい時は送信データを送信バッファへ溜めておき、
+		 * 送信バッファが一杯になった時、#flushを呼び出した時、
+		 * または最初のメッセージから指定時間経過した時にまとめて書き込む
+		 * @param lingerMs 0以下なら1メッセージ毎に書き込む(デフォルト)
+		 */
+		public void setLinger(final long lingerMs) {
+			mLingerMs = lingerMs;
+		}
+		
+		/**
+		 * 送信データをまとめて書き込むまでの最大遅延時間を取得
+		 * @return
+		 */
+		public long getLinger() {
+			return mLingerMs;
+		}
+		
+		/**
+		 * 送信バッファ内のデータを書き込むように要求する
+		 * 実際の書き込みは送信用のワーカースレッド上で非同期で行う
+		 * @throws IOException
+		 */
+		public synchronized void flush() throws IOException {
+			if ((mSenderHandler == null) || !mIsRunning || !mIsInit) throw new IOException();
+			mSenderHandler.sendEmptyMessage(REQ_FLUSH);
+		}
+		
+		/**
+		 * 送信統計情報を取得
+		 * @return
+		 */
+		@NonNull
+		public SendStats getSendStats() {
+			final ChannelWriter writer = mWriter;
+			return new SendStats(mSentMessages,
+				writer != null ? writer.getFlushCount() : 0,
+				writer != null ? writer.getWrittenBytes() : 0);
+		}
+		
+		/**
+		 * 受信データ用のバッファプールを取得
+		 * @return
+		 */
+		@Nullable
+		protected ByteBufferPool getReceiveBufferPool() {
+			final AbstractChannelDataLink parent = mWeakParent.get();
+			return parent != null ? parent.mReceivePool : null;
+		}
+		
 		/**
 		 * 実際の開始処理
 		 */
@@ -417,11 +525,12 @@ public abstract class AbstractChannelDataLink {
 		/**
 		 * データ送信時のヘルパーメソッド
 		 * データ送信用のスレッドのHandlerへ投げる
+		 * 送信用のワーカースレッドを生成しない時はoverrideして送信処理を行うこと
 		 * @param type
 		 * @param msg
 		 * @throws IOException
 		 */
-		private synchronized void send(final int type, @Nullable final Object msg) throws IOException {
+		protected synchronized void send(final int type, @Nullable final Object msg) throws IOException {
 			if (DEBUG) Log.v(TAG, "Client#send:");
 			if ((mSenderHandler == null) || !mIsRunning || !mIsInit) throw new IOException();
 			mSenderHandler.sendMessage(mSenderHandler.obtainMessage(type, msg));
@@ -470,54 +579,63 @@ public abstract class AbstractChannelDataLink {
 			throws IOException, ClassNotFoundException {
 			
 			if (DEBUG) Log.v(TAG, "Client#doReceiveLoop:");
-			
+			// 受信用バッファは受信ループ内で使い回す
+			final ChannelReader reader = new ChannelReader(mChannel);
 			for (; mIsRunning; ) {
 				try {
 					// 先頭は種類
-					final int type = ChannelHelper.readInt(mChannel);
+					final int type = reader.readInt();
 					if (DEBUG) Log.v(TAG, "Client#doReceiveLoop:type=" + type);
 					switch (type) {
 					case TYPE_NULL:
 						callOnReceive(null);
 						break;
 					case TYPE_BYTE_BUFFER:
-						callOnReceive(ChannelHelper.readByteBuffer(mChannel));
+					{
+						final ByteBufferPool pool = getReceiveBufferPool();
+						callOnReceive(pool != null
+							? reader.readRecycleByteBuffer(pool) : reader.readByteBuffer(null));
 						break;
+					}
 					case TYPE_BOOL:
-						callOnReceive(ChannelHelper.readBoolean(mChannel));
+						callOnReceive(reader.readBoolean());
 						break;
 					case TYPE_INT:
-						callOnReceive(ChannelHelper.readInt(mChannel));
+						callOnReceive(reader.readInt());
 						break;
 					case TYPE_LONG:
-						callOnReceive(ChannelHelper.readLong(mChannel));
+						callOnReceive(reader.readLong());
 						break;
 					case TYPE_FLOAT:
-						callOnReceive(ChannelHelper.readFloat(mChannel));
+						callOnReceive(reader.readFloat());
 						break;
 					case TYPE_DOUBLE:
-						callOnReceive(ChannelHelper.readDouble(mChannel));
+						callOnReceive(reader.readDouble());
 						break;
 					case TYPE_STRING:
-						callOnReceive(ChannelHelper.readString(mChannel));
+						callOnReceive(reader.readString());
 						break;
 					case TYPE_BYTE_ARRAY:
-						callOnReceive(ChannelHelper.readByteArray(mChannel));
+					{
+						final ByteBufferPool pool = getReceiveBufferPool();
+						callOnReceive(pool != null
+							? reader.readRecycleByteBuffer(pool) : reader.readByteArray());
 						break;
+					}
 					case TYPE_BOOL_ARRAY:
-						callOnReceive(ChannelHelper.readBooleanArray(mChannel));
+						callOnReceive(reader.readBooleanArray());
 						break;
 					case TYPE_INT_ARRAY:
-						callOnReceive(ChannelHelper.readIntArray(mChannel));
+						callOnReceive(reader.readIntArray());
 						break;
 					case TYPE_LONG_ARRAY:
-						callOnReceive(ChannelHelper.readLongArray(mChannel));
+						callOnReceive(reader.readLongArray());
 						break;
 					case TYPE_FLOAT_ARRAY:
-						callOnReceive(ChannelHelper.readFloatArray(mChannel));
+						callOnReceive(reader.readFloatArray());
 						break;
 					case TYPE_DOUBLE_ARRAY:
-						callOnReceive(ChannelHelper.readDoubleArray(mChannel));
+						callOnReceive(reader.readDoubleArray());
 						break;
 					}
 				} catch (final SocketException | ClosedChannelException e) {
@@ -595,105 +713,39 @@ public abstract class AbstractChannelDataLink {
 				// 内部コマンド
 				switch (msg.what) {
 				case REQ_RELEASE:
+					if (mWriter != null) {
+						try {
+							mWriter.flush();
+						} catch (final IOException e) {
+							if (DEBUG) Log.w(TAG, e);
+						}
+					}
 					internalRelease();
 					return true;
-				}
-				// データ送信
-				switch (msg.what) {
-				case TYPE_NULL:
-					ChannelHelper.write(mChannel, TYPE_NULL);
-					return true;
-				case TYPE_BYTE_BUFFER:
-					if (msg.obj instanceof ByteBuffer) {
-						ChannelHelper.write(mChannel, TYPE_BYTE_BUFFER);
-						ChannelHelper.write(mChannel, (ByteBuffer)msg.obj);
+				case REQ_FLUSH:
+					mFlushRequested = false;
+					if (mWriter != null) {
+						mWriter.flush();
 					}
 					return true;
-				case TYPE_BOOL:
-					if (msg.obj instanceof Boolean) {
-						ChannelHelper.write(mChannel, TYPE_BOOL);
-						ChannelHelper.write(mChannel, (boolean)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_INT:
-					if (msg.obj instanceof Integer) {
-						ChannelHelper.write(mChannel, TYPE_INT);
-						ChannelHelper.write(mChannel, (int)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_LONG:
-					if (msg.obj instanceof Long) {
-						ChannelHelper.write(mChannel, TYPE_LONG);
-						ChannelHelper.write(mChannel, (long)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_FLOAT:
-					if (msg.obj instanceof Float) {
-						ChannelHelper.write(mChannel, TYPE_FLOAT);
-						ChannelHelper.write(mChannel, (float)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_DOUBLE:
-					if (msg.obj instanceof Double) {
-						ChannelHelper.write(mChannel, TYPE_DOUBLE);
-						ChannelHelper.write(mChannel, (double)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_STRING:
-					if (msg.obj instanceof String) {
-						ChannelHelper.write(mChannel, TYPE_STRING);
-						ChannelHelper.write(mChannel, (String)msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_BYTE_ARRAY:
-					if (msg.obj instanceof byte[]) {
-						ChannelHelper.write(mChannel, TYPE_BYTE_ARRAY);
-						ChannelHelper.write(mChannel, (byte[])msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_BOOL_ARRAY:
-					if (msg.obj instanceof boolean[]) {
-						ChannelHelper.write(mChannel, TYPE_BOOL_ARRAY);
-						ChannelHelper.write(mChannel, (boolean[])msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_INT_ARRAY:
-					if (msg.obj instanceof int[]) {
-						ChannelHelper.write(mChannel, TYPE_INT_ARRAY);
-						ChannelHelper.write(mChannel, (int[])msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_LONG_ARRAY:
-					if (msg.obj instanceof long[]) {
-						ChannelHelper.write(mChannel, TYPE_LONG_ARRAY);
-						ChannelHelper.write(mChannel, (long[])msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_FLOAT_ARRAY:
-					if (msg.obj instanceof float[]) {
-						ChannelHelper.write(mChannel, TYPE_FLOAT_ARRAY);
-						ChannelHelper.write(mChannel, (float[])msg.obj);
-						return true;
-					}
-					break;
-				case TYPE_DOUBLE_ARRAY:
-					if (msg.obj instanceof double[]) {
-						ChannelHelper.write(mChannel, TYPE_DOUBLE_ARRAY);
-						ChannelHelper.write(mChannel, (double[])msg.obj);
-						return true;
-					}
-					break;
 				}
+				// データ送信
+				if (mWriter == null) {
+					mWriter = new ChannelWriter(mChannel);
+				}
+				final boolean result = writeMessage(mWriter, msg);
+				if (result) {
+					mSentMessages++;
+				}
+				final long linger = mLingerMs;
+				if (linger <= 0) {
+					mWriter.flush();
+				} else if (!mFlushRequested && (mWriter.pending() > 0)) {
+					// 最初のメッセージから指定時間後に書き込む
+					mFlushRequested = true;
+					mSenderHandler.sendEmptyMessageDelayed(REQ_FLUSH, linger);
+				}
+				return result;
 			} catch (final SocketException e) {
 				if (DEBUG) Log.w(TAG, e);
 			} catch (final IOException e) {
@@ -705,6 +757,115 @@ public abstract class AbstractChannelDataLink {
 			return false;
 		}
 		
+		/**
+		 * 送信データを書き込む
+		 * 書き込みはChannelWriterのバッファへ溜めるだけなので呼び出し元でflushすること
+		 * @param writer
+		 * @param msg
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean writeMessage(@NonNull final ChannelWriter writer,
+			@NonNull final Message msg) throws IOException {
+
+			switch (msg.what) {
+			case TYPE_NULL:
+				writer.write(TYPE_NULL);
+				return true;
+			case TYPE_BYTE_BUFFER:
+				if (msg.obj instanceof ByteBuffer) {
+					writer.write(TYPE_BYTE_BUFFER);
+					writer.write((ByteBuffer)msg.obj);
+				}
+				return true;
+			case TYPE_BOOL:
+				if (msg.obj instanceof Boolean) {
+					writer.write(TYPE_BOOL);
+					writer.write((boolean)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_INT:
+				if (msg.obj instanceof Integer) {
+					writer.write(TYPE_INT);
+					writer.write((int)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_LONG:
+				if (msg.obj instanceof Long) {
+					writer.write(TYPE_LONG);
+					writer.write((long)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_FLOAT:
+				if (msg.obj instanceof Float) {
+					writer.write(TYPE_FLOAT);
+					writer.write((float)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_DOUBLE:
+				if (msg.obj instanceof Double) {
+					writer.write(TYPE_DOUBLE);
+					writer.write((double)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_STRING:
+				if (msg.obj instanceof String) {
+					writer.write(TYPE_STRING);
+					writer.write((String)msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_BYTE_ARRAY:
+				if (msg.obj instanceof byte[]) {
+					writer.write(TYPE_BYTE_ARRAY);
+					writer.write((byte[])msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_BOOL_ARRAY:
+				if (msg.obj instanceof boolean[]) {
+					writer.write(TYPE_BOOL_ARRAY);
+					writer.write((boolean[])msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_INT_ARRAY:
+				if (msg.obj instanceof int[]) {
+					writer.write(TYPE_INT_ARRAY);
+					writer.write((int[])msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_LONG_ARRAY:
+				if (msg.obj instanceof long[]) {
+					writer.write(TYPE_LONG_ARRAY);
+					writer.write((long[])msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_FLOAT_ARRAY:
+				if (msg.obj instanceof float[]) {
+					writer.write(TYPE_FLOAT_ARRAY);
+					writer.write((float[])msg.obj);
+					return true;
+				}
+				break;
+			case TYPE_DOUBLE_ARRAY:
+				if (msg.obj instanceof double[]) {
+					writer.write(TYPE_DOUBLE_ARRAY);
+					writer.write((double[])msg.obj);
+					return true;
+				}
+				break;
+			}
+			return false;
+		}
+		
 	}
 
 }
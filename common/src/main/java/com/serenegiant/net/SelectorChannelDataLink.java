@@ -0,0 +1,1208 @@
+package com.serenegiant.net;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.io.ByteBufferPool;
+import com.serenegiant.io.RecycleByteBuffer;
+import com.serenegiant.nio.CharsetsUtils;
+import com.serenegiant.utils.PrimitiveArrayCodec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Selectorを使ったイベントループ方式のAbstractChannelDataLink実装
+ * SocketChannelDataLinkは接続毎に受信用スレッドと送信用のHandlerThreadの
+ * 2つのスレッドを生成するが、こちらはノンブロッキングのSocketChannelを
+ * 1つまたは指定した数のイベントループスレッドへ振り分けて処理するので
+ * 接続数が増えてもスレッド数は増えない。
+ * 送受信データの形式はSocketChannelDataLinkと同じなので相互に接続できる
+ * Callbackの各メソッドはイベントループスレッド上で呼ばれるので
+ * 時間のかかる処理をしてはいけない
+ */
+public class SelectorChannelDataLink extends AbstractChannelDataLink {
+	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
+	private static final String TAG = SelectorChannelDataLink.class.getSimpleName();
+
+	public static final int DEFAULT_SERVER_PORT = SocketChannelDataLink.DEFAULT_SERVER_PORT;
+	/**
+	 * 接続毎の送受信バッファの初期サイズ
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	/**
+	 * 接続毎の送受信バッファの最大サイズ
+	 * 送信待ちのデータまたは1つの受信データがこれを超えるとIOExceptionになる
+	 */
+	private static final int MAX_BUFFER_SIZE = 32 * 1024 * 1024;
+	/**
+	 * 送信待ちのデータのデフォルトの上限
+	 * 送信待ちのデータがこれを超える時はClient#sendで送信されるまで待機する
+	 */
+	public static final int DEFAULT_SEND_HIGH_WATER_MARK = 1024 * 1024;
+	/**
+	 * Client#sendで送信待ちのデータが減るのを待つデフォルトの最大時間[ミリ秒]
+	 */
+	public static final long DEFAULT_SEND_TIMEOUT_MS = 5000;
+	/**
+	 * 接続待ちキューの長さ
+	 * 多数のクライアントから同時に接続要求が来ても取りこぼさないように
+	 * デフォルト(50)よりも大きくする
+	 */
+	private static final int BACKLOG = 256;
+	/**
+	 * 受信データが足りなくて解析できなかったことを示すためのオブジェクト
+	 */
+	private static final Object INCOMPLETE = new Object();
+
+	/**
+	 * イベントループスレッドの数
+	 */
+	private final int mNumThreads;
+	@NonNull
+	private final AtomicInteger mNextLoop = new AtomicInteger();
+	/**
+	 * イベントループ, 必要になった時に生成する
+	 */
+	@Nullable
+	private EventLoop[] mLoops;
+	/**
+	 * クライアントからの接続待ち用
+	 */
+	@Nullable
+	private ServerSocketChannel mServerChannel;
+
+	/**
+	 * コンストラクタ
+	 * イベントループスレッドは1つ
+	 */
+	public SelectorChannelDataLink() {
+		this(1, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * イベントループスレッドは1つ
+	 * @param callback
+	 */
+	public SelectorChannelDataLink(@Nullable final Callback callback) {
+		this(1, callback);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param numThreads イベントループスレッドの数, 接続は各スレッドへ順に振り分ける
+	 * @param callback
+	 */
+	public SelectorChannelDataLink(
+		@IntRange(from=1) final int numThreads, @Nullable final Callback callback) {
+
+		super();
+		if (DEBUG) Log.v(TAG, "コンストラクタ:numThreads=" + numThreads);
+		mNumThreads = Math.max(numThreads, 1);
+		if (callback != null) {
+			add(callback);
+		}
+	}
+
+	/**
+	 * 接続待ちを終了して全ての接続を切断、イベントループスレッドも終了する
+	 */
+	@Override
+	public void release() {
+		if (DEBUG) Log.v(TAG, "release:");
+		stop();
+		super.release();
+		final EventLoop[] loops;
+		synchronized (this) {
+			loops = mLoops;
+			mLoops = null;
+		}
+		if (loops != null) {
+			for (final EventLoop loop: loops) {
+				loop.quit();
+			}
+		}
+	}
+
+	/**
+	 * イベントループスレッドの数を取得
+	 * @return
+	 */
+	public int getNumThreads() {
+		return mNumThreads;
+	}
+
+	/**
+	 * 指定したアドレスへ接続する, ポートはDEFAULT_SERVER_PORTを使う
+	 * @param addr
+	 * @return
+	 * @throws IOException
+	 */
+	public Client connectTo(final String addr) throws IOException {
+		return connectTo(addr, DEFAULT_SERVER_PORT);
+	}
+
+	/**
+	 * 指定したアドレス・ポートへ接続する, クライアントからの接続待ち中で無くても構わない
+	 * 接続処理はイベントループスレッド上で非同期で行うので、このメソッドから返った時点では
+	 * まだ接続していないかもしれない。接続完了時にはCallback#onConnectが呼ばれる。
+	 * 接続完了前に送信したデータは接続完了後に送信する
+	 * @param addr
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	public Client connectTo(final String addr, final int port) throws IOException {
+		if (DEBUG) Log.v(TAG, "connectTo:addr=" + addr + ",port=" + port);
+		final InetSocketAddress address;
+		try {
+			address = new InetSocketAddress(InetAddress.getByName(addr), port);
+		} catch (final UnknownHostException e) {
+			throw new IOException(e.getMessage());
+		}
+		final EventLoop loop = nextLoop();
+		final SocketChannel channel = SocketChannel.open();
+		final Client result;
+		try {
+			channel.configureBlocking(false);
+			final boolean connected = channel.connect(address);
+			result = new Client(this, channel, loop, connected);
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		add(result);
+		result.registerAsync();
+		return result;
+	}
+
+	public synchronized boolean isRunning() {
+		return mServerChannel != null;
+	}
+
+	/**
+	 * 接続待ちしているポートを取得
+	 * @return 接続待ちしていなければ0
+	 */
+	public synchronized int getPort() {
+		return mServerChannel != null ? mServerChannel.socket().getLocalPort() : 0;
+	}
+
+	/**
+	 * クライアントからの接続待ちを開始する
+	 * 待受けポートはDEFAULT_SERVER_PORT
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		start(DEFAULT_SERVER_PORT, null);
+	}
+
+	/**
+	 * クライアントからの接続待ちを開始する
+	 * 待受けポートはDEFAULT_SERVER_PORT
+	 * @param callback
+	 * @throws IOException
+	 */
+	public void start(@Nullable final Callback callback) throws IOException {
+		start(DEFAULT_SERVER_PORT, callback);
+	}
+
+	/**
+	 * クライアントからの接続待ちを開始する
+	 * SocketChannelDataLinkと同様にローカルのIPv4アドレスで接続を待つ
+	 * @param port
+	 * @param callback
+	 * @throws IOException
+	 */
+	public void start(final int port, @Nullable final Callback callback) throws IOException {
+		start(new InetSocketAddress(NetworkUtils.getLocalIPv4Address(), port), callback);
+	}
+
+	/**
+	 * 指定したアドレスでクライアントからの接続待ちを開始する
+	 * @param address
+	 * @param callback
+	 * @throws IOException
+	 */
+	public synchronized void start(@NonNull final SocketAddress address,
+		@Nullable final Callback callback) throws IOException {
+
+		if (DEBUG) Log.v(TAG, "start:" + address);
+		if (callback != null) {
+			add(callback);
+		}
+		if (mServerChannel == null) {
+			final EventLoop loop = nextLoop();
+			final ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				final ServerSocket socket = channel.socket();
+				socket.setReuseAddress(true);
+				socket.bind(address, BACKLOG);
+				channel.configureBlocking(false);
+			} catch (final IOException e) {
+				channel.close();
+				throw e;
+			}
+			mServerChannel = channel;
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						channel.register(loop.mSelector, SelectionKey.OP_ACCEPT,
+							SelectorChannelDataLink.this);
+					} catch (final IOException e) {
+						Log.w(TAG, e);
+						synchronized (SelectorChannelDataLink.this) {
+							if (mServerChannel == channel) {
+								stop();
+							}
+						}
+					}
+				}
+			});
+		} else {
+			Log.d(TAG, "already started");
+		}
+	}
+
+	/**
+	 * クライアントからの接続待ちを終了
+	 * 接続済みのクライアントは切断しない
+	 */
+	public synchronized void stop() {
+		if (DEBUG) Log.v(TAG, "stop");
+		if (mServerChannel != null) {
+			try {
+				mServerChannel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+			mServerChannel = null;
+			if (mLoops != null) {
+				for (final EventLoop loop: mLoops) {
+					loop.mSelector.wakeup();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 接続を割り当てるイベントループを取得
+	 * イベントループが未生成であれば生成する
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private synchronized EventLoop nextLoop() throws IOException {
+		if (mLoops == null) {
+			final EventLoop[] loops = new EventLoop[mNumThreads];
+			try {
+				for (int i = 0; i < mNumThreads; i++) {
+					loops[i] = new EventLoop(TAG + "-" + i);
+				}
+			} catch (final IOException e) {
+				for (final EventLoop loop: loops) {
+					if (loop != null) {
+						loop.quit();
+					}
+				}
+				throw e;
+			}
+			mLoops = loops;
+		}
+		return mLoops[(mNextLoop.getAndIncrement() & 0x7fffffff) % mLoops.length];
+	}
+
+	/**
+	 * クライアントからの接続要求を処理, イベントループスレッド上で呼ばれる
+	 * @param server
+	 */
+	private void onAcceptable(@NonNull final ServerSocketChannel server) {
+		for ( ; ; ) {
+			final SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+				return;
+			}
+			if (channel == null) break;
+			try {
+				channel.configureBlocking(false);
+				final Client client = new Client(this, channel, nextLoop(), true);
+				add(client);
+				client.registerAsync();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+				try {
+					channel.close();
+				} catch (final IOException e1) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * 通信クライアント
+	 * 受信データの解析とCallbackの呼び出しはイベントループスレッド上で行う
+	 * 送信データは呼び出したスレッド上で送信バッファへ書き込んで
+	 * イベントループスレッド上で送信する
+	 * イベントループスレッドが処理するまでに溜まった送信データはまとめて書き込むので
+	 * #setLingerの設定は無視する
+	 * 送信待ちのデータが#setSendHighWaterMarkで設定した上限を超える時は
+	 * #sendで送信されるまで待機する(イベントループスレッド上から呼んだ時は待機しない)
+	 */
+	public static class Client extends AbstractClient {
+		@NonNull
+		private final WeakReference<SelectorChannelDataLink> mWeakParent;
+		@NonNull
+		private final SocketChannel mSocketChannel;
+		@NonNull
+		private final EventLoop mLoop;
+		/**
+		 * 送信バッファの排他制御用
+		 */
+		@NonNull
+		private final Object mWriteSync = new Object();
+		/**
+		 * 送信待ちのデータ, positionまでが送信待ち
+		 */
+		@NonNull
+		private ByteBuffer mWriteBuffer;
+		/**
+		 * 受信バッファ, イベントループスレッドからのみアクセスする
+		 */
+		@NonNull
+		private ByteBuffer mReadBuffer;
+		/**
+		 * イベントループスレッドへ送信要求済みかどうか
+		 */
+		@NonNull
+		private final AtomicBoolean mWriteRequested = new AtomicBoolean();
+		/**
+		 * 送信待ちのデータの上限[バイト], mWriteSyncで保護する
+		 */
+		private int mHighWaterMark = DEFAULT_SEND_HIGH_WATER_MARK;
+		/**
+		 * 送信待ちのデータが減るのを待つ最大時間[ミリ秒], mWriteSyncで保護する
+		 */
+		private long mSendTimeoutMs = DEFAULT_SEND_TIMEOUT_MS;
+		/**
+		 * 送信待ちのデータが減るのを待っているスレッドの数, mWriteSyncで保護する
+		 */
+		private int mWaitingSenders;
+		private volatile boolean mReleased;
+		/** 送信したメッセージ数 */
+		@NonNull
+		private final AtomicLong mSentMessages = new AtomicLong();
+		/** チャネルへ書き込んだ回数, イベントループスレッド上でのみ更新する */
+		private volatile long mFlushCount;
+		/** チャネルへ書き込んだバイト数, イベントループスレッド上でのみ更新する */
+		private volatile long mWrittenBytes;
+		// 以下はイベントループスレッドからのみアクセスする
+		@Nullable
+		private SelectionKey mKey;
+		private boolean mConnected;
+		private boolean mClosed;
+		private boolean mCloseAfterFlush;
+
+		private Client(@NonNull final SelectorChannelDataLink parent,
+			@NonNull final SocketChannel channel, @NonNull final EventLoop loop,
+			final boolean connected) {
+
+			super(parent, channel, false);
+			if (DEBUG) Log.v(TAG, "Client#コンストラクタ:channel=" + channel);
+			mWeakParent = new WeakReference<SelectorChannelDataLink>(parent);
+			mSocketChannel = channel;
+			mLoop = loop;
+			mConnected = connected;
+			mWriteBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+			mReadBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+			setInit(true);
+		}
+
+		/**
+		 * 接続を切断して関係するリソースを開放する
+		 * 再利用は出来ない
+		 * @param delay 0より大きければ送信待ちのデータを送信してから切断する
+		 */
+		@Override
+		public void release(final long delay) {
+			if (DEBUG) Log.v(TAG, "Client#release:");
+			if (!mReleased) {
+				mReleased = true;
+				mLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if ((delay > 0) && mConnected && hasPendingData()) {
+							mCloseAfterFlush = true;
+						} else {
+							close(null);
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * このClientのアドレスを取得
+		 * @return
+		 */
+		public String getAddress() {
+			final Socket socket = mSocketChannel.socket();
+			final InetAddress address = socket != null ? socket.getInetAddress() : null;
+			return address != null ? address.getHostAddress() : null;
+		}
+
+		/**
+		 * このClientのポートを取得
+		 * @return
+		 */
+		public int getPort() {
+			final Socket socket = mSocketChannel.socket();
+			return socket != null ? socket.getPort() : 0;
+		}
+
+		public boolean isConnected() {
+			return mSocketChannel.isConnected();
+		}
+
+		/**
+		 * 送信待ちのバイト数を取得
+		 * @return
+		 */
+		public int getPendingBytes() {
+			synchronized (mWriteSync) {
+				return mWriteBuffer.position();
+			}
+		}
+
+		/**
+		 * 送信待ちのデータの上限と上限を超えた時の最大待機時間を設定
+		 * 1つの送信データが上限より大きくても送信待ちのデータがなければ待機せずに送信する
+		 * @param highWaterMark 送信待ちのデータの上限[バイト]
+		 * @param timeoutMs 送信待ちのデータが減るのを待つ最大時間[ミリ秒],
+		 * 			この時間内に減らなければ#sendがIOExceptionを投げる
+		 */
+		public void setSendHighWaterMark(@IntRange(from=1) final int highWaterMark,
+			final long timeoutMs) {
+
+			if (highWaterMark <= 0) {
+				throw new IllegalArgumentException("highWaterMark should be positive");
+			}
+			synchronized (mWriteSync) {
+				mHighWaterMark = Math.min(highWaterMark, MAX_BUFFER_SIZE);
+				mSendTimeoutMs = timeoutMs;
+				mWriteSync.notifyAll();
+			}
+		}
+
+		/**
+		 * 送信データはイベントループスレッド上で随時書き込むので何もしない
+		 */
+		@Override
+		public void flush() {
+		}
+
+		@NonNull
+		@Override
+		public SendStats getSendStats() {
+			return new SendStats(mSentMessages.get(), mFlushCount, mWrittenBytes);
+		}
+
+		/**
+		 * 送信データを送信バッファへ書き込んでイベントループスレッドへ送信要求する
+		 * 送信待ちのデータが上限を超える時は送信されるまで待機する
+		 * @param type
+		 * @param msg
+		 * @throws IOException 切断された時, 送信待ちのデータが減らずにタイムアウトした時
+		 */
+		@Override
+		protected void send(final int type, @Nullable final Object msg) throws IOException {
+			if (DEBUG) Log.v(TAG, "Client#send:");
+			if (mReleased) throw new IOException("already released");
+			final Object value = (type == TYPE_STRING)
+				? ((String)msg).getBytes(CharsetsUtils.UTF8) : msg;
+			final long bytes = 4L + payloadSize(type, value);
+			synchronized (mWriteSync) {
+				waitWritable(bytes);
+				if (mWriteBuffer.remaining() < bytes) {
+					mWriteBuffer = grow(mWriteBuffer, mWriteBuffer.position() + bytes);
+				}
+				mWriteBuffer.putInt(type);
+				encode(mWriteBuffer, type, value);
+			}
+			mSentMessages.incrementAndGet();
+			if (mWriteRequested.compareAndSet(false, true)) {
+				mLoop.requestWrite(this);
+			}
+		}
+
+		/**
+		 * 指定したバイト数を追加しても送信待ちのデータが上限を超えなくなるまで待機する
+		 * イベントループスレッド上で待機すると送信されないので待機しない
+		 * mWriteSyncをロックした状態で呼ぶこと
+		 * @param bytes 追加するバイト数
+		 * @throws IOException 切断された時, タイムアウトした時
+		 */
+		private void waitWritable(final long bytes) throws IOException {
+			if (mLoop.isLoopThread()) return;
+			long deadline = 0;
+			for ( ; (mWriteBuffer.position() > 0)
+				&& (mWriteBuffer.position() + bytes > mHighWaterMark) ; ) {
+
+				if (mReleased) throw new IOException("already released");
+				final long now = System.nanoTime();
+				if (deadline == 0) {
+					deadline = now + TimeUnit.MILLISECONDS.toNanos(mSendTimeoutMs);
+				}
+				final long remainingNs = deadline - now;
+				if (remainingNs <= 0) {
+					throw new IOException("send timeout, pending=" + mWriteBuffer.position());
+				}
+				mWaitingSenders++;
+				try {
+					TimeUnit.NANOSECONDS.timedWait(mWriteSync, remainingNs);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				} finally {
+					mWaitingSenders--;
+				}
+			}
+		}
+
+		/**
+		 * 初期化処理
+		 * 接続処理はイベントループスレッド上で行うので何もしない
+		 * @throws IOException
+		 */
+		@Override
+		protected void init() throws IOException {
+		}
+
+//--------------------------------------------------------------------------------
+		/**
+		 * イベントループスレッド上でSelectorへ登録する
+		 */
+		private void registerAsync() {
+			mLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					register();
+				}
+			});
+		}
+
+		/**
+		 * Selectorへ登録, イベントループスレッド上で呼ばれる
+		 */
+		private void register() {
+			if (mClosed) return;
+			try {
+				mKey = mSocketChannel.register(mLoop.mSelector,
+					mConnected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+				if (mConnected) {
+					onConnected();
+				}
+			} catch (final IOException e) {
+				close(e);
+			}
+		}
+
+		/**
+		 * 接続完了時の処理, イベントループスレッド上で呼ばれる
+		 * @throws IOException
+		 */
+		private void onConnected() throws IOException {
+			if (DEBUG) Log.v(TAG, "Client#onConnected:");
+			mConnected = true;
+			callOnConnect();
+			// 接続前に送信要求されたデータを送信する
+			writePending();
+		}
+
+		/**
+		 * Selectorで選択された時の処理, イベントループスレッド上で呼ばれる
+		 * @param key
+		 */
+		private void onSelected(@NonNull final SelectionKey key) {
+			try {
+				if (key.isConnectable()) {
+					if (mSocketChannel.finishConnect()) {
+						key.interestOps(SelectionKey.OP_READ);
+						onConnected();
+					}
+				}
+				if (key.isValid() && key.isReadable()) {
+					read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					writePending();
+				}
+			} catch (final IOException e) {
+				close(e);
+			}
+		}
+
+		/**
+		 * 受信処理, イベントループスレッド上で呼ばれる
+		 * @throws IOException
+		 */
+		private void read() throws IOException {
+			final int n = mSocketChannel.read(mReadBuffer);
+			if (n < 0) {
+				close(null);
+				return;
+			}
+			mReadBuffer.flip();
+			final ByteBufferPool pool = getReceiveBufferPool();
+			try {
+				for ( ; !mClosed ; ) {
+					final Object msg = decode(mReadBuffer, pool);
+					if (msg == INCOMPLETE) break;
+					callOnReceive(msg);
+				}
+			} finally {
+				mReadBuffer.compact();
+			}
+			if (!mReadBuffer.hasRemaining()) {
+				// 1つの受信データがバッファに収まらない
+				mReadBuffer = grow(mReadBuffer, mReadBuffer.capacity() * 2L);
+			}
+		}
+
+		/**
+		 * 送信待ちのデータを送信する, イベントループスレッド上で呼ばれる
+		 * 一度に送信できなかった時は送信可能になるのを待つ
+		 * @throws IOException
+		 */
+		private void writePending() throws IOException {
+			mWriteRequested.set(false);
+			if (!mConnected || mClosed || (mKey == null)) return;
+			final boolean remaining;
+			synchronized (mWriteSync) {
+				if (mWriteBuffer.position() > 0) {
+					mWriteBuffer.flip();
+					try {
+						final int bytes = mSocketChannel.write(mWriteBuffer);
+						if (bytes > 0) {
+							mWrittenBytes += bytes;
+							mFlushCount++;
+						}
+					} finally {
+						mWriteBuffer.compact();
+					}
+				}
+				remaining = mWriteBuffer.position() > 0;
+				if ((mWaitingSenders > 0) && (mWriteBuffer.position() < mHighWaterMark)) {
+					// 送信待ちのデータが減るのを待っているスレッドを起床させる
+					mWriteSync.notifyAll();
+				}
+			}
+			final int ops = remaining
+				? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			if (mKey.interestOps() != ops) {
+				mKey.interestOps(ops);
+			}
+			if (!remaining && mCloseAfterFlush) {
+				close(null);
+			}
+		}
+
+		private boolean hasPendingData() {
+			synchronized (mWriteSync) {
+				return mWriteBuffer.position() > 0;
+			}
+		}
+
+		/**
+		 * 切断処理, イベントループスレッド上で呼ばれる
+		 * @param e 接続中にエラーが発生した時
+		 */
+		private void close(@Nullable final IOException e) {
+			if (mClosed) return;
+			if (DEBUG) Log.v(TAG, "Client#close:" + e);
+			mClosed = mReleased = true;
+			synchronized (mWriteSync) {
+				mWriteSync.notifyAll();
+			}
+			if (mKey != null) {
+				mKey.cancel();
+				mKey = null;
+			}
+			try {
+				mSocketChannel.close();
+			} catch (final IOException e1) {
+				// ignore
+			}
+			final SelectorChannelDataLink parent = mWeakParent.get();
+			if (parent != null) {
+				parent.remove(this);
+			}
+			if (mConnected) {
+				callOnDisconnect();
+			} else if (e != null) {
+				// 接続できなかった
+				callOnError(e);
+			}
+		}
+	}
+
+	/**
+	 * Selectorを使ったイベントループ
+	 */
+	private static class EventLoop implements Runnable {
+		@NonNull
+		private final Selector mSelector;
+		@NonNull
+		private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+		@NonNull
+		private final Queue<Client> mWriteRequests = new ConcurrentLinkedQueue<Client>();
+		@NonNull
+		private final Thread mThread;
+		private volatile boolean mIsRunning = true;
+
+		private EventLoop(@NonNull final String name) throws IOException {
+			mSelector = Selector.open();
+			mThread = new Thread(this, name);
+			mThread.start();
+		}
+
+		/**
+		 * 呼び出し元がイベントループスレッドかどうか
+		 * @return
+		 */
+		private boolean isLoopThread() {
+			return Thread.currentThread() == mThread;
+		}
+
+		/**
+		 * イベントループスレッド上で実行する
+		 * @param task
+		 */
+		private void execute(@NonNull final Runnable task) {
+			if (mSelector.isOpen()) {
+				mTasks.offer(task);
+				mSelector.wakeup();
+			}
+		}
+
+		/**
+		 * イベントループスレッド上で送信処理を行うように要求する
+		 * @param client
+		 */
+		private void requestWrite(@NonNull final Client client) {
+			if (mSelector.isOpen()) {
+				mWriteRequests.offer(client);
+				mSelector.wakeup();
+			}
+		}
+
+		/**
+		 * イベントループを終了する
+		 * 終了要求前に要求された処理を実行してから終了する
+		 */
+		private void quit() {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					mIsRunning = false;
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			if (DEBUG) Log.v(TAG, "EventLoop#run:");
+			try {
+				for ( ; mIsRunning ; ) {
+					mSelector.select();
+					for (Runnable task = mTasks.poll(); task != null; task = mTasks.poll()) {
+						task.run();
+					}
+					for (Client client = mWriteRequests.poll(); client != null; client = mWriteRequests.poll()) {
+						try {
+							client.writePending();
+						} catch (final IOException e) {
+							client.close(e);
+						}
+					}
+					final Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						final SelectionKey key = iter.next();
+						iter.remove();
+						if (!key.isValid()) continue;
+						final Object attachment = key.attachment();
+						if (attachment instanceof Client) {
+							((Client)attachment).onSelected(key);
+						} else if ((attachment instanceof SelectorChannelDataLink)
+							&& key.isAcceptable()) {
+							((SelectorChannelDataLink)attachment)
+								.onAcceptable((ServerSocketChannel)key.channel());
+						}
+					}
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			} finally {
+				for (final SelectionKey key: new ArrayList<SelectionKey>(mSelector.keys())) {
+					final Object attachment = key.attachment();
+					if (attachment instanceof Client) {
+						((Client)attachment).close(null);
+					} else {
+						key.cancel();
+					}
+				}
+				try {
+					mSelector.close();
+				} catch (final IOException e) {
+					// ignore
+				}
+			}
+			if (DEBUG) Log.v(TAG, "EventLoop#run:finished");
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * バッファを拡張する
+	 * @param buffer 書き込み中のバッファ(positionまでが有効なデータ)
+	 * @param required 必要なサイズ
+	 * @return
+	 * @throws IOException MAX_BUFFER_SIZEを超える時
+	 */
+	@NonNull
+	private static ByteBuffer grow(@NonNull final ByteBuffer buffer, final long required)
+		throws IOException {
+
+		if (required > MAX_BUFFER_SIZE) {
+			throw new IOException("buffer overflow, required=" + required);
+		}
+		final int capacity = (int)Math.min(
+			Math.max(buffer.capacity() * 2L, required), MAX_BUFFER_SIZE);
+		final ByteBuffer result = ByteBuffer.allocateDirect(capacity);
+		buffer.flip();
+		result.put(buffer);
+		return result;
+	}
+
+	/**
+	 * 種類毎の送信データのバイト数(種類を除く)を取得
+	 * @param type
+	 * @param value TYPE_STRINGの時はUTF8でエンコードしたbyte配列
+	 * @return
+	 * @throws IOException
+	 */
+	private static long payloadSize(final int type, @Nullable final Object value)
+		throws IOException {
+
+		switch (type) {
+		case TYPE_NULL:
+			return 0;
+		case TYPE_BYTE_BUFFER:
+			return 4L + ((ByteBuffer)value).remaining();
+		case TYPE_STRING:
+		case TYPE_BYTE_ARRAY:
+			return 4L + ((byte[])value).length;
+		case TYPE_BOOL:
+			return 1;
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			return 4;
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			return 8;
+		case TYPE_BOOL_ARRAY:
+			return 4L + ((boolean[])value).length;
+		case TYPE_INT_ARRAY:
+			return 4L + ((int[])value).length * 4L;
+		case TYPE_LONG_ARRAY:
+			return 4L + ((long[])value).length * 8L;
+		case TYPE_FLOAT_ARRAY:
+			return 4L + ((float[])value).length * 4L;
+		case TYPE_DOUBLE_ARRAY:
+			return 4L + ((double[])value).length * 8L;
+		default:
+			throw new IOException("unknown type " + type);
+		}
+	}
+
+	/**
+	 * 送信データをバッファへ書き込む
+	 * プリミティブ配列はChannelWriterと同様にPrimitiveArrayCodecで型付きのビューへまとめて書き込む
+	 * (ビューはbufのバイトオーダー(ビッグエンディアン)を引き継ぐ)
+	 * @param buf 十分な空きがあること
+	 * @param type
+	 * @param value TYPE_STRINGの時はUTF8でエンコードしたbyte配列
+	 */
+	private static void encode(@NonNull final ByteBuffer buf,
+		final int type, @Nullable final Object value) {
+
+		switch (type) {
+		case TYPE_BYTE_BUFFER:
+		{
+			// 呼び出し元のByteBufferのpositionを変更しないようにduplicateする
+			final ByteBuffer v = ((ByteBuffer)value).duplicate();
+			buf.putInt(v.remaining());
+			buf.put(v);
+			break;
+		}
+		case TYPE_STRING:
+		case TYPE_BYTE_ARRAY:
+		{
+			final byte[] v = (byte[])value;
+			buf.putInt(v.length);
+			buf.put(v);
+			break;
+		}
+		case TYPE_BOOL:
+			buf.put((byte)((Boolean)value ? 1 : 0));
+			break;
+		case TYPE_INT:
+			buf.putInt((Integer)value);
+			break;
+		case TYPE_LONG:
+			buf.putLong((Long)value);
+			break;
+		case TYPE_FLOAT:
+			buf.putFloat((Float)value);
+			break;
+		case TYPE_DOUBLE:
+			buf.putDouble((Double)value);
+			break;
+		case TYPE_BOOL_ARRAY:
+		{
+			final boolean[] v = (boolean[])value;
+			buf.putInt(v.length);
+			// booleanは型付きのビューが無いので1要素ずつ書き込む
+			for (final boolean b: v) {
+				buf.put((byte)(b ? 1 : 0));
+			}
+			break;
+		}
+		case TYPE_INT_ARRAY:
+		{
+			final int[] v = (int[])value;
+			buf.putInt(v.length);
+			PrimitiveArrayCodec.encode(v, buf);
+			break;
+		}
+		case TYPE_LONG_ARRAY:
+		{
+			final long[] v = (long[])value;
+			buf.putInt(v.length);
+			PrimitiveArrayCodec.encode(v, buf);
+			break;
+		}
+		case TYPE_FLOAT_ARRAY:
+		{
+			final float[] v = (float[])value;
+			buf.putInt(v.length);
+			PrimitiveArrayCodec.encode(v, buf);
+			break;
+		}
+		case TYPE_DOUBLE_ARRAY:
+		{
+			final double[] v = (double[])value;
+			buf.putInt(v.length);
+			PrimitiveArrayCodec.encode(v, buf);
+			break;
+		}
+		default:
+			// TYPE_NULLは種類のみ
+			break;
+		}
+	}
+
+	/**
+	 * 受信バッファから1つ分の受信データを解析する
+	 * @param buf 読み込み中のバッファ(positionからlimitまでが未処理のデータ)
+	 * @param pool nullでなければTYPE_BYTE_BUFFERとTYPE_BYTE_ARRAYを
+	 * 			プールから取得したRecycleByteBufferで返す
+	 * @return 受信データが足りない時はINCOMPLETEを返す(positionは変更しない)
+	 * @throws IOException 不明な種類または不正な要素数の時
+	 */
+	@Nullable
+	private static Object decode(@NonNull final ByteBuffer buf,
+		@Nullable final ByteBufferPool pool) throws IOException {
+
+		final int start = buf.position();
+		if (buf.remaining() < 4) {
+			return INCOMPLETE;
+		}
+		final int type = buf.getInt();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_BOOL:
+			if (buf.remaining() < 1) break;
+			return buf.get() != 0;
+		case TYPE_INT:
+			if (buf.remaining() < 4) break;
+			return buf.getInt();
+		case TYPE_LONG:
+			if (buf.remaining() < 8) break;
+			return buf.getLong();
+		case TYPE_FLOAT:
+			if (buf.remaining() < 4) break;
+			return buf.getFloat();
+		case TYPE_DOUBLE:
+			if (buf.remaining() < 8) break;
+			return buf.getDouble();
+		case TYPE_BYTE_BUFFER:
+		case TYPE_STRING:
+		case TYPE_BYTE_ARRAY:
+		case TYPE_BOOL_ARRAY:
+			return decodeArray(buf, start, type, 1, pool);
+		case TYPE_INT_ARRAY:
+		case TYPE_FLOAT_ARRAY:
+			return decodeArray(buf, start, type, 4, null);
+		case TYPE_LONG_ARRAY:
+		case TYPE_DOUBLE_ARRAY:
+			return decodeArray(buf, start, type, 8, null);
+		default:
+			throw new IOException("unknown type " + type);
+		}
+		buf.position(start);
+		return INCOMPLETE;
+	}
+
+	/**
+	 * 要素数付きの受信データを解析する
+	 * @param buf
+	 * @param start 受信データの先頭位置
+	 * @param type
+	 * @param elementBytes
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private static Object decodeArray(@NonNull final ByteBuffer buf,
+		final int start, final int type, final int elementBytes,
+		@Nullable final ByteBufferPool pool) throws IOException {
+
+		if (buf.remaining() < 4) {
+			buf.position(start);
+			return INCOMPLETE;
+		}
+		final int n = buf.getInt();
+		final long bytes = (long)n * elementBytes;
+		if ((n < 0) || (bytes > MAX_BUFFER_SIZE)) {
+			throw new IOException("invalid length " + n);
+		}
+		if (buf.remaining() < bytes) {
+			buf.position(start);
+			return INCOMPLETE;
+		}
+		if ((pool != null) && ((type == TYPE_BYTE_BUFFER) || (type == TYPE_BYTE_ARRAY))) {
+			final RecycleByteBuffer result = pool.obtain(n);
+			final int limit = buf.limit();
+			buf.limit(buf.position() + n);
+			result.getBuffer().put(buf);
+			buf.limit(limit);
+			result.getBuffer().flip();
+			return result;
+		}
+		switch (type) {
+		case TYPE_BYTE_BUFFER:
+		{
+			final ByteBuffer result = ByteBuffer.allocateDirect(n);
+			final int limit = buf.limit();
+			buf.limit(buf.position() + n);
+			result.put(buf);
+			buf.limit(limit);
+			result.flip();
+			return result;
+		}
+		case TYPE_STRING:
+		{
+			final byte[] bytesArray = new byte[n];
+			buf.get(bytesArray);
+			return new String(bytesArray, CharsetsUtils.UTF8);
+		}
+		case TYPE_BYTE_ARRAY:
+		{
+			final byte[] result = new byte[n];
+			buf.get(result);
+			return result;
+		}
+		case TYPE_BOOL_ARRAY:
+		{
+			final boolean[] result = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = buf.get() != 0;
+			}
+			return result;
+		}
+		case TYPE_INT_ARRAY:
+		{
+			final int[] result = new int[n];
+			PrimitiveArrayCodec.decode(buf, result);
+			return result;
+		}
+		case TYPE_FLOAT_ARRAY:
+		{
+			final float[] result = new float[n];
+			PrimitiveArrayCodec.decode(buf, result);
+			return result;
+		}
+		case TYPE_LONG_ARRAY:
+		{
+			final long[] result = new long[n];
+			PrimitiveArrayCodec.decode(buf, result);
+			return result;
+		}
+		default:	// TYPE_DOUBLE_ARRAY
+		{
+			final double[] result = new double[n];
+			PrimitiveArrayCodec.decode(buf, result);
+			return result;
+		}
+		}
+	}
+}
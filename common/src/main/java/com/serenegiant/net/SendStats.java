@@ -0,0 +1,95 @@
+package com.serenegiant.net;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * AbstractChannelDataLink.AbstractClientの送信統計情報
+ * 取得した時点の値を保持する
+ * 1回の書き込みあたりのメッセージ数/バイト数を遅延時間(linger)とスループットの
+ * 調整の目安にする
+ */
+public class SendStats {
+	private final long mMessages;
+	private final long mFlushes;
+	private final long mBytes;
+
+	/**
+	 * コンストラクタ
+	 * @param messages 送信したメッセージ数
+	 * @param flushes チャネルへ書き込んだ回数
+	 * @param bytes チャネルへ書き込んだバイト数
+	 */
+	/*package*/ SendStats(final long messages, final long flushes, final long bytes) {
+		mMessages = messages;
+		mFlushes = flushes;
+		mBytes = bytes;
+	}
+
+	/**
+	 * 送信したメッセージ数を取得
+	 * @return
+	 */
+	public long getMessages() {
+		return mMessages;
+	}
+
+	/**
+	 * チャネルへ書き込んだ回数を取得
+	 * @return
+	 */
+	public long getFlushes() {
+		return mFlushes;
+	}
+
+	/**
+	 * チャネルへ書き込んだバイト数を取得
+	 * @return
+	 */
+	public long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * 1回の書き込みあたりのメッセージ数を取得
+	 * @return
+	 */
+	public float getMessagesPerFlush() {
+		return mFlushes > 0 ? mMessages / (float)mFlushes : 0;
+	}
+
+	/**
+	 * 1回の書き込みあたりのバイト数を取得
+	 * @return
+	 */
+	public float getBytesPerFlush() {
+		return mFlushes > 0 ? mBytes / (float)mFlushes : 0;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return String.format(Locale.US,
+			"SendStats{messages=%d,flushes=%d,bytes=%d,messagesPerFlush=%.2f,bytesPerFlush=%.1f}",
+			mMessages, mFlushes, mBytes, getMessagesPerFlush(), getBytesPerFlush());
+	}
+}
@@ -18,7 +18,6 @@ package com.serenegiant.utils;
  *  limitations under the License.
 */
 
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -151,6 +150,7 @@ public class ArrayUtils {
 
 	/**
 	 * float[]をbyte[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param array
 	 * @param offset
@@ -160,27 +160,14 @@ public class ArrayUtils {
 	public static byte[] floatArrayToByteArray(
 		@NonNull final float[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Float.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putFloat(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putFloat(array[i]);
-			buf.putFloat(array[i + 1]);
-			buf.putFloat(array[i + 2]);
-			buf.putFloat(array[i + 3]);
-			buf.putFloat(array[i + 4]);
-			buf.putFloat(array[i + 5]);
-			buf.putFloat(array[i + 6]);
-			buf.putFloat(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * PrimitiveArrayCodec.BYTES_FLOAT];
+		PrimitiveArrayCodec.encode(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
 	 * byte[]をfloat[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param bytes
 	 * @return
@@ -189,28 +176,15 @@ public class ArrayUtils {
 	public static float[] byteArrayToFloatArray(
 		@Nullable final byte[] bytes) {
 
-		if ((bytes == null) || (bytes.length < Float.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Float.SIZE / 8);    // nはfloatの配列とみなした時の要素数
-		final float[] array = new float[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getFloat();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getFloat();
-			array[i + 1] = tmp.getFloat();
-			array[i + 2] = tmp.getFloat();
-			array[i + 3] = tmp.getFloat();
-			array[i + 4] = tmp.getFloat();
-			array[i + 5] = tmp.getFloat();
-			array[i + 6] = tmp.getFloat();
-			array[i + 7] = tmp.getFloat();
-		}
+		if ((bytes == null) || (bytes.length < PrimitiveArrayCodec.BYTES_FLOAT)) return null;
+		final float[] array = new float[bytes.length / PrimitiveArrayCodec.BYTES_FLOAT];
+		PrimitiveArrayCodec.decode(bytes, 0, bytes.length, ByteOrder.nativeOrder(), array, 0);
 		return array;
 	}
 
 	/**
 	 * double[]をbyte[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param array
 	 * @param offset
@@ -220,27 +194,14 @@ public class ArrayUtils {
 	public static byte[] doubleArrayToByteArray(
 		@NonNull final double[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Double.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putDouble(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putDouble(array[i]);
-			buf.putDouble(array[i + 1]);
-			buf.putDouble(array[i + 2]);
-			buf.putDouble(array[i + 3]);
-			buf.putDouble(array[i + 4]);
-			buf.putDouble(array[i + 5]);
-			buf.putDouble(array[i + 6]);
-			buf.putDouble(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * PrimitiveArrayCodec.BYTES_DOUBLE];
+		PrimitiveArrayCodec.encode(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
 	 * byte[]をdouble[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param bytes
 	 * @return
@@ -249,28 +210,15 @@ public class ArrayUtils {
 	public static double[] byteArrayToDoubleArray(
 		@Nullable final byte[] bytes) {
 
-		if ((bytes == null) || (bytes.length < Double.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Double.SIZE / 8);    // nはdoubleの配列とみなした時の要素数
-		final double[] array = new double[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getDouble();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getDouble();
-			array[i + 1] = tmp.getDouble();
-			array[i + 2] = tmp.getDouble();
-			array[i + 3] = tmp.getDouble();
-			array[i + 4] = tmp.getDouble();
-			array[i + 5] = tmp.getDouble();
-			array[i + 6] = tmp.getDouble();
-			array[i + 7] = tmp.getDouble();
-		}
+		if ((bytes == null) || (bytes.length < PrimitiveArrayCodec.BYTES_DOUBLE)) return null;
+		final double[] array = new double[bytes.length / PrimitiveArrayCodec.BYTES_DOUBLE];
+		PrimitiveArrayCodec.decode(bytes, 0, bytes.length, ByteOrder.nativeOrder(), array, 0);
 		return array;
 	}
 
 	/**
-	 * double[]をbyte[]に変換して返す
+	 * int[]をbyte[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param array
 	 * @param offset
@@ -280,27 +228,14 @@ public class ArrayUtils {
 	public static byte[] intArrayToByteArray(
 		@NonNull final int[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Integer.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putInt(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putInt(array[i]);
-			buf.putInt(array[i + 1]);
-			buf.putInt(array[i + 2]);
-			buf.putInt(array[i + 3]);
-			buf.putInt(array[i + 4]);
-			buf.putInt(array[i + 5]);
-			buf.putInt(array[i + 6]);
-			buf.putInt(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * PrimitiveArrayCodec.BYTES_INT];
+		PrimitiveArrayCodec.encode(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
 	 * byte[]をint[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param bytes
 	 * @return
@@ -309,28 +244,15 @@ public class ArrayUtils {
 	public static int[] byteArrayToIntArray(
 		@Nullable final byte[] bytes) {
 
-		if ((bytes == null) || (bytes.length < Integer.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Integer.SIZE / 8);    // nはintの配列とみなした時の要素数
-		final int[] array = new int[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getInt();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getInt();
-			array[i + 1] = tmp.getInt();
-			array[i + 2] = tmp.getInt();
-			array[i + 3] = tmp.getInt();
-			array[i + 4] = tmp.getInt();
-			array[i + 5] = tmp.getInt();
-			array[i + 6] = tmp.getInt();
-			array[i + 7] = tmp.getInt();
-		}
+		if ((bytes == null) || (bytes.length < PrimitiveArrayCodec.BYTES_INT)) return null;
+		final int[] array = new int[bytes.length / PrimitiveArrayCodec.BYTES_INT];
+		PrimitiveArrayCodec.decode(bytes, 0, bytes.length, ByteOrder.nativeOrder(), array, 0);
 		return array;
 	}
 
 	/**
 	 * short[]をbyte[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param array
 	 * @param offset
@@ -340,27 +262,14 @@ public class ArrayUtils {
 	public static byte[] shortArrayToByteArray(
 		@NonNull final short[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Short.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putShort(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putShort(array[i]);
-			buf.putShort(array[i + 1]);
-			buf.putShort(array[i + 2]);
-			buf.putShort(array[i + 3]);
-			buf.putShort(array[i + 4]);
-			buf.putShort(array[i + 5]);
-			buf.putShort(array[i + 6]);
-			buf.putShort(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * PrimitiveArrayCodec.BYTES_SHORT];
+		PrimitiveArrayCodec.encode(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
 	 * byte[]をshort[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param bytes
 	 * @return
@@ -369,28 +278,15 @@ public class ArrayUtils {
 	public static short[] byteArrayToShortArray(
 		@Nullable final byte[] bytes) {
 
-		if ((bytes == null) || (bytes.length < Short.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Short.SIZE / 8);    // nはshortの配列とみなした時の要素数
-		final short[] buf = new short[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) buf[i] = tmp.getShort();
-		for (int i = n8; i < n; i += 8) {
-			buf[i] = tmp.getShort();
-			buf[i + 1] = tmp.getShort();
-			buf[i + 2] = tmp.getShort();
-			buf[i + 3] = tmp.getShort();
-			buf[i + 4] = tmp.getShort();
-			buf[i + 5] = tmp.getShort();
-			buf[i + 6] = tmp.getShort();
-			buf[i + 7] = tmp.getShort();
-		}
-		return buf;
+		if ((bytes == null) || (bytes.length < PrimitiveArrayCodec.BYTES_SHORT)) return null;
+		final short[] array = new short[bytes.length / PrimitiveArrayCodec.BYTES_SHORT];
+		PrimitiveArrayCodec.decode(bytes, 0, bytes.length, ByteOrder.nativeOrder(), array, 0);
+		return array;
 	}
 
 	/**
 	 * long[]をbyte[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param array
 	 * @param offset
@@ -400,27 +296,14 @@ public class ArrayUtils {
 	public static byte[] longArrayToByteArray(
 		@NonNull final long[] array, final int offset, final int num) {
 
-		final ByteBuffer buf = ByteBuffer.allocate(num * Long.SIZE / 8);
-		buf.order(ByteOrder.nativeOrder());
-		final int n8 = num % 8 + offset;
-		final int n = offset + num;
-		for (int i = offset; i < n8; i++) buf.putLong(array[i]);
-		for (int i = n8; i < n; i += 8) {
-			buf.putLong(array[i]);
-			buf.putLong(array[i + 1]);
-			buf.putLong(array[i + 2]);
-			buf.putLong(array[i + 3]);
-			buf.putLong(array[i + 4]);
-			buf.putLong(array[i + 5]);
-			buf.putLong(array[i + 6]);
-			buf.putLong(array[i + 7]);
-		}
-		buf.flip();
-		return buf.array();
+		final byte[] result = new byte[num * PrimitiveArrayCodec.BYTES_LONG];
+		PrimitiveArrayCodec.encode(array, offset, num, result, 0, ByteOrder.nativeOrder());
+		return result;
 	}
 
 	/**
 	 * byte[]をlong[]に変換して返す
+	 * バイトオーダーはネイティブバイトオーダー
 	 *
 	 * @param bytes
 	 * @return
@@ -429,23 +312,77 @@ public class ArrayUtils {
 	public static long[] byteArrayToLongArray(
 		@Nullable final byte[] bytes) {
 
-		if ((bytes == null) || (bytes.length < Long.SIZE / 8)) return null;
-		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
-		tmp.order(ByteOrder.nativeOrder());
-		final int n = tmp.limit() / (Long.SIZE / 8);    // nはlongの配列とみなした時の要素数
-		final long[] array = new long[n];
-		final int n8 = n % 8;
-		for (int i = 0; i < n8; i++) array[i] = tmp.getLong();
-		for (int i = n8; i < n; i += 8) {
-			array[i] = tmp.getLong();
-			array[i + 1] = tmp.getLong();
-			array[i + 2] = tmp.getLong();
-			array[i + 3] = tmp.getLong();
-			array[i + 4] = tmp.getLong();
-			array[i + 5] = tmp.getLong();
-			array[i + 6] = tmp.getLong();
-			array[i + 7] = tmp.getLong();
-		}
+		if ((bytes == null) || (bytes.length < PrimitiveArrayCodec.BYTES_LONG)) return null;
+		final long[] array = new long[bytes.length / PrimitiveArrayCodec.BYTES_LONG];
+		PrimitiveArrayCodec.decode(bytes, 0, bytes.length, ByteOrder.nativeOrder(), array, 0);
+		return array;
+	}
+
+	/**
+	 * int[]を差分+ZigZag+varintのコンパクト形式のbyte[]に変換して返す
+	 * 隣接する要素の差が小さい時はintArrayToByteArrayより小さくなる
+	 *
+	 * @param array
+	 * @param offset
+	 * @param num
+	 * @return
+	 */
+	public static byte[] intArrayToCompactByteArray(
+		@NonNull final int[] array, final int offset, final int num) {
+
+		final byte[] work = new byte[PrimitiveArrayCodec.maxCompactIntLength(num)];
+		final int length = PrimitiveArrayCodec.encodeCompact(array, offset, num, work, 0);
+		return Arrays.copyOf(work, length);
+	}
+
+	/**
+	 * intArrayToCompactByteArrayで変換したbyte[]をint[]に変換して返す
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IllegalArgumentException 途中で切れている時
+	 */
+	@Nullable
+	public static int[] compactByteArrayToIntArray(
+		@Nullable final byte[] bytes) {
+
+		if ((bytes == null) || (bytes.length == 0)) return null;
+		final int[] array = new int[PrimitiveArrayCodec.countCompact(bytes, 0, bytes.length)];
+		PrimitiveArrayCodec.decodeCompact(bytes, 0, bytes.length, array, 0);
+		return array;
+	}
+
+	/**
+	 * long[]を差分+ZigZag+varintのコンパクト形式のbyte[]に変換して返す
+	 * 隣接する要素の差が小さい時はlongArrayToByteArrayより小さくなる
+	 *
+	 * @param array
+	 * @param offset
+	 * @param num
+	 * @return
+	 */
+	public static byte[] longArrayToCompactByteArray(
+		@NonNull final long[] array, final int offset, final int num) {
+
+		final byte[] work = new byte[PrimitiveArrayCodec.maxCompactLongLength(num)];
+		final int length = PrimitiveArrayCodec.encodeCompact(array, offset, num, work, 0);
+		return Arrays.copyOf(work, length);
+	}
+
+	/**
+	 * longArrayToCompactByteArrayで変換したbyte[]をlong[]に変換して返す
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IllegalArgumentException 途中で切れている時
+	 */
+	@Nullable
+	public static long[] compactByteArrayToLongArray(
+		@Nullable final byte[] bytes) {
+
+		if ((bytes == null) || (bytes.length == 0)) return null;
+		final long[] array = new long[PrimitiveArrayCodec.countCompact(bytes, 0, bytes.length)];
+		PrimitiveArrayCodec.decodeCompact(bytes, 0, bytes.length, array, 0);
 		return array;
 	}
 }
@@ -170,33 +170,52 @@ public class BufferHelper {
 	/**
 	 * AnnexBのスタートマーカー(N[00] 00 00 01 (N ≧ 0))を探して先頭インデックスを返す
 	 * 返り値が0以上の場合は、返り値+3がpayloadの先頭位置(nalu headerのはず)
+	 * 以前は4バイトのスタートマーカーを全体から探した後に3バイトのスタートマーカーを探していたが
+	 * #findStartCodeで1回だけ走査して最初に見つかったスタートマーカーを返す
+	 * 後ろにNALユニットが無いスタートマーカーは見つからなかったとみなす
 	 * @param data
 	 * @param offset
 	 * @return 見つからなければ負
 	 */
 	public static final int findAnnexB(final byte[] data, final int offset) {
 		if (data != null) {
-			final int len5 = data.length - 5;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len5; i++) {
-				// 最低3つは連続して0x00
-				if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
-					continue;
-				}
-				// 4つ目が0x01ならOK
-				if (data[i+3] == 0x01) {
-					return i;
-				}
+			final int end = data.length;
+			final int sc = findStartCode(data, offset, end);
+			if ((sc < 0) || (sc + 3 >= end)) {
+				return -1;
 			}
-			final int len4 = data.length - 4;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len4; i++) {
-				// 最低2つは連続して0x00でないとだめ
-				if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
-					continue;
-				}
-				// 3つ目が0x01ならOK
-				if (data[i+2] == 0x01) {
-					return i;
+			// 直前が0x00なら4バイトのスタートマーカー
+			return (sc > offset) && (data[sc - 1] == 0) ? sc - 1 : sc;
+		}
+		return -1;
+	}
+
+	/**
+	 * 3バイトのスタートコード(00 00 01)を探す
+	 * 4バイトのスタートコードの場合は2つ目の0x00の位置を返す
+	 * endの直前で終わる(後ろにNALユニットが無い)スタートコードも返す
+	 * スタートコードの0x01の位置の候補のバイトが1より大きければ3バイト先まで一致しないので
+	 * 3バイトずつ読み飛ばす
+	 * @param data
+	 * @param offset
+	 * @param end
+	 * @return 見つからなければ-1
+	 */
+	public static int findStartCode(@NonNull final byte[] data, final int offset, final int end) {
+		// pはスタートコードの0x01の位置の候補
+		int p = offset + 2;
+		while (p < end) {
+			final int b = data[p] & 0xff;
+			if (b > 1) {
+				// p+1, p+2が0x01でもその2バイト前がpなので一致しない
+				p += 3;
+			} else if (b == 1) {
+				if ((data[p - 1] == 0) && (data[p - 2] == 0)) {
+					return p - 2;
 				}
+				p += 3;
+			} else {
+				p++;
 			}
 		}
 		return -1;
@@ -18,10 +18,15 @@ package com.serenegiant.utils;
  *  limitations under the License.
 */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import androidx.annotation.NonNull;
 
 /**
  * x^16 + x^15 + x^2 + 1
+ * テーブルを8個使って8バイトずつ処理する(slicing-by-8)
+ * 範囲指定やByteBuffer(ダイレクトバッファを含む)もコピーせずに処理できる
  */
 public class CRC16 {
 	private static final int[] crc16tbl = {
@@ -59,6 +64,26 @@ public class CRC16 {
 		0x8201, 0x42C0, 0x4380, 0x8341, 0x4100, 0x81C1, 0x8081, 0x4040,
 	};
 
+	/**
+	 * slicing-by-8用のテーブル
+	 * (k << 8) | nの位置にバイトnの後ろに0をkバイト処理した時の値が入る
+	 */
+	private static final int[] slice8tbl = new int[8 * 256];
+	static {
+		System.arraycopy(crc16tbl, 0, slice8tbl, 0, 256);
+		for (int k = 1; k < 8; k++) {
+			for (int n = 0; n < 256; n++) {
+				final int prev = slice8tbl[((k - 1) << 8) | n];
+				slice8tbl[(k << 8) | n] = (prev >>> 8) ^ crc16tbl[prev & 0xff];
+			}
+		}
+	}
+
+	/**
+	 * #combine用の多項式(ビット反転した値)
+	 */
+	private static final int POLY = 0xa001;
+
 	private static final int TEST = crc16("123456789");
 
 	public static int crc16(final String s) {
@@ -74,9 +99,146 @@ public class CRC16 {
 	}
 
 	public static int crc16(@NonNull final byte[] p, final int init) {
-		int crc = init;
-		for (final byte b: p) {
-			crc = (crc >>> 8) ^ crc16tbl[(crc ^ b) & 0xff];
+		return update(init, p, 0, p.length);
+	}
+
+	/**
+	 * 配列の指定した範囲のCRC16を計算する
+	 * @param p
+	 * @param offset
+	 * @param len
+	 * @param init 初期値または前の範囲のCRC16
+	 * @return
+	 */
+	public static int crc16(@NonNull final byte[] p, final int offset, final int len, final int init) {
+		if ((offset < 0) || (len < 0) || (offset + len > p.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		return update(init, p, offset, offset + len);
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでのCRC16を計算する
+	 * ダイレクトバッファでもコピーしない。ByteBufferのposition/limitは変更しない
+	 * @param buffer
+	 * @param init 初期値または前の範囲のCRC16
+	 * @return
+	 */
+	public static int crc16(@NonNull final ByteBuffer buffer, final int init) {
+		final int start = buffer.position();
+		final int end = buffer.limit();
+		if (buffer.hasArray()) {
+			final int offset = buffer.arrayOffset();
+			return update(init, buffer.array(), offset + start, offset + end);
+		} else {
+			return update(init, buffer, start, end);
+		}
+	}
+
+	/**
+	 * 2つのデータのCRC16から連結したデータのCRC16を計算する
+	 * 分割したデータのCRC16を並列に計算した後で結合するときに使う
+	 * @param crc1 1つ目のデータのCRC16
+	 * @param crc2 2つ目のデータのCRC16(初期値0で計算した値)
+	 * @param len2 2つ目のデータのバイト数
+	 * @return
+	 */
+	public static int combine(final int crc1, final int crc2, final long len2) {
+		if (len2 <= 0) {
+			return crc1;
+		}
+		final int[] even = new int[16];	// 0のビットを偶数回処理するための行列
+		final int[] odd = new int[16];	// 0のビットを奇数回処理するための行列
+		// 0のビットを1つ処理するための行列
+		odd[0] = POLY;
+		int row = 1;
+		for (int n = 1; n < 16; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);	// 0のビット2つ
+		square(odd, even);	// 0のビット4つ
+		// 0のバイトをlen2個処理した値を求める
+		int crc = crc1 & 0xffff;
+		long len = len2;
+		do {
+			square(even, odd);
+			if ((len & 1) != 0) {
+				crc = times(even, crc);
+			}
+			len >>= 1;
+			if (len == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((len & 1) != 0) {
+				crc = times(odd, crc);
+			}
+			len >>= 1;
+		} while (len != 0);
+		return crc ^ crc2;
+	}
+
+	private static int times(@NonNull final int[] mat, final int vec) {
+		int sum = 0;
+		int v = vec;
+		for (int i = 0; v != 0; i++, v >>>= 1) {
+			if ((v & 1) != 0) {
+				sum ^= mat[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(@NonNull final int[] square, @NonNull final int[] mat) {
+		for (int n = 0; n < mat.length; n++) {
+			square[n] = times(mat, mat[n]);
+		}
+	}
+
+	private static int update(int crc, @NonNull final byte[] p, int start, final int end) {
+		// 初期値の上位16ビットが0になるまでは1バイトずつ処理する
+		for ( ; ((crc & ~0xffff) != 0) && (start < end); start++) {
+			crc = (crc >>> 8) ^ crc16tbl[(crc ^ p[start]) & 0xff];
+		}
+		final int[] t = slice8tbl;
+		while (end - start >= 8) {
+			crc ^= (p[start] & 0xff) | ((p[start + 1] & 0xff) << 8);
+			crc = t[0x700 | (crc & 0xff)] ^ t[0x600 | ((crc >>> 8) & 0xff)]
+				^ t[0x500 | (p[start + 2] & 0xff)] ^ t[0x400 | (p[start + 3] & 0xff)]
+				^ t[0x300 | (p[start + 4] & 0xff)] ^ t[0x200 | (p[start + 5] & 0xff)]
+				^ t[0x100 | (p[start + 6] & 0xff)] ^ t[p[start + 7] & 0xff];
+			start += 8;
+		}
+		for (int i = start; i < end; i++) {
+			crc = (crc >>> 8) ^ crc16tbl[(crc ^ p[i]) & 0xff];
+		}
+		return crc;
+	}
+
+	/**
+	 * リトルエンディアンで読み込んだlongの下位バイトから順に処理すればよいので
+	 * 8バイトずつまとめて読み込む
+	 */
+	private static int update(int crc, @NonNull final ByteBuffer buffer, int start, final int end) {
+		for ( ; ((crc & ~0xffff) != 0) && (start < end); start++) {
+			crc = (crc >>> 8) ^ crc16tbl[(crc ^ buffer.get(start)) & 0xff];
+		}
+		final int[] t = slice8tbl;
+		final boolean swap = buffer.order() != ByteOrder.LITTLE_ENDIAN;
+		while (end - start >= 8) {
+			final long v = swap ? Long.reverseBytes(buffer.getLong(start)) : buffer.getLong(start);
+			final int lo = (int)v;
+			final int hi = (int)(v >>> 32);
+			crc ^= lo & 0xffff;
+			crc = t[0x700 | (crc & 0xff)] ^ t[0x600 | ((crc >>> 8) & 0xff)]
+				^ t[0x500 | ((lo >>> 16) & 0xff)] ^ t[0x400 | (lo >>> 24)]
+				^ t[0x300 | (hi & 0xff)] ^ t[0x200 | ((hi >>> 8) & 0xff)]
+				^ t[0x100 | ((hi >>> 16) & 0xff)] ^ t[hi >>> 24];
+			start += 8;
+		}
+		for (int i = start; i < end; i++) {
+			crc = (crc >>> 8) ^ crc16tbl[(crc ^ buffer.get(i)) & 0xff];
 		}
 		return crc;
 	}
@@ -103,6 +265,33 @@ public class CRC16 {
 		return crc;
 	}
 
+	/**
+	 * 配列の指定した範囲を追加する
+	 * @param p
+	 * @param offset
+	 * @param len
+	 * @return
+	 */
+	public int update(@NonNull final byte[] p, final int offset, final int len) {
+		crc = crc16(p, offset, len, crc);
+		tbytes += len;
+		return crc;
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでを追加する
+	 * java.util.zip.CRC32#update(ByteBuffer)と同様にpositionはlimitまで進める
+	 * @param buffer
+	 * @return
+	 */
+	public int update(@NonNull final ByteBuffer buffer) {
+		final int n = buffer.remaining();
+		crc = crc16(buffer, crc);
+		buffer.position(buffer.limit());
+		tbytes += n;
+		return crc;
+	}
+
 	public int getCrc() {
 		return crc;
 	}
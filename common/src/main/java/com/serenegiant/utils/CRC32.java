@@ -18,8 +18,17 @@ package com.serenegiant.utils;
  *  limitations under the License.
 */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 /**
  * XXX 何のために作ったか忘れたけどこのCRC32の結果はjava.util.zip.CRC32と違うので注意!
+ *     (多項式はjava.util.zip.CRC32と同じだけど配列を末尾から先頭へ向かって処理するため)
+ * テーブルを8個使って8バイトずつ処理する(slicing-by-8)
+ * 範囲指定やByteBuffer(ダイレクトバッファを含む)もコピーせずに処理できる
  */
 public class CRC32 {
 	private static final int[] crc32tab = {
@@ -88,34 +97,201 @@ public class CRC32 {
 		0xb3667a2e, 0xc4614ab8, 0x5d681b02, 0x2a6f2b94,
 		0xb40bbe37, 0xc30c8ea1, 0x5a05df1b, 0x2d02ef8d,
 	};
-		
+
+	/**
+	 * slicing-by-8用のテーブル
+	 * (k << 8) | nの位置にバイトnの後ろに0をkバイト処理した時の値が入る
+	 */
+	private static final int[] slice8tab = new int[8 * 256];
+	static {
+		System.arraycopy(crc32tab, 0, slice8tab, 0, 256);
+		for (int k = 1; k < 8; k++) {
+			for (int n = 0; n < 256; n++) {
+				final int prev = slice8tab[((k - 1) << 8) | n];
+				slice8tab[(k << 8) | n] = (prev >>> 8) ^ crc32tab[prev & 0xff];
+			}
+		}
+	}
+
+	/**
+	 * #combine用の多項式(ビット反転した値)
+	 */
+	private static final int POLY = 0xedb88320;
+
 	public static int crc32(final String s) {
 		return crc32(s, 0);
 	}
 
+	/**
+	 * 互換性のためにString#getBytesのバイト数ではなく
+	 * String#lengthの長さだけ処理する(ASCII以外の文字を含む時は末尾が処理されない)
+	 * @param s
+	 * @param init
+	 * @return
+	 */
 	public static int crc32(final String s, final int init) {
-		final int n = s.length();
 		final byte[] p = s.getBytes();
-		int crc = init ^ 0xffffffff;
-		for (int i = n - 1; i >= 0; i--) {
-			crc = ((crc >> 8) & 0x00FFFFFF) ^ crc32tab[(crc ^ p[i]) & 0xFF];
-		}
-		return crc ^ 0xFFFFFFFF;
+		return crc32(p, 0, Math.min(s.length(), p.length), init);
 	}
-	
+
 	public static int crc32(final byte[] p) {
 		return crc32(p, 0);
 	}
 
 	public static int crc32(final byte[] p, final int init) {
+		return p != null ? crc32(p, 0, p.length, init) : init;
+	}
+
+	/**
+	 * 配列の指定した範囲のCRC32を計算する
+	 * crc32(Arrays.copyOfRange(p, offset, offset + len), init)と同じ値になる
+	 * @param p
+	 * @param offset
+	 * @param len
+	 * @param init 初期値または前の範囲のCRC32
+	 * @return
+	 */
+	public static int crc32(@NonNull final byte[] p, final int offset, final int len, final int init) {
+		if ((offset < 0) || (len < 0) || (offset + len > p.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		return update(init ^ 0xffffffff, p, offset, offset + len) ^ 0xffffffff;
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでのCRC32を計算する
+	 * ダイレクトバッファでもコピーしない。ByteBufferのposition/limitは変更しない
+	 * @param buffer
+	 * @param init 初期値または前の範囲のCRC32
+	 * @return
+	 */
+	public static int crc32(@NonNull final ByteBuffer buffer, final int init) {
+		final int start = buffer.position();
+		final int end = buffer.limit();
 		int crc = init ^ 0xffffffff;
-		if (p != null) {
-			final int n = p.length;
-			for (int i = n - 1; i >= 0; i--) {
-				crc = ((crc >> 8) & 0x00FFFFFF) ^ crc32tab[(crc ^ p[i]) & 0xFF];
+		if (buffer.hasArray()) {
+			final int offset = buffer.arrayOffset();
+			crc = update(crc, buffer.array(), offset + start, offset + end);
+		} else {
+			crc = update(crc, buffer, start, end);
+		}
+		return crc ^ 0xffffffff;
+	}
+
+	/**
+	 * 2つのデータのCRC32から連結したデータのCRC32を計算する
+	 * 分割したデータのCRC32を並列に計算した後で結合するときに使う
+	 * 返り値はCRC32#update(data1)の後にCRC32#update(data2)を呼んだ時と同じ値になる
+	 * @param crc1 1つ目のデータのCRC32
+	 * @param crc2 2つ目のデータのCRC32
+	 * @param len2 2つ目のデータのバイト数
+	 * @return
+	 */
+	public static int combine(final int crc1, final int crc2, final long len2) {
+		if (len2 <= 0) {
+			return crc1;
+		}
+		final int[] even = new int[32];	// 0のビットを偶数回処理するための行列
+		final int[] odd = new int[32];	// 0のビットを奇数回処理するための行列
+		// 0のビットを1つ処理するための行列
+		odd[0] = POLY;
+		int row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);	// 0のビット2つ
+		square(odd, even);	// 0のビット4つ
+		// 0のバイトをlen2個処理した値を求める
+		int crc = crc1;
+		long len = len2;
+		do {
+			square(even, odd);
+			if ((len & 1) != 0) {
+				crc = times(even, crc);
+			}
+			len >>= 1;
+			if (len == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((len & 1) != 0) {
+				crc = times(odd, crc);
 			}
+			len >>= 1;
+		} while (len != 0);
+		return crc ^ crc2;
+	}
+
+	private static int times(@NonNull final int[] mat, final int vec) {
+		int sum = 0;
+		int v = vec;
+		for (int i = 0; v != 0; i++, v >>>= 1) {
+			if ((v & 1) != 0) {
+				sum ^= mat[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void square(@NonNull final int[] square, @NonNull final int[] mat) {
+		for (int n = 0; n < mat.length; n++) {
+			square[n] = times(mat, mat[n]);
+		}
+	}
+
+	/**
+	 * 配列のstartからendまでを末尾から先頭へ向かって処理する
+	 * @param crc 反転済みのCRC
+	 * @param p
+	 * @param start
+	 * @param end
+	 * @return 反転済みのCRC
+	 */
+	private static int update(int crc, @NonNull final byte[] p, final int start, int end) {
+		final int[] t = slice8tab;
+		while (end - start >= 8) {
+			crc ^= (p[end - 1] & 0xff) | ((p[end - 2] & 0xff) << 8)
+				| ((p[end - 3] & 0xff) << 16) | (p[end - 4] << 24);
+			crc = t[0x700 | (crc & 0xff)] ^ t[0x600 | ((crc >>> 8) & 0xff)]
+				^ t[0x500 | ((crc >>> 16) & 0xff)] ^ t[0x400 | (crc >>> 24)]
+				^ t[0x300 | (p[end - 5] & 0xff)] ^ t[0x200 | (p[end - 6] & 0xff)]
+				^ t[0x100 | (p[end - 7] & 0xff)] ^ t[p[end - 8] & 0xff];
+			end -= 8;
+		}
+		for (int i = end - 1; i >= start; i--) {
+			crc = (crc >>> 8) ^ crc32tab[(crc ^ p[i]) & 0xff];
+		}
+		return crc;
+	}
+
+	/**
+	 * ByteBufferのstartからendまでを末尾から先頭へ向かって処理する
+	 * ビッグエンディアンで読み込んだlongの下位バイトから順に処理すればよいので
+	 * 8バイトずつまとめて読み込む
+	 * @param crc 反転済みのCRC
+	 * @param buffer
+	 * @param start 先頭からの絶対位置
+	 * @param end 先頭からの絶対位置
+	 * @return 反転済みのCRC
+	 */
+	private static int update(int crc, @NonNull final ByteBuffer buffer, final int start, int end) {
+		final int[] t = slice8tab;
+		final boolean swap = buffer.order() != ByteOrder.BIG_ENDIAN;
+		while (end - start >= 8) {
+			final long v = swap ? Long.reverseBytes(buffer.getLong(end - 8)) : buffer.getLong(end - 8);
+			crc ^= (int)v;
+			final int hi = (int)(v >>> 32);
+			crc = t[0x700 | (crc & 0xff)] ^ t[0x600 | ((crc >>> 8) & 0xff)]
+				^ t[0x500 | ((crc >>> 16) & 0xff)] ^ t[0x400 | (crc >>> 24)]
+				^ t[0x300 | (hi & 0xff)] ^ t[0x200 | ((hi >>> 8) & 0xff)]
+				^ t[0x100 | ((hi >>> 16) & 0xff)] ^ t[hi >>> 24];
+			end -= 8;
 		}
-		return crc ^ 0xFFFFFFFF;
+		for (int i = end - 1; i >= start; i--) {
+			crc = (crc >>> 8) ^ crc32tab[(crc ^ buffer.get(i)) & 0xff];
+		}
+		return crc;
 	}
 
 	private int crc, tbytes;
@@ -134,12 +310,39 @@ public class CRC32 {
 		return crc;
 	}
 
-	public int update(final byte[] p) {
+	public int update(@Nullable final byte[] p) {
 		tbytes += p != null ? p.length : 0;
 		crc = crc32(p, crc);
 		return crc;
 	}
 
+	/**
+	 * 配列の指定した範囲を追加する
+	 * @param p
+	 * @param offset
+	 * @param len
+	 * @return
+	 */
+	public int update(@NonNull final byte[] p, final int offset, final int len) {
+		crc = crc32(p, offset, len, crc);
+		tbytes += len;
+		return crc;
+	}
+
+	/**
+	 * ByteBufferのpositionからlimitまでを追加する
+	 * java.util.zip.CRC32#update(ByteBuffer)と同様にpositionはlimitまで進める
+	 * @param buffer
+	 * @return
+	 */
+	public int update(@NonNull final ByteBuffer buffer) {
+		final int n = buffer.remaining();
+		crc = crc32(buffer, crc);
+		buffer.position(buffer.limit());
+		tbytes += n;
+		return crc;
+	}
+
 	public int getCrc() {
 		return crc;
 	}
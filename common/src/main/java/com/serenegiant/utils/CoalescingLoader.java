@@ -0,0 +1,177 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 同じキーに対する読み込み要求をまとめて1回だけ読み込むためのヘルパークラス
+ * 最初に要求したスレッドが自分で読み込みを実行し、読み込み中に同じキーを
+ * 要求したスレッドは同じFutureTaskの結果を待機する。
+ * 異なるキーの読み込みは並列に実行するが同時に実行する数はmaxConcurrencyまでに制限する。
+ * ロックするのは読み込み中のキーの登録/削除時のみなので、キャッシュの参照/追加は
+ * Loader内で行うこと。読み込み完了直後に同じキーを要求すると読み込み中のキーから
+ * 削除済みで再度Loaderを呼び出す場合があるのでLoaderの先頭でもキャッシュを確認すること
+ * @param <K> キーの型
+ * @param <V> 読み込む値の型
+ */
+public class CoalescingLoader<K, V> {
+
+	/**
+	 * 実際の読み込み処理
+	 * @param <K>
+	 * @param <V>
+	 */
+	public interface Loader<K, V> {
+		@Nullable
+		public V load(@NonNull final K key) throws IOException;
+	}
+
+	/**
+	 * 読み込み中のキーとその読み込みタスク
+	 */
+	@NonNull
+	private final ConcurrentHashMap<K, FutureTask<V>> mInFlight
+		= new ConcurrentHashMap<K, FutureTask<V>>();
+	@NonNull
+	private final Semaphore mSemaphore;
+	private final int mMaxConcurrency;
+	@NonNull
+	private final AtomicLong mLoadCount = new AtomicLong();
+	@NonNull
+	private final AtomicLong mCoalescedCount = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 * @param maxConcurrency 同時に実行する読み込みの最大数
+	 */
+	public CoalescingLoader(@IntRange(from=1) final int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency should be >= 1");
+		}
+		mMaxConcurrency = maxConcurrency;
+		mSemaphore = new Semaphore(maxConcurrency, true);
+	}
+
+	/**
+	 * 同時に実行する読み込みの最大数を取得
+	 * @return
+	 */
+	public int getMaxConcurrency() {
+		return mMaxConcurrency;
+	}
+
+	/**
+	 * 現在読み込み中のキーの数を取得
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return mInFlight.size();
+	}
+
+	/**
+	 * Loaderを呼び出した回数を取得
+	 * @return
+	 */
+	public long getLoadCount() {
+		return mLoadCount.get();
+	}
+
+	/**
+	 * 他のスレッドの読み込み結果を待機した回数を取得
+	 * @return
+	 */
+	public long getCoalescedCount() {
+		return mCoalescedCount.get();
+	}
+
+	/**
+	 * 指定したキーに対応する値を読み込む
+	 * 同じキーを他のスレッドで読み込み中ならその結果を待機する
+	 * 読み込み中のスレッドが同時実行数を超える時は空くまで待機する
+	 * (待機中に割り込まれても読み込み結果を他のスレッドが待っている可能性があるので中断しない)
+	 * @param key
+	 * @param loader 他のスレッドで読み込み中の時は呼び出さない
+	 * @return
+	 * @throws IOException Loaderが投げたIOException, 待機中に割り込まれた時はInterruptedIOException
+	 */
+	@Nullable
+	public V load(@NonNull final K key, @NonNull final Loader<K, V> loader)
+		throws IOException {
+
+		FutureTask<V> task = mInFlight.get(key);
+		boolean owner = false;
+		if (task == null) {
+			final FutureTask<V> newTask = new FutureTask<V>(new Callable<V>() {
+				@Override
+				public V call() throws Exception {
+					mSemaphore.acquireUninterruptibly();
+					try {
+						mLoadCount.incrementAndGet();
+						return loader.load(key);
+					} finally {
+						mSemaphore.release();
+					}
+				}
+			});
+			task = mInFlight.putIfAbsent(key, newTask);
+			if (task == null) {
+				task = newTask;
+				owner = true;
+			}
+		}
+		if (owner) {
+			try {
+				task.run();
+			} finally {
+				mInFlight.remove(key, task);
+			}
+		} else {
+			mCoalescedCount.incrementAndGet();
+		}
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			final InterruptedIOException ex = new InterruptedIOException();
+			ex.initCause(e);
+			throw ex;
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.Collection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * オブジェクトを再利用してオブジェクトの生成を抑制するためのプールのインターフェース
+ * Pool(synchronizedで排他制御)とLockFreePool(ロックフリー)が実装する
+ * @param <T>
+ */
+public interface IPool<T> {
+	/**
+	 * プール内のオブジェクトを破棄して新たに初期数まで確保する
+	 * @param args オプション引数, Tの生成に必要な値を渡す, 省略可
+	 */
+	public void init(@Nullable final Object... args);
+
+	/**
+	 * プールからオブジェクトTを取得する。もしプールが空で最大生成数を超えている場合にはnullを返す
+	 * @param args オプション引数, Tの生成に必要な値を渡す, 省略可
+	 * @return
+	 */
+	@Nullable
+	public T obtain(@Nullable final Object... args);
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param obj
+	 * @return true: プールに返却できた, false: プールに返却できなかった(最大保持数より多くなってしまった)
+	 */
+	public boolean recycle(@NonNull final T obj);
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param objects
+	 */
+	public void recycle(@NonNull final Collection<T> objects);
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param objects
+	 */
+	public void recycle(@NonNull final T[] objects);
+
+	/**
+	 * プールを空にする
+	 */
+	public void clear();
+}
@@ -0,0 +1,385 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.collections.LockFreeRingQueue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Poolの代わりに使えるロックフリーなプールオブジェクト
+ * Poolはobtain/recycleの度にsynchronizedで排他制御するため
+ * 生産者スレッドと消費者スレッドが頻繁に競合するが、
+ * こちらはLockFreeRingQueueを使うのでobtain/recycle時にロックしない
+ * Poolと同じIPoolを実装しているのでIPool型のフィールド等へそのまま代入できる
+ * (Poolを継承するとPoolのリストと排他制御用のオブジェクトが使われないまま残るので継承しない)
+ * (プールから取り出す順番はPoolと違ってFIFO)
+ * (待機するobtainを使ったときのみ待機/通知にロックを使う)
+ * また、スレッド毎の小さなキャッシュ(マガジン)を使うこともできる。
+ * マガジン内のオブジェクトはプール内の保持数には含まないので
+ * 最大でスレッド数xマガジンサイズだけ最大保持数より多く保持する可能性がある
+ * init/clearはプールを使用していないときに呼び出すこと
+ * @param <T>
+ */
+public abstract class LockFreePool<T> implements IPool<T> {
+
+	/**
+	 * スレッド毎のキャッシュ
+	 */
+	private static class Magazine {
+		@NonNull
+		private final Object[] items;
+		private int count;
+		private int generation;
+
+		private Magazine(final int size, final int generation) {
+			items = new Object[size];
+			this.generation = generation;
+		}
+	}
+
+	@NonNull
+	private final LockFreeRingQueue<T> mPool;
+	@Nullable
+	private final ThreadLocal<Magazine> mMagazine;
+	private final int mInitNum;
+	private final int mMaxNumInPool;
+	private final int mLimitNum;
+	private final int mMagazineSize;
+	/**
+	 * 生成済みのオブジェクト数
+	 */
+	@NonNull
+	private final AtomicInteger mCreatedObjects = new AtomicInteger();
+	/**
+	 * init/clearの度に増加させてマガジン内の古いオブジェクトを破棄するためのカウンタ
+	 */
+	@NonNull
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	/**
+	 * 待機中のobtainの数
+	 */
+	@NonNull
+	private final AtomicInteger mWaiters = new AtomicInteger();
+	@NonNull
+	private final Object mSync = new Object();
+
+	/**
+	 * コンストラクタ
+	 * スレッド毎のキャッシュは使わない
+	 * @param initNum
+	 * @param maxNumInPool プール内に保持できる最大数==最大生成数
+	 * @param args initを呼ぶ際のオプション引数, Tの生成に必要な値を渡す, 省略可
+	 */
+	public LockFreePool(final int initNum, final int maxNumInPool, @Nullable final Object... args) {
+		this(initNum, maxNumInPool, maxNumInPool, 0, args);
+	}
+
+	/**
+	 * コンストラクタ
+	 * スレッド毎のキャッシュは使わない
+	 * @param initNum プール内のオブジェクトの初期数
+	 * @param maxNumInPool プール内に保持できる最大数
+	 * @param limitNum 最大生成数
+	 * @param args initを呼ぶ際のオプション引数, Tの生成に必要な値を渡す, 省略可
+	 */
+	public LockFreePool(final int initNum, final int maxNumInPool, final int limitNum, @Nullable final Object... args) {
+		this(initNum, maxNumInPool, limitNum, 0, args);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param initNum プール内のオブジェクトの初期数
+	 * @param maxNumInPool プール内に保持できる最大数
+	 * @param limitNum 最大生成数
+	 * @param magazineSize スレッド毎のキャッシュに保持する最大数, 0ならスレッド毎のキャッシュを使わない
+	 * 		スレッド毎のキャッシュは同じスレッドでobtain/recycleする場合にのみ有効,
+	 * 		生産者スレッドでobtainして消費者スレッドでrecycleする場合は0にすること
+	 * @param args initを呼ぶ際のオプション引数, Tの生成に必要な値を渡す, 省略可
+	 */
+	public LockFreePool(final int initNum, final int maxNumInPool, final int limitNum,
+		@IntRange(from=0) final int magazineSize, @Nullable final Object[] args) {
+
+		mInitNum = initNum;
+		mMaxNumInPool = Math.max(Math.min(maxNumInPool, limitNum), 1);
+		mLimitNum = limitNum;
+		mMagazineSize = Math.max(magazineSize, 0);
+		mPool = new LockFreeRingQueue<T>(mMaxNumInPool);
+		mMagazine = mMagazineSize > 0 ? new ThreadLocal<Magazine>() : null;
+		init(args);
+	}
+
+	/**
+	 * プール内のオブジェクトを破棄して新たに初期数まで確保する
+	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
+	 */
+	@Override
+	public void init(@Nullable final Object... args) {
+		clear();
+		for (int i = 0; (i < mInitNum) && (i < mMaxNumInPool); i++) {
+			final T obj = createObject(args);
+			mCreatedObjects.incrementAndGet();
+			mPool.offer(obj);
+		}
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する。もしプールが空で最大生成数を超えている場合にはnullを返す
+	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public T obtain(@Nullable final Object... args) {
+		T result = pop();
+		if (result == null) {
+			result = create(args);
+		}
+		return result;
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する。
+	 * もしプールが空で最大生成数を超えている場合には返却されるまで最大で指定時間待機する
+	 * @param timeout 最大待機時間, 0以下なら待機しない
+	 * @param unit
+	 * @return 指定時間内に取得できなければnull
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	public T obtain(final long timeout, @NonNull final TimeUnit unit)
+		throws InterruptedException {
+
+		return obtain(timeout, unit, (Object[])null);
+	}
+
+	/**
+	 * プールからオブジェクトTを取得する。
+	 * もしプールが空で最大生成数を超えている場合には返却されるまで最大で指定時間待機する
+	 * @param timeout 最大待機時間, 0以下なら待機しない
+	 * @param unit
+	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
+	 * @return 指定時間内に取得できなければnull
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	public T obtain(final long timeout, @NonNull final TimeUnit unit,
+		@Nullable final Object[] args) throws InterruptedException {
+
+		T result = obtain(args);
+		if ((result == null) && (timeout > 0)) {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (mSync) {
+				mWaiters.incrementAndGet();
+				try {
+					for ( ; ; ) {
+						// 待機数を増やした後で再確認する
+						result = obtain(args);
+						if (result != null) break;
+						final long remainingNs = deadline - System.nanoTime();
+						if (remainingNs <= 0) break;
+						TimeUnit.NANOSECONDS.timedWait(mSync, remainingNs);
+					}
+				} finally {
+					mWaiters.decrementAndGet();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param obj
+	 * @return true: プールに返却できた, false: プールに返却できなかった(最大保持数より多くなってしまった)
+	 */
+	@Override
+	public boolean recycle(@NonNull final T obj) {
+		boolean result = true;
+		// 待機中のobtainがあるときはマガジンへ入れると他のスレッドから見えないので
+		// 共有キューへ返却する
+		if ((mWaiters.get() > 0) || !pushMagazine(obj)) {
+			if (!mPool.offer(obj)) {
+				// 最大保持数を超えた
+				mCreatedObjects.decrementAndGet();
+				result = false;
+			}
+		}
+		if (mWaiters.get() > 0) {
+			// 返却したオブジェクトまたは新たに生成可能になったことを待機中のobtainへ通知
+			synchronized (mSync) {
+				mSync.notifyAll();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param objects
+	 */
+	@Override
+	public void recycle(@NonNull final Collection<T> objects) {
+		for (final T obj: objects) {
+			if (obj != null) {
+				recycle(obj);
+			}
+		}
+	}
+
+	/**
+	 * 使用済みオブジェクトをプールに返却する
+	 * @param objects
+	 */
+	@Override
+	public void recycle(@NonNull final T[] objects) {
+		for (final T obj: objects) {
+			if (obj != null) {
+				recycle(obj);
+			}
+		}
+	}
+
+	/**
+	 * プールを空にする
+	 * 他のスレッドのマガジン内のオブジェクトは次にそのスレッドからアクセスしたときに破棄する
+	 */
+	@Override
+	public void clear() {
+		mGeneration.incrementAndGet();
+		mPool.clear();
+		mCreatedObjects.set(0);
+	}
+
+	/**
+	 * プール内に保持しているオブジェクト数を取得
+	 * スレッド毎のキャッシュ内のオブジェクトは含まない
+	 * @return
+	 */
+	public int getNumInPool() {
+		return mPool.size();
+	}
+
+	/**
+	 * 生成済みのオブジェクト数を取得
+	 * @return
+	 */
+	public int getNumCreated() {
+		return mCreatedObjects.get();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * マガジンまたは共有キューからオブジェクトを取り出す
+	 * @return
+	 */
+	@Nullable
+	private T pop() {
+		T result = popMagazine();
+		if (result == null) {
+			result = mPool.poll();
+		}
+		return result;
+	}
+
+	/**
+	 * 最大生成数を超えていなければ新たにオブジェクトを生成する
+	 * @param args
+	 * @return
+	 */
+	@Nullable
+	private T create(@Nullable final Object... args) {
+		for ( ; ; ) {
+			final int n = mCreatedObjects.get();
+			if (n >= mLimitNum) {
+				return null;
+			}
+			if (mCreatedObjects.compareAndSet(n, n + 1)) {
+				break;
+			}
+		}
+		try {
+			return createObject(args);
+		} catch (final RuntimeException e) {
+			mCreatedObjects.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * オブジェクトTを生成する
+	 * @param args オプション引数, Tの生成に必要な値を渡す, 省略可
+	 * @return
+	 */
+	@NonNull
+	protected abstract T createObject(@Nullable final Object... args);
+
+	/**
+	 * 呼び出し元スレッドのマガジンを取得する
+	 * init/clearで世代が変わっていれば中身を破棄する
+	 * @return
+	 */
+	@Nullable
+	private Magazine getMagazine() {
+		if (mMagazine == null) {
+			return null;
+		}
+		final int generation = mGeneration.get();
+		Magazine magazine = mMagazine.get();
+		if (magazine == null) {
+			magazine = new Magazine(mMagazineSize, generation);
+			mMagazine.set(magazine);
+		} else if (magazine.generation != generation) {
+			for (int i = 0; i < magazine.count; i++) {
+				magazine.items[i] = null;
+			}
+			magazine.count = 0;
+			magazine.generation = generation;
+		}
+		return magazine;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Nullable
+	private T popMagazine() {
+		final Magazine magazine = getMagazine();
+		if ((magazine != null) && (magazine.count > 0)) {
+			final int ix = --magazine.count;
+			final T result = (T)magazine.items[ix];
+			magazine.items[ix] = null;
+			return result;
+		}
+		return null;
+	}
+
+	private boolean pushMagazine(@NonNull final T obj) {
+		final Magazine magazine = getMagazine();
+		if ((magazine != null) && (magazine.count < magazine.items.length)) {
+			magazine.items[magazine.count++] = obj;
+			return true;
+		}
+		return false;
+	}
+}
@@ -22,9 +22,13 @@ import android.util.Log;
 
 import com.serenegiant.collections.ReentrantReadWriteList;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -37,6 +41,16 @@ import androidx.annotation.WorkerThread;
  * Looper/Handlerを使わずに簡易的にメッセージ処理を行うための
  * ヘルパークラス
  * MessageTaskまたはその継承クラスをTreadへ引き渡して実行する
+ * コンストラクタでuseRing=trueを指定するとLinkedBlockingDequeとRequestプールの代わりに
+ * Requestを生成済みの容量固定のロックフリーなリングバッファ(RequestRing)を使い、
+ * offer/offerAndWaitの呼び出し時にオブジェクト生成もロックもしない。
+ * その場合キューが一杯の時はofferがfalseを返す。offerFirstは優先用のリングバッファへ
+ * 追加して通常の要求より先に処理する(offerFirstの要求同士は追加した順に処理する)
+ * また、setCoalescePolicyで要求コード毎に未処理の同じ要求をまとめるかどうかを指定できる。
+ * COALESCE_LATESTは未処理の要求の引数を最新の値で置き換え、COALESCE_COUNTは最初の要求の
+ * 引数のままoffer回数を数える(processRequest内でgetMergedCountで取得できる)。
+ * どちらもキュー内の要求は1つだけなのでワーカースレッドが一時的に遅延してもキューが伸びず、
+ * removeRequest(int)もキューを探さずに取り消すことができる
  */
 public abstract class MessageTask implements Runnable {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
@@ -72,8 +86,17 @@ public abstract class MessageTask implements Runnable {
 		int request_for_result;
 		Object result;
 		MessageCallback callback;
+		/**
+		 * まとめる対象の要求の時の要求コード毎の状態, まとめない時はnull
+		 */
+		Coalesced coalescer;
 
-		private Request() {
+		/**
+		 * offerAndWaitの呼び出し毎の番号, 待機を中断した後に前の要求の結果を受け取らないようにするため
+		 */
+		int generation;
+
+		/*package*/ Request() {
 			request = request_for_result = REQUEST_TASK_NON;
 		}
 
@@ -131,6 +154,98 @@ public abstract class MessageTask implements Runnable {
 		}
 	}
 
+	/**
+	 * リングバッファ使用時のofferAndWaitの結果受け取り用
+	 * 呼び出し元スレッドは結果を受け取るまで待機するのでスレッド毎に1つを使い回す
+	 */
+	private static final class Completion implements MessageCallback {
+		private int mGeneration;
+		private boolean mDone;
+		private Object mResult;
+
+		/**
+		 * 要求を追加する前に呼ぶ
+		 * @return 要求に設定する番号
+		 */
+		private synchronized int prepare() {
+			mDone = false;
+			mResult = null;
+			return ++mGeneration;
+		}
+
+		@WorkerThread
+		@Override
+		public synchronized void onResult(@NonNull final Request req, final Object result) {
+			if (req.generation == mGeneration) {
+				mResult = result;
+				mDone = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * 結果を受け取るかMessageTaskが終了するまで待機する
+		 * @param task
+		 * @return
+		 */
+		private synchronized Object await(@NonNull final MessageTask task) {
+			while (!mDone && task.mIsRunning) {
+				try {
+					wait(100);
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			final Object result = mResult;
+			mResult = null;
+			return result;
+		}
+	}
+
+	private static final ThreadLocal<Completion> sCompletion = new ThreadLocal<Completion>() {
+		@Override
+		protected Completion initialValue() {
+			return new Completion();
+		}
+	};
+
+	/**
+	 * リングバッファ使用時にmax_requestを指定しなかった時の容量
+	 */
+	public static final int DEFAULT_RING_CAPACITY = 256;
+
+	/**
+	 * setCoalescePolicyで指定した要求コード毎の未処理の要求の状態
+	 */
+	private static final class Coalesced {
+		private final int policy;
+		/**
+		 * キュー内の未処理の要求, なければnull
+		 */
+		private Request pending;
+		/**
+		 * pendingへまとめたofferの回数
+		 */
+		private int count;
+
+		private Coalesced(final int policy) {
+			this.policy = policy;
+		}
+	}
+
+	/**
+	 * 同じ要求をまとめない(デフォルト)
+	 */
+	public static final int COALESCE_NONE = 0;
+	/**
+	 * 未処理の同じ要求があれば引数を最新の値で置き換える
+	 */
+	public static final int COALESCE_LATEST = 1;
+	/**
+	 * 未処理の同じ要求があれば最初の要求の引数のままoffer回数を数える
+	 */
+	public static final int COALESCE_COUNT = 2;
+
 	// minus values and zero are reserved for internal use
 	protected static final int REQUEST_TASK_NON = 0;
 	protected static final int REQUEST_TASK_RUN = -1;
@@ -146,6 +261,35 @@ public abstract class MessageTask implements Runnable {
 	private final ReentrantReadWriteList<Request> mRequestPool;
 	@NonNull
 	private final LinkedBlockingDeque<Request> mRequestQueue;
+	/**
+	 * リングバッファ使用時の通常の要求用と優先(offerFirst)用, 使わない時はnull
+	 */
+	@Nullable
+	private final RequestRing mRing, mPriorityRing;
+	/**
+	 * リングバッファ使用時の終了要求, 処理待ちの要求より先に処理する
+	 */
+	private volatile boolean mQuitRequested;
+	/**
+	 * リングバッファ使用時にワーカースレッドが要求待ちで待機中かどうか
+	 */
+	private volatile boolean mParked;
+	private volatile Thread mConsumer;
+	/**
+	 * リングバッファ使用時に処理中のRequestを取り出したリングバッファ, ワーカースレッドからのみアクセスする
+	 */
+	@Nullable
+	private RequestRing mCurrentRing;
+	/**
+	 * 要求コード毎のまとめ方
+	 */
+	@NonNull
+	private final ConcurrentHashMap<Integer, Coalesced> mCoalesced
+		= new ConcurrentHashMap<Integer, Coalesced>();
+	/**
+	 * 処理中の要求へまとめたofferの回数, ワーカースレッドからのみアクセスする
+	 */
+	private int mMergedCount = 1;
 	private volatile boolean mIsRunning, mFinished;
 	private Thread mWorkerThread;
 	private long mWorkerThreadId;
@@ -175,6 +319,27 @@ public abstract class MessageTask implements Runnable {
 	 * @param init_num プールするRequestの初期数を指定, max_requestよりも大きければ切り捨てる
 	 */
 	public MessageTask(final int max_request, final int init_num) {
+		this(max_request, init_num, false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * プール及びキュー可能な最大サイズとキューの種類を指定して初期化
+	 * @param max_request キューの最大サイズを指定, useRing=trueの時に0以下ならDEFAULT_RING_CAPACITY
+	 * @param init_num プールするRequestの初期数を指定, useRing=trueの時は使わない
+	 * @param useRing trueならロックフリーなリングバッファを使う
+	 */
+	public MessageTask(final int max_request, final int init_num, final boolean useRing) {
+		if (useRing) {
+			final int capacity = max_request > 0 ? max_request : DEFAULT_RING_CAPACITY;
+			mRing = new RequestRing(capacity);
+			mPriorityRing = new RequestRing(Math.max(capacity / 4, 16));
+			mMaxRequest = mRing.capacity();
+			mRequestPool = new ReentrantReadWriteList<Request>();
+			mRequestQueue = new LinkedBlockingDeque<Request>(1);
+			return;
+		}
+		mRing = mPriorityRing = null;
 		mMaxRequest = max_request;
 		if (max_request > 0) {
 			mRequestPool = new ReentrantReadWriteList<Request>();
@@ -197,6 +362,10 @@ public abstract class MessageTask implements Runnable {
 	 */
 	protected void init(final int arg1, final int arg2, @Nullable final Object obj) {
 		mFinished = false;
+		if (mRing != null) {
+			offerRing(mRing, REQUEST_TASK_START, arg1, arg2, obj, null);
+			return;
+		}
 		mRequestQueue.offer(obtain(REQUEST_TASK_START, arg1, arg2, obj));
 //		offer(REQUEST_TASK_START, arg1, arg2, obj);
 	}
@@ -239,7 +408,7 @@ public abstract class MessageTask implements Runnable {
 
 	/** 要求メッセージを取り出す処理(要求メッセージがなければブロックされる) */
 	protected Request takeRequest() throws InterruptedException {
-		return mRequestQueue.take();
+		return mRing != null ? takeRing() : mRequestQueue.take();
 	}
 
 	public boolean waitReady() {
@@ -272,16 +441,27 @@ public abstract class MessageTask implements Runnable {
 	}
 
 	protected int getCurrentRequests() {
+		if (mRing != null) {
+			return mRing.size() + mPriorityRing.size();
+		}
 		return mRequestQueue.size();
 	}
 
+	/**
+	 * リングバッファを使っているかどうか
+	 * @return
+	 */
+	public boolean isRingQueue() {
+		return mRing != null;
+	}
+
 	@Override
 	public void run() {
 		Request request = null;
 		mIsRunning = true;
 		mFinished = false;
 		try {
-			request = mRequestQueue.take();
+			request = mRing != null ? takeRing() : mRequestQueue.take();
 		} catch (final InterruptedException e) {
 			mIsRunning = false;
 			mFinished = true;
@@ -297,6 +477,7 @@ public abstract class MessageTask implements Runnable {
 					mIsRunning = false;
 					mFinished = true;
 				}
+				recycle(request);
 			}
 			mSync.notifyAll();
 		}
@@ -313,6 +494,11 @@ public abstract class MessageTask implements Runnable {
 LOOP:	while (mIsRunning) {
 			try {
 				request = takeRequest();
+				if (!detach(request)) {
+					// 取り消し済み
+					recycle(request);
+					continue;
+				}
 				switch (request.request) {
 				case REQUEST_TASK_NON:
 					break;
@@ -355,9 +541,8 @@ LOOP:	while (mIsRunning) {
 					}
 					break;
 				}
-				request.request = request.request_for_result = REQUEST_TASK_NON;
-				// プールへ返却する
-				mRequestPool.add(request);
+				// プール/リングバッファへ返却する
+				recycle(request);
 			} catch (final InterruptedException e) {
 				break;
 			}
@@ -402,6 +587,230 @@ LOOP:	while (mIsRunning) {
 		return true;
 	}
 
+	/**
+	 * 処理し終わったRequestをプールまたはリングバッファへ返却する
+	 * @param request
+	 */
+	@WorkerThread
+	private void recycle(@NonNull final Request request) {
+		request.coalescer = null;
+		if (mRing != null) {
+			if (mCurrentRing != null) {
+				mCurrentRing.release();
+				mCurrentRing = null;
+			}
+		} else {
+			request.request = request.request_for_result = REQUEST_TASK_NON;
+			mRequestPool.add(request);
+		}
+	}
+
+	/**
+	 * リングバッファから次のRequestを取り出す(返却はrecycleで行う)
+	 * 要求がなければ追加されるまで待機する
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@WorkerThread
+	private Request takeRing() throws InterruptedException {
+		mConsumer = Thread.currentThread();
+		for ( ; ; ) {
+			if (mQuitRequested) {
+				return new Request(REQUEST_TASK_QUIT, 0, 0, null);
+			}
+			// 優先用の要求を先に処理する
+			Request req = mPriorityRing.peek();
+			if (req != null) {
+				mCurrentRing = mPriorityRing;
+				return req;
+			}
+			req = mRing.peek();
+			if (req != null) {
+				mCurrentRing = mRing;
+				return req;
+			}
+			mParked = true;
+			if (!mQuitRequested && (mPriorityRing.peek() == null) && (mRing.peek() == null)) {
+				LockSupport.park(this);
+			}
+			mParked = false;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * まとめる対象の要求をワーカースレッドで処理する前に未処理の要求から外す
+	 * 以降のofferは新しい要求として追加する
+	 * @param request
+	 * @return 取り消し済みならfalse
+	 */
+	@WorkerThread
+	private boolean detach(@NonNull final Request request) {
+		mMergedCount = 1;
+		final Coalesced c = request.coalescer;
+		if (c != null) {
+			synchronized (c) {
+				if (c.pending != request) {
+					return false;
+				}
+				c.pending = null;
+				mMergedCount = c.count;
+				c.count = 0;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * リングバッファへ要求を追加する
+	 * @param ring
+	 * @param request
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 * @param coalescer まとめる対象の要求の時の要求コード毎の状態, まとめない時はnull
+	 * 			ワーカースレッドから見える前にセットしなければならないのでここで渡す
+	 * @return 一杯で追加できなければnull
+	 */
+	@Nullable
+	private Request offerRing(@NonNull final RequestRing ring,
+		final int request, final int arg1, final int arg2, final Object obj,
+		@Nullable final Coalesced coalescer) {
+
+		final long pos = ring.claim();
+		if (pos < 0) {
+			return null;
+		}
+		final Request req = ring.slot(pos);
+		req.request = request;
+		req.arg1 = arg1;
+		req.arg2 = arg2;
+		req.obj = obj;
+		req.request_for_result = REQUEST_TASK_NON;
+		req.result = null;
+		req.callback = null;
+		req.coalescer = coalescer;
+		ring.publish(pos);
+		signal();
+		return req;
+	}
+
+	/**
+	 * キューへ要求を追加する
+	 * @param first trueならoffer, falseならofferFirst
+	 * @param request
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 * @param coalescer まとめる対象の要求の時の要求コード毎の状態, まとめない時はnull
+	 * @return 追加できなければnull
+	 */
+	@Nullable
+	private Request enqueue(final boolean first,
+		final int request, final int arg1, final int arg2, final Object obj,
+		@Nullable final Coalesced coalescer) {
+
+		if (mRing != null) {
+			return offerRing(first ? mPriorityRing : mRing, request, arg1, arg2, obj, coalescer);
+		}
+		final Request req = obtain(request, arg1, arg2, obj);
+		req.coalescer = coalescer;
+		return (first ? mRequestQueue.offerFirst(req) : mRequestQueue.offer(req)) ? req : null;
+	}
+
+	/**
+	 * まとめる対象の要求を追加する
+	 * 未処理の同じ要求があればキューへは追加せずにその要求へまとめる
+	 * @param c
+	 * @param first
+	 * @param request
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 * @return
+	 */
+	private boolean offerCoalesced(@NonNull final Coalesced c, final boolean first,
+		final int request, final int arg1, final int arg2, final Object obj) {
+
+		synchronized (c) {
+			final Request pending = c.pending;
+			if (pending != null) {
+				if (c.policy == COALESCE_LATEST) {
+					pending.arg1 = arg1;
+					pending.arg2 = arg2;
+					pending.obj = obj;
+				}
+				c.count++;
+				return true;
+			}
+			// coalescerはキューへ追加する前にセットする(追加後にセットすると
+			// ワーカースレッドがdetachでcoalescerを見る前に処理して返却してしまうことがある)
+			// セット済みならワーカースレッドはdetachでcをロックするので
+			// pendingをセットするまで待つ
+			final Request req = enqueue(first, request, arg1, arg2, obj, c);
+			if (req != null) {
+				c.pending = req;
+				c.count = 1;
+			}
+			return req != null;
+		}
+	}
+
+	/**
+	 * 要求コード毎に未処理の同じ要求をまとめるかどうかを設定する
+	 * offerAndWait/queueEventの要求はまとめない
+	 * 変更前に追加した未処理の要求はまとめない
+	 * @param request minus values and zero are reserved
+	 * @param policy COALESCE_NONE, COALESCE_LATEST, COALESCE_COUNT
+	 */
+	public void setCoalescePolicy(final int request, final int policy) {
+		if (request <= REQUEST_TASK_NON) {
+			throw new IllegalArgumentException("minus values and zero are reserved");
+		}
+		switch (policy) {
+		case COALESCE_NONE:
+			mCoalesced.remove(request);
+			break;
+		case COALESCE_LATEST:
+		case COALESCE_COUNT:
+			mCoalesced.put(request, new Coalesced(policy));
+			break;
+		default:
+			throw new IllegalArgumentException("unknown policy " + policy);
+		}
+	}
+
+	/**
+	 * 要求コード毎のまとめ方を取得
+	 * @param request
+	 * @return COALESCE_NONE, COALESCE_LATEST, COALESCE_COUNT
+	 */
+	public int getCoalescePolicy(final int request) {
+		final Coalesced c = mCoalesced.get(request);
+		return c != null ? c.policy : COALESCE_NONE;
+	}
+
+	/**
+	 * 処理中の要求へまとめたofferの回数を取得する
+	 * processRequest内から呼び出すこと, まとめない要求なら1
+	 * @return
+	 */
+	@WorkerThread
+	protected int getMergedCount() {
+		return mMergedCount;
+	}
+
+	/**
+	 * 要求待ちで待機中のワーカースレッドを起こす
+	 */
+	private void signal() {
+		if (mParked) {
+			LockSupport.unpark(mConsumer);
+		}
+	}
+
 	/**
 	 * RequestプールからRequestを取得する
 	 * プールが空の場合は新規に生成する
@@ -421,6 +830,7 @@ LOOP:	while (mIsRunning) {
 			req.request_for_result = REQUEST_TASK_NON;
 			req.result = null;
 			req.callback = null;
+			req.coalescer = null;
 		} else {
 			req = new Request(request, arg1, arg2, obj);
 		}
@@ -438,7 +848,14 @@ LOOP:	while (mIsRunning) {
 	public boolean offer(final int request,
 		final int arg1, final int arg2, final Object obj) {
 
-		return !mFinished && mRequestQueue.offer(obtain(request, arg1, arg2, obj));
+		if (mFinished) {
+			return false;
+		}
+		final Coalesced c = (request > REQUEST_TASK_NON) ? mCoalesced.get(request) : null;
+		if (c != null) {
+			return offerCoalesced(c, false, request, arg1, arg2, obj);
+		}
+		return enqueue(false, request, arg1, arg2, obj, null) != null;
 	}
 
 	/**
@@ -501,8 +918,15 @@ LOOP:	while (mIsRunning) {
 	public boolean offerFirst(final int request,
 		final int arg1, final int arg2, final Object obj) {
 
-		return !mFinished && mIsRunning
-			&& mRequestQueue.offerFirst(obtain(request, arg1, arg2, obj));
+		if (mFinished || !mIsRunning) {
+			return false;
+		}
+		final Coalesced c = (request > REQUEST_TASK_NON) ? mCoalesced.get(request) : null;
+		if (c != null) {
+			// 未処理の同じ要求があればその位置のまま処理する
+			return offerCoalesced(c, true, request, arg1, arg2, obj);
+		}
+		return enqueue(true, request, arg1, arg2, obj, null) != null;
 	}
 
 	/**
@@ -519,7 +943,9 @@ LOOP:	while (mIsRunning) {
 	public Object offerAndWait(final int request,
 		final int arg1, final int arg2, final Object obj) {
 
-		if (!mFinished && (request > REQUEST_TASK_NON)) {
+		if (!mFinished && (request > REQUEST_TASK_NON) && (mRing != null)) {
+			return offerAndWaitRing(request, arg1, arg2, obj);
+		} else if (!mFinished && (request > REQUEST_TASK_NON)) {
 			final Request req = obtain(REQUEST_TASK_RUN_AND_WAIT, arg1, arg2, obj);
 			if (!isOnWorkerThread()) {
 				// ワーカースレッド上でなければワーカースレッド上での実行要求＆結果を待機する
@@ -537,7 +963,7 @@ LOOP:	while (mIsRunning) {
 				mRequestQueue.offer(req);
 				while (mIsRunning && (req.request_for_result != REQUEST_TASK_NON)) {
 					try {
-						sync.acquire(100);
+						sync.tryAcquire(100, TimeUnit.MILLISECONDS);
 					} catch (final InterruptedException e) {
 						break;
 					}
@@ -562,6 +988,49 @@ LOOP:	while (mIsRunning) {
 		}
 	}
 
+	/**
+	 * リングバッファ使用時のofferAndWaitの処理
+	 * Semaphore等を生成する代わりにスレッド毎のCompletionを使い回す
+	 * @param request
+	 * @param arg1
+	 * @param arg2
+	 * @param obj
+	 * @return
+	 */
+	private Object offerAndWaitRing(final int request,
+		final int arg1, final int arg2, final Object obj) {
+
+		if (isOnWorkerThread()) {
+			// ワーカースレッド上ならここで実行する
+			try {
+				return processRequest(request, arg1, arg2, obj);
+			} catch (final TaskBreak e) {
+				return null;
+			} catch (final Exception e) {
+				callOnError(e);
+				return null;
+			}
+		}
+		final Completion completion = sCompletion.get();
+		final int generation = completion.prepare();
+		final long pos = mRing.claim();
+		if (pos < 0) {
+			return null;
+		}
+		final Request req = mRing.slot(pos);
+		req.request = REQUEST_TASK_RUN_AND_WAIT;
+		req.arg1 = arg1;
+		req.arg2 = arg2;
+		req.obj = obj;
+		req.request_for_result = request;
+		req.result = null;
+		req.callback = completion;
+		req.generation = generation;
+		mRing.publish(pos);
+		signal();
+		return completion.await(this);
+	}
+
 	/**
 	 * request to run on worker thread
 	 * @param task
@@ -576,6 +1045,11 @@ LOOP:	while (mIsRunning) {
 	 * @param request
 	 */
 	public void removeRequest(final Request request) {
+		if (mRing != null) {
+			mRing.cancel(request);
+			mPriorityRing.cancel(request);
+			return;
+		}
 		for (final Request req: mRequestQueue) {
 			if (!mIsRunning || mFinished || !mRequestQueue.contains(request)) break;
 			if (req.equals(request)) {
@@ -590,11 +1064,32 @@ LOOP:	while (mIsRunning) {
 	 * @param request
 	 */
 	public void removeRequest(final int request) {
-		for (final Request req: mRequestQueue) {
+		final Coalesced c = mCoalesced.get(request);
+		if (c != null) {
+			// まとめる対象の要求はキュー内に1つだけなのでキューを探さずに取り消し済みにする
+			// (キューからはワーカースレッドで取り出した時に読み飛ばす)
+			synchronized (c) {
+				if (c.pending != null) {
+					c.pending.request = REQUEST_TASK_NON;
+					c.pending = null;
+					c.count = 0;
+				}
+			}
+			return;
+		}
+		if (mRing != null) {
+			mRing.cancel(request);
+			mPriorityRing.cancel(request);
+			return;
+		}
+		final Iterator<Request> it = mRequestQueue.iterator();
+		while (it.hasNext()) {
 			if (!mIsRunning || mFinished) break;
+			final Request req = it.next();
 			if (req.request == request) {
-				mRequestQueue.remove(req);
-				mRequestPool.add(req);
+				// ワーカースレッドが同時に取り出した場合に二重にプールへ返却しないように
+				// 削除したRequestはプールへ戻さない
+				it.remove();
 			}
 		}
 	}
@@ -614,8 +1109,7 @@ LOOP:	while (mIsRunning) {
 		final boolean b = mIsRunning;
 		mIsRunning = false;
 		if (!mFinished) {
-			mRequestQueue.clear();
-			mRequestQueue.offerFirst(obtain(REQUEST_TASK_QUIT, 0, 0, null));
+			requestQuit();
 			synchronized (mSync) {
 				if (b) {
 					final long current = Thread.currentThread().getId();
@@ -643,6 +1137,20 @@ LOOP:	while (mIsRunning) {
 	public void releaseSelf() {
 		mIsRunning = false;
 		if (!mFinished) {
+			requestQuit();
+		}
+	}
+
+	/**
+	 * 処理待ちの要求を破棄して終了要求する
+	 */
+	private void requestQuit() {
+		if (mRing != null) {
+			// リングバッファはワーカースレッド以外から取り出せないので
+			// 終了要求を記録してワーカースレッド側で処理待ちの要求より先に処理する
+			mQuitRequested = true;
+			signal();
+		} else {
 			mRequestQueue.clear();
 			mRequestQueue.offerFirst(obtain(REQUEST_TASK_QUIT, 0, 0, null));
 		}
@@ -30,7 +30,7 @@ import java.util.List;
  * オブジェクトを再利用してオブジェクトの生成を抑制するためのプールオブジェクト
  * @param <T>
  */
-public abstract class Pool<T> {
+public abstract class Pool<T> implements IPool<T> {
 
 	@NonNull
 	private final List<T> mPool = new ArrayList<T>();
@@ -67,6 +67,7 @@ public abstract class Pool<T> {
 	 * プール内のオブジェクトを破棄して新たに初期数まで確保する
 	 * @param args オプション引数, Tの生成に必要な値を渡す, #createObjectへ引き渡される, 省略可
 	 */
+	@Override
 	public void init(@Nullable final Object... args) {
 		synchronized (mPool) {
 			mPool.clear();
@@ -86,6 +87,7 @@ public abstract class Pool<T> {
 	 * @return
 	 */
 	@Nullable
+	@Override
 	public T obtain(@Nullable final Object... args) {
 		T result = null;
 		synchronized (mPool) {
@@ -113,6 +115,7 @@ public abstract class Pool<T> {
 	 * @param obj
 	 * @return true: プールに返却できた, false: プールに返却できなかった(最大保持数より多くなってしまった)
 	 */
+	@Override
 	public boolean recycle(@NonNull final T obj) {
 		synchronized (mPool) {
 			if (mPool.size() < mMaxNumInPool) {
@@ -128,6 +131,7 @@ public abstract class Pool<T> {
 	 * 使用済みオブジェクトをプールに返却する
 	 * @param objects
 	 */
+	@Override
 	public void recycle(@NonNull final Collection<T> objects) {
 		for (final T obj: objects) {
 			if (obj != null) {
@@ -140,6 +144,7 @@ public abstract class Pool<T> {
 	 * 使用済みオブジェクトをプールに返却する
 	 * @param objects
 	 */
+	@Override
 	public void recycle(@NonNull final T[] objects) {
 		for (final T obj: objects) {
 			if (obj != null) {
@@ -151,6 +156,7 @@ public abstract class Pool<T> {
 	/**
 	 * プールを空にする
 	 */
+	@Override
 	public void clear() {
 		synchronized (mPool) {
 			mPool.clear();
@@ -0,0 +1,566 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+
+/**
+ * プリミティブ配列とbyte配列を相互変換するためのヘルパークラス
+ * 1要素ずつByteBuffer#putXXX/getXXXを呼ぶのではなく、
+ * ByteBuffer#asXXXBufferで取得したビューへ配列をまとめて書き込む/読み込む。
+ * 出力先の配列は呼び出し元が用意するので、同じ配列を使い回せば変換毎の配列生成は不要。
+ * バイトオーダーは明示的に指定する(ArrayUtils/SQLiteBlobHelperはネイティブバイトオーダー)
+ *
+ * int/longの配列は隣接する要素との差分をZigZag符号化してから可変長整数(varint)として
+ * 書き込むコンパクトな形式にも変換できる。タイムスタンプやセンサーの値のように
+ * 隣接する値の差が小さい時は固定長より大幅に小さくなる
+ */
+public class PrimitiveArrayCodec {
+	private PrimitiveArrayCodec() {
+		// インスタンス化をエラーにするためにコンストラクタをprivateに
+	}
+
+	public static final int BYTES_SHORT = Short.SIZE / 8;
+	public static final int BYTES_INT = Integer.SIZE / 8;
+	public static final int BYTES_LONG = Long.SIZE / 8;
+	public static final int BYTES_FLOAT = Float.SIZE / 8;
+	public static final int BYTES_DOUBLE = Double.SIZE / 8;
+
+//--------------------------------------------------------------------------------
+	/**
+	 * short配列をbyte配列へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, dstOffsetからnum * BYTES_SHORTバイト以上必要
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encode(
+		@NonNull final short[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset, @NonNull final ByteOrder order) {
+
+		final int bytes = num * BYTES_SHORT;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asShortBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * int配列をbyte配列へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, dstOffsetからnum * BYTES_INTバイト以上必要
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encode(
+		@NonNull final int[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset, @NonNull final ByteOrder order) {
+
+		final int bytes = num * BYTES_INT;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asIntBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * long配列をbyte配列へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, dstOffsetからnum * BYTES_LONGバイト以上必要
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encode(
+		@NonNull final long[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset, @NonNull final ByteOrder order) {
+
+		final int bytes = num * BYTES_LONG;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asLongBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * float配列をbyte配列へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, dstOffsetからnum * BYTES_FLOATバイト以上必要
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encode(
+		@NonNull final float[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset, @NonNull final ByteOrder order) {
+
+		final int bytes = num * BYTES_FLOAT;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asFloatBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+	/**
+	 * double配列をbyte配列へ書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, dstOffsetからnum * BYTES_DOUBLEバイト以上必要
+	 * @param dstOffset
+	 * @param order
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encode(
+		@NonNull final double[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset, @NonNull final ByteOrder order) {
+
+		final int bytes = num * BYTES_DOUBLE;
+		ByteBuffer.wrap(dst, dstOffset, bytes).order(order)
+			.asDoubleBuffer().put(src, srcOffset, num);
+		return bytes;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * byte配列をshort配列として読み込む
+	 * 要素のサイズに満たない末尾のバイトは無視する
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param order
+	 * @param dst 読み込み先, dstOffsetからlength / BYTES_SHORT個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decode(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final ByteOrder order,
+		@NonNull final short[] dst, final int dstOffset) {
+
+		final int num = length / BYTES_SHORT;
+		ByteBuffer.wrap(src, srcOffset, length).order(order)
+			.asShortBuffer().get(dst, dstOffset, num);
+		return num;
+	}
+
+	/**
+	 * byte配列をint配列として読み込む
+	 * 要素のサイズに満たない末尾のバイトは無視する
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param order
+	 * @param dst 読み込み先, dstOffsetからlength / BYTES_INT個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decode(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final ByteOrder order,
+		@NonNull final int[] dst, final int dstOffset) {
+
+		final int num = length / BYTES_INT;
+		ByteBuffer.wrap(src, srcOffset, length).order(order)
+			.asIntBuffer().get(dst, dstOffset, num);
+		return num;
+	}
+
+	/**
+	 * byte配列をlong配列として読み込む
+	 * 要素のサイズに満たない末尾のバイトは無視する
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param order
+	 * @param dst 読み込み先, dstOffsetからlength / BYTES_LONG個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decode(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final ByteOrder order,
+		@NonNull final long[] dst, final int dstOffset) {
+
+		final int num = length / BYTES_LONG;
+		ByteBuffer.wrap(src, srcOffset, length).order(order)
+			.asLongBuffer().get(dst, dstOffset, num);
+		return num;
+	}
+
+	/**
+	 * byte配列をfloat配列として読み込む
+	 * 要素のサイズに満たない末尾のバイトは無視する
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param order
+	 * @param dst 読み込み先, dstOffsetからlength / BYTES_FLOAT個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decode(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final ByteOrder order,
+		@NonNull final float[] dst, final int dstOffset) {
+
+		final int num = length / BYTES_FLOAT;
+		ByteBuffer.wrap(src, srcOffset, length).order(order)
+			.asFloatBuffer().get(dst, dstOffset, num);
+		return num;
+	}
+
+	/**
+	 * byte配列をdouble配列として読み込む
+	 * 要素のサイズに満たない末尾のバイトは無視する
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param order
+	 * @param dst 読み込み先, dstOffsetからlength / BYTES_DOUBLE個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decode(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final ByteOrder order,
+		@NonNull final double[] dst, final int dstOffset) {
+
+		final int num = length / BYTES_DOUBLE;
+		ByteBuffer.wrap(src, srcOffset, length).order(order)
+			.asDoubleBuffer().get(dst, dstOffset, num);
+		return num;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * int配列をByteBufferのpositionから書き込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 書き込み先, src.length * BYTES_INTバイト以上の空きが必要
+	 * @return 書き込んだバイト数
+	 * @throws java.nio.BufferOverflowException 書き込み先が足りない時
+	 */
+	public static int encode(@NonNull final int[] src, @NonNull final ByteBuffer dst) {
+		final int bytes = src.length * BYTES_INT;
+		dst.asIntBuffer().put(src);
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * long配列をByteBufferのpositionから書き込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 書き込み先, src.length * BYTES_LONGバイト以上の空きが必要
+	 * @return 書き込んだバイト数
+	 * @throws java.nio.BufferOverflowException 書き込み先が足りない時
+	 */
+	public static int encode(@NonNull final long[] src, @NonNull final ByteBuffer dst) {
+		final int bytes = src.length * BYTES_LONG;
+		dst.asLongBuffer().put(src);
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * float配列をByteBufferのpositionから書き込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 書き込み先, src.length * BYTES_FLOATバイト以上の空きが必要
+	 * @return 書き込んだバイト数
+	 * @throws java.nio.BufferOverflowException 書き込み先が足りない時
+	 */
+	public static int encode(@NonNull final float[] src, @NonNull final ByteBuffer dst) {
+		final int bytes = src.length * BYTES_FLOAT;
+		dst.asFloatBuffer().put(src);
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * double配列をByteBufferのpositionから書き込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 書き込み先, src.length * BYTES_DOUBLEバイト以上の空きが必要
+	 * @return 書き込んだバイト数
+	 * @throws java.nio.BufferOverflowException 書き込み先が足りない時
+	 */
+	public static int encode(@NonNull final double[] src, @NonNull final ByteBuffer dst) {
+		final int bytes = src.length * BYTES_DOUBLE;
+		dst.asDoubleBuffer().put(src);
+		dst.position(dst.position() + bytes);
+		return bytes;
+	}
+
+	/**
+	 * ByteBufferのpositionからint配列として読み込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 読み込み先, dst.length個読み込む
+	 * @return 読み込んだ要素数
+	 * @throws java.nio.BufferUnderflowException 読み込むデータが足りない時
+	 */
+	public static int decode(@NonNull final ByteBuffer src, @NonNull final int[] dst) {
+		src.asIntBuffer().get(dst);
+		src.position(src.position() + dst.length * BYTES_INT);
+		return dst.length;
+	}
+
+	/**
+	 * ByteBufferのpositionからlong配列として読み込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 読み込み先, dst.length個読み込む
+	 * @return 読み込んだ要素数
+	 * @throws java.nio.BufferUnderflowException 読み込むデータが足りない時
+	 */
+	public static int decode(@NonNull final ByteBuffer src, @NonNull final long[] dst) {
+		src.asLongBuffer().get(dst);
+		src.position(src.position() + dst.length * BYTES_LONG);
+		return dst.length;
+	}
+
+	/**
+	 * ByteBufferのpositionからfloat配列として読み込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 読み込み先, dst.length個読み込む
+	 * @return 読み込んだ要素数
+	 * @throws java.nio.BufferUnderflowException 読み込むデータが足りない時
+	 */
+	public static int decode(@NonNull final ByteBuffer src, @NonNull final float[] dst) {
+		src.asFloatBuffer().get(dst);
+		src.position(src.position() + dst.length * BYTES_FLOAT);
+		return dst.length;
+	}
+
+	/**
+	 * ByteBufferのpositionからdouble配列として読み込んでpositionを進める
+	 * バイトオーダーはByteBufferのバイトオーダー
+	 * @param src
+	 * @param dst 読み込み先, dst.length個読み込む
+	 * @return 読み込んだ要素数
+	 * @throws java.nio.BufferUnderflowException 読み込むデータが足りない時
+	 */
+	public static int decode(@NonNull final ByteBuffer src, @NonNull final double[] dst) {
+		src.asDoubleBuffer().get(dst);
+		src.position(src.position() + dst.length * BYTES_DOUBLE);
+		return dst.length;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * int配列を差分+ZigZag+varintのコンパクト形式へ変換した時の最大バイト数
+	 * @param num 要素数
+	 * @return
+	 */
+	public static int maxCompactIntLength(final int num) {
+		return num * 5;
+	}
+
+	/**
+	 * long配列を差分+ZigZag+varintのコンパクト形式へ変換した時の最大バイト数
+	 * @param num 要素数
+	 * @return
+	 */
+	public static int maxCompactLongLength(final int num) {
+		return num * 10;
+	}
+
+	/**
+	 * int配列を直前の要素との差分+ZigZag+varintのコンパクト形式でbyte配列へ書き込む
+	 * 先頭の要素は0との差分として書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, 最大でdstOffsetから#maxCompactIntLength(num)バイト必要
+	 * @param dstOffset
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encodeCompact(
+		@NonNull final int[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset) {
+
+		int pos = dstOffset;
+		int prev = 0;
+		final int n = srcOffset + num;
+		for (int i = srcOffset; i < n; i++) {
+			final int v = src[i];
+			final int delta = v - prev;
+			int zigzag = (delta << 1) ^ (delta >> 31);
+			prev = v;
+			while ((zigzag & ~0x7f) != 0) {
+				dst[pos++] = (byte)((zigzag & 0x7f) | 0x80);
+				zigzag >>>= 7;
+			}
+			dst[pos++] = (byte)zigzag;
+		}
+		return pos - dstOffset;
+	}
+
+	/**
+	 * long配列を直前の要素との差分+ZigZag+varintのコンパクト形式でbyte配列へ書き込む
+	 * 先頭の要素は0との差分として書き込む
+	 * @param src
+	 * @param srcOffset
+	 * @param num 書き込む要素数
+	 * @param dst 書き込み先, 最大でdstOffsetから#maxCompactLongLength(num)バイト必要
+	 * @param dstOffset
+	 * @return 書き込んだバイト数
+	 * @throws IndexOutOfBoundsException 書き込み先が足りない時
+	 */
+	public static int encodeCompact(
+		@NonNull final long[] src, final int srcOffset, final int num,
+		@NonNull final byte[] dst, final int dstOffset) {
+
+		int pos = dstOffset;
+		long prev = 0;
+		final int n = srcOffset + num;
+		for (int i = srcOffset; i < n; i++) {
+			final long v = src[i];
+			final long delta = v - prev;
+			long zigzag = (delta << 1) ^ (delta >> 63);
+			prev = v;
+			while ((zigzag & ~0x7fL) != 0) {
+				dst[pos++] = (byte)((zigzag & 0x7f) | 0x80);
+				zigzag >>>= 7;
+			}
+			dst[pos++] = (byte)zigzag;
+		}
+		return pos - dstOffset;
+	}
+
+	/**
+	 * コンパクト形式のbyte配列に含まれる要素数を取得する
+	 * 読み込み先の配列を確保する前に呼び出す
+	 * @param src
+	 * @param srcOffset
+	 * @param length
+	 * @return
+	 */
+	public static int countCompact(
+		@NonNull final byte[] src, final int srcOffset, final int length) {
+
+		int result = 0;
+		final int n = srcOffset + length;
+		for (int i = srcOffset; i < n; i++) {
+			if (src[i] >= 0) {
+				// 最上位ビットが立っていなければ要素の最後のバイト
+				result++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * コンパクト形式のbyte配列をint配列として読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param dst 読み込み先, dstOffsetから#countCompact個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IllegalArgumentException 途中で切れている時
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decodeCompact(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final int[] dst, final int dstOffset) {
+
+		int pos = dstOffset;
+		int prev = 0;
+		int zigzag = 0;
+		int shift = 0;
+		final int n = srcOffset + length;
+		for (int i = srcOffset; i < n; i++) {
+			final int b = src[i];
+			zigzag |= (b & 0x7f) << shift;
+			if (b >= 0) {
+				prev += (zigzag >>> 1) ^ -(zigzag & 1);
+				dst[pos++] = prev;
+				zigzag = shift = 0;
+			} else {
+				shift += 7;
+			}
+		}
+		if (shift != 0) {
+			throw new IllegalArgumentException("truncated compact int array");
+		}
+		return pos - dstOffset;
+	}
+
+	/**
+	 * コンパクト形式のbyte配列をlong配列として読み込む
+	 * @param src
+	 * @param srcOffset
+	 * @param length 読み込むバイト数
+	 * @param dst 読み込み先, dstOffsetから#countCompact個以上必要
+	 * @param dstOffset
+	 * @return 読み込んだ要素数
+	 * @throws IllegalArgumentException 途中で切れている時
+	 * @throws IndexOutOfBoundsException 読み込み先が足りない時
+	 */
+	public static int decodeCompact(
+		@NonNull final byte[] src, final int srcOffset, final int length,
+		@NonNull final long[] dst, final int dstOffset) {
+
+		int pos = dstOffset;
+		long prev = 0;
+		long zigzag = 0;
+		int shift = 0;
+		final int n = srcOffset + length;
+		for (int i = srcOffset; i < n; i++) {
+			final int b = src[i];
+			zigzag |= (long)(b & 0x7f) << shift;
+			if (b >= 0) {
+				prev += (zigzag >>> 1) ^ -(zigzag & 1);
+				dst[pos++] = prev;
+				zigzag = 0;
+				shift = 0;
+			} else {
+				shift += 7;
+			}
+		}
+		if (shift != 0) {
+			throw new IllegalArgumentException("truncated compact long array");
+		}
+		return pos - dstOffset;
+	}
+}
@@ -0,0 +1,377 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 優先度付きで一時停止/再開可能なThreadPoolExecutor
+ * ThreadPoolExecutorはキューが受け付ける間はコアスレッド数より多くのスレッドを
+ * 生成しないので、コアスレッド数と最大スレッド数を同じ値(並列数)にして
+ * アイドル状態のコアスレッドもタイムアウトで終了させる。
+ * キューはPriorityBlockingQueueで、優先度の高いタスクから実行し、
+ * 同じ優先度の時はFIFO(デフォルト)またはLIFOの順に実行する。
+ * (LIFOはスクロールなどで後から要求したタスクを先に実行したい時用)
+ * #removeはキューからタスクを探して削除するのではなく取り消し済みにするだけなので
+ * キューの長さに関係なく実行でき、取り消したタスクは取り出した時に読み飛ばす。
+ * なお、実行中のスレッド数が並列数未満の時はキューを経由せずにすぐに実行する
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	/**
+	 * 画面上に表示中のサムネイルの読み込み等
+	 */
+	public static final int PRIORITY_HIGH = 10;
+
+	/**
+	 * キュー内でのタスクの順番, 優先度の降順で優先度が同じならシーケンス番号の昇順
+	 */
+	private static final Comparator<Runnable> COMPARATOR = new Comparator<Runnable>() {
+		@Override
+		public int compare(final Runnable o1, final Runnable o2) {
+			final PriorityTask t1 = (PriorityTask)o1;
+			final PriorityTask t2 = (PriorityTask)o2;
+			if (t1.priority != t2.priority) {
+				return t1.priority > t2.priority ? -1 : 1;
+			}
+			return t1.order < t2.order ? -1 : (t1.order > t2.order ? 1 : 0);
+		}
+	};
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_RUNNING = 1;
+	private static final int STATE_CANCELLED = 2;
+
+	/**
+	 * キュー内のタスクを表すラッパー
+	 */
+	private final class PriorityTask implements Runnable {
+		@NonNull
+		private final Runnable command;
+		private final int priority;
+		/**
+		 * FIFOの時はシーケンス番号, LIFOの時はシーケンス番号の符号を反転した値
+		 */
+		private final long order;
+		private final long queuedTimeNs;
+		@NonNull
+		private final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+
+		private PriorityTask(@NonNull final Runnable command,
+			final int priority, final long order) {
+
+			this.command = command;
+			this.priority = priority;
+			this.order = order;
+			queuedTimeNs = System.nanoTime();
+		}
+
+		/**
+		 * 未実行なら取り消す
+		 * @return 取り消すことができればtrue
+		 */
+		private boolean cancel() {
+			if (state.compareAndSet(STATE_QUEUED, STATE_CANCELLED)) {
+				mPendingCount.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void run() {
+			if (!state.compareAndSet(STATE_QUEUED, STATE_RUNNING)) {
+				return;	// 取り消し済み
+			}
+			mPendingCount.decrementAndGet();
+			mTasks.remove(command, this);
+			final long waitNs = System.nanoTime() - queuedTimeNs;
+			mTotalWaitNs.addAndGet(waitNs);
+			mWaitCount.incrementAndGet();
+			long max;
+			while (waitNs > (max = mMaxWaitNs.get())) {
+				if (mMaxWaitNs.compareAndSet(max, waitNs)) break;
+			}
+			if ((command instanceof Future) && ((Future<?>)command).isCancelled()) {
+				return;	// FutureTask#cancelで取り消されたタスク
+			}
+			command.run();
+		}
+	}
+
+	/**
+	 * 未実行のタスクとそのラッパー, #removeで取り消すため
+	 */
+	@NonNull
+	private final ConcurrentHashMap<Runnable, PriorityTask> mTasks
+		= new ConcurrentHashMap<Runnable, PriorityTask>();
+	@NonNull
+	private final AtomicLong mSequence = new AtomicLong();
+	@NonNull
+	private final AtomicInteger mPendingCount = new AtomicInteger();
+	@NonNull
+	private final AtomicLong mTotalWaitNs = new AtomicLong();
+	@NonNull
+	private final AtomicLong mWaitCount = new AtomicLong();
+	@NonNull
+	private final AtomicLong mMaxWaitNs = new AtomicLong();
+	private volatile boolean mLifo;
+	private boolean isPaused;
+	@NonNull
+	private final ReentrantLock pauseLock = new ReentrantLock();
+	@NonNull
+	private final Condition unpaused = pauseLock.newCondition();
+
+	/**
+	 * コンストラクタ
+	 * @param parallelism 並列数(最大スレッド数)
+	 * @param keepAliveTime アイドルスレッドを終了させるまでの時間
+	 * @param unit
+	 */
+	public PriorityThreadPoolExecutor(
+		@IntRange(from=1) final int parallelism,
+		final long keepAliveTime, @NonNull final TimeUnit unit) {
+
+		super(parallelism, parallelism, keepAliveTime, unit,
+			new PriorityBlockingQueue<Runnable>(16, COMPARATOR));
+		allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 並列数(最大スレッド数)を変更する
+	 * @param parallelism
+	 */
+	public void setParallelism(@IntRange(from=1) final int parallelism) {
+		if (parallelism > getMaximumPoolSize()) {
+			setMaximumPoolSize(parallelism);
+			setCorePoolSize(parallelism);
+		} else {
+			setCorePoolSize(parallelism);
+			setMaximumPoolSize(parallelism);
+		}
+	}
+
+	/**
+	 * 並列数(最大スレッド数)を取得
+	 * @return
+	 */
+	public int getParallelism() {
+		return getMaximumPoolSize();
+	}
+
+	/**
+	 * 同じ優先度のタスクをLIFOの順に実行するかどうかを設定
+	 * 変更後にキューへ追加したタスクから適用する
+	 * @param lifo
+	 */
+	public void setLifo(final boolean lifo) {
+		mLifo = lifo;
+	}
+
+	public boolean isLifo() {
+		return mLifo;
+	}
+
+	/**
+	 * PRIORITY_NORMALでタスクを追加する
+	 * @param command
+	 * @throws RejectedExecutionException
+	 */
+	@Override
+	public void execute(@NonNull final Runnable command) throws RejectedExecutionException {
+		execute(command, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * 優先度を指定してタスクを追加する
+	 * @param command
+	 * @param priority 大きいほど先に実行する
+	 * @throws RejectedExecutionException
+	 */
+	public void execute(@NonNull final Runnable command, final int priority)
+		throws RejectedExecutionException {
+
+		final long seq = mSequence.incrementAndGet();
+		final PriorityTask task = new PriorityTask(command, priority, mLifo ? -seq : seq);
+		mPendingCount.incrementAndGet();
+		mTasks.put(command, task);
+		try {
+			super.execute(task);
+		} catch (final RejectedExecutionException e) {
+			mTasks.remove(command, task);
+			task.cancel();
+			throw e;
+		}
+	}
+
+	/**
+	 * 未実行のタスクを取り消す
+	 * キューからは削除せずに取り出した時に読み飛ばすのでキューの長さに関係なく実行できる
+	 * @param command
+	 * @return 取り消すことができればtrue
+	 */
+	@Override
+	public boolean remove(@NonNull final Runnable command) {
+		final PriorityTask task = mTasks.remove(command);
+		return (task != null) && task.cancel();
+	}
+
+	/**
+	 * 取り消したタスクをキューから削除する
+	 */
+	@Override
+	public void purge() {
+		final Iterator<Runnable> it = getQueue().iterator();
+		while (it.hasNext()) {
+			final PriorityTask task = (PriorityTask)it.next();
+			if ((task.state.get() == STATE_CANCELLED)
+				|| ((task.command instanceof Future)
+					&& ((Future<?>)task.command).isCancelled())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 未実行のタスクの一覧を返す
+	 * @return
+	 */
+	@NonNull
+	@Override
+	public List<Runnable> shutdownNow() {
+		resume();
+		final List<Runnable> tasks = super.shutdownNow();
+		final List<Runnable> result = new ArrayList<Runnable>(tasks.size());
+		for (final Runnable r: tasks) {
+			final PriorityTask task = (PriorityTask)r;
+			if (task.cancel()) {
+				result.add(task.command);
+			}
+		}
+		mTasks.clear();
+		return result;
+	}
+
+	/**
+	 * 実行待ちのタスク数を取得
+	 * 取り消したタスクは含まない
+	 * @return
+	 */
+	public int getPendingCount() {
+		return mPendingCount.get();
+	}
+
+	/**
+	 * キューへ追加してから実行開始するまでの平均待ち時間を取得
+	 * @return [ナノ秒]
+	 */
+	public long getAverageWaitTimeNs() {
+		final long n = mWaitCount.get();
+		return n > 0 ? mTotalWaitNs.get() / n : 0;
+	}
+
+	/**
+	 * キューへ追加してから実行開始するまでの最大待ち時間を取得
+	 * @return [ナノ秒]
+	 */
+	public long getMaxWaitTimeNs() {
+		return mMaxWaitNs.get();
+	}
+
+	/**
+	 * 待ち時間の統計をリセットする
+	 */
+	public void resetStats() {
+		mTotalWaitNs.set(0);
+		mWaitCount.set(0);
+		mMaxWaitNs.set(0);
+	}
+
+	@Override
+	protected void beforeExecute(final Thread t, final Runnable r) {
+		super.beforeExecute(t, r);
+		pauseLock.lock();
+		try {
+			while (isPaused) {
+				// ポース中は実行待機する
+				unpaused.await();
+			}
+		} catch (final InterruptedException ie) {
+			t.interrupt();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * キューに入れたタスクの実行を一時中断する
+	 */
+	public void pause() {
+		pauseLock.lock();
+		try {
+			isPaused = true;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * 一時中断したタスクの実行を再開する
+	 */
+	public void resume() {
+		pauseLock.lock();
+		try {
+			isPaused = false;
+			unpaused.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * 一時中断中かどうか
+	 * @return
+	 */
+	public boolean isPaused() {
+		pauseLock.lock();
+		try {
+			return isPaused;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+}
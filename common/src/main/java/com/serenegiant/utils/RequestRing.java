@@ -0,0 +1,204 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MessageTask用の容量固定のロックフリーなMPSC(複数生産者/単一消費者)リングバッファ
+ * LockFreeRingQueueと同じく各スロット毎にシーケンス番号を持たせてCASでtailを進めるが、
+ * 要素の参照を受け渡すのではなくスロット毎に生成済みのRequestへ直接書き込むので
+ * 要求の追加/取り出し時にオブジェクト生成しない。
+ * 追加は#claimでスロットを確保→#slotで取得したRequestへ書き込み→#publishで公開、
+ * 取り出しはワーカースレッドから#peekで先頭のRequestを取得→処理後に#releaseで返却する。
+ * 未処理の要求の削除はスロットを取り消し済みとして記録して#peekで読み飛ばす
+ */
+/*package*/ final class RequestRing {
+
+	private final int mCapacity;
+	private final int mMask;
+	@NonNull
+	private final MessageTask.Request[] mSlots;
+	@NonNull
+	private final AtomicLongArray mSequences;
+	/**
+	 * 取り消したスロットのシーケンス番号, 取り消していなければ-1
+	 */
+	@NonNull
+	private final AtomicLongArray mCancelled;
+	@NonNull
+	private final AtomicLong mTail = new AtomicLong();
+	/**
+	 * 次に取り出すシーケンス番号, ワーカースレッドからのみ変更する
+	 */
+	private volatile long mHead;
+
+	/**
+	 * コンストラクタ
+	 * @param capacity 最大保持数, 2のべき乗に切り上げる
+	 */
+	/*package*/ RequestRing(@IntRange(from=1) final int capacity) {
+		int n = 1;
+		while (n < capacity) {
+			n <<= 1;
+		}
+		mCapacity = n;
+		mMask = n - 1;
+		mSlots = new MessageTask.Request[n];
+		mSequences = new AtomicLongArray(n);
+		mCancelled = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			mSlots[i] = new MessageTask.Request();
+			mSequences.set(i, i);
+			mCancelled.set(i, -1);
+		}
+	}
+
+	/*package*/ int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 書き込むスロットを確保する
+	 * @return 確保したスロットのシーケンス番号, 一杯の時は-1
+	 */
+	/*package*/ long claim() {
+		long pos = mTail.get();
+		for ( ; ; ) {
+			final long dif = mSequences.get((int)(pos & mMask)) - pos;
+			if (dif == 0) {
+				if (mTail.compareAndSet(pos, pos + 1)) {
+					return pos;
+				}
+			} else if (dif < 0) {
+				// 一杯
+				return -1;
+			}
+			pos = mTail.get();
+		}
+	}
+
+	/**
+	 * #claimで確保したスロットのRequestを取得する
+	 * @param pos
+	 * @return
+	 */
+	@NonNull
+	/*package*/ MessageTask.Request slot(final long pos) {
+		return mSlots[(int)(pos & mMask)];
+	}
+
+	/**
+	 * 書き込み終わったスロットをワーカースレッドへ公開する
+	 * ワーカースレッドの待機状態の確認と順序付けるためにlazySetではなくsetを使う
+	 * @param pos
+	 */
+	/*package*/ void publish(final long pos) {
+		mSequences.set((int)(pos & mMask), pos + 1);
+	}
+
+	/**
+	 * 先頭のRequestを取り出さずに返す, 取り消したRequestは読み飛ばす
+	 * ワーカースレッドからのみ呼び出すこと
+	 * @return 空ならnull
+	 */
+	@Nullable
+	/*package*/ MessageTask.Request peek() {
+		for ( ; ; ) {
+			final long pos = mHead;
+			final int ix = (int)(pos & mMask);
+			if (mSequences.get(ix) != pos + 1) {
+				return null;
+			}
+			if (mCancelled.get(ix) != pos) {
+				return mSlots[ix];
+			}
+			release();
+		}
+	}
+
+	/**
+	 * 先頭のRequestを処理し終わった時にスロットを返却する
+	 * ワーカースレッドからのみ呼び出すこと
+	 */
+	/*package*/ void release() {
+		final long pos = mHead;
+		final int ix = (int)(pos & mMask);
+		final MessageTask.Request req = mSlots[ix];
+		req.request = req.request_for_result = MessageTask.REQUEST_TASK_NON;
+		req.obj = req.result = null;
+		req.callback = null;
+		mHead = pos + 1;
+		mSequences.set(ix, pos + mCapacity);
+	}
+
+	/**
+	 * 未処理の要求の中から要求コードが一致するものを取り消す
+	 * offerAndWaitの要求は待機中の呼び出し元が戻れなくなるので取り消さない
+	 * @param request
+	 */
+	/*package*/ void cancel(final int request) {
+		final long tail = mTail.get();
+		for (long pos = mHead; pos < tail; pos++) {
+			final int ix = (int)(pos & mMask);
+			final MessageTask.Request req = mSlots[ix];
+			if ((mSequences.get(ix) == pos + 1)
+				&& (req.request == request)
+				&& (req.request != MessageTask.REQUEST_TASK_RUN_AND_WAIT)
+				&& (mSequences.get(ix) == pos + 1)) {
+				// 書き込んだシーケンス番号を記録するので、その間にワーカースレッドが
+				// 処理してスロットが再利用されていても新しい要求は取り消さない
+				mCancelled.set(ix, pos);
+			}
+		}
+	}
+
+	/**
+	 * 未処理の要求の中から一致するものを取り消す
+	 * @param request
+	 */
+	/*package*/ void cancel(@NonNull final MessageTask.Request request) {
+		final long tail = mTail.get();
+		for (long pos = mHead; pos < tail; pos++) {
+			final int ix = (int)(pos & mMask);
+			final MessageTask.Request req = mSlots[ix];
+			if ((mSequences.get(ix) == pos + 1)
+				&& (req.request != MessageTask.REQUEST_TASK_RUN_AND_WAIT)
+				&& req.equals(request)
+				&& (mSequences.get(ix) == pos + 1)) {
+				mCancelled.set(ix, pos);
+			}
+		}
+	}
+
+	/**
+	 * 未処理の要求数を取得
+	 * 同時に追加/取り出しされている場合には目安の値
+	 * @return
+	 */
+	/*package*/ int size() {
+		final long n = mTail.get() - mHead;
+		return n < 0 ? 0 : (n > mCapacity ? mCapacity : (int)n);
+	}
+}
@@ -20,27 +20,31 @@ package com.serenegiant.utils;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 import androidx.annotation.NonNull;
 
 /**
- * PausableThreadPoolExecutorをラップしたスレッドプール実装
+ * PriorityThreadPoolExecutorをラップしたスレッドプール実装
+ * 以前はコアスレッド数1のThreadPoolExecutorに上限なしのLinkedBlockingQueueを
+ * 組み合わせていたため、最大スレッド数を指定しても1スレッドでしか実行されなかった。
+ * 現在はコアスレッド数=最大スレッド数(並列数)なので並列数までスレッドが増える。
+ * アイドル状態のスレッドはKEEP_ALIVE_TIME_SECS経過すると終了する。
  */
 public class ThreadPool {
 
+	public static final int PRIORITY_LOW = PriorityThreadPoolExecutor.PRIORITY_LOW;
+	public static final int PRIORITY_NORMAL = PriorityThreadPoolExecutor.PRIORITY_NORMAL;
+	public static final int PRIORITY_HIGH = PriorityThreadPoolExecutor.PRIORITY_HIGH;
+
 	// for thread pool
-	private static final int CORE_POOL_SIZE = 1;		// initial/minimum threads
 	private static final int MAX_POOL_SIZE = 32;		// maximum threads
+	private static final int DEFAULT_PARALLELISM		// default number of threads
+		= Math.min(MAX_POOL_SIZE, Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
 	private static final int KEEP_ALIVE_TIME_SECS = 10;	// time periods while keep the idle thread
 
-	private static PausableThreadPoolExecutor EXECUTOR;
+	private static PriorityThreadPoolExecutor EXECUTOR;
 
 	static {
 		getInstance();
@@ -55,11 +59,10 @@ public class ThreadPool {
 	 * @return
 	 */
 	@NonNull
-	private static synchronized PausableThreadPoolExecutor getInstance() {
+	private static synchronized PriorityThreadPoolExecutor getInstance() {
 		if (EXECUTOR == null) {
-			EXECUTOR = new PausableThreadPoolExecutor(
-				CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME_SECS,
-				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			EXECUTOR = new PriorityThreadPoolExecutor(
+				DEFAULT_PARALLELISM, KEEP_ALIVE_TIME_SECS, TimeUnit.SECONDS);
 		}
 		return EXECUTOR;
 	}
@@ -105,35 +108,50 @@ public class ThreadPool {
 	/**
 	 * スレッドプールで待機しているタスクの実行を再開する
 	 */
-	public void resume() {
+	public static void resume() {
 		getInstance().resume();
 	}
 
 	/**
 	 * スレッドプールで待機しているタスクの実行を一時中断する
 	 */
-	public void pause() {
+	public static void pause() {
 		getInstance().pause();
 	}
 
 	/**
 	 * コアスレッド数を設定する
+	 * コアスレッド数と最大スレッド数は同じ値(並列数)なので
+	 * 現在の並列数より大きい時のみ並列数を変更する
 	 * @param corePoolSize
+	 * @deprecated #setMaximumPoolSizeを使うこと
 	 */
+	@Deprecated
 	public static void setCorePoolSize(final int corePoolSize) {
-		getInstance().setCorePoolSize(corePoolSize);
+		final PriorityThreadPoolExecutor executor = getInstance();
+		if (corePoolSize > executor.getParallelism()) {
+			executor.setParallelism(corePoolSize);
+		}
 	}
 
 	/**
-	 * 最大スレッド数を設定する
+	 * 最大スレッド数(並列数)を設定する
 	 * @param maximumPoolSize
 	 */
 	public static void setMaximumPoolSize(final int maximumPoolSize) {
-		getInstance().setMaximumPoolSize(maximumPoolSize);
+		getInstance().setParallelism(maximumPoolSize);
+	}
+
+	/**
+	 * 最大スレッド数(並列数)を取得する
+	 * @return
+	 */
+	public static int getMaximumPoolSize() {
+		return getInstance().getParallelism();
 	}
 
 	/**
-	 * コアスレッド以外のアイドルスレッドを停止させるまでの時間を設定する
+	 * アイドルスレッドを停止させるまでの時間を設定する
 	 * @param time
 	 * @param unit
 	 */
@@ -141,6 +159,15 @@ public class ThreadPool {
 		getInstance().setKeepAliveTime(time, unit);
 	}
 
+	/**
+	 * 同じ優先度のタスクをLIFOの順に実行するかどうかを設定する
+	 * スクロールに合わせて読み込む時など後から追加したタスクを先に実行したい時にtrueにする
+	 * @param lifo
+	 */
+	public static void setLifo(final boolean lifo) {
+		getInstance().setLifo(lifo);
+	}
+
 	/**
 	 * 連続して実行されることがわかっているときなどにコアスレッドをあらかじめ起床しておく
 	 */
@@ -162,7 +189,20 @@ public class ThreadPool {
 	}
 
 	/**
-	 * 未実行のタスクをスレッドプールのキューから削除する
+	 * 優先度を指定してスレッドプールのキューにタスクを追加する
+	 * @param command
+	 * @param priority PRIORITY_LOW, PRIORITY_NORMAL, PRIORITY_HIGHまたは任意の値, 大きいほど先に実行する
+	 * @throws RejectedExecutionException
+	 */
+	public static void queueEvent(@NonNull final Runnable command, final int priority)
+		throws RejectedExecutionException {
+
+		getInstance().execute(command, priority);
+	}
+
+	/**
+	 * 未実行のタスクを取り消す
+	 * キューの長さに関係なく実行できる
 	 * @param command
 	 * @return
 	 */
@@ -171,56 +211,26 @@ public class ThreadPool {
 	}
 
 	/**
-	 * キューに入れたタスクの実行待ち/待ち解除を可能にするためのThreadPoolExecutor子クラス
+	 * 実行待ちのタスク数を取得する
+	 * @return
 	 */
-	private static class PausableThreadPoolExecutor extends ThreadPoolExecutor {
-		private boolean isPaused;
-		private ReentrantLock pauseLock = new ReentrantLock();
-		private Condition unpaused = pauseLock.newCondition();
-
-		public PausableThreadPoolExecutor(
-			final int corePoolSize, final int maximumPoolSize,
-			final long keepAliveTime, final TimeUnit unit,
-			final BlockingQueue<Runnable> workQueue) {
-
-			super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
-			isPaused = false;
-			allowCoreThreadTimeOut(true);
-
-		}
-
-		protected void beforeExecute(final Thread t, final Runnable r) {
-			super.beforeExecute(t, r);
-			pauseLock.lock();
-			try {
-				while (isPaused) {
-					// ポース中は実行待機する
-					unpaused.await();
-				}
-			} catch (final InterruptedException ie) {
-				t.interrupt();
-			} finally {
-				pauseLock.unlock();
-			}
-		}
+	public static int getPendingCount() {
+		return getInstance().getPendingCount();
+	}
 
-		public void pause() {
-			pauseLock.lock();
-			try {
-				isPaused = true;
-			} finally {
-				pauseLock.unlock();
-			}
-		}
+	/**
+	 * キューへ追加してから実行開始するまでの平均待ち時間を取得する
+	 * @return [ナノ秒]
+	 */
+	public static long getAverageWaitTimeNs() {
+		return getInstance().getAverageWaitTimeNs();
+	}
 
-		public void resume() {
-			pauseLock.lock();
-			try {
-				isPaused = false;
-				unpaused.signalAll();
-			} finally {
-				pauseLock.unlock();
-			}
-		}
+	/**
+	 * キューへ追加してから実行開始するまでの最大待ち時間を取得する
+	 * @return [ナノ秒]
+	 */
+	public static long getMaxWaitTimeNs() {
+		return getInstance().getMaxWaitTimeNs();
 	}
 }
@@ -0,0 +1,147 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.db.BlobChunkReader;
+import com.serenegiant.utils.ArrayUtils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * BlobChunkReader用のローカルユニットテストクラス
+ * SQLiteの代わりにbyte[]を不揃いなサイズのチャンクに分けて返すBlobChunkReaderで
+ * チャンクの境界をまたぐ要素を正しく読み込めることを確認する
+ */
+public class BlobChunkReaderUnitTests {
+
+	private static final int[] CHUNK_SIZES = {7, 13, 1, 64, 3};
+
+	@Test
+	public void readBytes() throws Exception {
+		final byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		BlobChunkReader reader = new ArrayChunkReader(data);
+		final byte[] result = new byte[data.length];
+		int pos = 0;
+		for ( ; ; ) {
+			final int n = reader.read(result, pos, Math.min(50, result.length - pos));
+			if (n <= 0) {
+				break;
+			}
+			pos += n;
+		}
+		assertEquals(data.length, pos);
+		assertArrayEquals(data, result);
+		assertEquals(-1, reader.read(result, 0, 10));
+		reader.close();
+		assertFalse(reader.isOpen());
+		try {
+			reader.read(result, 0, 10);
+			fail("should throw IOException");
+		} catch (final IOException e) {
+			// expected
+		}
+		// ByteBufferとskip
+		reader = new ArrayChunkReader(data);
+		assertEquals(100, reader.skip(100));
+		final ByteBuffer buf = ByteBuffer.allocateDirect(200);
+		assertEquals(200, reader.read(buf));
+		buf.flip();
+		assertEquals((byte)100, buf.get(0));
+		assertEquals((byte)299, buf.get(199));
+		assertEquals(700, reader.skip(10000));
+		assertEquals(-1, reader.read(buf));
+	}
+
+	@Test
+	public void readElements() throws Exception {
+		final int num = 1001;
+		final float[] floats = new float[num];
+		final double[] doubles = new double[num];
+		final short[] shorts = new short[num];
+		for (int i = 0; i < num; i++) {
+			floats[i] = i * 0.5f;
+			doubles[i] = i * 0.25;
+			shorts[i] = (short)(i - 500);
+		}
+		// 読み込み先は使い回す
+		final float[] floatBuf = new float[100];
+		BlobChunkReader reader = new ArrayChunkReader(ArrayUtils.floatArrayToByteArray(floats, 0, num));
+		int pos = 0;
+		int n;
+		while ((n = reader.read(floatBuf, 0, floatBuf.length)) > 0) {
+			for (int i = 0; i < n; i++) {
+				assertEquals(floats[pos + i], floatBuf[i], 0.0f);
+			}
+			pos += n;
+		}
+		assertEquals(num, pos);
+		assertEquals(-1, n);
+		final double[] doubleResult = new double[num];
+		reader = new ArrayChunkReader(ArrayUtils.doubleArrayToByteArray(doubles, 0, num));
+		assertEquals(num, reader.read(doubleResult, 0, num + 10));
+		assertArrayEquals(doubles, doubleResult, 0.0);
+		final short[] shortResult = new short[num];
+		reader = new ArrayChunkReader(ArrayUtils.shortArrayToByteArray(shorts, 0, num));
+		assertEquals(num, reader.read(shortResult, 0, num));
+		assertArrayEquals(shorts, shortResult);
+		// 要素の途中で終端に達した時
+		reader = new ArrayChunkReader(Arrays.copyOf(ArrayUtils.floatArrayToByteArray(floats, 0, 10), 39));
+		try {
+			reader.read(floatBuf, 0, floatBuf.length);
+			fail("should throw IOException");
+		} catch (final IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * byte[]を不揃いなサイズのチャンクに分けて返すBlobChunkReader
+	 */
+	private static class ArrayChunkReader extends BlobChunkReader {
+		private final byte[] mData;
+		private int mPosition;
+		private int mIndex;
+
+		private ArrayChunkReader(final byte[] data) {
+			super(ByteOrder.nativeOrder());
+			mData = data;
+		}
+
+		@Override
+		protected byte[] readNextChunk() {
+			if (mPosition >= mData.length) {
+				return null;
+			}
+			final int n = Math.min(CHUNK_SIZES[mIndex++ % CHUNK_SIZES.length], mData.length - mPosition);
+			final byte[] result = Arrays.copyOfRange(mData, mPosition, mPosition + n);
+			mPosition += n;
+			return result;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.CRC16;
+import com.serenegiant.utils.CRC32;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * CRC32/CRC16用のローカルユニットテストクラス
+ * 以前の1バイトずつ処理する実装と結果が一致することを確認し、
+ * データサイズ毎のスループット[MB/s]を比較して標準出力へ出力する(結果は標準出力へ出力するだけ)
+ */
+public class CRCUnitTests {
+
+	private static final int[] SIZES = {64, 1500, 65536, 4 * 1024 * 1024};
+	private static final int TOTAL_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * 以前の実装と結果が一致することを確認
+	 */
+	@Test
+	public void compatibility() throws Exception {
+		final Random random = new Random(1);
+		for (int loop = 0; loop < 200; loop++) {
+			final byte[] data = new byte[random.nextInt(100)];
+			random.nextBytes(data);
+			final int init = random.nextInt();
+			assertEquals(legacyCrc32(data, init), CRC32.crc32(data, init));
+			assertEquals(legacyCrc16(data, init & 0xffff), CRC16.crc16(data, init & 0xffff));
+			// 初期値の上位ビットも以前と同じように扱う
+			assertEquals(legacyCrc16(data, init), CRC16.crc16(data, init));
+			if (data.length > 10) {
+				final byte[] part = Arrays.copyOfRange(data, 3, data.length - 5);
+				assertEquals(legacyCrc32(part, 0), CRC32.crc32(data, 3, part.length, 0));
+				assertEquals(legacyCrc16(part, 0), CRC16.crc16(data, 3, part.length, 0));
+			}
+		}
+		// CRC32は配列の末尾から処理するのでバイト列を反転すればjava.util.zip.CRC32と一致する
+		final byte[] data = new byte[1000];
+		random.nextBytes(data);
+		final byte[] reversed = new byte[data.length];
+		for (int i = 0; i < data.length; i++) {
+			reversed[i] = data[data.length - 1 - i];
+		}
+		final java.util.zip.CRC32 zip = new java.util.zip.CRC32();
+		zip.update(reversed);
+		assertEquals((int)zip.getValue(), CRC32.crc32(data));
+		// CRC-16/ARC
+		assertEquals(0xbb3d, CRC16.crc16("123456789"));
+		assertEquals(CRC32.crc32("123456789".getBytes()), CRC32.crc32("123456789"));
+	}
+
+	/**
+	 * ByteBuffer(ヒープ/ダイレクト/バイトオーダー違い)とインスタンスのupdateを確認
+	 */
+	@Test
+	public void buffer() throws Exception {
+		final Random random = new Random(2);
+		final byte[] data = new byte[1021];
+		random.nextBytes(data);
+		final int expected32 = CRC32.crc32(data);
+		final int expected16 = CRC16.crc16(data);
+		// arrayOffsetが0以外のByteBuffer
+		final byte[] shifted = new byte[data.length + 3];
+		System.arraycopy(data, 0, shifted, 3, data.length);
+		final ByteBuffer wrapped = ByteBuffer.wrap(shifted);
+		wrapped.position(3);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 3);
+		direct.position(3);
+		direct.put(data);
+		direct.position(3);
+		final ByteBuffer[] buffers = {
+			ByteBuffer.wrap(data),
+			wrapped.slice(),
+			direct.duplicate(),
+			direct.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+		};
+		for (final ByteBuffer buffer: buffers) {
+			final int pos = buffer.position();
+			assertEquals(expected32, CRC32.crc32(buffer, 0));
+			assertEquals(expected16, CRC16.crc16(buffer, 0));
+			assertEquals(pos, buffer.position());
+			final CRC32 crc32 = new CRC32();
+			final CRC16 crc16 = new CRC16();
+			final ByteBuffer dup = buffer.duplicate();
+			crc32.update(buffer);
+			assertEquals(buffer.limit(), buffer.position());
+			crc16.update(dup);
+			assertEquals(expected32, crc32.getCrc());
+			assertEquals(expected16, crc16.getCrc());
+		}
+		// 範囲を分けて追加
+		final CRC32 crc32 = new CRC32();
+		final CRC16 crc16 = new CRC16();
+		crc32.update(data, 0, 100);
+		crc32.update(data, 100, data.length - 100);
+		crc16.update(data, 0, 100);
+		crc16.update(data, 100, data.length - 100);
+		assertEquals(CRC32.crc32(data, 100, data.length - 100, CRC32.crc32(data, 0, 100, 0)), crc32.getCrc());
+		assertEquals(expected16, crc16.getCrc());
+	}
+
+	/**
+	 * 分割して計算したCRCを結合できることを確認
+	 */
+	@Test
+	public void combine() throws Exception {
+		final Random random = new Random(3);
+		for (int loop = 0; loop < 100; loop++) {
+			final byte[] data = new byte[random.nextInt(5000) + 1];
+			random.nextBytes(data);
+			final int split = random.nextInt(data.length);
+			final int len2 = data.length - split;
+			final CRC32 crc32 = new CRC32();
+			crc32.update(data, 0, split);
+			crc32.update(data, split, len2);
+			assertEquals(crc32.getCrc(), CRC32.combine(
+				CRC32.crc32(data, 0, split, 0), CRC32.crc32(data, split, len2, 0), len2));
+			assertEquals(CRC16.crc16(data), CRC16.combine(
+				CRC16.crc16(data, 0, split, 0), CRC16.crc16(data, split, len2, 0), len2));
+		}
+	}
+
+	/**
+	 * データサイズ毎のスループットを以前の実装と比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		final Random random = new Random(4);
+		for (final int size: SIZES) {
+			final byte[] data = new byte[size];
+			random.nextBytes(data);
+			final ByteBuffer direct = ByteBuffer.allocateDirect(size);
+			direct.put(data).flip();
+			final int loops = Math.max(1, TOTAL_BYTES / size);
+			// ウオームアップ
+			int dummy = 0;
+			for (int i = 0; i < 3; i++) {
+				dummy ^= legacy32(data, loops / 4 + 1) ^ crc32(data, loops / 4 + 1) ^ crc32(direct, loops / 4 + 1);
+				dummy ^= legacy16(data, loops / 4 + 1) ^ crc16(data, loops / 4 + 1) ^ crc16(direct, loops / 4 + 1);
+			}
+			long start = System.nanoTime();
+			dummy ^= legacy32(data, loops);
+			final long legacy32 = System.nanoTime() - start;
+			start = System.nanoTime();
+			dummy ^= crc32(data, loops);
+			final long array32 = System.nanoTime() - start;
+			start = System.nanoTime();
+			dummy ^= crc32(direct, loops);
+			final long direct32 = System.nanoTime() - start;
+			start = System.nanoTime();
+			dummy ^= legacy16(data, loops);
+			final long legacy16 = System.nanoTime() - start;
+			start = System.nanoTime();
+			dummy ^= crc16(data, loops);
+			final long array16 = System.nanoTime() - start;
+			start = System.nanoTime();
+			dummy ^= crc16(direct, loops);
+			final long direct16 = System.nanoTime() - start;
+			final long total = (long)size * loops;
+			System.out.printf("%,9d bytes:CRC32 legacy=%,.0fMB/s, byte[]=%,.0fMB/s, direct=%,.0fMB/s"
+				+ " / CRC16 legacy=%,.0fMB/s, byte[]=%,.0fMB/s, direct=%,.0fMB/s(%d)%n",
+				size, mbps(total, legacy32), mbps(total, array32), mbps(total, direct32),
+				mbps(total, legacy16), mbps(total, array16), mbps(total, direct16), dummy & 1);
+		}
+	}
+
+	private static double mbps(final long bytes, final long nanos) {
+		return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+	}
+
+	private static int legacy32(final byte[] data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= legacyCrc32(data, i);
+		}
+		return result;
+	}
+
+	private static int crc32(final byte[] data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= CRC32.crc32(data, i);
+		}
+		return result;
+	}
+
+	private static int crc32(final ByteBuffer data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= CRC32.crc32(data, i);
+		}
+		return result;
+	}
+
+	private static int legacy16(final byte[] data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= legacyCrc16(data, i & 0xffff);
+		}
+		return result;
+	}
+
+	private static int crc16(final byte[] data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= CRC16.crc16(data, i & 0xffff);
+		}
+		return result;
+	}
+
+	private static int crc16(final ByteBuffer data, final int loops) {
+		int result = 0;
+		for (int i = 0; i < loops; i++) {
+			result ^= CRC16.crc16(data, i & 0xffff);
+		}
+		return result;
+	}
+
+	/**
+	 * 比較用の以前のCRC32#crc32(byte[], int)
+	 */
+	private static int legacyCrc32(final byte[] p, final int init) {
+		int crc = init ^ 0xffffffff;
+		for (int i = p.length - 1; i >= 0; i--) {
+			crc = ((crc >> 8) & 0x00FFFFFF) ^ CRC32_TABLE[(crc ^ p[i]) & 0xFF];
+		}
+		return crc ^ 0xFFFFFFFF;
+	}
+
+	/**
+	 * 比較用の以前のCRC16#crc16(byte[], int)
+	 */
+	private static int legacyCrc16(final byte[] p, final int init) {
+		int crc = init;
+		for (final byte b: p) {
+			crc = (crc >>> 8) ^ CRC16_TABLE[(crc ^ b) & 0xff];
+		}
+		return crc;
+	}
+
+	private static final int[] CRC32_TABLE = new int[256];
+	private static final int[] CRC16_TABLE = new int[256];
+	static {
+		for (int n = 0; n < 256; n++) {
+			int c32 = n;
+			int c16 = n;
+			for (int k = 0; k < 8; k++) {
+				c32 = (c32 & 1) != 0 ? 0xedb88320 ^ (c32 >>> 1) : c32 >>> 1;
+				c16 = (c16 & 1) != 0 ? 0xa001 ^ (c16 >>> 1) : c16 >>> 1;
+			}
+			CRC32_TABLE[n] = c32;
+			CRC16_TABLE[n] = c16;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ByteBufferPool;
+import com.serenegiant.io.ChannelHelper;
+import com.serenegiant.io.ChannelReader;
+import com.serenegiant.io.ChannelWriter;
+import com.serenegiant.io.RecycleByteBuffer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChannelReader/ChannelWriter用のローカルユニットテストクラス
+ * ローカルのソケットペア上でChannelHelperとのメッセージ/秒と
+ * 1メッセージあたりのメモリ割り当て量の比較も行う(結果は標準出力へ出力するだけ)
+ */
+public class ChannelCodecUnitTests {
+
+	private static final int NUM_MESSAGES = 200000;
+
+	/**
+	 * ChannelHelperと同じ形式で読み書きできることを確認
+	 */
+	@Test
+	public void roundTrip() throws Exception {
+		final SocketChannel[] pair = socketPair();
+		try {
+			final int[] ints = new int[5000];	// バッファサイズより大きい配列
+			for (int i = 0; i < ints.length; i++) {
+				ints[i] = i * 31;
+			}
+			final ChannelWriter writer = new ChannelWriter(pair[0], 64);
+			writer.write(true);
+			writer.write(0x12345678);
+			writer.write(Long.MIN_VALUE);
+			writer.write(1.5f);
+			writer.write(Math.PI);
+			writer.write("日本語文字列");
+			writer.write(ints);
+			writer.write(new double[] {1.0, -2.0});
+			writer.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			writer.flush();
+			// ChannelHelperで書き込んだものをChannelReaderで読み込めること
+			ChannelHelper.write(pair[0], 42);
+			ChannelHelper.write(pair[0], "helper");
+
+			final ChannelReader reader = new ChannelReader(pair[1], 16);
+			assertTrue(reader.readBoolean());
+			assertEquals(0x12345678, reader.readInt());
+			assertEquals(Long.MIN_VALUE, reader.readLong());
+			assertEquals(1.5f, reader.readFloat(), 0.0f);
+			assertEquals(Math.PI, reader.readDouble(), 0.0);
+			assertEquals("日本語文字列", reader.readString());
+			assertArrayEquals(ints, reader.readIntArray());
+			assertArrayEquals(new double[] {1.0, -2.0}, reader.readDoubleArray(), 0.0);
+			final ByteBuffer buf = reader.readByteBuffer(null);
+			assertEquals(3, buf.remaining());
+			assertEquals(3, buf.get(2));
+			assertEquals(42, reader.readInt());
+			assertEquals("helper", reader.readString());
+		} finally {
+			close(pair);
+		}
+	}
+
+	/**
+	 * 各型の配列をバッファサイズを跨いでまとめて読み書きしても
+	 * 1要素ずつビッグエンディアンで読み書きした時と同じになることを確認
+	 */
+	@Test
+	public void typedArrays() throws Exception {
+		final int n = 1001;	// 要素サイズの倍数にならないバッファサイズを跨ぐ
+		final char[] chars = new char[n];
+		final short[] shorts = new short[n];
+		final int[] ints = new int[n];
+		final long[] longs = new long[n];
+		final float[] floats = new float[n];
+		final double[] doubles = new double[n];
+		final ByteBuffer expected = ByteBuffer.allocate(6 * 4 + n * (2 + 2 + 4 + 8 + 4 + 8))
+			.order(ByteOrder.BIG_ENDIAN);
+		for (int i = 0; i < n; i++) {
+			chars[i] = (char)(0x3042 + i);
+			shorts[i] = (short)(i * -7);
+			ints[i] = 0x01020304 * i;
+			longs[i] = 0x0102030405060708L * i;
+			floats[i] = i * -0.25f;
+			doubles[i] = i * Math.E;
+		}
+		expected.putInt(n);
+		for (final char v: chars) expected.putChar(v);
+		expected.putInt(n);
+		for (final short v: shorts) expected.putShort(v);
+		expected.putInt(n);
+		for (final int v: ints) expected.putInt(v);
+		expected.putInt(n);
+		for (final long v: longs) expected.putLong(v);
+		expected.putInt(n);
+		for (final float v: floats) expected.putFloat(v);
+		expected.putInt(n);
+		for (final double v: doubles) expected.putDouble(v);
+
+		final MemGatheringChannel channel = new MemGatheringChannel();
+		final ChannelWriter writer = new ChannelWriter(channel, 61);
+		writer.write(chars);
+		writer.write(shorts);
+		writer.write(ints);
+		writer.write(longs);
+		writer.write(floats);
+		writer.write(doubles);
+		writer.flush();
+		assertArrayEquals(expected.array(), channel.out.toByteArray());
+
+		final ChannelReader reader = new ChannelReader(
+			Channels.newChannel(new ByteArrayInputStream(expected.array())), 61);
+		assertArrayEquals(chars, reader.readCharArray());
+		assertArrayEquals(shorts, reader.readShortArray());
+		assertArrayEquals(ints, reader.readIntArray());
+		assertArrayEquals(longs, reader.readLongArray());
+		assertArrayEquals(floats, reader.readFloatArray(), 0.0f);
+		assertArrayEquals(doubles, reader.readDoubleArray(), 0.0);
+	}
+
+	/**
+	 * バッファへ入りきらないByteBufferはバッファ内のデータと一緒に1回で書き込むこと、
+	 * 書き込み回数とバイト数を数えることを確認
+	 */
+	@Test
+	public void gatheringWrite() throws Exception {
+		final MemGatheringChannel channel = new MemGatheringChannel();
+		final ChannelWriter writer = new ChannelWriter(channel, 64);
+		writer.write(1);
+		writer.write(ByteBuffer.wrap(new byte[1000]));
+		assertEquals(1, channel.writes);
+		assertEquals(1, writer.getFlushCount());
+		assertEquals(4 + 4 + 1000, writer.getWrittenBytes());
+		assertEquals(0, writer.pending());
+		// 小さいデータはバッファが一杯になるかflushするまで書き込まない
+		for (int i = 0; i < 20; i++) {
+			writer.write(i);
+		}
+		assertEquals(2, channel.writes);
+		writer.flush();
+		assertEquals(3, channel.writes);
+		assertEquals(4 + 4 + 1000 + 20 * 4, channel.out.size());
+		assertEquals(channel.out.size(), writer.getWrittenBytes());
+	}
+
+	/**
+	 * プールから取得したバッファへ受信する時に受信データ毎のバッファ生成が無いことを確認
+	 */
+	@Test
+	public void pooledReceive() throws Exception {
+		final int n = 2000;
+		final ByteBufferPool pool = new ByteBufferPool();
+		final SocketChannel[] pair = socketPair();
+		try {
+			final ChannelWriter writer = new ChannelWriter(pair[0]);
+			final ChannelReader reader = new ChannelReader(pair[1]);
+			final ByteBuffer payload = ByteBuffer.allocateDirect(200 * 1024);
+			for (int i = 0; i < payload.capacity(); i++) {
+				payload.put(i, (byte)i);
+			}
+			final long[] result = measure(n, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						// 50KB〜200KBのデータを送信する
+						final ByteBuffer buf = payload.duplicate();
+						buf.limit(50 * 1024 + (i % 4) * 50 * 1024);
+						writer.write(buf);
+						writer.flush();
+					}
+				}
+			}, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						final RecycleByteBuffer buf = reader.readRecycleByteBuffer(pool);
+						assertEquals(50 * 1024 + (i % 4) * 50 * 1024, buf.size());
+						assertEquals((byte)(buf.size() - 1), buf.getBuffer().get(buf.size() - 1));
+						buf.recycle();
+					}
+				}
+			});
+			System.out.printf("pooled receive:%,d msgs/s(%,d bytes/msg), allocated buffers=%d%n",
+				result[0], result[1], pool.getAllocatedCount());
+			// 64KB, 128KB, 256KBの3つのサイズクラスだけ生成する
+			assertEquals(3, pool.getAllocatedCount());
+		} finally {
+			close(pair);
+		}
+	}
+
+	/**
+	 * ChannelHelperとChannelReader/ChannelWriterの速度とメモリ割り当て量の比較
+	 */
+	@Test
+	public void throughput() throws Exception {
+		// ウオームアップ
+		runHelper(NUM_MESSAGES / 10);
+		runCodec(NUM_MESSAGES / 10);
+		final long[] helper = runHelper(NUM_MESSAGES);
+		final long[] codec = runCodec(NUM_MESSAGES);
+		System.out.printf("ChannelHelper:%,d msgs/s(%,d bytes/msg), ChannelReader/Writer:%,d msgs/s(%,d bytes/msg)%n",
+			helper[0], helper[1], codec[0], codec[1]);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * AbstractChannelDataLinkと同様に種類+int値のメッセージをChannelHelperで送受信する
+	 * @param n
+	 * @return [0]:メッセージ/秒, [1]:1メッセージあたりの割り当てバイト数(計測できなければ-1)
+	 */
+	private static long[] runHelper(final int n) throws Exception {
+		final SocketChannel[] pair = socketPair();
+		try {
+			return measure(n, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						ChannelHelper.write(pair[0], 11);
+						ChannelHelper.write(pair[0], i);
+					}
+				}
+			}, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						assertEquals(11, ChannelHelper.readInt(pair[1]));
+						assertEquals(i, ChannelHelper.readInt(pair[1]));
+					}
+				}
+			});
+		} finally {
+			close(pair);
+		}
+	}
+
+	/**
+	 * 種類+int値のメッセージをChannelReader/ChannelWriterで送受信する
+	 * @param n
+	 * @return [0]:メッセージ/秒, [1]:1メッセージあたりの割り当てバイト数(計測できなければ-1)
+	 */
+	private static long[] runCodec(final int n) throws Exception {
+		final SocketChannel[] pair = socketPair();
+		try {
+			final ChannelWriter writer = new ChannelWriter(pair[0]);
+			final ChannelReader reader = new ChannelReader(pair[1]);
+			return measure(n, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						writer.write(11);
+						writer.write(i);
+						if ((i & 0x3f) == 0) {
+							writer.flush();
+						}
+					}
+					writer.flush();
+				}
+			}, new IOTask() {
+				@Override
+				public void run() throws IOException {
+					for (int i = 0; i < n; i++) {
+						assertEquals(11, reader.readInt());
+						assertEquals(i, reader.readInt());
+					}
+				}
+			});
+		} finally {
+			close(pair);
+		}
+	}
+
+	/**
+	 * 書き込み回数を数えるメモリー上のGatheringByteChannel
+	 */
+	private static class MemGatheringChannel implements GatheringByteChannel {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int writes;
+
+		@Override
+		public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+			writes++;
+			long result = 0;
+			for (int i = offset; i < offset + length; i++) {
+				result += put(srcs[i]);
+			}
+			return result;
+		}
+
+		@Override
+		public long write(final ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public int write(final ByteBuffer src) {
+			writes++;
+			return put(src);
+		}
+
+		private int put(final ByteBuffer src) {
+			final int n = src.remaining();
+			while (src.hasRemaining()) {
+				out.write(src.get());
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private interface IOTask {
+		public void run() throws IOException;
+	}
+
+	/**
+	 * 送信スレッドと受信スレッド(呼び出し元スレッド)で送受信して
+	 * メッセージ/秒と割り当てバイト数を計測する
+	 */
+	private static long[] measure(final int n,
+		@NonNull final IOTask sender, @NonNull final IOTask receiver) throws Exception {
+
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final AtomicLong senderAllocated = new AtomicLong();
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final long allocated = allocatedBytes();
+				try {
+					sender.run();
+				} catch (final Throwable e) {
+					error.set(e);
+				}
+				senderAllocated.set(allocatedBytes() - allocated);
+			}
+		});
+		final long allocated = allocatedBytes();
+		final long start = System.nanoTime();
+		thread.start();
+		receiver.run();
+		final long time = System.nanoTime() - start;
+		final long receiverAllocated = allocatedBytes() - allocated;
+		thread.join();
+		assertNull(error.get());
+		final long msgsPerSec = n * 1000000000L / Math.max(time, 1);
+		final long bytesPerMsg = (allocated >= 0)
+			? (receiverAllocated + senderAllocated.get()) / n : -1;
+		return new long[] {msgsPerSec, bytesPerMsg};
+	}
+
+	/**
+	 * 呼び出し元スレッドでのメモリ割り当て量を取得
+	 * @return 取得できなければ-1
+	 */
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * ループバックアドレス上で接続済みのSocketChannelのペアを生成
+	 * @return [0]:送信側, [1]:受信側
+	 */
+	private static SocketChannel[] socketPair() throws IOException {
+		try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+			final SocketChannel accepted = server.accept();
+			return new SocketChannel[] {client, accepted};
+		}
+	}
+
+	private static void close(@NonNull final SocketChannel[] pair) {
+		for (final SocketChannel channel: pair) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ByteBufferPool;
+import com.serenegiant.io.RecycleByteBuffer;
+import com.serenegiant.net.AbstractChannelDataLink;
+import com.serenegiant.net.SelectorChannelDataLink;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * SelectorChannelDataLink用のローカルユニットテストクラス
+ * ループバックアドレス上で多数のクライアントを接続した時の
+ * メッセージ/秒とスレッド数も出力する(結果は標準出力へ出力するだけ)
+ */
+public class ChannelDataLinkUnitTests {
+
+	private static final int NUM_CLIENTS = 200;
+	private static final int NUM_MESSAGES = 500;	// クライアント毎の送信数
+	private static final int NUM_THREADS = 2;
+
+	/**
+	 * 各種類のデータを送受信できることを確認
+	 */
+	@Test
+	public void echo() throws Exception {
+		final SelectorChannelDataLink server = new SelectorChannelDataLink(new CallbackAdapter() {
+			@Override
+			public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+				@Nullable final Object msg) {
+				try {
+					client.send(msg);
+				} catch (final Exception e) {
+					fail(e.getMessage());
+				}
+			}
+		});
+		final LinkedBlockingQueue<Object> received = new LinkedBlockingQueue<>();
+		final SelectorChannelDataLink link = new SelectorChannelDataLink(new CallbackAdapter() {
+			@Override
+			public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+				@Nullable final Object msg) {
+				received.offer(msg != null ? msg : received);
+			}
+		});
+		try {
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+			final SelectorChannelDataLink.Client client
+				= link.connectTo(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+			final int[] ints = new int[10000];	// 送受信バッファより大きいデータ
+			for (int i = 0; i < ints.length; i++) {
+				ints[i] = i;
+			}
+			client.send(123);
+			client.send(Long.MAX_VALUE);
+			client.send(0.5f);
+			client.send("文字列");
+			client.send(ints);
+			final long[] longs = {Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE};
+			final float[] floats = {-1.5f, 0.0f, Float.MAX_VALUE};
+			final double[] doubles = {-1.5, Math.PI, Double.MIN_VALUE};
+			client.send(longs);
+			client.send(floats);
+			client.send(doubles);
+			client.send(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+			client.send((Object)null);
+			assertEquals(123, received.poll(5, TimeUnit.SECONDS));
+			assertEquals(Long.MAX_VALUE, received.poll(5, TimeUnit.SECONDS));
+			assertEquals(0.5f, received.poll(5, TimeUnit.SECONDS));
+			assertEquals("文字列", received.poll(5, TimeUnit.SECONDS));
+			assertArrayEquals(ints, (int[])received.poll(5, TimeUnit.SECONDS));
+			assertArrayEquals(longs, (long[])received.poll(5, TimeUnit.SECONDS));
+			assertArrayEquals(floats, (float[])received.poll(5, TimeUnit.SECONDS), 0.0f);
+			assertArrayEquals(doubles, (double[])received.poll(5, TimeUnit.SECONDS), 0.0);
+			final ByteBuffer buf = (ByteBuffer)received.poll(5, TimeUnit.SECONDS);
+			assertNotNull(buf);
+			assertEquals(3, buf.remaining());
+			assertSame(received, received.poll(5, TimeUnit.SECONDS));	// null
+		} finally {
+			link.release();
+			server.release();
+		}
+	}
+
+	/**
+	 * 受信データ用のバッファプールを設定した時にbyte配列とByteBufferを
+	 * RecycleByteBufferで受け取れることを確認
+	 */
+	@Test
+	public void pooledReceive() throws Exception {
+		final ByteBufferPool pool = new ByteBufferPool();
+		final LinkedBlockingQueue<Object> received = new LinkedBlockingQueue<>();
+		final SelectorChannelDataLink server = new SelectorChannelDataLink(new CallbackAdapter() {
+			@Override
+			public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+				@Nullable final Object msg) {
+				received.offer(msg);
+			}
+		});
+		server.setReceiveBufferPool(pool);
+		final SelectorChannelDataLink link = new SelectorChannelDataLink();
+		try {
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+			final SelectorChannelDataLink.Client client
+				= link.connectTo(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+			final byte[] bytes = new byte[30000];
+			bytes[bytes.length - 1] = 123;
+			for (int i = 0; i < 200; i++) {
+				if ((i & 1) == 0) {
+					client.send(bytes);
+				} else {
+					client.send(ByteBuffer.wrap(bytes));
+				}
+				final Object msg = received.poll(5, TimeUnit.SECONDS);
+				assertTrue(msg instanceof RecycleByteBuffer);
+				final RecycleByteBuffer buf = (RecycleByteBuffer)msg;
+				assertEquals(bytes.length, buf.size());
+				assertEquals(123, buf.getBuffer().get(bytes.length - 1));
+				buf.recycle();
+			}
+			// 使い終わったバッファを再利用するので1つしか生成しない
+			assertEquals(1, pool.getAllocatedCount());
+		} finally {
+			link.release();
+			server.release();
+		}
+	}
+
+	/**
+	 * 受信側が受信しない時に送信待ちのデータが上限を超えずに#sendが待機してタイムアウトすること、
+	 * 送信したByteBufferのpositionが変わらないこと、受信側が再開すると全て受信できることを確認
+	 */
+	@Test
+	public void backPressure() throws Exception {
+		final int highWaterMark = 256 * 1024;
+		final CountDownLatch resume = new CountDownLatch(1);
+		final AtomicLong receivedCount = new AtomicLong();
+		final SelectorChannelDataLink server = new SelectorChannelDataLink(new CallbackAdapter() {
+			@Override
+			public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+				@Nullable final Object msg) {
+				try {
+					// 再開するまでイベントループスレッドを止めて受信しないようにする
+					resume.await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				receivedCount.incrementAndGet();
+			}
+		});
+		final SelectorChannelDataLink link = new SelectorChannelDataLink();
+		try {
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+			final SelectorChannelDataLink.Client client
+				= link.connectTo(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+			client.setSendHighWaterMark(highWaterMark, 200);
+			final ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+			int sent = 0;
+			IOException timeout = null;
+			for (int i = 0; i < 1024; i++) {	// 最大64MB
+				try {
+					client.send(data);
+				} catch (final IOException e) {
+					timeout = e;
+					break;
+				}
+				sent++;
+				assertEquals(0, data.position());
+				assertTrue(client.getPendingBytes() <= highWaterMark);
+			}
+			assertNotNull(timeout);
+			assertTrue(timeout.getMessage().startsWith("send timeout"));
+			resume.countDown();
+			final long deadline = System.currentTimeMillis() + 10000;
+			while ((receivedCount.get() < sent) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			assertEquals(sent, receivedCount.get());
+		} finally {
+			resume.countDown();
+			link.release();
+			server.release();
+		}
+	}
+
+	/**
+	 * 多数のクライアントを接続してメッセージ/秒とスレッド数を計測する
+	 */
+	@Test
+	public void load() throws Exception {
+		final int total = NUM_CLIENTS * NUM_MESSAGES;
+		final AtomicLong receivedCount = new AtomicLong();
+		final CountDownLatch connected = new CountDownLatch(NUM_CLIENTS * 2);
+		final CountDownLatch finished = new CountDownLatch(1);
+		final CallbackAdapter connectCounter = new CallbackAdapter() {
+			@Override
+			public void onConnect(final AbstractChannelDataLink.AbstractClient client) {
+				connected.countDown();
+			}
+		};
+		final SelectorChannelDataLink server = new SelectorChannelDataLink(NUM_THREADS, new CallbackAdapter() {
+			@Override
+			public void onConnect(final AbstractChannelDataLink.AbstractClient client) {
+				connected.countDown();
+			}
+
+			@Override
+			public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+				@Nullable final Object msg) {
+				if (receivedCount.incrementAndGet() == total) {
+					finished.countDown();
+				}
+			}
+		});
+		final SelectorChannelDataLink link = new SelectorChannelDataLink(NUM_THREADS, connectCounter);
+		final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		try {
+			server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), null);
+			final String addr = InetAddress.getLoopbackAddress().getHostAddress();
+			final List<SelectorChannelDataLink.Client> clients = new ArrayList<>();
+			for (int i = 0; i < NUM_CLIENTS; i++) {
+				clients.add(link.connectTo(addr, server.getPort()));
+			}
+			assertTrue(connected.await(30, TimeUnit.SECONDS));
+			final int numThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threads;
+			final long start = System.nanoTime();
+			for (int j = 0; j < NUM_MESSAGES; j++) {
+				for (final SelectorChannelDataLink.Client client: clients) {
+					client.send(j);
+				}
+			}
+			assertTrue(finished.await(60, TimeUnit.SECONDS));
+			final long time = System.nanoTime() - start;
+			System.out.printf("SelectorChannelDataLink:%d clients x 2, %,d msgs/s, +%d threads%n",
+				NUM_CLIENTS, total * 1000000000L / Math.max(time, 1), numThreads);
+			// SocketChannelDataLinkだと接続毎に2スレッドずつ増える
+			assertTrue(numThreads <= NUM_THREADS * 2);
+		} finally {
+			link.release();
+			server.release();
+		}
+	}
+
+	private static class CallbackAdapter implements AbstractChannelDataLink.Callback {
+		@Override
+		public void onConnect(final AbstractChannelDataLink.AbstractClient client) {
+		}
+
+		@Override
+		public void onDisconnect() {
+		}
+
+		@Override
+		public void onReceive(final AbstractChannelDataLink.AbstractClient client,
+			@Nullable final Object msg) {
+		}
+
+		@Override
+		public void onError(final AbstractChannelDataLink.AbstractClient client, final Exception e) {
+		}
+	}
+}
@@ -0,0 +1,577 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.io.ConcurrentDiskLruCache;
+import com.serenegiant.io.DiskLruCache;
+import com.serenegiant.io.MappedBlobStore;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * ディスクキャッシュ用のローカルユニットテストクラス
+ * 複数スレッドから32KBのエントリーを読み書きした時のops/sと
+ * DiskLruCacheとMappedBlobStoreの開く時間/読み込み時間/ディスク使用量と
+ * テキストのジャーナルとバイナリジャーナルでの開く時間も出力する
+ * (結果は標準出力へ出力するだけ)
+ */
+public class DiskCacheUnitTests {
+
+	private static final int ENTRY_SIZE = 32 * 1024;
+	private static final int NUM_KEYS = 256;
+	private static final int NUM_OPS = 2000;	// スレッド毎の操作数
+	private static final int PUT_RATE = 20;		// 書き込みの割合[%]
+	private static final int NUM_THUMBNAILS = 10000;
+	private static final int THUMBNAIL_SIZE = 6 * 1024;
+	private static final int BLOCK_SIZE = 4096;	// ディスク使用量計算用のブロックサイズ
+	private static final int[] NUM_JOURNAL_ENTRIES = {10000, 100000};
+
+	/**
+	 * DiskLruCacheと同じSnapshot/Editorの動作をすることを確認
+	 */
+	@Test
+	public void snapshotAndEditor() throws Exception {
+		final File dir = Files.createTempDirectory("cache").toFile();
+		ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(dir, 1, 2, 1024 * 1024);
+		try {
+			assertNull(cache.get("k1"));
+			ConcurrentDiskLruCache.Editor editor = cache.edit("k1");
+			assertNotNull(editor);
+			assertNull(cache.edit("k1"));	// 編集中
+			editor.set(0, "a");
+			editor.set(1, "bc");
+			editor.commit();
+			assertEquals(3, cache.size());
+			final ConcurrentDiskLruCache.Snapshot snapshot = cache.get("k1");
+			assertNotNull(snapshot);
+			assertEquals("a", snapshot.getString(0));
+			assertEquals("bc", snapshot.getString(1));
+			// スナップショット取得後に更新するとスナップショットからは編集できない
+			editor = cache.edit("k1");
+			assertNotNull(editor);
+			editor.set(0, "xyz");
+			editor.commit();
+			assertNull(snapshot.edit());
+			cache.flush();
+		} finally {
+			cache.close();
+		}
+		// 閉じて開き直しても同じ内容を読み込める
+		cache = ConcurrentDiskLruCache.open(dir, 1, 2, 1024 * 1024);
+		try {
+			assertEquals(5, cache.size());
+			final ConcurrentDiskLruCache.Snapshot snapshot = cache.get("k1");
+			assertNotNull(snapshot);
+			assertEquals("xyz", snapshot.getString(0));
+			assertEquals("bc", snapshot.getString(1));
+			assertTrue(cache.remove("k1"));
+			assertNull(cache.get("k1"));
+			assertEquals(0, cache.size());
+		} finally {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * 最大サイズを超えた時に古いエントリーから削除されることを確認
+	 */
+	@Test
+	public void evict() throws Exception {
+		final File dir = Files.createTempDirectory("cache").toFile();
+		final ConcurrentDiskLruCache cache = ConcurrentDiskLruCache.open(dir, 1, 1, 10);
+		try {
+			for (int i = 0; i < 5; i++) {
+				final ConcurrentDiskLruCache.Editor editor = cache.edit("k" + i);
+				assertNotNull(editor);
+				editor.set(0, "abc");
+				editor.commit();
+				cache.get("k0").close();	// k0は常に最近使ったエントリー
+			}
+			cache.flush();
+			assertTrue(cache.size() <= 10);
+			assertNotNull(cache.get("k0"));
+			assertNull(cache.get("k1"));
+			assertNotNull(cache.get("k4"));
+		} finally {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * 8スレッドから32KBのエントリーを読み書きした時のops/sを
+	 * DiskLruCacheと比較する
+	 */
+	@Test
+	public void concurrentAccess() throws Exception {
+		final byte[] data = new byte[ENTRY_SIZE];
+		new Random(0).nextBytes(data);
+		for (int n = 1; n <= 8; n <<= 1) {
+			final File dir1 = Files.createTempDirectory("cache").toFile();
+			final DiskLruCache cache1 = DiskLruCache.open(dir1, 1, 1, 64 * 1024 * 1024);
+			final long ops1;
+			try {
+				ops1 = run(n, new Op() {
+					@Override
+					public boolean get(final String key, final byte[] buf) throws IOException {
+						final DiskLruCache.Snapshot snapshot = cache1.get(key);
+						if (snapshot != null) {
+							try {
+								return readFully(snapshot.getInputStream(0), buf);
+							} finally {
+								snapshot.close();
+							}
+						}
+						return false;
+					}
+
+					@Override
+					public void put(final String key, final byte[] value) throws IOException {
+						final DiskLruCache.Editor editor = cache1.edit(key);
+						if (editor != null) {
+							final OutputStream out = editor.newOutputStream(0);
+							out.write(value);
+							out.close();
+							editor.commit();
+						}
+					}
+				});
+			} finally {
+				cache1.delete();
+			}
+			final File dir2 = Files.createTempDirectory("cache").toFile();
+			final ConcurrentDiskLruCache cache2 = ConcurrentDiskLruCache.open(dir2, 1, 1, 64 * 1024 * 1024);
+			final long ops2;
+			try {
+				ops2 = run(n, new Op() {
+					@Override
+					public boolean get(final String key, final byte[] buf) throws IOException {
+						final ConcurrentDiskLruCache.Snapshot snapshot = cache2.get(key);
+						if (snapshot != null) {
+							try {
+								return readFully(snapshot.getInputStream(0), buf);
+							} finally {
+								snapshot.close();
+							}
+						}
+						return false;
+					}
+
+					@Override
+					public void put(final String key, final byte[] value) throws IOException {
+						final ConcurrentDiskLruCache.Editor editor = cache2.edit(key);
+						if (editor != null) {
+							final OutputStream out = editor.newOutputStream(0);
+							out.write(value);
+							out.close();
+							editor.commit();
+						}
+					}
+				});
+			} finally {
+				cache2.delete();
+			}
+			System.out.printf("%d threads:DiskLruCache=%,d ops/s, ConcurrentDiskLruCache=%,d ops/s%n",
+				n, ops1, ops2);
+		}
+	}
+
+	/**
+	 * MappedBlobStoreの読み書き, 削除, 開き直した時の復元, コンパクションを確認
+	 */
+	@Test
+	public void blobStore() throws Exception {
+		final File dir = Files.createTempDirectory("blob").toFile();
+		final byte[] data = new byte[1000];
+		new Random(0).nextBytes(data);
+		MappedBlobStore store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024,
+			MappedBlobStore.MIN_SEGMENT_SIZE);
+		assertNull(store.get("k0"));
+		for (int i = 0; i < 100; i++) {
+			assertTrue(store.put("k" + i, data));
+		}
+		assertArrayEquals(data, store.getBytes("k10"));
+		assertTrue(store.remove("k10"));
+		assertFalse(store.remove("k10"));
+		assertNull(store.get("k10"));
+		store.flush();
+		// インデックス保存後の書き込みは閉じずに(異常終了の代わり)開き直しても復元される
+		assertTrue(store.put("k100", data));
+		assertTrue(store.remove("k11"));
+		store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024, MappedBlobStore.MIN_SEGMENT_SIZE);
+		try {
+			assertEquals(99, store.getCount());
+			assertNull(store.get("k10"));
+			assertNull(store.get("k11"));
+			final ByteBuffer buf = store.get("k100");
+			assertNotNull(buf);
+			assertEquals(data.length, buf.remaining());
+			assertEquals(99L * data.length, store.size());
+			// 上書きを繰り返すと無効領域をコンパクションする
+			for (int j = 0; j < 10; j++) {
+				for (int i = 0; i < 100; i++) {
+					store.put("k" + i, data);
+				}
+			}
+			store.compact();
+			assertEquals(101, store.getCount());
+			assertTrue(store.diskUsage() < 4L * MappedBlobStore.MIN_SEGMENT_SIZE);
+			assertArrayEquals(data, store.getBytes("k50"));
+			store.close();
+			store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024, MappedBlobStore.MIN_SEGMENT_SIZE);
+			assertEquals(101, store.getCount());
+			assertArrayEquals(data, store.getBytes("k0"));
+		} finally {
+			store.delete();
+		}
+	}
+
+	/**
+	 * 追記が無ければ開く時にインデックスを保存し直さないこと、
+	 * インデックスが壊れている時はセグメントファイルから再構築することを確認
+	 */
+	@Test
+	public void blobStoreIndex() throws Exception {
+		final File dir = Files.createTempDirectory("blob").toFile();
+		final File index = new File(dir, "index");
+		final byte[] data = new byte[1000];
+		new Random(0).nextBytes(data);
+		MappedBlobStore store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024,
+			MappedBlobStore.MIN_SEGMENT_SIZE);
+		try {
+			for (int i = 0; i < 200; i++) {
+				assertTrue(store.put("k" + i, data));
+			}
+			assertTrue(store.remove("k0"));
+			store.close();
+			assertTrue(index.setLastModified(0));
+			store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024, MappedBlobStore.MIN_SEGMENT_SIZE);
+			assertEquals(0, index.lastModified());
+			assertEquals(199, store.getCount());
+			assertEquals(199L * data.length, store.size());
+			store.close();
+			// エントリー部分を壊す
+			final RandomAccessFile raf = new RandomAccessFile(index, "rw");
+			try {
+				raf.seek(raf.length() - 4);
+				raf.writeInt(0x7fffffff);
+			} finally {
+				raf.close();
+			}
+			store = MappedBlobStore.open(dir, 1, 16 * 1024 * 1024, MappedBlobStore.MIN_SEGMENT_SIZE);
+			assertEquals(199, store.getCount());
+			assertEquals(199L * data.length, store.size());
+			assertNull(store.get("k0"));
+			assertArrayEquals(data, store.getBytes("k199"));
+		} finally {
+			store.delete();
+		}
+	}
+
+	/**
+	 * 最大サイズを超えた時に古いセグメントから破棄されることを確認
+	 */
+	@Test
+	public void blobStoreEvict() throws Exception {
+		final File dir = Files.createTempDirectory("blob").toFile();
+		final byte[] data = new byte[1000];
+		final MappedBlobStore store = MappedBlobStore.open(dir, 1, 4 * MappedBlobStore.MIN_SEGMENT_SIZE,
+			MappedBlobStore.MIN_SEGMENT_SIZE);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				assertTrue(store.put("k" + i, data));
+			}
+			assertTrue(store.diskUsage() <= 4 * MappedBlobStore.MIN_SEGMENT_SIZE);
+			assertNull(store.get("k0"));
+			assertNotNull(store.get("k999"));
+		} finally {
+			store.delete();
+		}
+	}
+
+	/**
+	 * サムネイル程度の大きさのエントリーを大量に保存した時の
+	 * 開く時間, 読み込み時間, ディスク使用量をDiskLruCacheと比較する
+	 */
+	@Test
+	public void blobStoreBenchmark() throws Exception {
+		final byte[] data = new byte[THUMBNAIL_SIZE];
+		new Random(0).nextBytes(data);
+		final byte[] buf = new byte[THUMBNAIL_SIZE];
+		final long maxSize = 1024L * 1024 * 1024;
+		// DiskLruCache
+		final File dir1 = Files.createTempDirectory("cache").toFile();
+		DiskLruCache cache = DiskLruCache.open(dir1, 1, 1, maxSize);
+		for (int i = 0; i < NUM_THUMBNAILS; i++) {
+			final DiskLruCache.Editor editor = cache.edit("k" + i);
+			final OutputStream out = editor.newOutputStream(0);
+			out.write(data);
+			out.close();
+			editor.commit();
+		}
+		cache.close();
+		long start = System.nanoTime();
+		cache = DiskLruCache.open(dir1, 1, 1, maxSize);
+		final long open1 = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < NUM_THUMBNAILS; i++) {
+			final DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+			assertTrue(readFully(snapshot.getInputStream(0), buf));
+			snapshot.close();
+		}
+		final long get1 = (System.nanoTime() - start) / NUM_THUMBNAILS;
+		cache.close();
+		final long usage1 = diskUsage(dir1);
+		final int files1 = dir1.list().length;
+		cache.delete();
+		// MappedBlobStore
+		final File dir2 = Files.createTempDirectory("blob").toFile();
+		MappedBlobStore store = MappedBlobStore.open(dir2, 1, maxSize);
+		for (int i = 0; i < NUM_THUMBNAILS; i++) {
+			store.put("k" + i, data);
+		}
+		store.close();
+		start = System.nanoTime();
+		store = MappedBlobStore.open(dir2, 1, maxSize);
+		final long open2 = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < NUM_THUMBNAILS; i++) {
+			final ByteBuffer b = store.get("k" + i);
+			b.get(buf);
+		}
+		final long get2 = (System.nanoTime() - start) / NUM_THUMBNAILS;
+		store.close();
+		final long usage2 = diskUsage(dir2);
+		final int files2 = dir2.list().length;
+		store.delete();
+		System.out.printf("%d entries x %d bytes%n", NUM_THUMBNAILS, THUMBNAIL_SIZE);
+		System.out.printf("DiskLruCache:open=%,dus, get=%,dns, disk=%,d bytes, %d files%n",
+			open1 / 1000, get1, usage1, files1);
+		System.out.printf("MappedBlobStore:open=%,dus, get=%,dns, disk=%,d bytes, %d files%n",
+			open2 / 1000, get2, usage2, files2);
+	}
+
+	/**
+	 * 閉じて開き直した時とテキストのジャーナルから移行した時に
+	 * エントリーとサイズ, LRUの順番が復元されることを確認
+	 */
+	@Test
+	public void binaryJournal() throws Exception {
+		final File dir = Files.createTempDirectory("cache").toFile();
+		DiskLruCache cache = DiskLruCache.open(dir, 1, 2, 1024 * 1024);
+		try {
+			for (int i = 0; i < 10; i++) {
+				final DiskLruCache.Editor editor = cache.edit("k" + i);
+				editor.set(0, "v" + i);
+				editor.set(1, "abc");
+				editor.commit();
+			}
+			cache.remove("k3");
+			cache.get("k0").close();	// k0を最近使ったエントリーにする
+			final DiskLruCache.Editor editor = cache.edit("k5");	// 編集中のまま閉じると元に戻る
+			editor.set(0, "xxxx");
+			final long size = cache.size();
+			cache.close();
+			assertTrue(new File(dir, "journal.bin").exists());
+			assertFalse(new File(dir, "journal").exists());
+			cache = DiskLruCache.open(dir, 1, 2, 1024 * 1024);
+			assertEquals(size, cache.size());
+			assertNull(cache.get("k3"));
+			assertEquals("v5", cache.get("k5").getString(0));
+			assertEquals("v9", cache.get("k9").getString(0));
+			// 同じ書式なのでConcurrentDiskLruCacheでも開くことができる
+			cache.close();
+			final ConcurrentDiskLruCache cache2 = ConcurrentDiskLruCache.open(dir, 1, 2, 1024 * 1024);
+			try {
+				assertEquals(size, cache2.size());
+				assertEquals("v0", cache2.get("k0").getString(0));
+				assertNull(cache2.get("k3"));
+			} finally {
+				cache2.close();
+			}
+			// 最大サイズを小さくすると最近使っていないエントリーから削除される
+			cache = DiskLruCache.open(dir, 1, 2, 5);
+			cache.flush();
+			assertNotNull(cache.get("k0"));
+			assertNull(cache.get("k1"));
+			cache.close();
+			// テキストのジャーナルからの移行
+			cache.delete();
+			writeTextJournal(dir, 100, 1);
+			cache = DiskLruCache.open(dir, 1, 1, 1024 * 1024);
+			assertEquals(100 * 10, cache.size());
+			assertFalse(new File(dir, "journal").exists());
+			cache.close();
+			cache = DiskLruCache.open(dir, 1, 1, 1024 * 1024);
+			assertEquals(100 * 10, cache.size());
+		} finally {
+			cache.delete();
+		}
+	}
+
+	/**
+	 * テキストのジャーナルから開く時間(移行を含む)と
+	 * バイナリジャーナルから開く時間を比較する
+	 */
+	@Test
+	public void journalBenchmark() throws Exception {
+		for (final int n: NUM_JOURNAL_ENTRIES) {
+			final File dir = Files.createTempDirectory("cache").toFile();
+			writeTextJournal(dir, n, 4);
+			long start = System.nanoTime();
+			DiskLruCache cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE);
+			final long text = System.nanoTime() - start;
+			assertEquals(n * 10L, cache.size());
+			cache.close();
+			start = System.nanoTime();
+			cache = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE);
+			final long binary = System.nanoTime() - start;
+			assertEquals(n * 10L, cache.size());
+			cache.close();
+			cache.delete();
+			System.out.printf("DiskLruCache:%,d entries, open text journal=%,dms, binary journal=%,dms%n",
+				n, text / 1000000, binary / 1000000);
+		}
+	}
+
+	/**
+	 * 書き込み/読み込みの履歴を含むテキストのジャーナルを生成する
+	 * エントリーのファイルは生成しないが開く時にはファイルへアクセスしない
+	 * @param dir
+	 * @param numEntries
+	 * @param numReads エントリー毎のREAD行の数
+	 */
+	private static void writeTextJournal(final File dir,
+		final int numEntries, final int numReads) throws IOException {
+
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(new File(dir, "journal")));
+		try {
+			writer.write("libcore.io.DiskLruCache\n1\n1\n1\n\n");
+			for (int i = 0; i < numEntries; i++) {
+				writer.write("DIRTY k" + i + "\nCLEAN k" + i + " 10\n");
+			}
+			for (int j = 0; j < numReads; j++) {
+				for (int i = 0; i < numEntries; i++) {
+					writer.write("READ k" + i + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * ファイル毎にブロックサイズへ切り上げたディスク使用量の目安を計算する
+	 * @param dir
+	 * @return
+	 */
+	private static long diskUsage(final File dir) {
+		long result = 0;
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				result += (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			}
+		}
+		return result;
+	}
+
+	private interface Op {
+		public boolean get(final String key, final byte[] buf) throws IOException;
+		public void put(final String key, final byte[] value) throws IOException;
+	}
+
+	/**
+	 * 指定したスレッド数で読み書きを行いops/sを返す
+	 * @param numThreads
+	 * @param op
+	 * @return
+	 * @throws Exception
+	 */
+	private static long run(final int numThreads, final Op op) throws Exception {
+		final byte[] data = new byte[ENTRY_SIZE];
+		new Random(0).nextBytes(data);
+		// 最初に全てのキーを書き込んでおく
+		for (int i = 0; i < NUM_KEYS; i++) {
+			op.put("k" + i, data);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(numThreads);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		for (int t = 0; t < numThreads; t++) {
+			final int seed = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final Random random = new Random(seed);
+					final byte[] buf = new byte[ENTRY_SIZE];
+					try {
+						start.await();
+						for (int i = 0; i < NUM_OPS; i++) {
+							final String key = "k" + random.nextInt(NUM_KEYS);
+							if (random.nextInt(100) < PUT_RATE) {
+								op.put(key, data);
+							} else {
+								op.get(key, buf);
+							}
+						}
+					} catch (final Throwable e) {
+						error.compareAndSet(null, e);
+					} finally {
+						finished.countDown();
+					}
+				}
+			}).start();
+		}
+		final long startTime = System.nanoTime();
+		start.countDown();
+		finished.await();
+		final long time = System.nanoTime() - startTime;
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		return numThreads * (long)NUM_OPS * 1000000000L / Math.max(time, 1);
+	}
+
+	private static boolean readFully(final InputStream in, final byte[] buf) throws IOException {
+		int offset = 0;
+		while (offset < buf.length) {
+			final int n = in.read(buf, offset, buf.length - offset);
+			if (n < 0) {
+				break;
+			}
+			offset += n;
+		}
+		return offset == buf.length;
+	}
+}
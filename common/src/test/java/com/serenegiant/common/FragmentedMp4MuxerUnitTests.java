@@ -0,0 +1,379 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+
+import com.serenegiant.media.FragmentedMp4Muxer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * FragmentedMp4Muxer用のローカルユニットテストクラス
+ * 合成したH.264(AnnexB)/AACのサンプルを書き込んで、出力したファイルのボックス構造を検証する
+ */
+public class FragmentedMp4MuxerUnitTests {
+
+	private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda, 0x02, (byte)0x80};
+	private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+	private static final int FRAME_RATE = 30;
+	private static final int KEY_FRAME_INTERVAL = 15;
+	private static final int SAMPLE_RATE = 44100;
+	private static final int AUDIO_FRAME_SIZE = 200;
+
+	/**
+	 * 5秒分書き込んで1秒毎のフラグメントになっていることを確認
+	 */
+	@Test
+	public void fragments() throws Exception {
+		final File file = File.createTempFile("fmp4", ".mp4");
+		file.deleteOnExit();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		final FragmentedMp4Muxer muxer
+			= new FragmentedMp4Muxer(raf.getChannel(), 1000000L, false);
+		final Counts counts = write(muxer, 5000000L);
+		muxer.stop();
+		muxer.release();
+		assertFalse(raf.getChannel().isOpen());
+
+		final Mp4 mp4 = verify(readFile(file));
+		assertEquals(counts.video, mp4.videoSamples);
+		assertEquals(counts.audio, mp4.audioSamples);
+		assertEquals(5, mp4.fragments);
+	}
+
+	/**
+	 * stopせずに終了(クラッシュ)しても書き込み済みのフラグメントは完結していることを確認
+	 */
+	@Test
+	public void crash() throws Exception {
+		final File file = File.createTempFile("fmp4", ".mp4");
+		file.deleteOnExit();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		final FragmentedMp4Muxer muxer
+			= new FragmentedMp4Muxer(raf.getChannel(), 0, true);
+		// キーフレーム毎(0.5秒毎)に区切るので2.6秒なら5フラグメントを書き込み済み
+		write(muxer, 2600000L);
+		// stop/releaseを呼ばずにファイルを読む
+		final Mp4 mp4 = verify(readFile(file));
+		assertEquals(5, mp4.fragments);
+		assertEquals(5 * KEY_FRAME_INTERVAL, mp4.videoSamples);
+		raf.close();
+	}
+
+	private static class Counts {
+		private int video;
+		private int audio;
+	}
+
+	/**
+	 * 動画(30fps, 0.5秒毎にキーフレーム)と音声(AAC 1024サンプル/フレーム)を
+	 * presentationTimeUsの順に書き込む
+	 * @param muxer
+	 * @param durationUs
+	 * @return
+	 */
+	private static Counts write(final FragmentedMp4Muxer muxer, final long durationUs) {
+		final int video = muxer.addAvcTrack(640, 480, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+		final int audio = muxer.addAacTrack(SAMPLE_RATE, 2, null);
+		muxer.start();
+		final Counts counts = new Counts();
+		final ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+		for ( ; ; ) {
+			final long videoPts = counts.video * 1000000L / FRAME_RATE;
+			final long audioPts = counts.audio * 1024L * 1000000L / SAMPLE_RATE;
+			if ((videoPts >= durationUs) && (audioPts >= durationUs)) {
+				break;
+			}
+			if (videoPts <= audioPts) {
+				final boolean isKeyFrame = counts.video % KEY_FRAME_INTERVAL == 0;
+				final byte[] frame = createVideoFrame(counts.video, isKeyFrame);
+				// ダイレクトバッファの途中から書き込む
+				direct.clear();
+				direct.position(16);
+				direct.put(frame);
+				muxer.writeSampleData(video, direct, 16, frame.length, videoPts,
+					isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+				counts.video++;
+			} else {
+				final byte[] frame = createAudioFrame(counts.audio);
+				muxer.writeSampleData(audio, ByteBuffer.wrap(frame), 0, frame.length, audioPts, 0);
+				counts.audio++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * キーフレームはSPS/PPS(4バイトのスタートコード)+IDR(3バイトのスタートコード)
+	 * それ以外はスライス1つ
+	 */
+	private static byte[] createVideoFrame(final int index, final boolean isKeyFrame) {
+		final int payload = 100 + index % 50;
+		final int prefix = isKeyFrame ? SPS.length + PPS.length + 3 : 4;
+		final byte[] result = new byte[prefix + 1 + payload];
+		int pos = 0;
+		if (isKeyFrame) {
+			System.arraycopy(SPS, 0, result, 0, SPS.length);
+			System.arraycopy(PPS, 0, result, SPS.length, PPS.length);
+			pos = SPS.length + PPS.length;
+			result[pos + 2] = 1;
+			pos += 3;
+			result[pos++] = 0x65;
+		} else {
+			result[3] = 1;
+			pos = 4;
+			result[pos++] = 0x41;
+		}
+		for (int i = 0; i < payload; i++) {
+			result[pos++] = (byte)(0x10 + (index + i) % 200);
+		}
+		return result;
+	}
+
+	private static byte[] createAudioFrame(final int index) {
+		final byte[] result = new byte[AUDIO_FRAME_SIZE];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte)(index + i);
+		}
+		return result;
+	}
+
+	private static byte[] readFile(final File file) throws Exception {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] result = new byte[(int)raf.length()];
+			raf.readFully(result);
+			return result;
+		} finally {
+			raf.close();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	private static class Mp4 {
+		private int fragments;
+		private int videoSamples;
+		private int audioSamples;
+	}
+
+	private static class Box {
+		private final String type;
+		private final int offset;
+		private final int size;
+
+		private Box(final String type, final int offset, final int size) {
+			this.type = type;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		private int payload() {
+			return offset + 8;
+		}
+
+		private int end() {
+			return offset + size;
+		}
+	}
+
+	/**
+	 * 指定した範囲のボックスを列挙する
+	 */
+	private static List<Box> parse(final ByteBuffer buf, final int start, final int end) {
+		final List<Box> result = new ArrayList<>();
+		int pos = start;
+		while (pos < end) {
+			assertTrue("truncated box header", pos + 8 <= end);
+			final int size = buf.getInt(pos);
+			assertTrue("invalid box size", (size >= 8) && (pos + size <= end));
+			final byte[] type = new byte[4];
+			for (int i = 0; i < 4; i++) {
+				type[i] = buf.get(pos + 4 + i);
+			}
+			result.add(new Box(new String(type), pos, size));
+			pos += size;
+		}
+		assertEquals(end, pos);
+		return result;
+	}
+
+	private static List<Box> children(final ByteBuffer buf, final Box box) {
+		return parse(buf, box.payload(), box.end());
+	}
+
+	private static Box find(final List<Box> boxes, final String type) {
+		for (final Box box: boxes) {
+			if (box.type.equals(type)) {
+				return box;
+			}
+		}
+		fail(type + " not found");
+		return null;
+	}
+
+	private static Box find(final ByteBuffer buf, final Box parent, final String... path) {
+		Box box = parent;
+		for (final String type: path) {
+			box = find(children(buf, box), type);
+		}
+		return box;
+	}
+
+	private static Mp4 verify(final byte[] data) {
+		final ByteBuffer buf = ByteBuffer.wrap(data);
+		final List<Box> top = parse(buf, 0, data.length);
+		assertEquals("ftyp", top.get(0).type);
+		assertEquals("moov", top.get(1).type);
+		final Box moov = top.get(1);
+		// mvhd, trak x 2, mvex
+		final List<Box> moovChildren = children(buf, moov);
+		assertEquals("mvhd", moovChildren.get(0).type);
+		int trakCount = 0;
+		for (final Box box: moovChildren) {
+			if (box.type.equals("trak")) {
+				trakCount++;
+			}
+		}
+		assertEquals(2, trakCount);
+		final List<Box> mvex = children(buf, find(moovChildren, "mvex"));
+		assertEquals(2, mvex.size());
+		assertEquals("trex", mvex.get(0).type);
+		// avc1/avcC
+		final Box videoStsd = find(buf, moovChildren.get(1), "mdia", "minf", "stbl", "stsd");
+		final Box avc1 = parse(buf, videoStsd.payload() + 8, videoStsd.end()).get(0);
+		assertEquals("avc1", avc1.type);
+		assertEquals(640, buf.getShort(avc1.payload() + 24));
+		assertEquals(480, buf.getShort(avc1.payload() + 26));
+		final Box avcC = parse(buf, avc1.payload() + 78, avc1.end()).get(0);
+		assertEquals("avcC", avcC.type);
+		assertEquals(1, buf.get(avcC.payload()));
+		assertEquals(0x42, buf.get(avcC.payload() + 1));
+		assertEquals((byte)0xff, buf.get(avcC.payload() + 4));
+		assertEquals((byte)0xe1, buf.get(avcC.payload() + 5));
+		assertEquals(SPS.length - 4, buf.getShort(avcC.payload() + 6));
+		// mp4a/esds
+		final Box audioStsd = find(buf, moovChildren.get(2), "mdia", "minf", "stbl", "stsd");
+		final Box mp4a = parse(buf, audioStsd.payload() + 8, audioStsd.end()).get(0);
+		assertEquals("mp4a", mp4a.type);
+		assertEquals(2, buf.getShort(mp4a.payload() + 16));
+		assertEquals(SAMPLE_RATE, buf.getInt(mp4a.payload() + 24) >>> 16);
+		final Box esds = parse(buf, mp4a.payload() + 28, mp4a.end()).get(0);
+		assertEquals("esds", esds.type);
+		// AAC-LC, 44100Hz(index=4), 2ch
+		final int dsi = esds.payload() + 4 + 5 + 15;
+		assertEquals(0x05, buf.get(dsi));
+		assertEquals(2, buf.get(dsi + 1));
+		assertEquals(0x12, buf.get(dsi + 2));
+		assertEquals(0x10, buf.get(dsi + 3));
+
+		// moof/mdatの組
+		final Mp4 result = new Mp4();
+		long nextVideoTime = 0;
+		for (int i = 2; i < top.size(); i += 2) {
+			final Box moof = top.get(i);
+			assertEquals("moof", moof.type);
+			assertTrue("mdat not found", i + 1 < top.size());
+			final Box mdat = top.get(i + 1);
+			assertEquals("mdat", mdat.type);
+			result.fragments++;
+			final List<Box> moofChildren = children(buf, moof);
+			assertEquals("mfhd", moofChildren.get(0).type);
+			assertEquals(result.fragments, buf.getInt(moofChildren.get(0).payload() + 4));
+			for (int j = 1; j < moofChildren.size(); j++) {
+				final Box traf = moofChildren.get(j);
+				assertEquals("traf", traf.type);
+				final Box tfhd = find(buf, traf, "tfhd");
+				final int trackId = buf.getInt(tfhd.payload() + 4);
+				final Box tfdt = find(buf, traf, "tfdt");
+				assertEquals(1, buf.get(tfdt.payload()));
+				final long baseTime = buf.getLong(tfdt.payload() + 4);
+				final Box trun = find(buf, traf, "trun");
+				final int count = buf.getInt(trun.payload() + 4);
+				int dataPos = moof.offset + buf.getInt(trun.payload() + 8);
+				long duration = 0;
+				for (int k = 0; k < count; k++) {
+					final int entry = trun.payload() + 12 + k * 12;
+					duration += buf.getInt(entry);
+					final int size = buf.getInt(entry + 4);
+					final int flags = buf.getInt(entry + 8);
+					assertTrue("sample is out of mdat",
+						(dataPos >= mdat.payload()) && (dataPos + size <= mdat.end()));
+					if (trackId == 1) {
+						verifyVideoSample(buf, dataPos, size, result.videoSamples, flags);
+						result.videoSamples++;
+					} else {
+						assertEquals(2, trackId);
+						assertEquals(AUDIO_FRAME_SIZE, size);
+						assertEquals((byte)result.audioSamples, buf.get(dataPos));
+						result.audioSamples++;
+					}
+					dataPos += size;
+				}
+				if (trackId == 1) {
+					// 動画はフラグメントの先頭がキーフレームで、時刻が連続している
+					assertEquals(0x02000000, buf.getInt(trun.payload() + 12 + 8));
+					assertEquals(nextVideoTime, baseTime);
+					nextVideoTime = baseTime + duration;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * NALユニット長区切りへ変換されていることを確認
+	 */
+	private static void verifyVideoSample(final ByteBuffer buf, final int offset, final int size,
+		final int index, final int flags) {
+
+		final boolean isKeyFrame = index % KEY_FRAME_INTERVAL == 0;
+		assertEquals(isKeyFrame ? 0x02000000 : 0x01010000, flags);
+		final List<Integer> types = new ArrayList<>();
+		int pos = offset;
+		while (pos < offset + size) {
+			final int len = buf.getInt(pos);
+			assertTrue(len > 0);
+			types.add(buf.get(pos + 4) & 0x1f);
+			pos += 4 + len;
+		}
+		assertEquals(offset + size, pos);
+		if (isKeyFrame) {
+			assertEquals(3, types.size());
+			assertEquals(7, (int)types.get(0));
+			assertEquals(8, (int)types.get(1));
+			assertEquals(5, (int)types.get(2));
+		} else {
+			assertEquals(1, types.size());
+			assertEquals(1, (int)types.get(0));
+		}
+		// 末尾のNALユニットのペイロード
+		final int payload = 100 + index % 50;
+		assertEquals(payload + 1, buf.getInt(pos - payload - 5));
+		assertEquals((byte)(0x10 + (index + payload - 1) % 200), buf.get(pos - 1));
+	}
+}
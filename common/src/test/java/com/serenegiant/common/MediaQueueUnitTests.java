@@ -0,0 +1,449 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaFormat;
+
+import com.serenegiant.media.AbstractFakeEncoder;
+import com.serenegiant.media.EncoderListener;
+import com.serenegiant.media.IMediaQueue;
+import com.serenegiant.media.IRecorder;
+import com.serenegiant.media.IRecycleBuffer;
+import com.serenegiant.media.IRecycleParent;
+import com.serenegiant.media.MemMediaQueue;
+import com.serenegiant.media.RecycleMediaData;
+import com.serenegiant.media.RingMediaQueue;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * IMediaQueue実装用のローカルユニットテストクラス
+ * RingMediaQueueとMemMediaQueueのフレームレートとGC回数の比較も行う(結果は標準出力へ出力するだけ)
+ */
+public class MediaQueueUnitTests {
+
+	private static final int FRAME_SZ = 4096;
+	private static final int NUM_FRAMES = 200000;
+	private static final int FLAG_KEY_FRAME = 1;	// MediaCodec.BUFFER_FLAG_KEY_FRAME
+
+	/**
+	 * スロット数を超えて取得できないこと、キューの順序が保たれることを確認
+	 */
+	@Test
+	public void ringQueueOrder() throws InterruptedException {
+		final RingMediaQueue queue = new RingMediaQueue(4, 4);
+		queue.init(FRAME_SZ);
+		final RecycleMediaData[] frames = new RecycleMediaData[4];
+		for (int i = 0; i < 4; i++) {
+			frames[i] = queue.obtain(FRAME_SZ);
+			assertNotNull(frames[i]);
+			frames[i].set(null, 0, 0, i, 0);
+		}
+		assertNull(queue.obtain(FRAME_SZ));	// スロットが足りない
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.queueFrame(frames[i]));
+		}
+		assertEquals(4, queue.count());
+		for (int i = 0; i < 4; i++) {
+			final RecycleMediaData frame = queue.poll(10, TimeUnit.MILLISECONDS);
+			assertSame(frames[i], frame);
+			assertEquals(i, frame.presentationTimeUs());
+			frame.recycle();
+		}
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));	// タイムアウト
+		assertEquals(4, queue.getNumFreeSlots());
+	}
+
+	/**
+	 * コンストラクタではスロットを生成せず、#initで1回だけ生成することを確認
+	 */
+	@Test
+	public void ringLazyInit() {
+		final int[] created = new int[1];
+		final RingMediaQueue queue = new RingMediaQueue(4, 4, 0,
+			new IRecycleBuffer.Factory<RecycleMediaData>() {
+				@NonNull
+				@Override
+				public RecycleMediaData create(@NonNull final IRecycleParent<RecycleMediaData> parent,
+					@Nullable final Object... args) {
+
+					created[0]++;
+					return new MemMediaQueue.DefaultFactory().create(parent, args);
+				}
+			});
+		assertEquals(0, created[0]);
+		queue.init(FRAME_SZ);
+		assertEquals(4, created[0]);
+		assertEquals(4, queue.getNumFreeSlots());
+		// #initを呼ばなくても最大生成数までは取得できる
+		final RingMediaQueue lazy = new RingMediaQueue(2, 2);
+		assertNotNull(lazy.obtain(FRAME_SZ));
+		assertNotNull(lazy.obtain(FRAME_SZ));
+		assertNull(lazy.obtain(FRAME_SZ));
+	}
+
+	/**
+	 * OVERFLOW_DROP_OLDEST_NON_KEYFRAMEでキーフレームが残ることを確認
+	 */
+	@Test
+	public void dropOldestNonKeyFrame() {
+		final MemMediaQueue queue = new MemMediaQueue(4, 4, 3);
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_DROP_OLDEST_NON_KEYFRAME, 0);
+		assertTrue(queue.queueFrame(frame(queue, 0, FLAG_KEY_FRAME)));
+		assertTrue(queue.queueFrame(frame(queue, 1, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 2, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 3, 0)));	// pts=1のフレームを破棄
+		assertEquals(3, queue.count());
+		assertEquals(1, queue.getStats().getDroppedOldest());
+		assertEquals(0, queue.poll().presentationTimeUs());
+		assertEquals(2, queue.poll().presentationTimeUs());
+		assertEquals(3, queue.poll().presentationTimeUs());
+		assertEquals(3, queue.getStats().getHighWaterMark());
+	}
+
+	/**
+	 * OVERFLOW_DROP_NEWESTとOVERFLOW_GROW_TO_LIMITの違いを確認
+	 */
+	@Test
+	public void growToLimit() {
+		final RingMediaQueue queue = new RingMediaQueue(2, 2, 4, null);
+		assertTrue(queue.queueFrame(frame(queue, 0, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 1, 0)));
+		final RecycleMediaData dropped = frame(queue, 2, 0);
+		assertFalse(queue.queueFrame(dropped));	// OVERFLOW_DROP_NEWEST
+		dropped.recycle();
+		assertEquals(1, queue.getStats().getDroppedNewest());
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_GROW_TO_LIMIT, 0);
+		assertTrue(queue.queueFrame(frame(queue, 3, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 4, 0)));
+		assertNull(queue.obtain());	// 最大生成数に達した
+		assertEquals(1, queue.getStats().getObtainFailures());
+		assertEquals(4, queue.getStats().getHighWaterMark());
+	}
+
+	/**
+	 * OVERFLOW_BLOCKで空きができるまで待機することを確認
+	 */
+	@Test
+	public void block() throws InterruptedException {
+		final RingMediaQueue queue = new RingMediaQueue(2, 1);
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_BLOCK, 5000);
+		assertTrue(queue.queueFrame(frame(queue, 0, 0)));
+		final Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					final RecycleMediaData frame = queue.poll(1, TimeUnit.SECONDS);
+					if (frame != null) {
+						frame.recycle();
+					}
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+		consumer.start();
+		assertTrue(queue.queueFrame(frame(queue, 1, 0)));
+		consumer.join();
+		assertEquals(1, queue.getStats().getBlocked());
+		assertEquals(0, queue.getStats().getDropped());
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_BLOCK, 10);
+		final RecycleMediaData dropped = frame(queue, 2, 0);
+		assertFalse(queue.queueFrame(dropped));	// タイムアウト
+		dropped.recycle();
+		assertEquals(1, queue.getStats().getBlockTimeouts());
+	}
+
+	/**
+	 * RingMediaQueueでもOVERFLOW_DROP_OLDEST_NON_KEYFRAMEでキーフレームが残ること、
+	 * 破棄したフレームのスロットが取り出し時に空きスロットへ戻ることを確認
+	 */
+	@Test
+	public void ringDropOldestNonKeyFrame() {
+		final RingMediaQueue queue = new RingMediaQueue(4, 3);
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_DROP_OLDEST_NON_KEYFRAME, 0);
+		assertTrue(queue.queueFrame(frame(queue, 0, FLAG_KEY_FRAME)));
+		assertTrue(queue.queueFrame(frame(queue, 1, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 2, 0)));
+		assertTrue(queue.queueFrame(frame(queue, 3, 0)));	// pts=1のフレームを破棄
+		assertEquals(3, queue.count());
+		assertEquals(1, queue.getStats().getDroppedOldest());
+		assertTrue(queue.queueFrame(frame(queue, 4, 0)));	// pts=2のフレームを破棄
+		assertEquals(3, queue.count());
+		assertEquals(2, queue.getStats().getDroppedOldest());
+		assertEquals(0, queue.peek().presentationTimeUs());
+		final long[] expected = {0, 3, 4};
+		for (final long pts: expected) {
+			final RecycleMediaData frame = queue.poll();
+			assertEquals(pts, frame.presentationTimeUs());
+			frame.recycle();
+		}
+		assertNull(queue.poll());
+		assertEquals(0, queue.count());
+		assertEquals(4, queue.getNumFreeSlots());
+		// キーフレームだけなら破棄せずに追加する
+		queue.queueFrame(frame(queue, 5, FLAG_KEY_FRAME));
+		queue.queueFrame(frame(queue, 6, FLAG_KEY_FRAME));
+		queue.queueFrame(frame(queue, 7, FLAG_KEY_FRAME));
+		assertTrue(queue.queueFrame(frame(queue, 8, FLAG_KEY_FRAME)));
+		assertEquals(4, queue.count());
+		assertEquals(2, queue.getStats().getDroppedOldest());
+	}
+
+	/**
+	 * OVERFLOW_DROP_OLDEST_NON_KEYFRAMEで生産者スレッドと消費者スレッドが競合しても
+	 * キーフレームを取りこぼさず、順序が保たれてスロットが全て戻ることを確認
+	 */
+	@Test
+	public void ringDropOldestNonKeyFrameConcurrent() throws InterruptedException {
+		final int numFrames = 100000;
+		final RingMediaQueue queue = new RingMediaQueue(8, 6);
+		queue.setOverflowPolicy(IMediaQueue.OVERFLOW_DROP_OLDEST_NON_KEYFRAME, 0);
+		final int[] droppedNewest = new int[1];
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < numFrames; ) {
+					final RecycleMediaData frame = queue.obtain();
+					if (frame == null) {
+						Thread.yield();
+						continue;
+					}
+					frame.set(null, 0, 0, i, (i % 30) == 0 ? FLAG_KEY_FRAME : 0);
+					if (!queue.queueFrame(frame)) {
+						frame.recycle();
+						droppedNewest[0]++;
+					}
+					i++;
+				}
+			}
+		});
+		producer.start();
+		int received = 0;
+		int keyFrames = 0;
+		long prev = -1;
+		for ( ; ; ) {
+			final RecycleMediaData frame = queue.poll(10, TimeUnit.MILLISECONDS);
+			if (frame == null) {
+				if (!producer.isAlive() && (queue.count() == 0)) break;
+				continue;
+			}
+			assertTrue(frame.presentationTimeUs() > prev);
+			prev = frame.presentationTimeUs();
+			if ((frame.flags() & FLAG_KEY_FRAME) != 0) {
+				keyFrames++;
+			}
+			received++;
+			if ((received % 7) == 0) {
+				Thread.yield();
+			}
+			frame.recycle();
+		}
+		producer.join();
+		assertEquals((numFrames + 29) / 30, keyFrames);
+		assertEquals(numFrames,
+			received + queue.getStats().getDroppedOldest() + droppedNewest[0]);
+		assertEquals(queue.getNumSlots(), queue.getNumFreeSlots());
+	}
+
+	/**
+	 * AbstractFakeEncoderへOVERFLOW_DROP_OLDEST_NON_KEYFRAMEをセットしてキューをあふれさせたときに
+	 * キーフレームと新しいフレームが残ることを確認
+	 */
+	@Test
+	public void fakeEncoderDropOldestNonKeyFrame() throws Exception {
+		final FakeEncoder encoder = new FakeEncoder();
+		encoder.setOverflowPolicy(IMediaQueue.OVERFLOW_DROP_OLDEST_NON_KEYFRAME, 0);
+		encoder.prepare();
+		encoder.initPool();
+		final ByteBuffer data = ByteBuffer.allocateDirect(16);
+		assertTrue(encoder.queueFrame(data, 0, 16, 0, AbstractFakeEncoder.BUFFER_FLAG_KEY_FRAME));
+		for (int i = 1; i < 14; i++) {
+			// 消費者がいなくても破棄済みのフレームの分だけスロットを生成して追加できる
+			assertTrue(encoder.queueFrame(data, 0, 16, i, 0));
+		}
+		assertEquals(8, encoder.getQueueStats().getDroppedOldest());
+		// 破棄済みのフレームが最大生成数に達した後は新しいフレームを破棄する
+		assertFalse(encoder.queueFrame(data, 0, 16, 14, 0));
+		assertEquals(1, encoder.getQueueStats().getDroppedNewest());
+		final long[] expected = {0, 9, 10, 11, 12, 13};
+		for (final long pts: expected) {
+			final RecycleMediaData frame = encoder.waitFrame(10);
+			assertNotNull(frame);
+			assertEquals(pts, frame.presentationTimeUs());
+			frame.recycle();
+		}
+		assertNull(encoder.waitFrame(10));
+		encoder.release();
+	}
+
+	/**
+	 * 生産者スレッドと消費者スレッドで受け渡したときのフレームレートとGC回数を
+	 * MemMediaQueueと比較する
+	 */
+	@Test
+	public void throughput() throws InterruptedException {
+		final MemMediaQueue memQueue = new MemMediaQueue(8, 8, 8);
+		memQueue.init(FRAME_SZ);
+		final RingMediaQueue ringQueue = new RingMediaQueue(8, 8);
+		ringQueue.init(FRAME_SZ);
+		// ウォームアップ
+		run(memQueue, NUM_FRAMES / 10);
+		run(ringQueue, NUM_FRAMES / 10);
+
+		long gc = gcCount();
+		final long memNs = run(memQueue, NUM_FRAMES);
+		final long memGc = gcCount() - gc;
+		gc = gcCount();
+		final long ringNs = run(ringQueue, NUM_FRAMES);
+		final long ringGc = gcCount() - gc;
+		System.out.printf("MemMediaQueue:%,d frames/s(GC=%d), RingMediaQueue:%,d frames/s(GC=%d)%n",
+			NUM_FRAMES * 1000000000L / Math.max(memNs, 1), memGc,
+			NUM_FRAMES * 1000000000L / Math.max(ringNs, 1), ringGc);
+	}
+
+	/**
+	 * 生産者スレッドから指定したフレーム数を送り、呼び出し元スレッドで受け取る
+	 * @param queue
+	 * @param numFrames
+	 * @return 経過時間[ナノ秒]
+	 */
+	private static long run(@NonNull final IMediaQueue<RecycleMediaData> queue,
+		final int numFrames) throws InterruptedException {
+
+		final ByteBuffer src = ByteBuffer.allocateDirect(FRAME_SZ);
+		final Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < numFrames; ) {
+					final RecycleMediaData frame = queue.obtain(FRAME_SZ);
+					if (frame == null) {
+						Thread.yield();
+						continue;
+					}
+					frame.set(src, 0, FRAME_SZ, i, 0);
+					if (queue.queueFrame(frame)) {
+						i++;
+					} else {
+						frame.recycle();
+					}
+				}
+			}
+		});
+		final long start = System.nanoTime();
+		producer.start();
+		for (int i = 0; i < numFrames; ) {
+			final RecycleMediaData frame = queue.poll(100, TimeUnit.MILLISECONDS);
+			if (frame != null) {
+				assertEquals(i, frame.presentationTimeUs());
+				frame.recycle();
+				i++;
+			}
+		}
+		final long result = System.nanoTime() - start;
+		producer.join();
+		return result;
+	}
+
+	/**
+	 * キューを直接操作するためのAbstractFakeEncoder実装
+	 * フレーム処理スレッドは開始しない
+	 */
+	private static class FakeEncoder extends AbstractFakeEncoder {
+		public FakeEncoder() {
+			super("video/avc", stub(IRecorder.class), stub(EncoderListener.class), 16, 8, 6);
+		}
+
+		@Override
+		protected void initPool() {
+			super.initPool();
+		}
+
+		@Override
+		protected RecycleMediaData waitFrame(final long waitTimeMs) {
+			return super.waitFrame(waitTimeMs);
+		}
+
+		@Override
+		protected MediaFormat createOutputFormat(final String mime,
+			final byte[] csd, final int size,
+			final int ix0, final int ix1, final int ix2) {
+
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean isAudio() {
+			return false;
+		}
+	}
+
+	/**
+	 * 何もしないインターフェースの実装を生成する
+	 * @param clazz
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	@NonNull
+	private static <T> T stub(@NonNull final Class<T> clazz) {
+		return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[] {clazz},
+			new InvocationHandler() {
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) {
+					final Class<?> type = method.getReturnType();
+					if (type == boolean.class) return false;
+					if (type == int.class) return 0;
+					if (type == long.class) return 0L;
+					return null;
+				}
+			});
+	}
+
+	@NonNull
+	private static RecycleMediaData frame(@NonNull final IMediaQueue<RecycleMediaData> queue,
+		final long pts, final int flags) {
+
+		final RecycleMediaData result = queue.obtain();
+		assertNotNull(result);
+		result.set(null, 0, 0, pts, flags);
+		return result;
+	}
+
+	private static long gcCount() {
+		long result = 0;
+		for (final GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			result += Math.max(gc.getCollectionCount(), 0);
+		}
+		return result;
+	}
+}
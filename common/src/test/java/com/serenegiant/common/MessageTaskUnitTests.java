@@ -0,0 +1,376 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.MessageTask;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * MessageTask用のローカルユニットテストクラス
+ * LinkedBlockingDeque(従来)とリングバッファでのofferAndWaitの往復時間と
+ * offerのスループット、ワーカースレッドが遅延した時に同じ要求をまとめた場合の
+ * キューの長さとremoveRequestの時間も出力する(結果は標準出力へ出力するだけ)
+ */
+public class MessageTaskUnitTests {
+
+	private static final int NUM_ROUND_TRIPS = 20000;
+	private static final int NUM_REQUESTS = 200000;
+	private static final int CAPACITY = 1024;
+
+	private static final int REQUEST_ADD = 1;
+	private static final int REQUEST_RECORD = 2;
+	private static final int REQUEST_BLOCK = 3;
+	private static final int REQUEST_LATEST = 4;
+	private static final int REQUEST_COUNT = 5;
+	private static final int NUM_STALLED = 100000;
+
+	/**
+	 * offerFirstの要求を先に処理して取り消した要求は処理しないことを確認
+	 */
+	@Test
+	public void order() throws Exception {
+		for (final boolean useRing: new boolean[] {false, true}) {
+			final TestTask task = start(useRing);
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			// 要求を追加する間ワーカースレッドをブロックしておく
+			assertTrue(task.offer(REQUEST_BLOCK, new CountDownLatch[] {blocked, release}));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			assertTrue(task.offer(REQUEST_RECORD, 1));
+			assertTrue(task.offer(REQUEST_RECORD, 2));
+			assertTrue(task.offer(REQUEST_ADD, 100));
+			assertTrue(task.offer(REQUEST_RECORD, 3));
+			assertTrue(task.offerFirst(REQUEST_RECORD, 0, 0, null));
+			task.removeRequest(REQUEST_ADD);
+			release.countDown();
+			assertEquals(5, task.offerAndWait(REQUEST_ADD, 4, 0, null));
+			assertEquals("[0, 1, 2, 3]", task.mRecords.toString());
+			task.release();
+			assertTrue(task.isFinished());
+			assertFalse(task.offer(REQUEST_RECORD, 4));
+			assertNull(task.offerAndWait(REQUEST_ADD, 4, 0, null));
+		}
+	}
+
+	/**
+	 * COALESCE_LATEST/COALESCE_COUNTの要求をまとめて処理し、取り消せることを確認
+	 */
+	@Test
+	public void coalesce() throws Exception {
+		for (final boolean useRing: new boolean[] {false, true}) {
+			final TestTask task = start(useRing);
+			task.setCoalescePolicy(REQUEST_LATEST, MessageTask.COALESCE_LATEST);
+			task.setCoalescePolicy(REQUEST_COUNT, MessageTask.COALESCE_COUNT);
+			assertEquals(MessageTask.COALESCE_COUNT, task.getCoalescePolicy(REQUEST_COUNT));
+			assertEquals(MessageTask.COALESCE_NONE, task.getCoalescePolicy(REQUEST_RECORD));
+			CountDownLatch blocked = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			assertTrue(task.offer(REQUEST_BLOCK, new CountDownLatch[] {blocked, release}));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			for (int i = 1; i <= 5; i++) {
+				assertTrue(task.offer(REQUEST_LATEST, i));
+				assertTrue(task.offer(REQUEST_COUNT, i));
+			}
+			// リングバッファは処理中の要求のスロットも含む
+			assertEquals(useRing ? 3 : 2, task.getCurrentRequests());
+			release.countDown();
+			task.offerAndWait(REQUEST_ADD, 0, 0, null);
+			// LATESTは最後の引数, COUNTは最初の引数とoffer回数
+			assertEquals("[4:5x5, 5:1x5]", task.mMerged.toString());
+			// 処理後は新しい要求として追加する
+			task.mMerged.clear();
+			assertTrue(task.offer(REQUEST_LATEST, 6));
+			task.offerAndWait(REQUEST_ADD, 0, 0, null);
+			assertEquals("[4:6x1]", task.mMerged.toString());
+			// 取り消した要求は処理しない
+			task.mMerged.clear();
+			blocked = new CountDownLatch(1);
+			release = new CountDownLatch(1);
+			assertTrue(task.offer(REQUEST_BLOCK, new CountDownLatch[] {blocked, release}));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			assertTrue(task.offer(REQUEST_LATEST, 7));
+			task.removeRequest(REQUEST_LATEST);
+			assertTrue(task.offer(REQUEST_COUNT, 8));
+			assertTrue(task.offer(REQUEST_COUNT, 9));
+			task.removeRequest(REQUEST_COUNT);
+			assertTrue(task.offer(REQUEST_COUNT, 10));
+			release.countDown();
+			task.offerAndWait(REQUEST_ADD, 0, 0, null);
+			assertEquals("[5:10x1]", task.mMerged.toString());
+			task.release();
+		}
+	}
+
+	/**
+	 * ワーカースレッドが処理している間に複数のスレッドからまとめる対象の要求を
+	 * offerし続けてもoffer回数を取りこぼさず、処理後のofferも処理されることを確認
+	 */
+	@Test
+	public void coalesceStress() throws Exception {
+		final int numThreads = 4;
+		final int numOffers = 50000;	// スレッド毎のoffer数
+		for (final boolean useRing: new boolean[] {false, true}) {
+			final TestTask task = start(useRing);
+			task.setCoalescePolicy(REQUEST_COUNT, MessageTask.COALESCE_COUNT);
+			task.mCollectMerged = false;
+			final CountDownLatch started = new CountDownLatch(1);
+			final List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < numThreads; i++) {
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							started.await();
+						} catch (final InterruptedException e) {
+							return;
+						}
+						for (int j = 0; j < numOffers; j++) {
+							assertTrue(task.offer(REQUEST_COUNT, j));
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			started.countDown();
+			for (final Thread thread: threads) {
+				thread.join();
+			}
+			assertNotNull(task.offerAndWait(REQUEST_ADD, 0, 0, null));
+			assertEquals(numThreads * numOffers, task.mMergedTotal);
+			// 処理し終わった要求へまとめずに新しい要求として追加すること
+			assertTrue(task.offer(REQUEST_COUNT, 0));
+			assertNotNull(task.offerAndWait(REQUEST_ADD, 0, 0, null));
+			assertEquals(numThreads * numOffers + 1, task.mMergedTotal);
+			assertNull(task.mError.get());
+			task.release();
+		}
+	}
+
+	/**
+	 * ワーカースレッドが遅延している間に同じ要求を繰り返しofferした時のキューの長さと
+	 * removeRequestの時間をまとめない場合とまとめる場合で比較する
+	 */
+	@Test
+	public void stalled() throws Exception {
+		for (final int policy: new int[] {MessageTask.COALESCE_NONE, MessageTask.COALESCE_LATEST}) {
+			final TestTask task = new TestTask(-1, false);
+			new Thread(task).start();
+			assertTrue(task.waitReady());
+			task.setCoalescePolicy(REQUEST_LATEST, policy);
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			assertTrue(task.offer(REQUEST_BLOCK, new CountDownLatch[] {blocked, release}));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			long start = System.nanoTime();
+			for (int i = 0; i < NUM_STALLED; i++) {
+				assertTrue(task.offer(REQUEST_LATEST, i));
+			}
+			final long offerTime = System.nanoTime() - start;
+			final int queued = task.getCurrentRequests();
+			start = System.nanoTime();
+			task.removeRequest(REQUEST_LATEST);
+			final long removeTime = System.nanoTime() - start;
+			release.countDown();
+			task.offerAndWait(REQUEST_ADD, 0, 0, null);
+			assertTrue(task.mMerged.isEmpty());
+			task.release();
+			System.out.printf("%s:%,d offers in %,dus, queued=%,d, removeRequest=%,dus%n",
+				policy == MessageTask.COALESCE_NONE ? "COALESCE_NONE" : "COALESCE_LATEST",
+				NUM_STALLED, offerTime / 1000, queued, removeTime / 1000);
+			assertEquals(policy == MessageTask.COALESCE_NONE ? NUM_STALLED : 1, queued);
+		}
+	}
+
+	/**
+	 * リングバッファが一杯の時はofferがfalseを返すことを確認
+	 */
+	@Test
+	public void full() throws Exception {
+		final TestTask task = new TestTask(16, true);
+		assertTrue(task.isRingQueue());
+		assertEquals(16, task.getMaxRequest());
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		new Thread(task).start();
+		assertTrue(task.waitReady());
+		assertTrue(task.offer(REQUEST_BLOCK, new CountDownLatch[] {blocked, release}));
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		int n = 0;
+		while (task.offer(REQUEST_RECORD, n)) {
+			n++;
+		}
+		// 処理中のスロットは処理が終わるまで返却しない
+		assertEquals(15, n);
+		release.countDown();
+		final long timeout = System.currentTimeMillis() + 5000;
+		while ((task.mRecords.size() < n) && (System.currentTimeMillis() < timeout)) {
+			Thread.sleep(1);
+		}
+		assertEquals(15, task.mRecords.size());
+		assertEquals(2, task.offerAndWait(REQUEST_ADD, 1, 0, null));
+		task.release();
+	}
+
+	/**
+	 * offerAndWaitの往復時間とoffer(1/4スレッドから追加)のスループットを
+	 * LinkedBlockingDequeとリングバッファで比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		for (final boolean useRing: new boolean[] {false, true}) {
+			final TestTask task = start(useRing);
+			// ウオームアップ
+			for (int i = 0; i < 1000; i++) {
+				task.offerAndWait(REQUEST_ADD, i, 0, null);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < NUM_ROUND_TRIPS; i++) {
+				assertEquals(i + 1, task.offerAndWait(REQUEST_ADD, i, 0, null));
+			}
+			final long roundTrip = (System.nanoTime() - start) / NUM_ROUND_TRIPS;
+			final long[] throughput = new long[2];
+			for (int k = 0; k < 2; k++) {
+				final int numThreads = k == 0 ? 1 : 4;
+				task.mCount = 0;
+				start = System.nanoTime();
+				final Thread[] threads = new Thread[numThreads];
+				for (int i = 0; i < numThreads; i++) {
+					threads[i] = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							for (int j = 0; j < NUM_REQUESTS / numThreads; j++) {
+								while (!task.offer(REQUEST_ADD, j)) {
+									Thread.yield();
+								}
+							}
+						}
+					});
+					threads[i].start();
+				}
+				for (final Thread t: threads) {
+					t.join();
+				}
+				// 全ての要求を処理し終わるのを待つ
+				task.offerAndWait(REQUEST_ADD, 0, 0, null);
+				throughput[k] = NUM_REQUESTS * 1000000000L / (System.nanoTime() - start);
+				assertEquals(NUM_REQUESTS + 1, task.mCount);
+			}
+			task.release();
+			System.out.printf("%s:offerAndWait=%,dns/round trip, offer=%,d requests/s(1 thread), %,d requests/s(4 threads)%n",
+				useRing ? "RequestRing" : "LinkedBlockingDeque",
+				roundTrip, throughput[0], throughput[1]);
+		}
+	}
+
+	private static TestTask start(final boolean useRing) {
+		final TestTask task = new TestTask(CAPACITY, useRing);
+		new Thread(task).start();
+		assertTrue(task.waitReady());
+		return task;
+	}
+
+	private static class TestTask extends MessageTask {
+		private final List<Integer> mRecords = Collections.synchronizedList(new ArrayList<Integer>());
+		private final List<String> mMerged = Collections.synchronizedList(new ArrayList<String>());
+		private volatile boolean mCollectMerged = true;
+		/** まとめた要求のoffer回数の合計, ワーカースレッドでのみ更新する */
+		private volatile long mMergedTotal;
+		private final AtomicReference<Throwable> mError = new AtomicReference<>();
+		private volatile int mCount;
+
+		private TestTask(final int maxRequest, final boolean useRing) {
+			super(maxRequest, 16, useRing);
+			init(0, 0, null);
+		}
+
+		@Override
+		protected void onInit(final int arg1, final int arg2, final Object obj) {
+		}
+
+		@Override
+		protected void onStart() {
+		}
+
+		@Override
+		protected void onStop() {
+		}
+
+		@Override
+		protected void onRelease() {
+		}
+
+		@Override
+		protected boolean onError(final Throwable e) {
+			mError.set(e);
+			return super.onError(e);
+		}
+
+		@Override
+		protected int getMaxRequest() {
+			return super.getMaxRequest();
+		}
+
+		@Override
+		protected int getCurrentRequests() {
+			return super.getCurrentRequests();
+		}
+
+		@Override
+		protected Object processRequest(final int request,
+			final int arg1, final int arg2, final Object obj) throws TaskBreak {
+
+			switch (request) {
+			case REQUEST_ADD:
+				mCount++;
+				return arg1 + 1;
+			case REQUEST_RECORD:
+				mRecords.add(arg1);
+				break;
+			case REQUEST_LATEST:
+			case REQUEST_COUNT:
+				mMergedTotal += getMergedCount();
+				if (mCollectMerged) {
+					mMerged.add(request + ":" + arg1 + "x" + getMergedCount());
+				}
+				break;
+			case REQUEST_BLOCK:
+				final CountDownLatch[] latches = (CountDownLatch[])obj;
+				latches[0].countDown();
+				try {
+					latches[1].await();
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				break;
+			}
+			return null;
+		}
+	}
+}
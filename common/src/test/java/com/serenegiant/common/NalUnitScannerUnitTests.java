@@ -0,0 +1,283 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.NalUnitScanner;
+import com.serenegiant.utils.BufferHelper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * NalUnitScanner用のローカルユニットテストクラス
+ * 1080p/4KのIDRフレーム相当のデータのNALユニットを列挙する時間を
+ * 以前のBufferHelper#findAnnexB(4バイト→3バイトの2回走査)と比較して
+ * 標準出力へ出力する(結果は標準出力へ出力するだけ)
+ */
+public class NalUnitScannerUnitTests {
+
+	private static final int NUM_LOOPS = 200;
+
+	/**
+	 * 3バイト/4バイトのスタートコードが混在していても全てのNALユニットを取り出せることを確認
+	 */
+	@Test
+	public void scan() throws Exception {
+		final byte[] data = {
+			// 先頭のゴミ
+			0x12,
+			0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e,		// SPS(途中に0x00)
+			0, 0, 0, 1, 0x68, (byte)0xce, 0x38,		// PPS
+			0, 0, 1, 0x06, 0x05, 0x01,				// SEI
+			0, 0, 1, 0x65, 0x11, 0x22, 0x33, 0, 0,	// IDR + trailing_zero_8bits
+			0, 0, 1, 0x41, 0x44,					// スライス
+			0, 0, 1,								// ペイロードの無いスタートコード
+		};
+		final int[][] expected = {
+			// startCodeOffset, offset, length, type
+			{1, 5, 4, NalUnitScanner.NAL_SPS},
+			{9, 13, 3, NalUnitScanner.NAL_PPS},
+			{16, 19, 3, NalUnitScanner.NAL_SEI},
+			{22, 25, 4, NalUnitScanner.NAL_IDR_SLICE},
+			{30, 34, 2, NalUnitScanner.NAL_SLICE},
+		};
+		final NalUnitScanner scanner = new NalUnitScanner();
+		// byte[]
+		check(scanner.reset(data, 0, data.length), expected, 0);
+		// ダイレクトバッファ
+		final ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+		direct.position(10);
+		direct.put(data);
+		direct.position(10);
+		check(scanner.reset(direct), expected, 10);
+		// arrayOffsetが0以外のByteBuffer
+		final byte[] shifted = new byte[data.length + 5];
+		System.arraycopy(data, 0, shifted, 5, data.length);
+		final ByteBuffer wrapped = ByteBuffer.wrap(shifted);
+		wrapped.position(5);
+		final ByteBuffer slice = wrapped.slice();
+		check(scanner.reset(slice), expected, 5);
+		// BufferHelper#findAnnexB
+		assertEquals(1, BufferHelper.findAnnexB(data, 0));
+		assertEquals(9, BufferHelper.findAnnexB(data, 3));
+		assertEquals(16, BufferHelper.findAnnexB(data, 11));
+		assertEquals(-1, BufferHelper.findAnnexB(data, 35));
+		assertEquals(9, NalUnitScanner.findStartCode4(data, 3, data.length));
+		// IDRのtrailing_zero_8bitsの後ろは4バイトのスタートコードとみなす
+		assertEquals(30, NalUnitScanner.findStartCode4(data, 11, data.length));
+		assertEquals(-1, NalUnitScanner.findStartCode4(data, 31, data.length));
+	}
+
+	/**
+	 * byte[]/ByteBufferの走査結果が単純な走査と一致することを確認
+	 */
+	@Test
+	public void random() throws Exception {
+		final Random random = new Random(1);
+		for (int loop = 0; loop < 1000; loop++) {
+			final byte[] data = new byte[random.nextInt(200) + 1];
+			for (int i = 0; i < data.length; i++) {
+				// 0x00と0x01が多くなるようにする
+				final int r = random.nextInt(8);
+				data[i] = (byte)(r < 3 ? 0 : (r < 5 ? 1 : random.nextInt(256)));
+			}
+			final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+			direct.put(data);
+			for (int offset = 0; offset < data.length; offset += 7) {
+				final int expected = naiveFind(data, offset);
+				assertEquals(expected, NalUnitScanner.findStartCode(data, offset, data.length));
+				assertEquals(expected, NalUnitScanner.findStartCode(direct, offset, data.length));
+				assertEquals(BufferHelper.byteComp(data, offset, BufferHelper.ANNEXB_START_MARK, 4),
+					NalUnitScanner.findStartCode4(data, offset, data.length));
+			}
+		}
+	}
+
+	/**
+	 * 1080p/4KのIDRフレーム相当のデータのNALユニットを列挙する時間を比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		final Random random = new Random(2);
+		final String[] names = {"1080p IDR", "4K IDR"};
+		final int[] sizes = {300 * 1024, 1200 * 1024};
+		final int[] slices = {4, 8};
+		for (int k = 0; k < names.length; k++) {
+			final byte[] frame = createIdrFrame(random, sizes[k], slices[k]);
+			final ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+			direct.put(frame).flip();
+			final int numNals = slices[k] + 2;
+			// ウオームアップ
+			legacy(direct, numNals);
+			scan(direct, numNals);
+			scan(frame, numNals);
+			final long legacy = legacy(direct, numNals);
+			final long bytes = scan(frame, numNals);
+			final long buffer = scan(direct, numNals);
+			System.out.printf("%s(%,d bytes, %d NALs):legacy(copy+findAnnexB)=%,dus, "
+				+ "NalUnitScanner(byte[])=%,dus, NalUnitScanner(direct)=%,dus%n",
+				names[k], frame.length, numNals, legacy, bytes, buffer);
+		}
+	}
+
+	private static void check(final NalUnitScanner scanner, final int[][] expected, final int base) {
+		for (final int[] e: expected) {
+			assertTrue(scanner.next());
+			assertEquals(base + e[0], scanner.getStartCodeOffset());
+			assertEquals(base + e[1], scanner.getOffset());
+			assertEquals(e[2], scanner.getLength());
+			assertEquals(e[3], scanner.getNalType());
+		}
+		assertFalse(scanner.next());
+		assertEquals(-1, scanner.getOffset());
+	}
+
+	private static int naiveFind(final byte[] data, final int offset) {
+		for (int i = offset; i + 2 < data.length; i++) {
+			if ((data[i] == 0) && (data[i + 1] == 0) && (data[i + 2] == 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 以前と同じようにbyte[]へコピーしてからBufferHelper#findAnnexBの以前の実装で列挙する
+	 * @return 1回あたりの時間[マイクロ秒]
+	 */
+	private static long legacy(final ByteBuffer frame, final int numNals) {
+		final long start = System.nanoTime();
+		for (int loop = 0; loop < NUM_LOOPS; loop++) {
+			final byte[] tmp = new byte[frame.remaining()];
+			frame.duplicate().get(tmp);
+			int n = 0;
+			for (int ix = legacyFindAnnexB(tmp, 0); ix >= 0; ix = legacyFindAnnexB(tmp, ix + 3)) {
+				n++;
+			}
+			assertEquals(numNals, n);
+		}
+		return (System.nanoTime() - start) / NUM_LOOPS / 1000;
+	}
+
+	/**
+	 * @return 1回あたりの時間[マイクロ秒]
+	 */
+	private static long scan(final byte[] frame, final int numNals) {
+		final NalUnitScanner scanner = new NalUnitScanner();
+		final long start = System.nanoTime();
+		for (int loop = 0; loop < NUM_LOOPS; loop++) {
+			scanner.reset(frame, 0, frame.length);
+			int n = 0;
+			while (scanner.next()) {
+				n++;
+			}
+			assertEquals(numNals, n);
+		}
+		return (System.nanoTime() - start) / NUM_LOOPS / 1000;
+	}
+
+	/**
+	 * @return 1回あたりの時間[マイクロ秒]
+	 */
+	private static long scan(final ByteBuffer frame, final int numNals) {
+		final NalUnitScanner scanner = new NalUnitScanner();
+		final long start = System.nanoTime();
+		for (int loop = 0; loop < NUM_LOOPS; loop++) {
+			scanner.reset(frame);
+			int n = 0;
+			while (scanner.next()) {
+				n++;
+			}
+			assertEquals(numNals, n);
+		}
+		return (System.nanoTime() - start) / NUM_LOOPS / 1000;
+	}
+
+	/**
+	 * SPS/PPS(4バイトのスタートコード)とスライス(先頭以外は3バイトのスタートコード)から成る
+	 * IDRフレーム相当のデータを生成する
+	 * ペイロードはエミュレーション防止バイトを挿入した乱数
+	 */
+	private static byte[] createIdrFrame(final Random random, final int size, final int slices) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+		out.write(0); out.write(0); out.write(0); out.write(1);
+		writePayload(out, random, 0x67, 16);
+		out.write(0); out.write(0); out.write(0); out.write(1);
+		writePayload(out, random, 0x68, 4);
+		for (int i = 0; i < slices; i++) {
+			if (i == 0) {
+				out.write(0);
+			}
+			out.write(0); out.write(0); out.write(1);
+			writePayload(out, random, 0x65, size / slices);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writePayload(final ByteArrayOutputStream out,
+		final Random random, final int header, final int length) {
+
+		out.write(header);
+		int zeros = 0;
+		for (int i = 1; i < length; i++) {
+			int b = random.nextInt(256);
+			if (i == length - 1) {
+				// rbsp_trailing_bits
+				b |= 1;
+			}
+			if ((zeros >= 2) && (b <= 3)) {
+				// エミュレーション防止バイト
+				out.write(3);
+				zeros = 0;
+			}
+			out.write(b);
+			zeros = b == 0 ? zeros + 1 : 0;
+		}
+	}
+
+	/**
+	 * 比較用の以前のBufferHelper#findAnnexB
+	 */
+	private static int legacyFindAnnexB(final byte[] data, final int offset) {
+		final int len5 = data.length - 5;
+		for (int i = offset; i < len5; i++) {
+			if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
+				continue;
+			}
+			if (data[i+3] == 0x01) {
+				return i;
+			}
+		}
+		final int len4 = data.length - 4;
+		for (int i = offset; i < len4; i++) {
+			if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
+				continue;
+			}
+			if (data[i+2] == 0x01) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,315 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.LockFreePool;
+import com.serenegiant.utils.IPool;
+import com.serenegiant.utils.Pool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static org.junit.Assert.*;
+
+/**
+ * com.serenegiant.utils.LockFreePool用のローカルユニットテストクラス
+ * IPool型として使った時にPoolと同じ結果になることと、
+ * 競合時にオブジェクトが重複して取り出されないことを確認する
+ * Poolとの競合時のスループット比較も行う(結果は標準出力へ出力するだけ)
+ */
+public class PoolUnitTests {
+
+	private static final int NUM_THREADS = 4;
+	private static final int NUM_LOOPS = 200000;
+
+	private static class Item {
+		/**
+		 * obtainしてからrecycleするまでtrue
+		 */
+		private final AtomicBoolean inUse = new AtomicBoolean();
+	}
+
+	/**
+	 * 最大生成数と最大保持数のカウントがPoolと同じであることを確認
+	 */
+	@Test
+	public void limitAccounting() {
+		final LockFreePool<Item> pool = new LockFreePool<Item>(2, 4, 6, 0, null) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		assertEquals(2, pool.getNumInPool());
+		final Item[] items = new Item[6];
+		for (int i = 0; i < 6; i++) {
+			items[i] = pool.obtain();
+			assertNotNull(items[i]);
+		}
+		assertNull(pool.obtain());	// 最大生成数を超えるとnull
+		for (int i = 0; i < 4; i++) {
+			assertTrue(pool.recycle(items[i]));
+		}
+		assertFalse(pool.recycle(items[4]));	// 最大保持数を超えるとfalse
+		assertEquals(4, pool.getNumInPool());
+		assertEquals(5, pool.getNumCreated());
+		assertNotNull(pool.obtain());
+		assertEquals(3, pool.getNumInPool());
+		pool.clear();
+		assertEquals(0, pool.getNumInPool());
+		assertEquals(0, pool.getNumCreated());
+	}
+
+	/**
+	 * 待機するobtainが他のスレッドからの返却で起床することを確認
+	 */
+	@Test
+	public void blockingObtain() throws InterruptedException {
+		final LockFreePool<Item> pool = new LockFreePool<Item>(1, 1) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		final Item item = pool.obtain();
+		assertNotNull(item);
+		assertNull(pool.obtain(10, TimeUnit.MILLISECONDS));	// タイムアウト
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (final InterruptedException e) {
+					// ignore
+				}
+				pool.recycle(item);
+			}
+		});
+		thread.start();
+		assertSame(item, pool.obtain(5, TimeUnit.SECONDS));
+		thread.join();
+	}
+
+	/**
+	 * IPool型として同じ操作をした時にPoolと同じ結果になることを確認
+	 */
+	@Test
+	public void poolContract() {
+		final List<String> expected = exercise(new Pool<Item>(2, 4, 6, (Object[])null) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		});
+		final List<String> actual = exercise(new LockFreePool<Item>(2, 4, 6, (Object[])null) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		});
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * Poolに対してobtain/recycle/clear/initを行い、それぞれの結果を記録する
+	 * @param pool
+	 * @return
+	 */
+	private static List<String> exercise(@NonNull final IPool<Item> pool) {
+		final List<String> result = new ArrayList<>();
+		final List<Item> items = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			final Item item = pool.obtain();
+			result.add("obtain:" + (item != null));
+			if (item != null) {
+				items.add(item);
+			}
+		}
+		for (final Item item: items) {
+			result.add("recycle:" + pool.recycle(item));
+		}
+		items.clear();
+		for (int i = 0; i < 7; i++) {
+			final Item item = pool.obtain();
+			result.add("obtain:" + (item != null));
+			if (item != null) {
+				items.add(item);
+			}
+		}
+		pool.recycle(items);
+		pool.clear();
+		for (int i = 0; i < 7; i++) {
+			result.add("obtain after clear:" + (pool.obtain() != null));
+		}
+		pool.init();
+		for (int i = 0; i < 7; i++) {
+			result.add("obtain after init:" + (pool.obtain() != null));
+		}
+		return result;
+	}
+
+	/**
+	 * 複数スレッドから同時にobtain/recycleしたときにオブジェクトが重複せず、
+	 * 最大生成数を超えないことをPoolと比較しながら確認
+	 */
+	@Test
+	public void contended() throws InterruptedException {
+		final Pool<Item> pool = new Pool<Item>(8, 8) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		final AtomicInteger lockFreeCreated = new AtomicInteger();
+		final LockFreePool<Item> lockFreePool = new LockFreePool<Item>(8, 8) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				lockFreeCreated.incrementAndGet();
+				return new Item();
+			}
+		};
+		final LockFreePool<Item> magazinePool = new LockFreePool<Item>(8, 8, 8, 2, null) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		for (final IPool<Item> p: Arrays.<IPool<Item>>asList(pool, lockFreePool, magazinePool)) {
+			assertEquals(0, run(p, NUM_THREADS, NUM_LOOPS));
+		}
+		// 返却時に捨てていないので初期数以上は生成しない
+		assertEquals(8, lockFreeCreated.get());
+		assertTrue(lockFreePool.getNumCreated() <= 8);
+		assertTrue(magazinePool.getNumCreated() <= 8);
+		assertEquals(8, lockFreePool.getNumInPool());
+	}
+
+	/**
+	 * 競合時のobtain/recycleのスループットをPool, LockFreePool,
+	 * LockFreePool(マガジンあり)で比較する
+	 */
+	@Test
+	public void throughput() throws InterruptedException {
+		final Pool<Item> pool = new Pool<Item>(16, 16) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		final LockFreePool<Item> lockFreePool = new LockFreePool<Item>(16, 16) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		final LockFreePool<Item> magazinePool = new LockFreePool<Item>(16, 16, 16, 4, null) {
+			@NonNull
+			@Override
+			protected Item createObject(@Nullable final Object... args) {
+				return new Item();
+			}
+		};
+		// ウォームアップ
+		run(pool, NUM_THREADS, NUM_LOOPS / 10);
+		run(lockFreePool, NUM_THREADS, NUM_LOOPS / 10);
+		run(magazinePool, NUM_THREADS, NUM_LOOPS / 10);
+
+		final long poolNs = measure(pool);
+		final long lockFreeNs = measure(lockFreePool);
+		final long magazineNs = measure(magazinePool);
+		final long ops = (long)NUM_THREADS * NUM_LOOPS;
+		System.out.printf("Pool:%,d ops/s, LockFreePool:%,d ops/s, LockFreePool(magazine):%,d ops/s%n",
+			ops * 1000000000L / Math.max(poolNs, 1),
+			ops * 1000000000L / Math.max(lockFreeNs, 1),
+			ops * 1000000000L / Math.max(magazineNs, 1));
+	}
+
+	/**
+	 * 指定したプールでNUM_THREADSスレッドから同時にobtain/recycleを
+	 * NUM_LOOPS回ずつ繰り返した時の経過時間を計測する
+	 * @param pool
+	 * @return 経過時間[ナノ秒]
+	 */
+	private static long measure(@NonNull final IPool<Item> pool) throws InterruptedException {
+		final long start = System.nanoTime();
+		assertEquals(0, run(pool, NUM_THREADS, NUM_LOOPS));
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * 指定したスレッド数で同時にobtain/recycleを繰り返す
+	 * @param pool
+	 * @param numThreads
+	 * @param numLoops
+	 * @return 他のスレッドが使用中のオブジェクトを取得した回数
+	 */
+	private static int run(@NonNull final IPool<Item> pool,
+		final int numThreads, final int numLoops) throws InterruptedException {
+
+		final AtomicInteger errors = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finish = new CountDownLatch(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < numLoops; j++) {
+							final Item item = pool.obtain();
+							if (item != null) {
+								if (!item.inUse.compareAndSet(false, true)) {
+									errors.incrementAndGet();
+								}
+								item.inUse.set(false);
+								pool.recycle(item);
+							}
+						}
+					} catch (final InterruptedException e) {
+						// ignore
+					} finally {
+						finish.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		finish.await();
+		return errors.get();
+	}
+}
@@ -0,0 +1,542 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.serenegiant.media.IMuxer;
+import com.serenegiant.media.PreRollBuffer;
+import com.serenegiant.media.PreRollMuxer;
+import com.serenegiant.media.SegmentedMuxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * PreRollBuffer/PreRollMuxer用のローカルユニットテストクラス
+ * 動画(30fps, 1秒毎にキーフレーム)と音声の合成したサンプルを追加して、
+ * 保持しているサンプルが常にキーフレームから始まり、保持時間とバイト数の上限を守っていて、
+ * 書き出したサンプルの内容が追加したサンプルと一致することを確認する
+ */
+public class PreRollUnitTests {
+
+	private static final int FRAME_RATE = 30;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int SAMPLE_RATE = 48000;
+	private static final long GOP_US = KEY_FRAME_INTERVAL * 1000000L / FRAME_RATE;
+
+	/**
+	 * 保持時間で古いサンプルを破棄した時も直前のキーフレームから保持していることを確認
+	 */
+	@Test
+	public void duration() throws Exception {
+		final long durationUs = 3000000L;
+		final PreRollBuffer buffer = new PreRollBuffer(durationUs, 16 * 1024 * 1024);
+		assertEquals(0, buffer.addTrack(true));
+		assertEquals(1, buffer.addTrack(false));
+		final Generator generator = new Generator(0);
+		final List<Sample> added = new ArrayList<>();
+		while (generator.ptsUs() < 10000000L) {
+			final Sample sample = generator.next();
+			if (buffer.add(sample.track, sample.wrap(), sample.info())) {
+				added.add(sample);
+			}
+			final long latest = sample.ptsUs;
+			final long oldest = buffer.getOldestPtsUs();
+			assertEquals(0, oldest % GOP_US);
+			if (latest >= durationUs) {
+				// 保持時間分は残っていて、直前のキーフレームより前は破棄されている
+				assertTrue(latest - oldest >= durationUs);
+				assertTrue(latest - oldest < durationUs + GOP_US);
+			}
+		}
+		final Recording recording = new Recording();
+		recording.start();
+		assertEquals(buffer.getCount(), buffer.writeTo(recording, null));
+		final List<Sample> expected = added.subList(added.size() - buffer.getCount(), added.size());
+		assertSamples(expected, recording.samples);
+		assertEquals(0, recording.samples.get(0).track);
+		assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, recording.samples.get(0).flags);
+		// 書き出しても保持しているサンプルは破棄しない
+		assertEquals(expected.size(), buffer.getCount());
+	}
+
+	/**
+	 * アリーナのサイズで古いサンプルを破棄した時もキーフレームから保持していて、
+	 * 折り返した後もサンプルの内容が壊れていないことを確認
+	 */
+	@Test
+	public void capacity() throws Exception {
+		final int capacity = 100 * 1024;
+		final PreRollBuffer buffer = new PreRollBuffer(10000000L, capacity);
+		buffer.addTrack(true);
+		buffer.addTrack(false);
+		final Generator generator = new Generator(0);
+		final List<Sample> added = new ArrayList<>();
+		while (generator.ptsUs() < 20000000L) {
+			final Sample sample = generator.next();
+			if (buffer.add(sample.track, sample.wrap(), sample.info())) {
+				added.add(sample);
+			}
+			assertTrue(buffer.getBytes() <= capacity);
+			if (buffer.getCount() > 0) {
+				assertEquals(0, buffer.getOldestPtsUs() % GOP_US);
+			}
+		}
+		// 1GOPは約52KBなので2GOP分より短くなる
+		assertTrue(buffer.getDurationUs() < 2 * GOP_US);
+		final Recording recording = new Recording();
+		recording.start();
+		buffer.writeTo(recording, null);
+		assertSamples(added.subList(added.size() - buffer.getCount(), added.size()), recording.samples);
+	}
+
+	/**
+	 * 1GOPがアリーナより大きい時は次のキーフレームまで追加しないことを確認
+	 */
+	@Test
+	public void overflow() throws Exception {
+		final PreRollBuffer buffer = new PreRollBuffer(10000000L, 20 * 1024);
+		buffer.addTrack(true);
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		final ByteBuffer data = ByteBuffer.allocate(1500);
+		for (int i = 0; i < 100; i++) {
+			final boolean isKeyFrame = i % KEY_FRAME_INTERVAL == 0;
+			info.offset = 0;
+			info.size = data.capacity();
+			info.presentationTimeUs = i * 1000000L / FRAME_RATE;
+			info.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+			final boolean added = buffer.add(0, data, info);
+			// 13フレームで一杯になるので各GOPの14フレーム目以降は追加できない
+			assertEquals(i % KEY_FRAME_INTERVAL < 13, added);
+			if (buffer.getCount() > 0) {
+				assertEquals(0, buffer.getOldestPtsUs() % GOP_US);
+			}
+		}
+		// コーデック設定データとアリーナより大きいサンプルは追加しない
+		info.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+		assertFalse(buffer.add(0, data, info));
+		info.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+		info.size = 30 * 1024;
+		assertFalse(buffer.add(0, ByteBuffer.allocate(info.size), info));
+		assertEquals(0, buffer.getCount());
+	}
+
+	/**
+	 * PreRollMuxerで出力を開始した時に直前のキーフレームからのサンプルと
+	 * その後のサンプルが抜けや重複なく書き込まれることを確認
+	 */
+	@Test
+	public void muxer() throws Exception {
+		final PreRollMuxer muxer = new PreRollMuxer(2000000L, 4 * 1024 * 1024);
+		final SegmentedMuxer.TrackInitializer initializer = new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer m) {
+				return m.addTrack(null);
+			}
+		};
+		assertEquals(0, muxer.addTrack(true, initializer));
+		assertEquals(1, muxer.addTrack(false, initializer));
+		muxer.start();
+		final Generator generator = new Generator(0);
+		final List<Sample> written = new ArrayList<>();
+		while (generator.ptsUs() < 10500000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		final Recording first = new Recording();
+		muxer.startOutput(first);
+		assertTrue(muxer.isOutputting());
+		while (generator.ptsUs() < 15000000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		muxer.stopOutput();
+		assertFalse(muxer.isOutputting());
+		assertTrue(first.started && first.stopped && first.released);
+		// 10.5秒の2秒前より前の直前のキーフレーム(8秒)から15秒まで
+		assertEquals(8000000L, first.samples.get(0).ptsUs);
+		assertSamples(written.subList(indexOf(written, 8000000L), written.size()), first.samples);
+
+		// 出力中も保持を続けているので続けて出力できる
+		final Recording second = new Recording();
+		muxer.startOutput(second);
+		muxer.stopOutput();
+		assertEquals(12000000L, second.samples.get(0).ptsUs);
+		assertSamples(written.subList(indexOf(written, 12000000L), written.size()), second.samples);
+		muxer.release();
+		assertFalse(muxer.isStarted());
+	}
+
+	/**
+	 * #startOutputで保持しているサンプルを書き込んでいる間もサンプルを追加でき、
+	 * その間に追加したサンプルも抜けや重複なく書き込まれることを確認
+	 */
+	@Test(timeout = 10000)
+	public void writeWhileFlushing() throws Exception {
+		final PreRollMuxer muxer = new PreRollMuxer(2000000L, 4 * 1024 * 1024);
+		final SegmentedMuxer.TrackInitializer initializer = new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer m) {
+				return m.addTrack(null);
+			}
+		};
+		muxer.addTrack(true, initializer);
+		muxer.addTrack(false, initializer);
+		muxer.start();
+		final Generator generator = new Generator(0);
+		final List<Sample> written = new ArrayList<>();
+		while (generator.ptsUs() < 10500000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		final Recording output = new Recording() {
+			@Override
+			public void writeSampleData(final int trackIndex,
+				@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+				if (flushing.getCount() > 0) {
+					// 最初のサンプルを書き込む時に止めておく
+					flushing.countDown();
+					try {
+						resume.await();
+					} catch (final InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				super.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			}
+		};
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				muxer.startOutput(output);
+			}
+		});
+		thread.start();
+		assertTrue(flushing.await(5, TimeUnit.SECONDS));
+		// 書き込み中でもブロックされない
+		while (generator.ptsUs() < 12000000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		resume.countDown();
+		thread.join();
+		assertTrue(muxer.isOutputting());
+		while (generator.ptsUs() < 13000000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		muxer.stopOutput();
+		assertEquals(8000000L, output.samples.get(0).ptsUs);
+		assertSamples(written.subList(indexOf(written, 8000000L), written.size()), output.samples);
+		// 書き込み中に追加したサンプルもPreRollBufferに保持されている
+		final Recording second = new Recording();
+		muxer.startOutput(second);
+		muxer.stopOutput();
+		final long firstPtsUs = second.samples.get(0).ptsUs;
+		assertTrue(firstPtsUs <= 10500000L);
+		assertSamples(written.subList(indexOf(written, firstPtsUs), written.size()), second.samples);
+		muxer.release();
+	}
+
+	/**
+	 * #startOutputで書き込み中に受け取ったサンプルが上限を超えた時は破棄して、
+	 * 書き込み終了後に動画はキーフレームから再開することを確認
+	 */
+	@Test(timeout = 10000)
+	public void dropWhileFlushing() throws Exception {
+		final int maxPendingBytes = 32 * 1024;
+		final PreRollMuxer muxer = new PreRollMuxer(2000000L, 4 * 1024 * 1024, maxPendingBytes);
+		final SegmentedMuxer.TrackInitializer initializer = new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer m) {
+				return m.addTrack(null);
+			}
+		};
+		muxer.addTrack(true, initializer);
+		muxer.addTrack(false, initializer);
+		muxer.start();
+		final Generator generator = new Generator(0);
+		final List<Sample> written = new ArrayList<>();
+		while (generator.ptsUs() < 10500000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch resume = new CountDownLatch(1);
+		final Recording output = new Recording() {
+			@Override
+			public void writeSampleData(final int trackIndex,
+				@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+				if (flushing.getCount() > 0) {
+					flushing.countDown();
+					try {
+						resume.await();
+					} catch (final InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				super.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			}
+		};
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				muxer.startOutput(output);
+			}
+		});
+		thread.start();
+		assertTrue(flushing.await(5, TimeUnit.SECONDS));
+		// 上限を超える量のサンプルを書き込み中に追加する
+		int pendingBytes = 0;
+		final int start = written.size();
+		while (generator.ptsUs() < 12500000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+			pendingBytes += sample.data.length;
+		}
+		assertTrue(pendingBytes > maxPendingBytes);
+		resume.countDown();
+		thread.join();
+		final int resumed = written.size();
+		while (generator.ptsUs() < 14000000L) {
+			final Sample sample = generator.next();
+			muxer.writeSampleData(sample.track, sample.wrap(), sample.info());
+			written.add(sample);
+		}
+		muxer.stopOutput();
+		// 書き込み中に追加したサンプルは上限までしか出力されない
+		final List<Sample> expected = written.subList(indexOf(written, 8000000L), written.size());
+		assertTrue(output.samples.size() < expected.size());
+		int queued = 0;
+		for (final Sample sample: output.samples) {
+			final int ix = written.indexOf(find(written, sample));
+			if ((ix >= start) && (ix < resumed)) {
+				queued += sample.data.length;
+			}
+		}
+		assertTrue(queued <= maxPendingBytes);
+		// 出力されたサンプルは順番通りで、破棄した後の動画はキーフレームから始まる
+		final boolean[] skipped = new boolean[2];
+		int ix = 0;
+		for (final Sample sample: output.samples) {
+			while ((ix < expected.size()) && (find(expected.subList(ix, ix + 1), sample) == null)) {
+				skipped[expected.get(ix).track] = true;
+				ix++;
+			}
+			assertTrue(ix < expected.size());
+			assertArrayEquals(expected.get(ix).data, sample.data);
+			if (skipped[sample.track] && (sample.track == 0)) {
+				assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, sample.flags);
+			}
+			skipped[sample.track] = false;
+			ix++;
+		}
+		// 最後に追加したサンプルまで出力されている
+		assertEquals(expected.size(), ix);
+		muxer.release();
+	}
+
+//--------------------------------------------------------------------------------
+	private static class Sample {
+		private final int track;
+		private final long ptsUs;
+		private final int flags;
+		private final byte[] data;
+
+		private Sample(final int track, final long ptsUs, final int flags, final byte[] data) {
+			this.track = track;
+			this.ptsUs = ptsUs;
+			this.flags = flags;
+			this.data = data;
+		}
+
+		/**
+		 * offsetが0以外になるようにサンプルの前後に余分なデータを付けたByteBufferを生成
+		 * @return
+		 */
+		private ByteBuffer wrap() {
+			final ByteBuffer result = ByteBuffer.allocate(data.length + 16);
+			result.position(7);
+			result.put(data);
+			result.flip();
+			return result;
+		}
+
+		private MediaCodec.BufferInfo info() {
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			info.offset = 7;
+			info.size = data.length;
+			info.presentationTimeUs = ptsUs;
+			info.flags = flags;
+			return info;
+		}
+	}
+
+	/**
+	 * 動画(キーフレームは6000バイト, それ以外は1200〜1300バイト)と
+	 * 音声(AAC 1024サンプル/フレーム, 200バイト)のサンプルをpresentationTimeUsの順に生成する
+	 */
+	private static class Generator {
+		private int videoFrames;
+		private int audioFrames;
+		private int seq;
+
+		private Generator(final int seq) {
+			this.seq = seq;
+		}
+
+		private long videoPtsUs() {
+			return videoFrames * 1000000L / FRAME_RATE;
+		}
+
+		private long audioPtsUs() {
+			return audioFrames * 1024L * 1000000L / SAMPLE_RATE;
+		}
+
+		private long ptsUs() {
+			return Math.min(videoPtsUs(), audioPtsUs());
+		}
+
+		private Sample next() {
+			final Sample result;
+			if (videoPtsUs() <= audioPtsUs()) {
+				final boolean isKeyFrame = videoFrames % KEY_FRAME_INTERVAL == 0;
+				result = new Sample(0, videoPtsUs(), isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0,
+					data(isKeyFrame ? 6000 : 1200 + videoFrames % 100));
+				videoFrames++;
+			} else {
+				result = new Sample(1, audioPtsUs(), 0, data(200));
+				audioFrames++;
+			}
+			return result;
+		}
+
+		private byte[] data(final int size) {
+			final byte[] result = new byte[size];
+			for (int i = 0; i < size; i++) {
+				result[i] = (byte)(seq + i);
+			}
+			seq++;
+			return result;
+		}
+	}
+
+	private static int indexOf(final List<Sample> samples, final long ptsUs) {
+		for (int i = 0; i < samples.size(); i++) {
+			final Sample sample = samples.get(i);
+			if ((sample.track == 0) && (sample.ptsUs == ptsUs)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static Sample find(final List<Sample> samples, final Sample sample) {
+		for (final Sample s: samples) {
+			if ((s.track == sample.track) && (s.ptsUs == sample.ptsUs)) {
+				return s;
+			}
+		}
+		return null;
+	}
+
+	private static void assertSamples(final List<Sample> expected, final List<Sample> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			final Sample e = expected.get(i);
+			final Sample a = actual.get(i);
+			assertEquals(e.track, a.track);
+			assertEquals(e.ptsUs, a.ptsUs);
+			assertEquals(e.flags, a.flags);
+			assertArrayEquals(e.data, a.data);
+		}
+	}
+
+	/**
+	 * 書き込まれたサンプルを記録するだけのIMuxer
+	 */
+	private static class Recording implements IMuxer {
+		private final List<Sample> samples = new ArrayList<>();
+		private int numTracks;
+		private boolean started;
+		private boolean stopped;
+		private boolean released;
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			assertFalse(started);
+			return numTracks++;
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex,
+			@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+			assertTrue(started);
+			final byte[] data = new byte[bufferInfo.size];
+			final ByteBuffer buf = byteBuf.duplicate();
+			buf.clear();
+			buf.position(bufferInfo.offset);
+			buf.get(data);
+			samples.add(new Sample(trackIndex, bufferInfo.presentationTimeUs, bufferInfo.flags, data));
+		}
+
+		@Override
+		public void start() {
+			started = true;
+		}
+
+		@Override
+		public void stop() {
+			stopped = true;
+		}
+
+		@Override
+		public void release() {
+			released = true;
+		}
+
+		@Override
+		public boolean isStarted() {
+			return started && !stopped;
+		}
+	}
+}
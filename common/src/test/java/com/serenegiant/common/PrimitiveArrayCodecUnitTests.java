@@ -0,0 +1,283 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.ArrayUtils;
+import com.serenegiant.utils.PrimitiveArrayCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PrimitiveArrayCodec/ArrayUtils用のローカルユニットテストクラス
+ * 配列サイズ毎のfloat[]⇔byte[]の往復変換の時間を以前の1要素ずつの変換と比較して
+ * 標準出力へ出力する(結果は標準出力へ出力するだけ)
+ */
+public class PrimitiveArrayCodecUnitTests {
+
+	private static final int[] SIZES = {16, 256, 4096, 65536, 1048576};
+	private static final int TOTAL_ELEMENTS = 8 * 1048576;
+
+	/**
+	 * ArrayUtilsの変換結果が以前の1要素ずつの変換と同じことを確認
+	 */
+	@Test
+	public void compatibility() throws Exception {
+		final Random random = new Random(1);
+		final float[] floats = new float[1001];
+		final int[] ints = new int[1001];
+		for (int i = 0; i < floats.length; i++) {
+			floats[i] = random.nextFloat() * 1000 - 500;
+			ints[i] = random.nextInt();
+		}
+		final byte[] bytes = legacyFloatArrayToByteArray(floats, 1, 999);
+		assertArrayEquals(bytes, ArrayUtils.floatArrayToByteArray(floats, 1, 999));
+		assertArrayEquals(Arrays.copyOfRange(floats, 1, 1000), ArrayUtils.byteArrayToFloatArray(bytes), 0.0f);
+		final byte[] intBytes = ArrayUtils.intArrayToByteArray(ints, 0, ints.length);
+		final ByteBuffer buf = ByteBuffer.wrap(intBytes).order(ByteOrder.nativeOrder());
+		for (final int v: ints) {
+			assertEquals(v, buf.getInt());
+		}
+		// 要素のサイズに満たない末尾のバイトは無視する
+		assertArrayEquals(ints, ArrayUtils.byteArrayToIntArray(Arrays.copyOf(intBytes, intBytes.length + 3)));
+		assertNull(ArrayUtils.byteArrayToLongArray(new byte[7]));
+		assertNull(ArrayUtils.byteArrayToShortArray(null));
+	}
+
+	/**
+	 * バイトオーダー毎に全ての型で往復変換できることを確認
+	 */
+	@Test
+	public void roundTrip() throws Exception {
+		final Random random = new Random(2);
+		final int num = 100;
+		final short[] shorts = new short[num];
+		final int[] ints = new int[num];
+		final long[] longs = new long[num];
+		final float[] floats = new float[num];
+		final double[] doubles = new double[num];
+		for (int i = 0; i < num; i++) {
+			shorts[i] = (short)random.nextInt();
+			ints[i] = random.nextInt();
+			longs[i] = random.nextLong();
+			floats[i] = random.nextFloat();
+			doubles[i] = random.nextDouble();
+		}
+		// 変換先は使い回す
+		final byte[] bytes = new byte[num * PrimitiveArrayCodec.BYTES_LONG + 8];
+		final short[] shorts2 = new short[num + 1];
+		final int[] ints2 = new int[num + 1];
+		final long[] longs2 = new long[num + 1];
+		final float[] floats2 = new float[num + 1];
+		final double[] doubles2 = new double[num + 1];
+		for (final ByteOrder order: new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+			int len = PrimitiveArrayCodec.encode(shorts, 0, num, bytes, 8, order);
+			assertEquals(num * 2, len);
+			assertEquals(num, PrimitiveArrayCodec.decode(bytes, 8, len, order, shorts2, 1));
+			assertArrayEquals(shorts, Arrays.copyOfRange(shorts2, 1, num + 1));
+			len = PrimitiveArrayCodec.encode(ints, 0, num, bytes, 8, order);
+			assertEquals(order == ByteOrder.BIG_ENDIAN ? (byte)(ints[0] >>> 24) : (byte)ints[0], bytes[8]);
+			assertEquals(num, PrimitiveArrayCodec.decode(bytes, 8, len, order, ints2, 1));
+			assertArrayEquals(ints, Arrays.copyOfRange(ints2, 1, num + 1));
+			len = PrimitiveArrayCodec.encode(longs, 0, num, bytes, 8, order);
+			assertEquals(num, PrimitiveArrayCodec.decode(bytes, 8, len, order, longs2, 1));
+			assertArrayEquals(longs, Arrays.copyOfRange(longs2, 1, num + 1));
+			len = PrimitiveArrayCodec.encode(floats, 0, num, bytes, 8, order);
+			assertEquals(num, PrimitiveArrayCodec.decode(bytes, 8, len, order, floats2, 1));
+			assertArrayEquals(floats, Arrays.copyOfRange(floats2, 1, num + 1), 0.0f);
+			len = PrimitiveArrayCodec.encode(doubles, 0, num, bytes, 8, order);
+			assertEquals(num, PrimitiveArrayCodec.decode(bytes, 8, len, order, doubles2, 1));
+			assertArrayEquals(doubles, Arrays.copyOfRange(doubles2, 1, num + 1), 0.0);
+		}
+		try {
+			PrimitiveArrayCodec.encode(longs, 0, num, bytes, 16, ByteOrder.BIG_ENDIAN);
+			fail("should throw IndexOutOfBoundsException");
+		} catch (final IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * ByteBufferのpositionから書き込み/読み込みしてpositionを進め、
+	 * ByteBufferのバイトオーダーで1要素ずつの変換と同じ結果になることを確認
+	 */
+	@Test
+	public void byteBuffer() throws Exception {
+		final int[] ints = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE};
+		final long[] longs = {0L, -1L, Long.MAX_VALUE, Long.MIN_VALUE};
+		final float[] floats = {0.0f, -1.5f, Float.MAX_VALUE};
+		final double[] doubles = {0.0, -1.5, Double.MAX_VALUE};
+		for (final ByteOrder order: new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+			final ByteBuffer buf = ByteBuffer.allocateDirect(256).order(order);
+			final ByteBuffer expected = ByteBuffer.allocate(256).order(order);
+			buf.put((byte)1);
+			expected.put((byte)1);
+			assertEquals(ints.length * 4, PrimitiveArrayCodec.encode(ints, buf));
+			for (final int v: ints) expected.putInt(v);
+			assertEquals(longs.length * 8, PrimitiveArrayCodec.encode(longs, buf));
+			for (final long v: longs) expected.putLong(v);
+			assertEquals(floats.length * 4, PrimitiveArrayCodec.encode(floats, buf));
+			for (final float v: floats) expected.putFloat(v);
+			assertEquals(doubles.length * 8, PrimitiveArrayCodec.encode(doubles, buf));
+			for (final double v: doubles) expected.putDouble(v);
+			assertEquals(expected.position(), buf.position());
+			buf.flip();
+			expected.flip();
+			assertEquals(expected, buf);
+			assertEquals(1, buf.get());
+			final int[] ints2 = new int[ints.length];
+			final long[] longs2 = new long[longs.length];
+			final float[] floats2 = new float[floats.length];
+			final double[] doubles2 = new double[doubles.length];
+			assertEquals(ints.length, PrimitiveArrayCodec.decode(buf, ints2));
+			assertEquals(longs.length, PrimitiveArrayCodec.decode(buf, longs2));
+			assertEquals(floats.length, PrimitiveArrayCodec.decode(buf, floats2));
+			assertEquals(doubles.length, PrimitiveArrayCodec.decode(buf, doubles2));
+			assertFalse(buf.hasRemaining());
+			assertArrayEquals(ints, ints2);
+			assertArrayEquals(longs, longs2);
+			assertArrayEquals(floats, floats2, 0.0f);
+			assertArrayEquals(doubles, doubles2, 0.0);
+		}
+	}
+
+	/**
+	 * 差分+ZigZag+varintのコンパクト形式で往復変換できることを確認
+	 */
+	@Test
+	public void compact() throws Exception {
+		final int[] ints = {0, 1, -1, 100, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 12345678, -12345678};
+		byte[] bytes = ArrayUtils.intArrayToCompactByteArray(ints, 0, ints.length);
+		assertEquals(ints.length, PrimitiveArrayCodec.countCompact(bytes, 0, bytes.length));
+		assertArrayEquals(ints, ArrayUtils.compactByteArrayToIntArray(bytes));
+		final long[] longs = {0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE, 0, 1234567890123L, -1234567890123L};
+		bytes = ArrayUtils.longArrayToCompactByteArray(longs, 0, longs.length);
+		assertArrayEquals(longs, ArrayUtils.compactByteArrayToLongArray(bytes));
+		// 単調増加するタイムスタンプは固定長よりずっと小さくなる
+		final long[] timestamps = new long[10000];
+		final Random random = new Random(3);
+		long t = 1600000000000000L;
+		for (int i = 0; i < timestamps.length; i++) {
+			t += 33333 + random.nextInt(100);
+			timestamps[i] = t;
+		}
+		bytes = ArrayUtils.longArrayToCompactByteArray(timestamps, 0, timestamps.length);
+		assertArrayEquals(timestamps, ArrayUtils.compactByteArrayToLongArray(bytes));
+		assertTrue(bytes.length < timestamps.length * 4);
+		System.out.printf("compact:%,d timestamps=%,d bytes(fixed %,d bytes)%n",
+			timestamps.length, bytes.length, timestamps.length * PrimitiveArrayCodec.BYTES_LONG);
+		// 途中で切れている時
+		try {
+			ArrayUtils.compactByteArrayToLongArray(Arrays.copyOf(bytes, bytes.length - 1));
+			fail("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * 配列サイズ毎のfloat[]⇔byte[]の往復変換の時間を比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		final Random random = new Random(4);
+		for (final int size: SIZES) {
+			final float[] src = new float[size];
+			for (int i = 0; i < size; i++) {
+				src[i] = random.nextFloat();
+			}
+			final int loops = Math.max(1, TOTAL_ELEMENTS / size);
+			// ウオームアップ
+			legacy(src, loops);
+			bulk(src, loops);
+			reused(src, loops);
+			final long legacy = legacy(src, loops);
+			final long bulk = bulk(src, loops);
+			final long reused = reused(src, loops);
+			System.out.printf("%,d floats:legacy=%,dMB/s, ArrayUtils=%,dMB/s, PrimitiveArrayCodec(reused)=%,dMB/s%n",
+				size, mbps(size, loops, legacy), mbps(size, loops, bulk), mbps(size, loops, reused));
+		}
+	}
+
+	private static long mbps(final int size, final int loops, final long nanos) {
+		return (long)size * PrimitiveArrayCodec.BYTES_FLOAT * loops * 1000L / Math.max(1, nanos);
+	}
+
+	private static long legacy(final float[] src, final int loops) {
+		final long start = System.nanoTime();
+		for (int i = 0; i < loops; i++) {
+			final float[] dst = legacyByteArrayToFloatArray(legacyFloatArrayToByteArray(src, 0, src.length));
+			assertEquals(src.length, dst.length);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long bulk(final float[] src, final int loops) {
+		final long start = System.nanoTime();
+		for (int i = 0; i < loops; i++) {
+			final float[] dst = ArrayUtils.byteArrayToFloatArray(ArrayUtils.floatArrayToByteArray(src, 0, src.length));
+			assertEquals(src.length, dst.length);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long reused(final float[] src, final int loops) {
+		final byte[] bytes = new byte[src.length * PrimitiveArrayCodec.BYTES_FLOAT];
+		final float[] dst = new float[src.length];
+		final ByteOrder order = ByteOrder.nativeOrder();
+		final long start = System.nanoTime();
+		for (int i = 0; i < loops; i++) {
+			final int len = PrimitiveArrayCodec.encode(src, 0, src.length, bytes, 0, order);
+			assertEquals(src.length, PrimitiveArrayCodec.decode(bytes, 0, len, order, dst, 0));
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * 比較用の以前のArrayUtils#floatArrayToByteArray
+	 */
+	private static byte[] legacyFloatArrayToByteArray(
+		final float[] array, final int offset, final int num) {
+
+		final ByteBuffer buf = ByteBuffer.allocate(num * Float.SIZE / 8);
+		buf.order(ByteOrder.nativeOrder());
+		final int n = offset + num;
+		for (int i = offset; i < n; i++) buf.putFloat(array[i]);
+		buf.flip();
+		return buf.array();
+	}
+
+	/**
+	 * 比較用の以前のArrayUtils#byteArrayToFloatArray
+	 */
+	private static float[] legacyByteArrayToFloatArray(final byte[] bytes) {
+		final ByteBuffer tmp = ByteBuffer.wrap(bytes);
+		tmp.order(ByteOrder.nativeOrder());
+		final int n = tmp.limit() / (Float.SIZE / 8);
+		final float[] array = new float[n];
+		for (int i = 0; i < n; i++) array[i] = tmp.getFloat();
+		return array;
+	}
+}
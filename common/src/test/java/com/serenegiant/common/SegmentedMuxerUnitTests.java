@@ -0,0 +1,478 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.serenegiant.media.FragmentedMp4Muxer;
+import com.serenegiant.media.IMuxer;
+import com.serenegiant.media.SegmentedMuxer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * SegmentedMuxer用のローカルユニットテストクラス
+ * 合成したサンプルを書き込んで、セグメントの切り替えの前後でサンプルが抜けたり
+ * 重複したりせずに連続していることを確認する
+ */
+public class SegmentedMuxerUnitTests {
+
+	private static final int FRAME_RATE = 30;
+	private static final int KEY_FRAME_INTERVAL = 30;
+	private static final int SAMPLE_RATE = 48000;
+	private static final long SEGMENT_DURATION_US = 10000000L;
+
+	/**
+	 * 10秒毎に切り替えた時にサンプルが連続していてセグメントの先頭がキーフレームであることを確認
+	 */
+	@Test
+	public void continuity() throws Exception {
+		final RecordingFactory factory = new RecordingFactory(null);
+		final SegmentedMuxer muxer = new SegmentedMuxer(factory, SEGMENT_DURATION_US, 0);
+		final int video = muxer.addTrack(true, TRACK);
+		final int audio = muxer.addTrack(false, TRACK);
+		muxer.start();
+		final List<Sample> written = feed(muxer, video, audio, 0, 65000000L, true);
+		muxer.stop();
+		muxer.release();
+
+		// 準備していた次のセグメントは破棄される
+		assertEquals(8, factory.muxers.size());
+		assertTrue(factory.discarded.contains(7));
+		assertEquals(1, factory.discarded.size());
+		verifyContinuity(written, factory.muxers.subList(0, 7), true);
+		for (int i = 0; i < 7; i++) {
+			final RecordingMuxer segment = factory.muxers.get(i);
+			// 準備ができていればちょうど10秒毎に切り替わる
+			assertEquals(i * SEGMENT_DURATION_US, segment.firstVideoPtsUs());
+			assertTrue(segment.released);
+		}
+	}
+
+	/**
+	 * 次のセグメントの準備が遅れた時は準備ができた後の最初のキーフレームで切り替えることを確認
+	 */
+	@Test
+	public void delayed() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final RecordingFactory factory = new RecordingFactory(latch);
+		final SegmentedMuxer muxer = new SegmentedMuxer(factory, SEGMENT_DURATION_US, 0);
+		final int video = muxer.addTrack(true, TRACK);
+		final int audio = muxer.addTrack(false, TRACK);
+		muxer.start();
+		// 15秒まで書き込んでも次のセグメントの準備ができていないので切り替わらない
+		final List<Sample> written = feed(muxer, video, audio, 0, 15000000L, false);
+		assertEquals(0, muxer.getCurrentSegment());
+		latch.countDown();
+		waitNextSegment(muxer);
+		written.addAll(feed(muxer, video, audio, 15000000L, 20000000L, false));
+		muxer.stop();
+		assertEquals(1, muxer.getCurrentSegment());
+		verifyContinuity(written, factory.muxers.subList(0, 2), true);
+		assertEquals(15000000L, factory.muxers.get(1).firstVideoPtsUs());
+	}
+
+	/**
+	 * 動画トラックが無い時はサイズで切り替えられることを確認
+	 */
+	@Test
+	public void bytes() throws Exception {
+		final RecordingFactory factory = new RecordingFactory(null);
+		final int maxBytes = 10000;
+		final SegmentedMuxer muxer = new SegmentedMuxer(factory, 0, maxBytes);
+		final int audio = muxer.addTrack(false, TRACK);
+		muxer.start();
+		final List<Sample> written = new ArrayList<>();
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		for (int i = 0; i < 500; i++) {
+			if ((i % 10) == 0) {
+				waitNextSegment(muxer);
+			}
+			final Sample sample = new Sample(audio, i * 1024L * 1000000L / SAMPLE_RATE, 0, 300 + i % 7);
+			write(muxer, info, sample);
+			written.add(sample);
+		}
+		muxer.stop();
+		final List<RecordingMuxer> segments = factory.muxers.subList(0, factory.muxers.size() - 1);
+		verifyContinuity(written, segments, false);
+		for (int i = 0; i < segments.size() - 1; i++) {
+			final int bytes = segments.get(i).bytes();
+			assertTrue(bytes >= maxBytes);
+			assertTrue(bytes < maxBytes + 310);
+		}
+	}
+
+	/**
+	 * FileSegmentFactoryで書き込んだファイルがディスク使用量の上限を超えず、
+	 * 予め確保した領域が切り詰められていることを確認
+	 */
+	@Test
+	public void files() throws Exception {
+		final File dir = File.createTempFile("segments", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		final long quota = 400 * 1024;
+		final SegmentedMuxer.FileSegmentFactory factory = new SegmentedMuxer.FileSegmentFactory(
+			dir, "rec", 64 * 1024, quota, true);
+		final SegmentedMuxer muxer = new SegmentedMuxer(factory, 2000000L, 0);
+		final int video = muxer.addTrack(true, new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer m) {
+				return ((FragmentedMp4Muxer)m).addAvcTrack(320, 240,
+					ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e}),
+					ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80}));
+			}
+		});
+		final int audio = muxer.addTrack(false, new SegmentedMuxer.TrackInitializer() {
+			@Override
+			public int addTrack(@NonNull final IMuxer m) {
+				return ((FragmentedMp4Muxer)m).addAacTrack(SAMPLE_RATE, 1, null);
+			}
+		});
+		muxer.start();
+		feed(muxer, video, audio, 0, 30000000L, true);
+		muxer.stop();
+		muxer.release();
+
+		final File[] files = dir.listFiles();
+		assertNotNull(files);
+		long total = 0;
+		for (final File file: files) {
+			total += file.length();
+			file.deleteOnExit();
+		}
+		assertTrue("total=" + total, total <= quota);
+		final List<File> segments = factory.getSegments();
+		// 古いセグメントは削除されている
+		assertFalse(new File(dir, "rec000000.mp4").exists());
+		assertEquals(new File(dir, "rec000014.mp4"), segments.get(segments.size() - 1));
+		for (final File file: segments) {
+			// 各セグメントは2秒分の動画を含み、予め確保した領域は切り詰められている
+			assertEquals(2 * FRAME_RATE, countVideoSamples(file));
+		}
+		dir.deleteOnExit();
+	}
+
+	/**
+	 * 古いセグメントのファイルを再利用する時に切り詰めずに以前の内容を0で上書きすることを確認
+	 * (残っているとクラッシュした時に古いフラグメントが続いてしまう)
+	 */
+	@Test
+	public void recycle() throws Exception {
+		final File dir = File.createTempFile("segments", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		// 以前の録画のセグメント
+		final File old = new File(dir, "rec000000.mp4");
+		final RandomAccessFile raf = new RandomAccessFile(old, "rw");
+		try {
+			final byte[] stale = new byte[100 * 1024];
+			Arrays.fill(stale, (byte)0x55);
+			raf.write(stale);
+		} finally {
+			raf.close();
+		}
+		final int preallocate = 64 * 1024;
+		final SegmentedMuxer.FileSegmentFactory factory = new SegmentedMuxer.FileSegmentFactory(
+			dir, "rec", preallocate, 150 * 1024, true);
+		// 上限を超えるので以前のセグメントは再利用するファイルになる
+		assertTrue(factory.getSegments().isEmpty());
+		final IMuxer muxer = factory.createMuxer(0);
+		try {
+			assertFalse(old.exists());
+			final File file = new File(dir, "rec000001.mp4");
+			// 確保済みの領域を解放しないように予め確保するサイズより大きくても切り詰めない
+			assertEquals(100 * 1024, file.length());
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				final byte[] bytes = new byte[(int)file.length()];
+				in.readFully(bytes);
+				for (final byte b: bytes) {
+					assertEquals(0, b);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			muxer.release();
+			factory.onSegmentFinished(0, true);
+		}
+		dir.delete();
+	}
+
+//--------------------------------------------------------------------------------
+	private static final SegmentedMuxer.TrackInitializer TRACK = new SegmentedMuxer.TrackInitializer() {
+		@Override
+		public int addTrack(@NonNull final IMuxer muxer) {
+			return muxer.addTrack(null);
+		}
+	};
+
+	private static class Sample {
+		private final int track;
+		private final long ptsUs;
+		private final int flags;
+		private final int size;
+
+		private Sample(final int track, final long ptsUs, final int flags, final int size) {
+			this.track = track;
+			this.ptsUs = ptsUs;
+			this.flags = flags;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * 動画(30fps, 1秒毎にキーフレーム)と音声(AAC 1024サンプル/フレーム)を
+	 * presentationTimeUsの順に書き込む
+	 * @param wait trueならキーフレームの前に次のセグメントの準備ができるまで待つ
+	 */
+	private static List<Sample> feed(final SegmentedMuxer muxer, final int video, final int audio,
+		final long startUs, final long endUs, final boolean wait) throws InterruptedException {
+
+		final List<Sample> result = new ArrayList<>();
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		int videoFrames = (int)(startUs * FRAME_RATE / 1000000L);
+		int audioFrames = (int)((startUs * SAMPLE_RATE / 1000000L + 1023) / 1024);
+		for ( ; ; ) {
+			final long videoPts = videoFrames * 1000000L / FRAME_RATE;
+			final long audioPts = audioFrames * 1024L * 1000000L / SAMPLE_RATE;
+			if ((videoPts >= endUs) && (audioPts >= endUs)) {
+				break;
+			}
+			final Sample sample;
+			if (videoPts <= audioPts) {
+				final boolean isKeyFrame = videoFrames % KEY_FRAME_INTERVAL == 0;
+				if (isKeyFrame && wait) {
+					waitNextSegment(muxer);
+				}
+				sample = new Sample(video, videoPts,
+					isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0, 500 + videoFrames % 100);
+				videoFrames++;
+			} else {
+				sample = new Sample(audio, audioPts, 0, 200);
+				audioFrames++;
+			}
+			write(muxer, info, sample);
+			result.add(sample);
+		}
+		return result;
+	}
+
+	private static void write(final IMuxer muxer,
+		final MediaCodec.BufferInfo info, final Sample sample) {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(sample.size);
+		if (sample.track == 0) {
+			// FragmentedMp4Muxer用にAnnexB形式にする
+			buffer.put(2, (byte)1);
+			buffer.put(3, (byte)((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 ? 0x65 : 0x41));
+			for (int i = 4; i < sample.size; i++) {
+				buffer.put(i, (byte)0x55);
+			}
+		}
+		info.offset = 0;
+		info.size = sample.size;
+		info.presentationTimeUs = sample.ptsUs;
+		info.flags = sample.flags;
+		muxer.writeSampleData(sample.track, buffer, info);
+	}
+
+	private static void waitNextSegment(final SegmentedMuxer muxer) throws InterruptedException {
+		for (int i = 0; (i < 5000) && !muxer.isNextSegmentReady(); i++) {
+			Thread.sleep(1);
+		}
+		assertTrue(muxer.isNextSegmentReady());
+	}
+
+	/**
+	 * 全てのセグメントへ書き込まれたサンプルを順に並べると書き込んだサンプルと一致し、
+	 * 2つ目以降のセグメントの最初のサンプルは動画のキーフレームであることを確認
+	 * @param hasVideo 動画トラック(トラックインデックス0)があるかどうか
+	 */
+	private static void verifyContinuity(final List<Sample> written,
+		final List<RecordingMuxer> segments, final boolean hasVideo) {
+
+		int pos = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			final RecordingMuxer segment = segments.get(i);
+			assertTrue(segment.started);
+			if ((i > 0) && hasVideo) {
+				assertEquals(0, segment.samples.get(0).track);
+				assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, segment.samples.get(0).flags);
+			}
+			for (final Sample sample: segment.samples) {
+				final Sample expected = written.get(pos++);
+				assertEquals(expected.track, sample.track);
+				assertEquals(expected.ptsUs, sample.ptsUs);
+				assertEquals(expected.size, sample.size);
+			}
+		}
+		assertEquals(written.size(), pos);
+	}
+
+	private static int countVideoSamples(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final byte[] bytes = new byte[(int)raf.length()];
+			raf.readFully(bytes);
+			final ByteBuffer buf = ByteBuffer.wrap(bytes);
+			assertEquals(0x66747970, buf.getInt(4));	// ftyp
+			int result = 0;
+			int pos = 0;
+			while (pos < bytes.length) {
+				final int size = buf.getInt(pos);
+				assertTrue(size >= 8);
+				if (buf.getInt(pos + 4) == 0x6d6f6f66) {	// moof
+					// mfhdの後ろにトラック毎のtraf(tfhd, tfdt, trun)が続く
+					int traf = pos + 8 + buf.getInt(pos + 8);
+					while (traf < pos + size) {
+						final int tfhd = traf + 8;
+						final int tfdt = tfhd + buf.getInt(tfhd);
+						final int trun = tfdt + buf.getInt(tfdt);
+						if (buf.getInt(tfhd + 12) == 1) {	// track_ID
+							result += buf.getInt(trun + 12);	// sample_count
+						}
+						traf += buf.getInt(traf);
+					}
+				}
+				pos += size;
+			}
+			// ファイルの末尾がボックスの終わりと一致する
+			assertEquals(bytes.length, pos);
+			return result;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 書き込まれたサンプルを記録するだけのIMuxer
+	 */
+	private static class RecordingMuxer implements IMuxer {
+		private final List<Sample> samples = new ArrayList<>();
+		private int numTracks;
+		private volatile boolean started;
+		private volatile boolean released;
+
+		@Override
+		public int addTrack(final MediaFormat format) {
+			return numTracks++;
+		}
+
+		@Override
+		public void writeSampleData(final int trackIndex,
+			@NonNull final ByteBuffer byteBuf, @NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+			assertTrue(started);
+			samples.add(new Sample(trackIndex,
+				bufferInfo.presentationTimeUs, bufferInfo.flags, bufferInfo.size));
+		}
+
+		@Override
+		public void start() {
+			started = true;
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void release() {
+			released = true;
+		}
+
+		@Override
+		public boolean isStarted() {
+			return started;
+		}
+
+		private long firstVideoPtsUs() {
+			for (final Sample sample: samples) {
+				if (sample.track == 0) {
+					return sample.ptsUs;
+				}
+			}
+			return -1;
+		}
+
+		private int bytes() {
+			int result = 0;
+			for (final Sample sample: samples) {
+				result += sample.size;
+			}
+			return result;
+		}
+	}
+
+	private static class RecordingFactory implements SegmentedMuxer.SegmentFactory {
+		private final CountDownLatch latch;
+		private final List<RecordingMuxer> muxers = new ArrayList<>();
+		private final List<Integer> discarded = new ArrayList<>();
+
+		/**
+		 * @param latch nullでなければ2つ目以降のセグメントの生成をlatchがカウントダウンされるまで待つ
+		 */
+		private RecordingFactory(final CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@NonNull
+		@Override
+		public IMuxer createMuxer(final int index) throws IOException {
+			if ((latch != null) && (index > 0)) {
+				try {
+					latch.await();
+				} catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			final RecordingMuxer result = new RecordingMuxer();
+			synchronized (muxers) {
+				assertEquals(index, muxers.size());
+				muxers.add(result);
+			}
+			return result;
+		}
+
+		@Override
+		public void onSegmentFinished(final int index, final boolean discarded) {
+			if (discarded) {
+				synchronized (this.discarded) {
+					this.discarded.add(index);
+				}
+			}
+		}
+	}
+}
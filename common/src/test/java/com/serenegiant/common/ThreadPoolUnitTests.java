@@ -0,0 +1,192 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.PriorityThreadPoolExecutor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * PriorityThreadPoolExecutor用のローカルユニットテストクラス
+ * 多数の短いタスクを実行した時のタスク/秒を以前のThreadPoolと同じ設定の
+ * ThreadPoolExecutorと比較して出力する(結果は標準出力へ出力するだけ)
+ */
+public class ThreadPoolUnitTests {
+
+	private static final int NUM_TASKS = 10000;
+	private static final int NUM_SLEEP_TASKS = 1000;
+	private static final int PARALLELISM = 8;
+
+	/**
+	 * 優先度の高いタスクから実行し同じ優先度ならFIFO/LIFOの順に実行することを確認
+	 */
+	@Test
+	public void order() throws Exception {
+		for (final boolean lifo: new boolean[] {false, true}) {
+			final PriorityThreadPoolExecutor executor
+				= new PriorityThreadPoolExecutor(1, 10, TimeUnit.SECONDS);
+			executor.setLifo(lifo);
+			final List<String> result = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			// 最初のタスクはキューを経由せずに実行されるのでキューへ追加する間ブロックしておく
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						release.await();
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+			});
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			executor.execute(new Name(result, "low1"), PriorityThreadPoolExecutor.PRIORITY_LOW);
+			executor.execute(new Name(result, "normal1"));
+			executor.execute(new Name(result, "high1"), PriorityThreadPoolExecutor.PRIORITY_HIGH);
+			executor.execute(new Name(result, "normal2"));
+			executor.execute(new Name(result, "high2"), PriorityThreadPoolExecutor.PRIORITY_HIGH);
+			final Runnable cancelled = new Name(result, "cancelled");
+			executor.execute(cancelled);
+			assertEquals(6, executor.getPendingCount());
+			assertTrue(executor.remove(cancelled));
+			assertFalse(executor.remove(cancelled));
+			assertEquals(5, executor.getPendingCount());
+			release.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+			if (lifo) {
+				assertEquals("[high2, high1, normal2, normal1, low1]", result.toString());
+			} else {
+				assertEquals("[high1, high2, normal1, normal2, low1]", result.toString());
+			}
+			assertEquals(0, executor.getPendingCount());
+			assertTrue(executor.getMaxWaitTimeNs() > 0);
+		}
+	}
+
+	/**
+	 * 一時停止中はタスクを実行しないことを確認
+	 */
+	@Test
+	public void pause() throws Exception {
+		final PriorityThreadPoolExecutor executor
+			= new PriorityThreadPoolExecutor(PARALLELISM, 10, TimeUnit.SECONDS);
+		final AtomicInteger count = new AtomicInteger();
+		executor.pause();
+		for (int i = 0; i < 10; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					count.incrementAndGet();
+				}
+			});
+		}
+		Thread.sleep(100);
+		assertEquals(0, count.get());
+		executor.resume();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(10, count.get());
+	}
+
+	/**
+	 * 多数の短いタスクを実行した時のタスク/秒と最大スレッド数を
+	 * 以前のThreadPoolと同じ設定(コアスレッド数1, 最大32, LinkedBlockingQueue)と比較する
+	 * 空のタスクはオーバーヘッド, 1ミリ秒待機するタスクはI/O待ちを含む読み込みの代わり
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		for (final boolean sleep: new boolean[] {false, true}) {
+			final int numTasks = sleep ? NUM_SLEEP_TASKS : NUM_TASKS;
+			final ThreadPoolExecutor current = new ThreadPoolExecutor(
+				1, 32, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			current.allowCoreThreadTimeOut(true);
+			final long t1 = run(current, numTasks, sleep);
+			final int threads1 = current.getLargestPoolSize();
+			final PriorityThreadPoolExecutor executor
+				= new PriorityThreadPoolExecutor(PARALLELISM, 10, TimeUnit.SECONDS);
+			final long t2 = run(executor, numTasks, sleep);
+			final int threads2 = executor.getLargestPoolSize();
+			System.out.printf("%,d %s tasks:ThreadPoolExecutor=%,d tasks/s(%d threads), "
+				+ "PriorityThreadPoolExecutor=%,d tasks/s(%d threads), avg wait=%,dus%n",
+				numTasks, sleep ? "1ms" : "empty",
+				numTasks * 1000000000L / t1, threads1,
+				numTasks * 1000000000L / t2, threads2,
+				executor.getAverageWaitTimeNs() / 1000);
+			assertEquals(1, threads1);
+			assertTrue(threads2 > 1);
+		}
+	}
+
+	private static long run(final ExecutorService executor,
+		final int numTasks, final boolean sleep) throws Exception {
+
+		final CountDownLatch finished = new CountDownLatch(numTasks);
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (sleep) {
+					try {
+						Thread.sleep(1);
+					} catch (final InterruptedException e) {
+						// ignore
+					}
+				}
+				finished.countDown();
+			}
+		};
+		final long start = System.nanoTime();
+		for (int i = 0; i < numTasks; i++) {
+			executor.execute(task);
+		}
+		assertTrue(finished.await(60, TimeUnit.SECONDS));
+		final long time = System.nanoTime() - start;
+		executor.shutdown();
+		return time;
+	}
+
+	private static class Name implements Runnable {
+		private final List<String> mResult;
+		private final String mName;
+
+		private Name(final List<String> result, final String name) {
+			mResult = result;
+			mName = name;
+		}
+
+		@Override
+		public void run() {
+			mResult.add(mName);
+		}
+	}
+}
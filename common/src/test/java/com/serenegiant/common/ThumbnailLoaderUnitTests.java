@@ -0,0 +1,250 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.CoalescingLoader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.*;
+
+/**
+ * ThumbnailCacheのサムネイル読み込みに使うCoalescingLoader用のローカルユニットテストクラス
+ * MediaStoreの代わりに一定時間待機する偽のデコーダーを使って
+ * sSyncでロックしたまま読み込む従来の方法とのサムネイル/秒も出力する
+ * (結果は標準出力へ出力するだけ)
+ */
+public class ThumbnailLoaderUnitTests {
+
+	private static final int NUM_THUMBNAILS = 200;	// スレッド毎の読み込み数
+	private static final long DECODE_TIME_MS = 4;		// MediaStoreからの読み込み時間
+	private static final long ORIENTATION_TIME_MS = 1;	// 向きの問い合わせ時間
+	private static final int MAX_CONCURRENCY = 8;
+
+	/**
+	 * 同じキーを同時に要求した時は1回だけ読み込むことを確認
+	 */
+	@Test
+	public void coalesce() throws Exception {
+		final CoalescingLoader<String, String> loader
+			= new CoalescingLoader<String, String>(MAX_CONCURRENCY);
+		final AtomicInteger loadCount = new AtomicInteger();
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CoalescingLoader.Loader<String, String> decoder
+			= new CoalescingLoader.Loader<String, String>() {
+			@Override
+			public String load(@NonNull final String key) throws IOException {
+				loadCount.incrementAndGet();
+				loading.countDown();
+				try {
+					release.await();
+				} catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+				return "thumbnail:" + key;
+			}
+		};
+		final int numThreads = 8;
+		final CountDownLatch finished = new CountDownLatch(numThreads);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		for (int i = 0; i < numThreads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						assertEquals("thumbnail:k1", loader.load("k1", decoder));
+					} catch (final Throwable e) {
+						error.set(e);
+					} finally {
+						finished.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(loading.await(5, TimeUnit.SECONDS));
+		// 全てのスレッドが待機するまで待つ
+		final long timeout = System.currentTimeMillis() + 5000;
+		while ((loader.getCoalescedCount() < numThreads - 1)
+			&& (System.currentTimeMillis() < timeout)) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		assertNull(error.get());
+		assertEquals(1, loadCount.get());
+		assertEquals(numThreads - 1, loader.getCoalescedCount());
+		assertEquals(0, loader.getInFlightCount());
+		// 読み込みが終わった後は再度読み込む
+		assertEquals("thumbnail:k1", loader.load("k1", decoder));
+		assertEquals(2, loadCount.get());
+	}
+
+	/**
+	 * Loaderが投げた例外をそのまま投げて読み込み中のキーから削除することを確認
+	 */
+	@Test
+	public void error() throws Exception {
+		final CoalescingLoader<String, String> loader
+			= new CoalescingLoader<String, String>(1);
+		try {
+			loader.load("k1", new CoalescingLoader.Loader<String, String>() {
+				@Override
+				public String load(@NonNull final String key) throws IOException {
+					throw new IOException("failed");
+				}
+			});
+			fail();
+		} catch (final IOException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		assertEquals(0, loader.getInFlightCount());
+	}
+
+	/**
+	 * 1〜8スレッドから異なるサムネイルを読み込んだ時のサムネイル/秒を
+	 * sSyncでロックしたまま読み込む従来の方法と比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		for (int numThreads = 1; numThreads <= 8; numThreads *= 2) {
+			final FakeThumbnailCache locked = new FakeThumbnailCache(null);
+			final long t1 = run(numThreads, locked);
+			final FakeThumbnailCache coalescing = new FakeThumbnailCache(
+				new CoalescingLoader<String, byte[]>(MAX_CONCURRENCY));
+			final long t2 = run(numThreads, coalescing);
+			// 全スレッド共通のサムネイルはどちらも1回だけデコードする
+			final int expected = NUM_THUMBNAILS / 2 + numThreads * NUM_THUMBNAILS / 2;
+			assertEquals(expected, locked.mDecodeCount.get());
+			assertEquals(expected, coalescing.mDecodeCount.get());
+			System.out.printf("%d threads:sSync=%,d thumbnails/s, CoalescingLoader=%,d thumbnails/s%n",
+				numThreads,
+				numThreads * NUM_THUMBNAILS * 1000000000L / t1,
+				numThreads * NUM_THUMBNAILS * 1000000000L / t2);
+		}
+	}
+
+	/**
+	 * 各スレッドからスレッド毎に異なるサムネイルと全スレッド共通のサムネイルを交互に読み込む
+	 * @param numThreads
+	 * @param cache
+	 * @return 経過時間[ナノ秒]
+	 */
+	private static long run(final int numThreads, final FakeThumbnailCache cache)
+		throws Exception {
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(numThreads);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		for (int i = 0; i < numThreads; i++) {
+			final int offset = i * NUM_THUMBNAILS;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < NUM_THUMBNAILS; j++) {
+							// 偶数番目は全スレッド共通のid, 奇数番目はスレッド毎に異なるid
+							final long id = (j & 1) == 0 ? j : NUM_THUMBNAILS * 100 + offset + j;
+							assertNotNull(cache.getThumbnail(id));
+						}
+					} catch (final Throwable e) {
+						error.set(e);
+					} finally {
+						finished.countDown();
+					}
+				}
+			}).start();
+		}
+		final long startTime = System.nanoTime();
+		start.countDown();
+		finished.await();
+		final long time = System.nanoTime() - startTime;
+		assertNull(error.get());
+		return time;
+	}
+
+	/**
+	 * ThumbnailCache#getImageThumbnailと同じ処理をする偽のサムネイルキャッシュ
+	 * loaderがnullなら従来と同じく全体をロックしたまま読み込む
+	 */
+	private static class FakeThumbnailCache {
+		private final Object mSync = new Object();
+		private final ConcurrentHashMap<String, byte[]> mCache
+			= new ConcurrentHashMap<String, byte[]>();
+		private final CoalescingLoader<String, byte[]> mLoader;
+		private final AtomicInteger mDecodeCount = new AtomicInteger();
+
+		private FakeThumbnailCache(final CoalescingLoader<String, byte[]> loader) {
+			mLoader = loader;
+		}
+
+		private byte[] getThumbnail(final long id) throws IOException {
+			final String key = Long.toHexString(id);
+			byte[] result = mCache.get(key);
+			if (result == null) {
+				if (mLoader == null) {
+					synchronized (mSync) {
+						result = mCache.get(key);
+						if (result == null) {
+							result = decode(id);
+							mCache.put(key, result);
+						}
+					}
+				} else {
+					result = mLoader.load(key, new CoalescingLoader.Loader<String, byte[]>() {
+						@Override
+						public byte[] load(@NonNull final String key) throws IOException {
+							byte[] result = mCache.get(key);
+							if (result == null) {
+								result = decode(id);
+								mCache.put(key, result);
+							}
+							return result;
+						}
+					});
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * 偽のデコーダー, MediaStoreからの読み込みと向きの問い合わせの代わりに待機する
+		 */
+		private byte[] decode(final long id) throws IOException {
+			mDecodeCount.incrementAndGet();
+			try {
+				Thread.sleep(DECODE_TIME_MS);
+				Thread.sleep(ORIENTATION_TIME_MS);
+			} catch (final InterruptedException e) {
+				throw new IOException(e);
+			}
+			return new byte[] {(byte)id};
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.mediastore.ThumbnailPrefetcher;
+import com.serenegiant.utils.ThreadPool;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * ThumbnailPrefetcher用のローカルユニットテストクラス
+ * 50000アイテムをフリング/ゆっくりスクロールした時のキャッシュのヒット率と読み込み数も出力する
+ * (結果は標準出力へ出力するだけ)
+ */
+public class ThumbnailPrefetcherUnitTests {
+
+	private static final int NUM_ITEMS = 50000;
+	private static final int NUM_VISIBLE = 20;
+	private static final int FRAME_MS = 16;
+
+	/**
+	 * スクロール方向の表示範囲外を同時読み込み数の上限以下で先読みすることを確認
+	 */
+	@Test
+	public void prefetch() throws Exception {
+		final FakeCallback callback = new FakeCallback(2);
+		final ThumbnailPrefetcher prefetcher = new ThumbnailPrefetcher(callback, 12, 4, 60);
+		prefetcher.onVisibleRangeChanged(0, 9, 0, 1000);
+		waitFor(prefetcher, 12);
+		for (int i = 10; i < 22; i++) {
+			assertTrue(callback.mCached.contains(i));
+		}
+		assertTrue(callback.mMaxConcurrent.get() <= 4);
+		// 逆方向へスクロールすると表示範囲の前を先読みする
+		prefetcher.onVisibleRangeChanged(100, 109, -10, 1000);
+		waitFor(prefetcher, 24);
+		assertTrue(callback.mCached.contains(88));
+		assertFalse(callback.mCached.contains(110));
+		assertEquals(0, prefetcher.getWastedDecodeCount());
+	}
+
+	/**
+	 * フリング中は先読みせず、表示範囲が変わると未実行の先読みを取り消すことを確認
+	 * 減速しながらフリングした時とゆっくりスクロールした時の統計も出力する
+	 */
+	@Test
+	public void flingAndCancel() throws Exception {
+		final FakeCallback callback = new FakeCallback(2);
+		final ThumbnailPrefetcher prefetcher = new ThumbnailPrefetcher(callback, 12, 4, 60);
+		prefetcher.onVisibleRangeChanged(0, 9, 1000, NUM_ITEMS);
+		assertEquals(0, prefetcher.getInFlightCount());
+		// 一時停止して先読み要求をキューに溜めてから表示範囲を動かす
+		ThreadPool.pause();
+		try {
+			prefetcher.onVisibleRangeChanged(0, 9, 10, NUM_ITEMS);
+			assertEquals(4, prefetcher.getInFlightCount());
+			prefetcher.onVisibleRangeChanged(5000, 5009, 1000, NUM_ITEMS);
+			assertEquals(0, prefetcher.getInFlightCount());
+			assertEquals(4, prefetcher.getCancelledCount());
+		} finally {
+			ThreadPool.resume();
+		}
+		// 減速しながらフリングして停止する
+		simulate("fling", prefetcher, callback, 3000, 0.95f, 200);
+		// 一定速度でゆっくりスクロールする
+		simulate("scroll", prefetcher, callback, 20, 1.0f, 150);
+		assertTrue(prefetcher.getInFlightCount() <= 4);
+	}
+
+	/**
+	 * 表示中のアイテムがキャッシュになければその場で読み込みながらスクロールして
+	 * 新たに表示したアイテムのキャッシュのヒット率と先読みの統計を出力する
+	 * @param label
+	 * @param prefetcher
+	 * @param callback
+	 * @param velocity 初速[アイテム/秒]
+	 * @param decay フレーム毎の減速率
+	 * @param numFrames
+	 */
+	private static void simulate(final String label,
+		final ThumbnailPrefetcher prefetcher, final FakeCallback callback,
+		float velocity, final float decay, final int numFrames) throws InterruptedException {
+
+		prefetcher.resetStats();
+		callback.mCached.clear();
+		float pos = 0;
+		int shown = 0, prevLast = -1;
+		for (int frame = 0; (frame < numFrames) && (velocity > 1); frame++) {
+			final int first = Math.min((int)pos, NUM_ITEMS - NUM_VISIBLE);
+			final int last = first + NUM_VISIBLE - 1;
+			prefetcher.onVisibleRangeChanged(first, last, velocity, NUM_ITEMS);
+			// 新たに表示したアイテムのみ記録する
+			for (int i = Math.max(first, prevLast + 1); i <= last; i++) {
+				final boolean hit = callback.mCached.contains(i);
+				prefetcher.recordLookup(hit);
+				if (!hit) {
+					callback.mCached.add(i);
+				}
+				shown++;
+			}
+			prevLast = last;
+			Thread.sleep(FRAME_MS);
+			pos += velocity * FRAME_MS / 1000;
+			velocity *= decay;
+		}
+		final int first = Math.min((int)pos, NUM_ITEMS - NUM_VISIBLE);
+		prefetcher.onVisibleRangeChanged(first, first + NUM_VISIBLE - 1, 0, NUM_ITEMS);
+		Thread.sleep(200);
+		System.out.printf("%s:%,d items shown, hit rate=%.1f%%, prefetch decodes=%d, wasted=%d, cancelled=%d%n",
+			label, shown, prefetcher.getHitRate() * 100,
+			prefetcher.getDecodeCount(), prefetcher.getWastedDecodeCount(),
+			prefetcher.getCancelledCount());
+	}
+
+	private static void waitFor(final ThumbnailPrefetcher prefetcher, final int decodeCount)
+		throws InterruptedException {
+
+		final long timeout = System.currentTimeMillis() + 5000;
+		while ((prefetcher.getDecodeCount() < decodeCount)
+			&& (System.currentTimeMillis() < timeout)) {
+			Thread.sleep(5);
+		}
+		assertEquals(decodeCount, prefetcher.getDecodeCount());
+	}
+
+	/**
+	 * 一定時間待機してからキャッシュへ追加する偽の先読み処理
+	 */
+	private static class FakeCallback implements ThumbnailPrefetcher.Callback {
+		private final long mDecodeTimeMs;
+		private final Set<Integer> mCached
+			= Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		private final AtomicInteger mConcurrent = new AtomicInteger();
+		private final AtomicInteger mMaxConcurrent = new AtomicInteger();
+
+		private FakeCallback(final long decodeTimeMs) {
+			mDecodeTimeMs = decodeTimeMs;
+		}
+
+		@Override
+		public boolean prefetch(final int position) throws Exception {
+			if (mCached.contains(position)) {
+				return false;
+			}
+			final int n = mConcurrent.incrementAndGet();
+			int max;
+			while (n > (max = mMaxConcurrent.get())) {
+				if (mMaxConcurrent.compareAndSet(max, n)) break;
+			}
+			try {
+				Thread.sleep(mDecodeTimeMs);
+				mCached.add(position);
+			} finally {
+				mConcurrent.decrementAndGet();
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.serenegiant.common;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2021 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.db.CompiledUriMatcher;
+import com.serenegiant.db.UriMatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * UriMatcher/CompiledUriMatcher用のローカルユニットテストクラス
+ * android.net.Uriはローカルユニットテストでは使えないので
+ * authorityとパスセグメントを直接渡して照合する。
+ * 数百個のテーブルを登録した時の1回あたりの照合時間も出力する(結果は標準出力へ出力するだけ)
+ */
+public class UriMatcherUnitTests {
+
+	private static final String AUTHORITY = "com.serenegiant.provider";
+	private static final int NUM_TABLES = 300;
+	private static final int NUM_MATCHES = 200000;
+
+	/**
+	 * 登録順で先に一致したものを使うUriMatcherと同じ結果を返すことを確認
+	 */
+	@Test
+	public void match() throws Exception {
+		final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+		matcher.addURI(AUTHORITY, "people", 1);
+		matcher.addURI(AUTHORITY, "people/#", 2);
+		matcher.addURI(AUTHORITY, "people/#/phones", 3);
+		matcher.addURI(AUTHORITY, "people/filter/*", 4);
+		// 数字の子ノードが固定文字列より先に登録されている
+		matcher.addURI(AUTHORITY, "calls/#", 5);
+		matcher.addURI(AUTHORITY, "calls/100", 6);
+		matcher.addURI(AUTHORITY, "calls/latest", 7);
+		// "*"が先に登録されていると後の固定文字列には一致しない
+		matcher.addURI(AUTHORITY, "any/*", 8);
+		matcher.addURI(AUTHORITY, "any/fixed", 9);
+		matcher.addURI("*", "wild", 10);
+		final CompiledUriMatcher compiled = matcher.compile();
+		final Object[][] expected = {
+			{AUTHORITY, path(), UriMatcher.NO_MATCH},
+			{AUTHORITY, path("people"), 1},
+			{AUTHORITY, path("people", "123"), 2},
+			{AUTHORITY, path("people", "-123"), 2},
+			{AUTHORITY, path("people", "12a"), UriMatcher.NO_MATCH},
+			{AUTHORITY, path("people", "123", "phones"), 3},
+			{AUTHORITY, path("people", "filter", "abc"), 4},
+			{AUTHORITY, path("people", "filter"), UriMatcher.NO_MATCH},
+			{AUTHORITY, path("calls", "100"), 5},
+			{AUTHORITY, path("calls", "latest"), 7},
+			{AUTHORITY, path("any", "fixed"), 8},
+			{"other", path("wild"), 10},
+			{"other", path("people"), UriMatcher.NO_MATCH},
+			{null, path(), UriMatcher.NO_MATCH},
+		};
+		for (final Object[] e: expected) {
+			@SuppressWarnings("unchecked")
+			final List<String> segments = (List<String>)e[1];
+			final String msg = e[0] + "/" + segments;
+			assertEquals(msg, e[2], matcher.match((String)e[0], segments));
+			assertEquals(msg, e[2], compiled.match((String)e[0], segments));
+		}
+		// compile後に追加したものはCompiledUriMatcherへ反映されない
+		matcher.addURI(AUTHORITY, "later", 11);
+		assertEquals(11, matcher.match(AUTHORITY, path("later")));
+		assertEquals(UriMatcher.NO_MATCH, compiled.match(AUTHORITY, path("later")));
+	}
+
+	/**
+	 * 数百個のテーブルを登録した時の照合時間をUriMatcherと比較する
+	 */
+	@Test
+	public void benchmark() throws Exception {
+		final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+		int code = 0;
+		for (int i = 0; i < NUM_TABLES; i++) {
+			final String table = "table" + i;
+			matcher.addURI(AUTHORITY, table, code++);
+			matcher.addURI(AUTHORITY, table + "/#", code++);
+			matcher.addURI(AUTHORITY, table + "/#/items", code++);
+			matcher.addURI(AUTHORITY, table + "/#/items/#", code++);
+			matcher.addURI(AUTHORITY, table + "/filter/*", code++);
+		}
+		final CompiledUriMatcher compiled = matcher.compile();
+		final Random random = new Random(1);
+		final List<List<String>> paths = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			final String table = "table" + random.nextInt(NUM_TABLES + 10);
+			switch (random.nextInt(5)) {
+			case 0:	paths.add(path(table)); break;
+			case 1:	paths.add(path(table, Integer.toString(random.nextInt(10000)))); break;
+			case 2:	paths.add(path(table, Integer.toString(random.nextInt(10000)), "items")); break;
+			case 3:	paths.add(path(table, "12", "items", Integer.toString(random.nextInt(10000)))); break;
+			default:	paths.add(path(table, "filter", "name" + i)); break;
+			}
+		}
+		for (final List<String> segments: paths) {
+			assertEquals(segments.toString(),
+				matcher.match(AUTHORITY, segments), compiled.match(AUTHORITY, segments));
+		}
+		// ウオームアップ
+		linear(matcher, paths);
+		compiled(compiled, paths);
+		final long linear = linear(matcher, paths);
+		final long hashed = compiled(compiled, paths);
+		System.out.printf("%,d patterns:UriMatcher=%,dns/match, CompiledUriMatcher=%,dns/match%n",
+			code, linear, hashed);
+	}
+
+	private static long linear(final UriMatcher matcher, final List<List<String>> paths) {
+		final int n = paths.size();
+		long sum = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < NUM_MATCHES; i++) {
+			sum += matcher.match(AUTHORITY, paths.get(i % n));
+		}
+		final long time = System.nanoTime() - start;
+		assertTrue(sum != 0);
+		return time / NUM_MATCHES;
+	}
+
+	private static long compiled(final CompiledUriMatcher matcher, final List<List<String>> paths) {
+		final int n = paths.size();
+		long sum = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < NUM_MATCHES; i++) {
+			sum += matcher.match(AUTHORITY, paths.get(i % n));
+		}
+		final long time = System.nanoTime() - start;
+		assertTrue(sum != 0);
+		return time / NUM_MATCHES;
+	}
+
+	private static List<String> path(final String... segments) {
+		return segments.length == 0
+			? Collections.<String>emptyList()
+			: Collections.unmodifiableList(Arrays.asList(segments));
+	}
+}